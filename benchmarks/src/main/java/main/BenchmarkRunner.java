@@ -0,0 +1,75 @@
+package main;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs the JMH benchmarks once for every thread count asked for, since JMH itself takes only one.
+// Usage: java main.BenchmarkRunner [benchmark regex ...] [--threads=1,4,16]
+//        [--stations=10000,100000,1000000] [--forks=N] [--result=file.json]
+// --stations overrides the sizes of every benchmark with a stations parameter. ExpiryBenchmark
+// only runs at one thread, as the sweep does in the server, so it is left out at other counts.
+public class BenchmarkRunner {
+    private static final String SINGLE_THREADED = ExpiryBenchmark.class.getSimpleName();
+
+    public static void main(String[] args) throws RunnerException {
+        List<String> includes = new ArrayList<>();
+        int[] threads = {1};
+        String[] stations = null;
+        Integer forks = null;
+        String result = null;
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                String[] counts = arg.substring("--threads=".length()).split(",");
+                threads = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    threads[i] = Integer.parseInt(counts[i].trim());
+                }
+            } else if (arg.startsWith("--stations=")) {
+                stations = arg.substring("--stations=".length()).split(",");
+            } else if (arg.startsWith("--forks=")) {
+                forks = Integer.parseInt(arg.substring("--forks=".length()));
+            } else if (arg.startsWith("--result=")) {
+                result = arg.substring("--result=".length());
+            } else {
+                includes.add(arg);
+            }
+        }
+        if (includes.isEmpty()) {
+            includes.add(BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark");
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            ChainedOptionsBuilder options = options(includes, stations, forks, result, threads[i], i).threads(threads[i]);
+            if (threads[i] != 1) {
+                options.exclude(SINGLE_THREADED); // the sweep only ever runs on one thread
+            }
+            new Runner(options.build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder options(List<String> includes, String[] stations, Integer forks,
+                                                 String result, int threads, int run) {
+        ChainedOptionsBuilder options = new OptionsBuilder();
+        for (String include : includes) {
+            options.include(include);
+        }
+        if (stations != null) {
+            options.param("stations", stations);
+        }
+        if (forks != null) {
+            options.forks(forks);
+        }
+        if (result != null) {
+            // one file per thread count
+            String file = run == 0 ? result : result.replaceFirst("(\\.json)?$", "-t" + threads + "$1");
+            options.result(file).resultFormat(ResultFormatType.JSON);
+        }
+        return options;
+    }
+}
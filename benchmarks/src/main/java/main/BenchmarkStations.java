@@ -0,0 +1,59 @@
+package main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// Stations for the benchmarks, and the requests that load them into the server's store
+public class BenchmarkStations {
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+    private static final int BATCH = 1000;
+
+    public static String id(int station) {
+        return String.format("IDB%07d", station);
+    }
+
+    // Method to render a station the way content servers send it, with readings that vary by station
+    public static String json(int station) {
+        return "{\n"
+                + "    \"id\": \"" + id(station) + "\",\n"
+                + "    \"name\": \"Bench station " + station + "\",\n"
+                + "    \"state\": \"" + STATES[station % STATES.length] + "\",\n"
+                + "    \"time_zone\": \"CST\",\n"
+                + "    \"lat\": " + (-44 + station % 3400 / 100.0) + ",\n"
+                + "    \"lon\": " + (113 + station % 4100 / 100.0) + ",\n"
+                + "    \"air_temp\": " + (station % 400 / 10.0) + ",\n"
+                + "    \"press\": " + (1000 + station % 300 / 10.0) + ",\n"
+                + "    \"rel_hum\": " + station % 100 + ",\n"
+                + "    \"wind_dir\": \"S\",\n"
+                + "    \"wind_spd_kmh\": " + station % 60 + "\n"
+                + "}";
+    }
+
+    public static HttpRequest put(byte[] body) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("content-type", "application/json");
+        headers.put("content-length", String.valueOf(body.length));
+        return new HttpRequest("PUT", "/weather.json", "HTTP/1.1", headers, body);
+    }
+
+    public static HttpRequest get(String target) {
+        return new HttpRequest("GET", target, "HTTP/1.1", Collections.emptyMap(), new byte[0]);
+    }
+
+    // Method to store stations 0 to count - 1 through the PUT path, a batch at a time
+    public static void load(int count) {
+        for (int first = 0; first < count; first += BATCH) {
+            StringBuilder batch = new StringBuilder("[");
+            for (int station = first; station < Math.min(count, first + BATCH); station++) {
+                batch.append(station == first ? "" : ",").append(json(station));
+            }
+            HttpResponse response = AggregationServer.RequestHandler.process(
+                    put(batch.append(']').toString().getBytes(StandardCharsets.UTF_8)));
+            if (response.getStatus() != 200) {
+                throw new IllegalStateException("Loading stations failed with " + response.getStatus());
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The content server's side of a PUT: reading its input file and rendering the stations as JSON,
+// for inputs of the given number of stations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentServerBenchmark {
+    @Param({"1", "100", "10000"})
+    public int stations;
+
+    private File input;
+    private List<WeatherData> parsed;
+
+    @Setup(Level.Trial)
+    public void writeInput() throws IOException {
+        input = File.createTempFile("weather_bench", ".txt");
+        input.deleteOnExit();
+        try (Writer writer = new FileWriter(input)) {
+            for (int i = 0; i < stations; i++) {
+                writer.write("id:" + BenchmarkStations.id(i) + "\nname:Bench station " + i + "\nstate:SA\n"
+                        + "time_zone:CST\nlat:-34.9\nlon:138.6\nlocal_date_time:15/04:00pm\n"
+                        + "local_date_time_full:20230715160000\nair_temp:13.3\napparent_t:9.5\ncloud:Partly cloudy\n"
+                        + "dewpt:5.7\npress:1023.9\nrel_hum:60\nwind_dir:S\nwind_spd_kmh:15\nwind_spd_kt:8\n\n");
+            }
+        }
+        parsed = new ArrayList<>(ContentServer.parseInputFileStations(input.getPath()));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInput() {
+        input.delete();
+    }
+
+    @Benchmark
+    public List<WeatherData> parseInputFile() {
+        return ContentServer.parseInputFileStations(input.getPath());
+    }
+
+    @Benchmark
+    public String convertWeatherDataToJson() {
+        return parsed.size() == 1
+                ? ContentServer.convertWeatherDataToJson(parsed.get(0))
+                : ContentServer.convertWeatherDataToJson(parsed);
+    }
+}
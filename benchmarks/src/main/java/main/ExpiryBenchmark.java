@@ -0,0 +1,50 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// One expiry sweep that removes every station of a store holding the given number of them. Each
+// measurement loads the stations with deadlines that have just passed and then runs
+// expungeExpiredData once. Sweeps run on the single sweeper thread, so this runs on one thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx4g"})
+public class ExpiryBenchmark {
+    // how long before its expiry a station is loaded, long enough for the whole load to finish
+    private static final long LEAD = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int stations;
+
+    private long lamportTime;
+
+    // stored as copies from a peer, which keep the receive time they are given
+    @Setup(Level.Invocation)
+    public void loadExpiring() throws InterruptedException {
+        long last = 0;
+        for (int i = 0; i < stations; i++) {
+            last = System.currentTimeMillis() - AggregationServer.EXPIRY_TIME + LEAD;
+            AggregationServer.applyReplicated(new ReplicationLog.Entry(0, BenchmarkStations.id(i),
+                    BenchmarkStations.json(i), last, ++lamportTime, "bench"));
+        }
+        // wait for the last deadline, and the wheel tick it falls in, to pass
+        long wait = last + AggregationServer.EXPIRY_TIME + 500 - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    @Benchmark
+    public int expungeExpiredData() {
+        int expired = AggregationServer.expungeExpiredData();
+        if (expired != stations) {
+            throw new IllegalStateException("Expected " + stations + " stations to expire, not " + expired);
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,85 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// GET responses from a store holding the given number of stations: the whole feed while nothing
+// changes (served from the snapshot), the same feed written out with a gathering write as the nio
+// engine sends it, the whole feed after every PUT (the snapshot is rebuilt), and one station
+// looked up by id
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx4g"})
+public class GetBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int stations;
+
+    private long loadedAt;
+    private byte[] change;
+    private FileChannel sink;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = (int) (Thread.currentThread().getId() * 7919);
+    }
+
+    // /dev/null takes every write whole without copying it, so what is measured is getting the
+    // bytes to the kernel
+    @Setup(Level.Trial)
+    public void openSink() throws IOException {
+        sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeSink() throws IOException {
+        sink.close();
+    }
+
+    // the stations are loaded again before they would expire, which would empty the feed
+    @Setup(Level.Iteration)
+    public void load() {
+        if (System.currentTimeMillis() - loadedAt > AggregationServer.EXPIRY_TIME / 2) {
+            loadedAt = System.currentTimeMillis();
+            BenchmarkStations.load(stations);
+            AggregationServer.expungeExpiredData();
+        }
+        change = BenchmarkStations.json(0).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public HttpResponse getAll() {
+        return AggregationServer.RequestHandler.process(BenchmarkStations.get("/weather.json"));
+    }
+
+    @Benchmark
+    public long getAllWritten() throws IOException {
+        ByteBuffer[] buffers = AggregationServer.RequestHandler.process(BenchmarkStations.get("/weather.json")).toBuffers();
+        long written = 0;
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            written += sink.write(buffers);
+        }
+        return written;
+    }
+
+    @Benchmark
+    public HttpResponse getAllAfterPut() {
+        AggregationServer.RequestHandler.process(BenchmarkStations.put(change));
+        return AggregationServer.RequestHandler.process(BenchmarkStations.get("/weather.json"));
+    }
+
+    @Benchmark
+    public HttpResponse getById(Cursor cursor) {
+        cursor.next = (cursor.next + 1) % stations;
+        return AggregationServer.RequestHandler.process(BenchmarkStations.get("/weather.json?id=" + BenchmarkStations.id(cursor.next)));
+    }
+}
@@ -0,0 +1,49 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// One Lamport clock shared by every benchmark thread: ticks for local events, updates with
+// received times (half of them behind the clock, half ahead), reads, and a mix of writers and
+// readers as the server sees it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LamportClockBenchmark {
+    private final LamportClock clock = new LamportClock();
+
+    @Benchmark
+    public long increment() {
+        return clock.increment();
+    }
+
+    @Benchmark
+    public long update() {
+        long time = clock.getTime();
+        return clock.update((time & 1) == 0 ? time - 1 : time + 1);
+    }
+
+    @Benchmark
+    public long getTime() {
+        return clock.getTime();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public long mixedIncrement() {
+        return clock.increment();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public void mixedRead(Blackhole blackhole) {
+        blackhole.consume(clock.getTime());
+    }
+}
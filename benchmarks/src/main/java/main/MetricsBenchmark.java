@@ -0,0 +1,38 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of the instrumentation left on in the server: recording a duration into a histogram shared
+// by every benchmark thread, timing a stage with it, and counting a request
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @State(Scope.Thread)
+    public static class Values {
+        long next = 1000;
+    }
+
+    @Benchmark
+    public void record(Values values) {
+        histogram.record(values.next);
+        values.next = values.next * 31 % 1_000_003; // spread over the buckets from 1 us to 1 ms
+    }
+
+    @Benchmark
+    public void recordSince() {
+        ServerMetrics.recordSince(histogram, System.nanoTime());
+    }
+
+    @Benchmark
+    public void countRequest() {
+        ServerMetrics.countRequest("GET", 200);
+    }
+}
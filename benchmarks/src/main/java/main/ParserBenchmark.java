@@ -0,0 +1,66 @@
+package main;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The ways a PUT body can be turned into a station: the old split-based id extraction, Gson data
+// binding, the streaming WeatherDataParser and the binary encoding, plus the cost of encoding a
+// station as JSON and as binary. All of them work on the body the content server sends for the
+// sample station. Add -prof gc through org.openjdk.jmh.Main for the bytes allocated per body.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    private static final Gson GSON = new Gson();
+
+    private WeatherData station;
+    private byte[] body;
+    private byte[] binary;
+
+    @Setup(Level.Trial)
+    public void encode() {
+        station = new WeatherData("IDS60901", "Adelaide (West Terrace)", "SA", "CST", -34.9, 138.6,
+                "15/04:00pm", "20230715160000", 13.3, 9.5, "Partly cloudy", 5.7, 1023.9, 60.0, "S", 15, 8);
+        body = ContentServer.convertWeatherDataToJson(station).getBytes(StandardCharsets.UTF_8);
+        binary = WeatherBinaryCodec.encode(station);
+    }
+
+    @Benchmark
+    public String splitId() {
+        String jsonData = new String(body, StandardCharsets.UTF_8);
+        String[] fields = jsonData.split(",");
+        return fields[0].split(":")[1].replace("\"", "").trim();
+    }
+
+    @Benchmark
+    public WeatherData gson() {
+        return GSON.fromJson(new String(body, StandardCharsets.UTF_8), WeatherData.class);
+    }
+
+    @Benchmark
+    public WeatherData streaming() throws WeatherDataParser.ParseException {
+        return WeatherDataParser.parse(body);
+    }
+
+    @Benchmark
+    public List<WeatherData> binaryDecode() throws WeatherDataParser.ParseException {
+        return WeatherBinaryCodec.decode(binary);
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() {
+        return ContentServer.convertWeatherDataToJson(station).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return WeatherBinaryCodec.encode(station);
+    }
+}
@@ -0,0 +1,61 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// A PUT of one station into a store already holding the given number of stations: parsing the
+// body alone, and the whole request as handlePutRequest serves it (parse, version check under the
+// station's lock, store, indexes, statistics, versions and change feed)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx4g"})
+public class PutBenchmark {
+    private static final int BODIES = 4096;
+
+    @Param({"10000", "100000", "1000000"})
+    public int stations;
+
+    private byte[][] bodies;
+
+    // Each thread walks the bodies from its own starting point
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = (int) (Thread.currentThread().getId() * 7919);
+
+        byte[] body(byte[][] bodies) {
+            return bodies[next++ & (BODIES - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void load() {
+        BenchmarkStations.load(stations);
+        SplittableRandom random = new SplittableRandom(42);
+        bodies = new byte[BODIES][];
+        for (int i = 0; i < BODIES; i++) {
+            bodies[i] = BenchmarkStations.json(random.nextInt(stations)).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // the expiry wheel only takes in the deadlines every PUT schedules when it is advanced
+    @Setup(Level.Iteration)
+    public void sweep() {
+        AggregationServer.expungeExpiredData();
+    }
+
+    @Benchmark
+    public WeatherData parse(Cursor cursor) throws WeatherDataParser.ParseException {
+        return WeatherDataParser.parse(cursor.body(bodies));
+    }
+
+    @Benchmark
+    public HttpResponse put(Cursor cursor) {
+        return AggregationServer.RequestHandler.process(BenchmarkStations.put(cursor.body(bodies)));
+    }
+}
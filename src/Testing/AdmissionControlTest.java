@@ -0,0 +1,171 @@
+import org.junit.jupiter.api.Test;
+import main.AdmissionControl;
+import main.ConnectionEngine;
+import main.HttpRequest;
+import main.HttpResponse;
+import main.LocalCluster;
+import main.PersistentConnection;
+import main.ServerConfig;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControlTest {
+
+    private static HttpRequest get() {
+        return new HttpRequest("GET", "/weather.json", "HTTP/1.1", new HashMap<>(), new byte[0]);
+    }
+
+    @Test
+    public void testLanesBoundConcurrencyAndQueue() throws Exception {
+        AdmissionControl admission = new AdmissionControl(ServerConfig.parse(new String[]{
+                "--put-concurrency=1", "--put-queue=1", "--get-concurrency=2", "--queue-timeout=300"}));
+        AdmissionControl.Lane ingest = admission.getIngest();
+        assertSame(ingest, admission.laneOf(new HttpRequest("PUT", "/weather.json", "HTTP/1.1", new HashMap<>(), new byte[0])));
+        assertSame(admission.getRead(), admission.laneOf(get()));
+
+        // one PUT at a time: a second waits its turn, a third finds the queue full
+        assertTrue(ingest.enter());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> queued = executor.submit(ingest::enter);
+        Thread.sleep(100);
+        assertFalse(queued.isDone());
+        assertFalse(ingest.enter());
+        assertFalse(ingest.tryEnter());
+        ingest.exit();
+        assertTrue(queued.get(1, TimeUnit.SECONDS));
+        assertEquals(1, ingest.getActive());
+
+        // a queued request gives up after the queue timeout
+        long start = System.nanoTime();
+        assertFalse(executor.submit(ingest::enter).get(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+
+        // readers still get in while ingest is full
+        assertTrue(admission.getRead().tryEnter());
+        assertTrue(admission.getRead().tryEnter());
+        assertFalse(admission.getRead().tryEnter());
+        executor.shutdown();
+        System.out.println("testLanesBoundConcurrencyAndQueue: Passed");
+    }
+
+    @Test
+    public void testRateLimitPerClient() throws Exception {
+        AdmissionControl admission = new AdmissionControl(ServerConfig.parse(new String[]{"--rate-limit=4", "--rate-burst=2"}));
+        assertNull(admission.checkRate(get(), "10.0.0.1"));
+        assertNull(admission.checkRate(get(), "10.0.0.1"));
+        HttpResponse limited = admission.checkRate(get(), "10.0.0.1");
+        assertNotNull(limited);
+        assertEquals(503, limited.getStatus());
+        assertEquals("1", limited.getHeader("Retry-After"));
+
+        // other clients have their own allowance, and tokens come back at the rate
+        assertNull(admission.checkRate(get(), "10.0.0.2"));
+        Thread.sleep(300);
+        assertNull(admission.checkRate(get(), "10.0.0.1"));
+
+        // without a limit every request is let through
+        AdmissionControl unlimited = new AdmissionControl(ServerConfig.parse(new String[0]));
+        for (int i = 0; i < 1000; i++) {
+            assertNull(unlimited.checkRate(get(), "10.0.0.1"));
+        }
+        System.out.println("testRateLimitPerClient: Passed");
+    }
+
+    @Test
+    public void testNioStopsReadingBehindRequestInFlight() throws Exception {
+        try (LocalCluster cluster = new LocalCluster(1, 4876, Arrays.asList("--engine=nio"))) {
+            cluster.start(0);
+            Socket socket = new Socket("localhost", 4876);
+            socket.setSoTimeout(10000);
+
+            // pipeline a long-poll, then far more than any request may be; none of it is buffered
+            // while the long-poll waits, so the client's writes stall
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /weather/poll?timeout=3000 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            Future<?> flood = writer.submit(() -> {
+                byte[] chunk = new byte[64 * 1024];
+                Arrays.fill(chunk, (byte) 'x');
+                for (int i = 0; i < 1024; i++) {
+                    out.write(chunk);
+                }
+                return null;
+            });
+            assertThrows(TimeoutException.class, () -> flood.get(2, TimeUnit.SECONDS));
+
+            // once the long-poll completes the excess is refused and the connection closed
+            InputStream in = socket.getInputStream();
+            assertEquals(204, HttpResponse.read(in).getStatus());
+            assertEquals(400, HttpResponse.read(in).getStatus());
+            socket.close();
+            writer.shutdownNow();
+        }
+        System.out.println("testNioStopsReadingBehindRequestInFlight: Passed");
+    }
+
+    // Method to send the start of a request and check the server gives up on it with 408
+    private static void checkTimesOut(int port, String partialRequest) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            long start = System.nanoTime();
+            socket.getOutputStream().write(partialRequest.getBytes(StandardCharsets.ISO_8859_1));
+            HttpResponse response = HttpResponse.read(socket.getInputStream());
+            assertEquals(408, response.getStatus());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+            assertEquals(-1, socket.getInputStream().read()); // and closes the connection
+        }
+    }
+
+    private static void checkServer(String engine, int port) throws Exception {
+        try (LocalCluster cluster = new LocalCluster(1, port, Arrays.asList("--engine=" + engine,
+                "--rate-limit=5", "--rate-burst=5", "--header-timeout=500", "--body-timeout=500"))) {
+            cluster.start(0);
+
+            // a client that trickles its headers or body is cut off
+            checkTimesOut(port, "GET /weather.json HTTP/1.1\r\nHost: localhost\r\n");
+            checkTimesOut(port, "PUT /weather.json HTTP/1.1\r\nContent-Length: 40\r\n\r\n{\"id\":");
+
+            // a burst beyond the client's rate limit is answered 503 with Retry-After
+            Map<Integer, Integer> statuses = new TreeMap<>();
+            String retryAfter = null;
+            try (PersistentConnection connection = new PersistentConnection("localhost", port)) {
+                for (int i = 0; i < 10; i++) {
+                    HttpResponse response = connection.send("GET", "/weather.json", Map.of(), new byte[0]);
+                    statuses.merge(response.getStatus(), 1, Integer::sum);
+                    if (response.getStatus() == 503) {
+                        retryAfter = response.getHeader("Retry-After");
+                    }
+                }
+            }
+            assertTrue(statuses.getOrDefault(503, 0) >= 4, statuses.toString());
+            assertTrue(statuses.getOrDefault(204, 0) >= 5, statuses.toString());
+            assertEquals("1", retryAfter);
+        }
+    }
+
+    @Test
+    public void testServerShedsSlowAndExcessRequests() throws Exception {
+        checkServer("nio", 4872);
+        checkServer("thread", 4873);
+        System.out.println("testServerShedsSlowAndExcessRequests: Passed");
+    }
+
+    @Test
+    public void testVirtualEngineFailsFastWithoutVirtualThreads() throws Exception {
+        ServerConfig config = ServerConfig.parse(new String[]{"--engine=virtual"});
+        if (Runtime.version().feature() >= 21) {
+            ConnectionEngine.create(config).close();
+        } else {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ConnectionEngine.create(config));
+            assertTrue(e.getMessage().contains("Java 21"));
+        }
+        System.out.println("testVirtualEngineFailsFastWithoutVirtualThreads: Passed");
+    }
+}
@@ -1,4 +1,7 @@
 import main.AggregationServer;
+import main.HttpResponse;
+import main.PersistentConnection;
+import main.ReplicationLog;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -6,6 +9,8 @@ import java.io.*;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.BindException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -45,8 +50,9 @@ public class AggregationServerTest {
 
             // Send the PUT request
             out.println("PUT /weather.json HTTP/1.1");
-            out.println("Content-Length: 51");
+            out.println("Content-Length: 53");
             out.println("Lamport-Clock: 0");
+            out.println("Connection: close");
             out.println();
             out.println("{\"id\": \"IDS60901\", \"name\": \"Adelaide\", \"state\": \"SA\"}");
 
@@ -73,6 +79,7 @@ public class AggregationServerTest {
             // Send the GET request
             out.println("GET /weather.json HTTP/1.1");
             out.println("Lamport-Clock: 1");
+            out.println("Connection: close");
             out.println();
 
             // Read the response from the server
@@ -87,5 +94,232 @@ public class AggregationServerTest {
             System.out.println("testGetRequestHandling: Passed");
         }
     }
-}
 
+    @Test
+    public void testConditionalGetReturnsNotModified() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            byte[] body = "{\"id\": \"IDS60902\", \"name\": \"Snapshot\"}".getBytes(StandardCharsets.UTF_8);
+            connection.send("PUT", "/weather.json", Map.of(), body);
+
+            // The first GET returns the snapshot and its version as an ETag
+            HttpResponse first = connection.send("GET", "/weather.json", Map.of(), new byte[0]);
+            assertEquals(200, first.getStatus());
+            String etag = first.getHeader("ETag");
+            assertNotNull(etag);
+
+            // Polling with that ETag returns nothing while the store is unchanged
+            HttpResponse second = connection.send("GET", "/weather.json", Map.of("If-None-Match", etag), new byte[0]);
+            assertEquals(304, second.getStatus());
+            assertEquals(0, second.getBody().length);
+
+            // Another PUT moves the version forward
+            connection.send("PUT", "/weather.json", Map.of(), body);
+            HttpResponse third = connection.send("GET", "/weather.json", Map.of("If-None-Match", etag), new byte[0]);
+            assertEquals(200, third.getStatus());
+            assertNotEquals(etag, third.getHeader("ETag"));
+            System.out.println("testConditionalGetReturnsNotModified: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testInvalidPutBodiesAreRejected() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            // Malformed JSON is a server error, as in the assignment specification
+            byte[] malformed = "{\"id\": \"IDS60903\", \"air_temp\": }".getBytes(StandardCharsets.UTF_8);
+            assertEquals(500, connection.send("PUT", "/weather.json", Map.of(), malformed).getStatus());
+
+            // Well-formed JSON without an id, or with a value of the wrong type, is a bad request
+            byte[] noId = "{\"name\": \"Nowhere\"}".getBytes(StandardCharsets.UTF_8);
+            assertEquals(400, connection.send("PUT", "/weather.json", Map.of(), noId).getStatus());
+            byte[] wrongType = "{\"id\": \"IDS60903\", \"air_temp\": \"warm\"}".getBytes(StandardCharsets.UTF_8);
+            assertEquals(400, connection.send("PUT", "/weather.json", Map.of(), wrongType).getStatus());
+
+            // No content at all
+            assertEquals(204, connection.send("PUT", "/weather.json", Map.of(), new byte[0]).getStatus());
+            System.out.println("testInvalidPutBodiesAreRejected: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testFilteredGetReturnsMatchingStations() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            byte[] adelaide = "{\"id\": \"IDS60904\", \"state\": \"SA\", \"lat\": -34.9, \"lon\": 138.6}".getBytes(StandardCharsets.UTF_8);
+            byte[] hobart = "{\"id\": \"IDT60905\", \"state\": \"TAS\", \"lat\": -42.9, \"lon\": 147.3}".getBytes(StandardCharsets.UTF_8);
+            connection.send("PUT", "/weather.json", Map.of(), adelaide);
+            connection.send("PUT", "/weather.json", Map.of(), hobart);
+
+            String byState = connection.send("GET", "/weather.json?state=TAS", Map.of(), new byte[0]).getBodyText();
+            assertTrue(byState.contains("IDT60905"));
+            assertFalse(byState.contains("IDS60904"));
+
+            String nearby = connection.send("GET", "/weather.json?near=-35,138.5&radius=50", Map.of(), new byte[0]).getBodyText();
+            assertTrue(nearby.contains("IDS60904"));
+            assertFalse(nearby.contains("IDT60905"));
+
+            assertEquals(204, connection.send("GET", "/weather.json?bbox=10,10,11,11", Map.of(), new byte[0]).getStatus());
+            assertEquals(400, connection.send("GET", "/weather.json?bbox=oops", Map.of(), new byte[0]).getStatus());
+            System.out.println("testFilteredGetReturnsMatchingStations: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testStatsEndpointSummarisesStations() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            byte[] station = "{\"id\": \"IDW60906\", \"state\": \"WA\", \"air_temp\": 31.5}".getBytes(StandardCharsets.UTF_8);
+            connection.send("PUT", "/weather.json", Map.of(), station);
+
+            HttpResponse response = connection.send("GET", "/stats?state=WA", Map.of(), new byte[0]);
+            assertEquals(200, response.getStatus());
+            String body = response.getBodyText();
+            assertTrue(body.contains("\"WA\""));
+            assertTrue(body.contains("\"air_temp\": {\"count\": 1, \"min\": 31.5, \"max\": 31.5, \"mean\": 31.5}"));
+            System.out.println("testStatsEndpointSummarisesStations: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testHistoryKeepsEarlierObservations() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            for (String temp : new String[]{"11.5", "12.5"}) {
+                byte[] body = ("{\"id\": \"IDN60907\", \"air_temp\": " + temp + "}").getBytes(StandardCharsets.UTF_8);
+                connection.send("PUT", "/weather.json", Map.of(), body);
+            }
+
+            HttpResponse response = connection.send("GET", "/history?id=IDN60907", Map.of(), new byte[0]);
+            assertEquals(200, response.getStatus());
+            assertTrue(response.getBodyText().contains("\"air_temp\": 11.5"));
+            assertTrue(response.getBodyText().contains("\"air_temp\": 12.5"));
+
+            assertEquals(404, connection.send("GET", "/history?id=NOSUCHSTATION", Map.of(), new byte[0]).getStatus());
+            assertEquals(400, connection.send("GET", "/history", Map.of(), new byte[0]).getStatus());
+            System.out.println("testHistoryKeepsEarlierObservations: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testBatchPutReportsStatusPerStation() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            byte[] batch = ("[{\"id\": \"IDQ60908\", \"state\": \"QLD\"},\n"
+                    + " {\"id\": \"IDQ60909\", \"air_temp\": \"hot\"},\n"
+                    + " {\"id\": \"IDQ60910\", \"state\": \"QLD\"}]").getBytes(StandardCharsets.UTF_8);
+            HttpResponse response = connection.send("PUT", "/weather.json", Map.of(), batch);
+            assertEquals(200, response.getStatus());
+            String results = response.getBodyText();
+            assertTrue(results.contains("{\"index\": 0, \"id\": \"IDQ60908\", \"status\": 201}"));
+            assertTrue(results.contains("{\"index\": 1, \"status\": 400"));
+            assertTrue(results.contains("{\"index\": 2, \"id\": \"IDQ60910\", \"status\": 201}"));
+
+            // The same stations again as newline-delimited JSON are updates
+            byte[] lines = "{\"id\": \"IDQ60908\", \"state\": \"QLD\"}\n{\"id\": \"IDQ60910\", \"state\": \"QLD\"}\n".getBytes(StandardCharsets.UTF_8);
+            response = connection.send("PUT", "/weather.json", Map.of("Content-Type", "application/x-ndjson"), lines);
+            assertTrue(response.getBodyText().contains("{\"index\": 1, \"id\": \"IDQ60910\", \"status\": 200}"));
+
+            String stored = connection.send("GET", "/weather.json?state=QLD", Map.of(), new byte[0]).getBodyText();
+            assertTrue(stored.contains("IDQ60908"));
+            assertFalse(stored.contains("IDQ60909"));
+            System.out.println("testBatchPutReportsStatusPerStation: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testBatchTicksTheClockOnce() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            byte[] first = "{\"id\": \"IDTICK1\"}\n".getBytes(StandardCharsets.UTF_8);
+            byte[] batch = "{\"id\": \"IDTICK1\"}\n{\"id\": \"IDTICK2\"}\n{\"id\": \"IDTICK3\"}\n".getBytes(StandardCharsets.UTF_8);
+            Map<String, String> ndjson = Map.of("Content-Type", "application/x-ndjson");
+            long before = Long.parseLong(connection.send("PUT", "/weather.json", ndjson, first).getHeader("Lamport-Clock"));
+            HttpResponse response = connection.send("PUT", "/weather.json", ndjson, batch);
+            long after = Long.parseLong(response.getHeader("Lamport-Clock"));
+            assertEquals(before + 1, after);
+
+            // every station of the batch is published at the version it was stored at
+            HttpResponse delta = connection.send("GET", "/weather.json?since=" + before, Map.of(), new byte[0]);
+            assertEquals("\"" + after + "\"", delta.getHeader("ETag"));
+            String changes = delta.getBodyText();
+            for (String stationId : new String[]{"IDTICK1", "IDTICK2", "IDTICK3"}) {
+                assertTrue(changes.contains("\"id\": \"" + stationId + "\", \"version\": " + after), changes);
+            }
+            System.out.println("testBatchTicksTheClockOnce: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testPutsAreOrderedByLamportTimeAndSource() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            byte[] first = "{\"id\": \"IDLWW01\", \"name\": \"first\"}".getBytes(StandardCharsets.UTF_8);
+            byte[] late = "{\"id\": \"IDLWW01\", \"name\": \"late\"}".getBytes(StandardCharsets.UTF_8);
+            byte[] tied = "{\"id\": \"IDLWW01\", \"name\": \"tied\"}".getBytes(StandardCharsets.UTF_8);
+
+            HttpResponse response = connection.send("PUT", "/weather.json",
+                    Map.of("Lamport-Clock", "5000000000", "Source-Id", "content-a"), first);
+            assertEquals(201, response.getStatus());
+            assertTrue(Long.parseLong(response.getHeader("Lamport-Clock")) > 5000000000L);
+
+            // a write sent earlier in Lamport time arrives late and is refused, with the server's clock
+            response = connection.send("PUT", "/weather.json",
+                    Map.of("Lamport-Clock", "4999999999", "Source-Id", "content-b"), late);
+            assertEquals(409, response.getStatus());
+            assertTrue(Long.parseLong(response.getHeader("Lamport-Clock")) > 5000000000L);
+
+            // the same Lamport time from a higher source id wins, the same way on every server
+            response = connection.send("PUT", "/weather.json",
+                    Map.of("Lamport-Clock", "5000000000", "Source-Id", "content-b"), tied);
+            assertEquals(200, response.getStatus());
+            String stored = connection.send("GET", "/weather.json?id=IDLWW01", Map.of(), new byte[0]).getBodyText();
+            assertTrue(stored.contains("tied"));
+
+            // a PUT without a source is ordered by the server's own clock, after everything it has seen
+            response = connection.send("PUT", "/weather.json", Map.of(), first);
+            assertEquals(200, response.getStatus());
+            System.out.println("testPutsAreOrderedByLamportTimeAndSource: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testWinningWriteReceivedEarlierIsIndexed() throws IOException {
+        PersistentConnection connection = new PersistentConnection("localhost", 4567);
+        try {
+            byte[] first = "{\"id\": \"IDOLD01\", \"state\": \"QLD\", \"air_temp\": 10.0}".getBytes(StandardCharsets.UTF_8);
+            assertEquals(201, connection.send("PUT", "/weather.json",
+                    Map.of("Lamport-Clock", "6000000000", "Source-Id", "content-a"), first).getStatus());
+
+            // a copy from a peer with a later Lamport time wins, although it was received earlier
+            String winner = "{\"id\": \"IDOLD01\", \"state\": \"NT\", \"air_temp\": 40.0}";
+            AggregationServer.applyReplicated(new ReplicationLog.Entry(0, "IDOLD01", winner,
+                    System.currentTimeMillis() - 5000, 6000000001L, "content-b"));
+
+            String byState = connection.send("GET", "/weather.json?state=NT", Map.of(), new byte[0]).getBodyText();
+            assertTrue(byState.contains("IDOLD01"));
+            assertFalse(connection.send("GET", "/weather.json?state=QLD", Map.of(), new byte[0]).getBodyText().contains("IDOLD01"));
+            String stats = connection.send("GET", "/stats?state=NT", Map.of(), new byte[0]).getBodyText();
+            assertTrue(stats.contains("\"air_temp\": {\"count\": 1, \"min\": 40.0, \"max\": 40.0, \"mean\": 40.0}"));
+            System.out.println("testWinningWriteReceivedEarlierIsIndexed: Passed");
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import org.junit.jupiter.api.Test;
+import main.ChangeFeed;
+import main.GETClient;
+import main.HttpResponse;
+import main.LocalCluster;
+import main.PersistentConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChangeFeedTest {
+
+    private static String text(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFeedSharesFramesAndDropsSlowSubscribers() {
+        ChangeFeed feed = new ChangeFeed(8, 4);
+        ChangeFeed.Subscription fast = feed.subscribe(-1);
+        ChangeFeed.Subscription slow = feed.subscribe(-1);
+
+        for (int version = 1; version <= 10; version++) {
+            feed.publish(ChangeFeed.update("IDS" + version, "{\n  \"id\": \"IDS" + version + "\"\n}", version));
+            ByteBuffer frame = fast.poll();
+            assertEquals("id: " + version + "\nevent: update\ndata: {\"type\": \"update\", \"id\": \"IDS" + version
+                    + "\", \"version\": " + version + ", \"data\": {   \"id\": \"IDS" + version + "\" }}\n\n", text(frame));
+        }
+
+        // the subscriber that never read anything filled its queue and was dropped
+        assertFalse(fast.isDropped());
+        assertTrue(slow.isDropped());
+        assertEquals(1, feed.getDroppedCount());
+        assertEquals(1, feed.getSubscriberCount());
+
+        // only the last 8 changes are kept to resume from
+        assertNull(feed.since(1));
+        assertEquals(Arrays.asList(6L, 7L, 8L, 9L, 10L), versions(feed.since(5)));
+        assertEquals(Arrays.asList(9L, 10L), versions(feed.subscribe(8).getBacklog()));
+        System.out.println("testFeedSharesFramesAndDropsSlowSubscribers: Passed");
+    }
+
+    private static List<Long> versions(List<ChangeFeed.Event> events) {
+        List<Long> versions = new ArrayList<>();
+        for (ChangeFeed.Event event : events) {
+            versions.add(event.getVersion());
+        }
+        return versions;
+    }
+
+    @Test
+    public void testLongPollCompletesOnChangeOrTimeout() throws Exception {
+        ChangeFeed feed = new ChangeFeed(16, 16);
+        CompletableFuture<List<ChangeFeed.Event>> waiting = new CompletableFuture<>();
+        feed.await(0, 10000, waiting::complete);
+        assertFalse(waiting.isDone());
+
+        feed.publish(ChangeFeed.remove("IDS1", 1));
+        assertEquals(Collections.singletonList(1L), versions(waiting.get(1, TimeUnit.SECONDS)));
+
+        // a change already there completes straight away, none within the timeout gives an empty list
+        CompletableFuture<List<ChangeFeed.Event>> behind = new CompletableFuture<>();
+        feed.await(0, 10000, behind::complete);
+        assertEquals("{\"type\": \"remove\", \"id\": \"IDS1\", \"version\": 1}\n",
+                new String(behind.get(1, TimeUnit.SECONDS).get(0).getLine(), StandardCharsets.UTF_8));
+        CompletableFuture<List<ChangeFeed.Event>> idle = new CompletableFuture<>();
+        feed.await(1, 50, idle::complete);
+        assertTrue(idle.get(5, TimeUnit.SECONDS).isEmpty());
+        System.out.println("testLongPollCompletesOnChangeOrTimeout: Passed");
+    }
+
+    @Test
+    public void testChangedSinceSendsEachStationOnce() {
+        ChangeFeed feed = new ChangeFeed(8, 4);
+        feed.publish(ChangeFeed.update("A", "{\"id\": \"A\", \"air_temp\": 1}", 1));
+        feed.publish(ChangeFeed.update("B", "{\"id\": \"B\"}", 2));
+        feed.publish(ChangeFeed.update("A", "{\"id\": \"A\", \"air_temp\": 2}", 3));
+        feed.publish(ChangeFeed.remove("B", 4));
+        feed.publish(ChangeFeed.update("C", "{\"id\": \"C\"}", 5));
+
+        // only the last change of each station, in the order they happened
+        List<ChangeFeed.Event> changes = feed.changedSince(1);
+        assertEquals(Arrays.asList(3L, 4L, 5L), versions(changes));
+        assertTrue(new String(changes.get(0).getLine(), StandardCharsets.UTF_8).contains("\"air_temp\": 2"));
+        assertEquals("remove", changes.get(1).getType());
+        assertEquals(Arrays.asList(3L, 4L, 5L), versions(feed.changedSince(0)));
+        assertTrue(feed.changedSince(5).isEmpty());
+
+        // changes that are no longer kept, or a reset in between, need the whole store
+        feed.truncate(3);
+        assertNull(feed.changedSince(2));
+        assertEquals(Arrays.asList(4L, 5L), versions(feed.changedSince(3)));
+        feed.publish(ChangeFeed.reset(6));
+        assertNull(feed.changedSince(5));
+        System.out.println("testChangedSinceSendsEachStationOnce: Passed");
+    }
+
+    @Test
+    public void testConcurrentPublishersLeaveNoGaps() throws Exception {
+        ChangeFeed feed = new ChangeFeed(1 << 16, 1 << 16);
+        ChangeFeed.Subscription subscription = feed.subscribe(-1);
+        AtomicLong clock = new AtomicLong();
+        int publishers = 4;
+        int changes = 5000;
+
+        // a reader polling as it goes must never see a version before an earlier one is kept
+        ExecutorService pool = Executors.newFixedThreadPool(publishers + 1);
+        Future<Integer> reader = pool.submit(() -> {
+            long last = 0;
+            while (last < (long) publishers * changes) {
+                for (ChangeFeed.Event event : feed.since(last)) {
+                    assertEquals(last + 1, event.getVersion());
+                    last = event.getVersion();
+                }
+            }
+            return (int) last;
+        });
+        List<Future<?>> writers = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            String stationId = "IDP" + p;
+            writers.add(pool.submit(() -> {
+                for (int i = 0; i < changes; i++) {
+                    feed.publish(clock::incrementAndGet,
+                            version -> Collections.singletonList(ChangeFeed.update(stationId, "{}", version)));
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get(30, TimeUnit.SECONDS);
+        }
+        assertEquals(publishers * changes, reader.get(30, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        // a subscriber receives the frames in version order too
+        for (long version = 1; version <= (long) publishers * changes; version++) {
+            assertTrue(text(subscription.poll()).startsWith("id: " + version + "\n"));
+        }
+
+        // and an event older than one already published is refused
+        assertThrows(IllegalArgumentException.class, () -> feed.publish(ChangeFeed.update("IDP0", "{}", 1)));
+        System.out.println("testConcurrentPublishersLeaveNoGaps: Passed");
+    }
+
+    @Test
+    public void testReservationsJoinInOrderWithoutWaitingOnSubscribers() throws Exception {
+        ChangeFeed feed = new ChangeFeed(16, 16);
+        AtomicLong clock = new AtomicLong();
+
+        // a change made before an earlier one is published waits for it
+        ChangeFeed.Reservation first = feed.reserve(clock::incrementAndGet);
+        ChangeFeed.Reservation second = feed.reserve(clock::incrementAndGet);
+        second.publish(Collections.singletonList(ChangeFeed.update("B", "{}", second.getVersion())));
+        assertTrue(feed.since(0).isEmpty());
+        assertEquals(-1, feed.getPublishedVersion());
+        first.publish(Collections.singletonList(ChangeFeed.update("A", "{}", first.getVersion())));
+        assertEquals(Arrays.asList(1L, 2L), versions(feed.since(0)));
+        assertEquals(2, feed.getPublishedVersion());
+
+        // a subscriber holding up delivery does not hold up other publishers
+        ChangeFeed.Subscription subscription = feed.subscribe(-1);
+        CountDownLatch delivering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        subscription.setListener(() -> {
+            if (subscription.hasQueued()) {
+                delivering.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread blocked = new Thread(() -> feed.publish(ChangeFeed.update("C", "{}", 3)));
+        blocked.start();
+        assertTrue(delivering.await(5, TimeUnit.SECONDS));
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.submit(() -> feed.publish(ChangeFeed.update("D", "{}", 4))).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(3L, 4L), versions(feed.since(2)));
+        release.countDown();
+        blocked.join(5000);
+        pool.shutdown();
+        assertTrue(text(subscription.poll()).startsWith("id: 3\n"));
+        assertTrue(text(subscription.poll()).startsWith("id: 4\n"));
+        System.out.println("testReservationsJoinInOrderWithoutWaitingOnSubscribers: Passed");
+    }
+
+    private static HttpResponse send(String server, String method, String target, String body) throws IOException {
+        try (PersistentConnection connection = PersistentConnection.forAddress(server)) {
+            return connection.send(method, target, Collections.emptyMap(), body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String station(String id) {
+        return "{\"id\": \"" + id + "\", \"name\": \"Station " + id + "\", \"state\": \"SA\"}";
+    }
+
+    // Method to check streaming and long-polling against a server run with the given engine
+    private static void checkServer(String engine, int port) throws Exception {
+        try (LocalCluster cluster = new LocalCluster(1, port, Collections.singletonList("--engine=" + engine))) {
+            cluster.start(0);
+            String server = cluster.getAddress(0);
+
+            BlockingQueue<String> events = new LinkedBlockingQueue<>();
+            Thread subscriber = new Thread(() -> {
+                try {
+                    GETClient.subscribe(server, -1, (type, version, data) -> {
+                        events.add(type + " " + version + " " + data);
+                        return !data.contains("IDSTOP");
+                    });
+                } catch (IOException e) {
+                    events.add("error " + e.getMessage());
+                }
+            });
+            subscriber.start();
+            Thread.sleep(500);
+
+            // each change is sent on its own, carrying only the station that changed
+            assertEquals(201, send(server, "PUT", "/weather.json", station("IDSUB1")).getStatus());
+            String event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertTrue(event.startsWith("update ") && event.contains("\"id\": \"IDSUB1\""), event);
+            long version = Long.parseLong(event.split(" ")[1]);
+
+            // a long-poll from that version waits for the next change and returns only it
+            CompletableFuture<HttpResponse> poll = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return send(server, "GET", "/weather/poll?since=" + version + "&timeout=10000", "");
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+            Thread.sleep(300);
+            assertFalse(poll.isDone());
+            assertEquals(201, send(server, "PUT", "/weather.json", station("IDSUB2")).getStatus());
+            HttpResponse changes = poll.get(5, TimeUnit.SECONDS);
+            assertEquals(200, changes.getStatus());
+            assertTrue(changes.getBodyText().contains("IDSUB2") && !changes.getBodyText().contains("IDSUB1"));
+            assertEquals(204, send(server, "GET", "/weather/poll?since=" + changes.getHeader("ETag").replace("\"", "")
+                    + "&timeout=100", "").getStatus());
+
+            // a stream that resumes from an earlier version first gets the changes it missed
+            List<String> resumed = new ArrayList<>();
+            GETClient.subscribe(server, 0, (type, eventVersion, data) -> {
+                resumed.add(data);
+                return resumed.size() < 2;
+            });
+            assertTrue(resumed.get(0).contains("IDSUB1") && resumed.get(1).contains("IDSUB2"), resumed.toString());
+
+            send(server, "PUT", "/weather.json", station("IDSTOP"));
+            subscriber.join(5000);
+            assertFalse(subscriber.isAlive());
+            assertTrue(events.poll(1, TimeUnit.SECONDS).contains("IDSUB2"));
+        }
+    }
+
+    @Test
+    public void testServerAnswersDeltaGets() throws Exception {
+        try (LocalCluster cluster = new LocalCluster(1, 4875, Collections.emptyList())) {
+            cluster.start(0);
+            String server = cluster.getAddress(0);
+            send(server, "PUT", "/weather.json", station("IDDELTA1"));
+            send(server, "PUT", "/weather.json", station("IDDELTA2"));
+            String version = send(server, "GET", "/weather.json", "").getHeader("ETag").replace("\"", "");
+
+            // each changed station comes once, as it is now, and unchanged ones not at all
+            send(server, "PUT", "/weather.json", station("IDDELTA1").replace("SA", "VIC"));
+            send(server, "PUT", "/weather.json", station("IDDELTA1").replace("SA", "NSW"));
+            send(server, "PUT", "/weather.json", station("IDDELTA3"));
+            HttpResponse delta = send(server, "GET", "/weather.json?since=" + version, "");
+            assertEquals(200, delta.getStatus());
+            assertEquals("application/x-ndjson", delta.getHeader("Content-Type"));
+            String[] lines = delta.getBodyText().split("\n");
+            assertEquals(2, lines.length, delta.getBodyText());
+            assertTrue(lines[0].contains("\"IDDELTA1\"") && lines[0].contains("NSW"), lines[0]);
+            assertTrue(lines[1].contains("\"IDDELTA3\""), lines[1]);
+
+            // the ETag is the version to ask from next, where nothing has changed yet
+            String next = delta.getHeader("ETag").replace("\"", "");
+            assertTrue(Long.parseLong(next) > Long.parseLong(version));
+            assertEquals(204, send(server, "GET", "/weather.json?since=" + next, "").getStatus());
+
+            // a version this server never reached gets a reset and every station
+            HttpResponse full = send(server, "GET", "/weather.json?since=" + (Long.parseLong(next) + 1000), "");
+            assertEquals(200, full.getStatus());
+            assertTrue(full.getBodyText().startsWith("{\"type\": \"reset\""), full.getBodyText());
+            assertEquals(4, full.getBodyText().split("\n").length);
+
+            assertEquals(400, send(server, "GET", "/weather.json?since=x", "").getStatus());
+            assertEquals(400, send(server, "GET", "/weather.json?since=1&state=SA", "").getStatus());
+        }
+        System.out.println("testServerAnswersDeltaGets: Passed");
+    }
+
+    @Test
+    public void testServerStreamsAndLongPollsChanges() throws Exception {
+        checkServer("nio", 4867);
+        checkServer("thread", 4868);
+        System.out.println("testServerStreamsAndLongPollsChanges: Passed");
+    }
+}
@@ -0,0 +1,163 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import main.ContentFeed;
+import main.HttpRequest;
+import main.HttpResponse;
+import main.ServerPool;
+import main.WeatherDataParser;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContentFeedTest {
+    private ServerSocket stub;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    // A stand-in aggregation server that records every PUT body and accepts every station
+    @BeforeEach
+    public void startStub() throws IOException {
+        stub = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!stub.isClosed()) {
+                try {
+                    Socket socket = stub.accept();
+                    new Thread(() -> serve(socket)).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            HttpRequest request;
+            while ((request = HttpRequest.read(s.getInputStream())) != null) {
+                byte[] body = request.getBody();
+                received.add(new String(body, StandardCharsets.UTF_8));
+                HttpResponse response;
+                if (body[0] == '[') {
+                    StringBuilder results = new StringBuilder("[");
+                    int count = WeatherDataParser.parseArray(body, 0, body.length).size();
+                    for (int i = 0; i < count; i++) {
+                        results.append(i == 0 ? "" : ",").append("{\"index\": ").append(i).append(", \"status\": 200}");
+                    }
+                    response = new HttpResponse(200, "OK")
+                            .body("application/json", results.append(']').toString().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    response = new HttpResponse(200, "OK");
+                }
+                response.writeTo(s.getOutputStream());
+            }
+        } catch (IOException | WeatherDataParser.ParseException e) {
+            // connection closed by the feed
+        }
+    }
+
+    @AfterEach
+    public void stopStub() throws IOException {
+        stub.close();
+    }
+
+    private static void writeStations(File file, String... stations) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            for (String station : stations) {
+                writer.write(station);
+            }
+        }
+    }
+
+    private static String station(String id, double airTemp) {
+        return "id:" + id + "\nname:Station " + id + "\nstate:SA\nair_temp:" + airTemp + "\n\n";
+    }
+
+    @Test
+    public void testFeedPushesOnlyChangedStations() throws Exception {
+        File input = File.createTempFile("weather_feed", ".txt");
+        input.deleteOnExit();
+        writeStations(input, station("IDS1", 10.5), station("IDS2", 11.5));
+
+        // the first server is down, so the feed fails over to the stub
+        ServerPool pool = new ServerPool(Arrays.asList("localhost:1", "localhost:" + stub.getLocalPort()), 2);
+        ContentFeed feed = new ContentFeed(Collections.singletonList(input), pool, 100, 10000);
+        try {
+            assertEquals(2, feed.pollOnce(1000));
+            assertEquals(1, received.size());
+            assertTrue(received.get(0).contains("IDS1") && received.get(0).contains("IDS2"));
+
+            // nothing changed, nothing sent
+            assertEquals(0, feed.pollOnce(2000));
+            assertEquals(1, received.size());
+
+            // one station changed: only it is sent
+            writeStations(input, station("IDS1", 10.5), station("IDS2", 12.5));
+            input.setLastModified(input.lastModified() + 2000);
+            assertEquals(1, feed.pollOnce(3000));
+            assertEquals(2, received.size());
+            assertTrue(received.get(1).contains("IDS2") && !received.get(1).contains("IDS1"));
+
+            // each station is re-sent once its refresh interval has passed, before the server would expire it
+            assertEquals(1, feed.pollOnce(11000));
+            assertTrue(received.get(2).contains("IDS1") && !received.get(2).contains("IDS2"));
+            assertEquals(1, feed.pollOnce(13000));
+            assertTrue(received.get(3).contains("IDS2") && !received.get(3).contains("IDS1"));
+
+            // the dead server was pushed to the back after failing
+            assertEquals("localhost:" + stub.getLocalPort(), pool.order(System.currentTimeMillis()).get(0));
+        } finally {
+            pool.close();
+        }
+        System.out.println("testFeedPushesOnlyChangedStations: Passed");
+    }
+
+    @Test
+    public void testFeedBacksOffWhenEveryServerIsDown() throws Exception {
+        File input = File.createTempFile("weather_feed", ".txt");
+        input.deleteOnExit();
+        writeStations(input, station("IDS1", 10.5));
+
+        ServerPool pool = new ServerPool(Collections.singletonList("localhost:1"), 2);
+        ContentFeed feed = new ContentFeed(Collections.singletonList(input), pool, 100, 10000);
+        try {
+            assertEquals(0, feed.pollOnce(1000));
+
+            // the station stays pending, and is not retried inside the first backoff (at least 125 ms)
+            assertEquals(0, feed.pollOnce(1100));
+            assertTrue(pool.retryDelay(System.currentTimeMillis()) > 0);
+        } finally {
+            pool.close();
+        }
+        System.out.println("testFeedBacksOffWhenEveryServerIsDown: Passed");
+    }
+
+    @Test
+    public void testServerPoolOrdersByHealthAndLatency() {
+        ServerPool pool = new ServerPool(Arrays.asList("a:1", "b:2", "c:3"), 1);
+        pool.recordSuccess("a:1", 40);
+        pool.recordSuccess("b:2", 5);
+        pool.recordSuccess("c:3", 20);
+        assertEquals(Arrays.asList("b:2", "c:3", "a:1"), pool.order(0));
+
+        // a failed server goes to the back until its backoff has passed
+        pool.recordFailure("b:2", 0);
+        assertEquals(Arrays.asList("c:3", "a:1", "b:2"), pool.order(0));
+        assertEquals(Arrays.asList("b:2", "c:3", "a:1"), pool.order(10000));
+
+        // backoff grows with consecutive failures, jittered between half and all of the cap
+        for (int failures = 1; failures <= 30; failures++) {
+            long delay = ServerPool.backoff(failures);
+            long ceiling = Math.min(8000, 250L << Math.min(failures - 1, 20));
+            assertTrue(delay >= ceiling / 2 && delay <= ceiling, "backoff " + delay + " for " + failures);
+        }
+        System.out.println("testServerPoolOrdersByHealthAndLatency: Passed");
+    }
+}
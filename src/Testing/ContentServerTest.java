@@ -1,7 +1,10 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.junit.jupiter.api.Test;
 import main.ContentServer;
 import main.WeatherData;
 import java.io.*;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -69,5 +72,58 @@ public class ContentServerTest {
             }
         }
     }
-}
 
+    @Test
+    public void testParseInputFileWithManyStations() throws IOException {
+        String input = "id:IDS60901\nname:Adelaide\nstate:SA\nair_temp:13.3\n\n"
+                + "id:IDS60902\nname:Port Augusta\nstate:SA\nair_temp:18.1\n"
+                + "id:IDV60903\nname:Melbourne\nstate:VIC\nwind_spd_kmh:20\n";
+
+        File tempFile = File.createTempFile("weather_input", ".txt");
+        try {
+            try (FileWriter writer = new FileWriter(tempFile)) {
+                writer.write(input);
+            }
+
+            // Each id line starts a new station, with or without a blank line before it
+            List<WeatherData> stations = ContentServer.parseInputFileStations(tempFile.getAbsolutePath());
+            assertEquals(3, stations.size());
+            assertEquals("IDS60902", stations.get(1).getId());
+            assertEquals(18.1, stations.get(1).getAir_temp());
+            assertEquals("VIC", stations.get(2).getState());
+            assertEquals(20, stations.get(2).getWind_spd_kmh());
+
+            // The single-station method still returns the first station
+            assertEquals("IDS60901", ContentServer.parseInputFile(tempFile.getAbsolutePath()).getId());
+            System.out.println("testParseInputFileWithManyStations: Passed");
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testJsonEscapesTextAndLeavesOutAbsentFields() throws IOException {
+        WeatherData station = new WeatherData("IDS60901", "Adelaide \"West\" \\ Airport", null, "CST", -34.9, 138.6,
+                "15/04:00pm", "20230715160000", 13.3, 9.5, "Partly\ncloudy", 5.7, 1023.9, 60, "S", 15, 8);
+        JsonObject json = JsonParser.parseString(ContentServer.convertWeatherDataToJson(station)).getAsJsonObject();
+        assertEquals("Adelaide \"West\" \\ Airport", json.get("name").getAsString());
+        assertEquals("Partly\ncloudy", json.get("cloud").getAsString());
+        assertFalse(json.has("state"));
+        assertEquals(13.3, json.get("air_temp").getAsDouble());
+
+        // Fields the input file does not give are not sent at all
+        File tempFile = File.createTempFile("weather_input", ".txt");
+        try {
+            try (FileWriter writer = new FileWriter(tempFile)) {
+                writer.write("id:IDS60902\nname:Port Augusta\nair_temp:18.1\n");
+            }
+            WeatherData parsed = ContentServer.parseInputFile(tempFile.getAbsolutePath());
+            JsonObject sent = JsonParser.parseString(ContentServer.convertWeatherDataToJson(parsed)).getAsJsonObject();
+            assertEquals(3, sent.size());
+            assertEquals(18.1, sent.get("air_temp").getAsDouble());
+            System.out.println("testJsonEscapesTextAndLeavesOutAbsentFields: Passed");
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import org.junit.jupiter.api.Test;
+import main.EncodedStations;
+import main.HttpResponse;
+import main.WeatherSnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EncodedStationsTest {
+
+    private static String text(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testStationsAreEncodedOnceIntoDirectMemory() {
+        EncodedStations stations = new EncodedStations();
+        stations.put("A", "{\"id\": \"A\", \"name\": \"S\u00e3o Paulo\"}", 100);
+        stations.put("B", "{\"id\": \"B\"}", 100);
+        stations.put("A", "{\"id\": \"A\", \"air_temp\": 2}", 200);
+        String large = "{\"id\": \"C\", \"name\": \"" + "x".repeat(20000) + "\"}";
+        stations.put("C", large, 100); // too big for a slab
+
+        Map<String, String> seen = new TreeMap<>();
+        stations.forEach((stationId, json, timestamp) -> {
+            assertTrue(json.isDirect());
+            assertTrue(json.isReadOnly());
+            seen.put(stationId, text(json));
+        });
+        assertEquals("{\"id\": \"A\", \"air_temp\": 2}\n", seen.get("A"));
+        assertEquals("{\"id\": \"B\"}\n", seen.get("B"));
+        assertEquals(large + "\n", seen.get("C"));
+
+        // an expiry scheduled for an older write leaves the newer one
+        assertFalse(stations.remove("A", 100));
+        assertTrue(stations.remove("A", 200));
+        assertTrue(stations.remove("B"));
+        assertFalse(stations.remove("B"));
+        assertEquals(1, stations.size());
+        System.out.println("testStationsAreEncodedOnceIntoDirectMemory: Passed");
+    }
+
+    @Test
+    public void testSnapshotSharesOneBufferWithEveryReader() throws Exception {
+        EncodedStations stations = new EncodedStations();
+        long now = System.currentTimeMillis();
+        stations.put("A", "{\"id\": \"A\", \"name\": \"S\u00e3o Paulo\"}", now);
+        stations.put("OLD", "{\"id\": \"OLD\"}", now - 40000);
+        WeatherSnapshot snapshot = WeatherSnapshot.build(7, stations, now, 30000);
+
+        // expired stations are left out, and each reader gets its own view of the same bytes
+        String expected = "{\"id\": \"A\", \"name\": \"S\u00e3o Paulo\"}\n";
+        assertFalse(snapshot.isEmpty());
+        assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, snapshot.getLength());
+        ByteBuffer first = snapshot.getDirectBody();
+        ByteBuffer second = snapshot.getDirectBody();
+        assertTrue(first.isDirect() && first.isReadOnly());
+        first.position(first.limit());
+        assertEquals(expected, text(second));
+        assertEquals(expected, new String(snapshot.getBody(), StandardCharsets.UTF_8));
+        assertSame(snapshot.getBody(), snapshot.getBody());
+
+        // a response with a direct body is written the same to a channel and to a stream
+        HttpResponse response = new HttpResponse(200, "OK").body("application/json", snapshot.getDirectBody());
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        response.writeTo(streamed);
+        StringBuilder gathered = new StringBuilder();
+        for (ByteBuffer buffer : response.toBuffers()) {
+            gathered.append(new String(bytes(buffer), StandardCharsets.ISO_8859_1));
+        }
+        assertEquals(gathered.toString(), streamed.toString(StandardCharsets.ISO_8859_1));
+        assertTrue(streamed.toString(StandardCharsets.UTF_8).endsWith("\r\n\r\n" + expected));
+        assertTrue(streamed.toString(StandardCharsets.UTF_8).contains("Content-Length: " + snapshot.getLength() + "\r\n"));
+        assertEquals(expected, response.getBodyText());
+        System.out.println("testSnapshotSharesOneBufferWithEveryReader: Passed");
+    }
+
+    @Test
+    public void testSparseSlabsAreCompacted() {
+        EncodedStations stations = new EncodedStations();
+        String padding = "x".repeat(1000);
+        for (int i = 0; i < 200; i++) {
+            stations.put("S" + i, "{\"id\": \"S" + i + "\", \"name\": \"" + padding + "\"}", i);
+        }
+        int filled = stations.getSlabCount();
+        assertTrue(filled >= 3);
+
+        // keeping one station in every ten leaves each earlier slab mostly empty, so their stations
+        // move on and only about two slabs are still held
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 != 0) {
+                assertTrue(stations.remove("S" + i));
+            }
+        }
+        assertEquals(20, stations.size());
+        assertTrue(stations.getSlabCount() <= 2, "slabs held: " + stations.getSlabCount());
+
+        Map<String, String> seen = new TreeMap<>();
+        stations.forEach((stationId, json, timestamp) -> {
+            assertEquals(Long.parseLong(stationId.substring(1)), timestamp);
+            seen.put(stationId, text(json));
+        });
+        for (int i = 0; i < 200; i += 10) {
+            assertEquals("{\"id\": \"S" + i + "\", \"name\": \"" + padding + "\"}\n", seen.get("S" + i));
+        }
+        System.out.println("testSparseSlabsAreCompacted: Passed");
+    }
+
+    @Test
+    public void testSnapshotBuffersAreReusedOnceReleased() {
+        EncodedStations stations = new EncodedStations();
+        long now = System.currentTimeMillis();
+        stations.put("A", "{\"id\": \"A\"}", now);
+        WeatherSnapshot.BufferPool pool = new WeatherSnapshot.BufferPool(2);
+        WeatherSnapshot first = WeatherSnapshot.build(1, stations, now, 30000, pool);
+        assertEquals(0, pool.size());
+
+        // a response still writing the replaced snapshot keeps its buffer out of the pool
+        assertTrue(first.retain());
+        HttpResponse response = new HttpResponse(200, "OK").body("application/json", first.getDirectBody(), first::release);
+        assertTrue(response.isLent());
+        first.release();
+        assertEquals(0, pool.size());
+
+        response.release();
+        response.release(); // releasing twice gives the buffer back once
+        assertEquals(1, pool.size());
+        assertFalse(first.retain()); // a released snapshot cannot be read again
+
+        // the next rebuild takes it back instead of allocating
+        stations.put("B", "{\"id\": \"B\"}", now);
+        WeatherSnapshot second = WeatherSnapshot.build(2, stations, now, 30000, pool);
+        assertEquals(0, pool.size());
+        assertEquals("{\"id\": \"A\"}\n{\"id\": \"B\"}\n".length(), second.getLength());
+        second.release();
+        assertEquals(1, pool.size());
+        System.out.println("testSnapshotBuffersAreReusedOnceReleased: Passed");
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
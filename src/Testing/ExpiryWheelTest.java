@@ -0,0 +1,48 @@
+import main.ExpiryWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExpiryWheelTest {
+
+    @Test
+    public void testEntriesFireOnlyOnceDue() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule("A", 250);
+        wheel.schedule("B", 30000); // many revolutions away
+        wheel.schedule("C", 250);
+
+        assertEquals(0, wheel.advance(249, (key, deadline) -> fired.add(key)));
+        assertEquals(2, wheel.advance(250, (key, deadline) -> fired.add(key)));
+        assertEquals(List.of("A", "C"), fired);
+
+        // An entry several rounds out is skipped on every earlier revolution
+        assertEquals(0, wheel.advance(29999, (key, deadline) -> fired.add(key)));
+        assertEquals(1, wheel.advance(30500, (key, deadline) -> fired.add(key)));
+        assertEquals("B", fired.get(2));
+        assertEquals(0, wheel.size());
+        System.out.println("testEntriesFireOnlyOnceDue: Passed");
+    }
+
+    @Test
+    public void testStaleEntriesAreDiscarded() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 64, 0);
+        Map<String, Long> deadlines = new HashMap<>();
+
+        // A refreshed station leaves its old entry behind; the handler ignores it
+        wheel.schedule("IDS60901", 1000);
+        deadlines.put("IDS60901", 1000L);
+        wheel.schedule("IDS60901", 2000);
+        deadlines.put("IDS60901", 2000L);
+
+        ExpiryWheel.ExpiryHandler handler = (key, deadline) -> deadlines.remove(key, deadline);
+        assertEquals(0, wheel.advance(1500, handler));
+        assertTrue(deadlines.containsKey("IDS60901"));
+        assertEquals(1, wheel.advance(2000, handler));
+        assertTrue(deadlines.isEmpty());
+        System.out.println("testStaleEntriesAreDiscarded: Passed");
+    }
+}
@@ -1,6 +1,18 @@
 import org.junit.jupiter.api.Test;
+import main.GETClient;
+import main.HttpRequest;
+import main.HttpResponse;
+import main.LocalCluster;
+import main.PersistentConnection;
+import main.WeatherData;
 
 import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -35,6 +47,132 @@ public class GETClientTest {
             fail("Test failed due to IOException: " + e.getMessage());
         }
     }
-}
 
+    @Test
+    public void testReadsResponsesFramedWhateverTheHeaderCase() throws IOException {
+        // a lowercase content-length still frames the body, so the next response can be read after it
+        byte[] pipelined = ("HTTP/1.1 200 OK\r\ncontent-length: 5\r\n\r\nhello"
+                + "HTTP/1.1 204 No Content\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        InputStream in = new ByteArrayInputStream(pipelined);
+        HttpResponse first = HttpResponse.read(in);
+        assertEquals("hello", first.getBodyText());
+        assertFalse(first.isClose());
+        assertEquals(204, HttpResponse.read(in).getStatus());
+
+        // a direct body larger than the copy space is written a chunk at a time
+        byte[] large = new byte[20000];
+        Arrays.fill(large, (byte) 'x');
+        ByteBuffer direct = ByteBuffer.allocateDirect(large.length);
+        direct.put(large).flip();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HttpResponse(200, "OK").body("text/plain", direct).writeTo(out);
+        HttpResponse written = HttpResponse.read(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(large, written.getBody());
+        System.out.println("testReadsResponsesFramedWhateverTheHeaderCase: Passed");
+    }
+
+    @Test
+    public void testGetsStationsFromServer() throws Exception {
+        try (LocalCluster cluster = new LocalCluster(1, 4874, Collections.emptyList());
+             PersistentConnection connection = new PersistentConnection("localhost", 4874)) {
+            cluster.start(0);
+            for (int i = 0; i < 5; i++) {
+                String station = "{\"id\": \"IDS6090" + i + "\", \"name\": \"Adelaide (West Terrace / ngayirdapira)\", "
+                        + "\"state\": \"SA\", \"air_temp\": 1" + i + ".5}";
+                assertEquals(201, connection.send("PUT", "/weather.json", Map.of(),
+                        station.getBytes(StandardCharsets.UTF_8)).getStatus());
+            }
 
+            // the feed comes back compressed, framed by Content-Length, on the same connection each time
+            try (GETClient client = new GETClient(Collections.singletonList("localhost:4874"))) {
+                for (int round = 0; round < 2; round++) {
+                    List<WeatherData> stations = client.getWeather();
+                    assertEquals(5, stations.size());
+                    Set<String> ids = new TreeSet<>();
+                    for (WeatherData station : stations) {
+                        ids.add(station.getId());
+                        assertEquals("SA", station.getState());
+                    }
+                    assertEquals(new TreeSet<>(List.of("IDS60900", "IDS60901", "IDS60902", "IDS60903", "IDS60904")), ids);
+                }
+                assertTrue(client.getLamportClock() > 5);
+                assertEquals(0, client.getHedges());
+            }
+        }
+        System.out.println("testGetsStationsFromServer: Passed");
+    }
+
+    // Method to start a server that answers every request with the station after a delay
+    private static ServerSocket replica(long delayMillis, String station) throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> {
+                        try (Socket client = socket) {
+                            InputStream in = new BufferedInputStream(client.getInputStream());
+                            while (HttpRequest.read(in) != null) {
+                                Thread.sleep(delayMillis);
+                                new HttpResponse(200, "OK").header("Lamport-Clock", "42")
+                                        .body("application/json", (station + "\n").getBytes(StandardCharsets.UTF_8))
+                                        .writeTo(client.getOutputStream());
+                            }
+                        } catch (IOException | InterruptedException ignored) {
+                        }
+                    });
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    @Test
+    public void testHedgesAroundSlowReplica() throws Exception {
+        int downPort;
+        try (ServerSocket down = new ServerSocket(0)) {
+            downPort = down.getLocalPort();
+        }
+        try (ServerSocket slow = replica(3000, "{\"id\": \"SLOW\"}");
+             ServerSocket fast = replica(0, "{\"id\": \"FAST\"}")) {
+            String slowAddress = "localhost:" + slow.getLocalPort();
+            String fastAddress = "localhost:" + fast.getLocalPort();
+
+            // the slow replica is asked first, the request is hedged to the fast one and its answer used.
+            // The floor is set well above a scheduling hiccup of this machine, so only the slow replica
+            // can cause a hedge.
+            try (GETClient client = new GETClient(List.of(slowAddress, fastAddress),
+                    GETClient.DEFAULT_HEDGE_PERCENTILE, 100)) {
+                long start = System.nanoTime();
+                List<WeatherData> stations = client.getWeather();
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+                assertEquals("FAST", stations.get(0).getId());
+                assertEquals(1, client.getHedges());
+                assertTrue(client.getLamportClock() > 42);
+
+                // having measured it, the fast replica is now asked first, and no answer of it is slow
+                // enough to pass the hedging floor, so nothing more is hedged
+                for (int i = 0; i < 25; i++) {
+                    assertEquals("FAST", client.getWeather().get(0).getId());
+                }
+                assertEquals(1, client.getHedges());
+                assertEquals(TimeUnit.MILLISECONDS.toNanos(100), client.getHedgeDelay());
+            }
+
+            // a replica that refuses connections is failed over straight away, without waiting
+            try (GETClient client = new GETClient(List.of("localhost:" + downPort, fastAddress))) {
+                assertEquals("FAST", client.getWeather().get(0).getId());
+                assertEquals(0, client.getHedges());
+            }
+            try (GETClient client = new GETClient(List.of("localhost:" + downPort))) {
+                assertThrows(IOException.class, client::getWeather);
+            }
+        }
+        System.out.println("testHedgesAroundSlowReplica: Passed");
+    }
+}
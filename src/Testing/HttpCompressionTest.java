@@ -0,0 +1,98 @@
+import org.junit.jupiter.api.Test;
+import main.EncodedStations;
+import main.HttpCompression;
+import main.HttpResponse;
+import main.PersistentConnection;
+import main.WeatherSnapshot;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpCompressionTest {
+
+    @Test
+    public void testNegotiatesAndRoundTrips() throws IOException {
+        assertEquals("gzip", HttpCompression.negotiate("gzip, deflate"));
+        assertEquals("deflate", HttpCompression.negotiate("deflate, gzip;q=0"));
+        assertEquals("gzip", HttpCompression.negotiate("*"));
+        assertNull(HttpCompression.negotiate("br"));
+        assertNull(HttpCompression.negotiate(null));
+
+        byte[] feed = "{\"id\": \"IDS60901\", \"name\": \"Adelaide\"}\n".repeat(200).getBytes(StandardCharsets.UTF_8);
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            byte[] compressed = HttpCompression.compress(feed, encoding);
+            assertTrue(compressed.length < feed.length / 10, encoding + " saved too little");
+            assertArrayEquals(feed, HttpCompression.decompress(compressed, encoding, feed.length));
+            // a body that would expand past the limit is refused
+            assertThrows(IOException.class, () -> HttpCompression.decompress(compressed, encoding, feed.length - 1));
+        }
+        assertThrows(IOException.class, () -> HttpCompression.decompress(feed, "gzip", feed.length));
+        System.out.println("testNegotiatesAndRoundTrips: Passed");
+    }
+
+    @Test
+    public void testSnapshotCompressesOnce() throws Exception {
+        EncodedStations stations = new EncodedStations();
+        for (int i = 0; i < 50; i++) {
+            String json = "{\"id\": \"IDZ" + i + "\", \"name\": \"Station " + i + "\", \"state\": \"SA\"}";
+            stations.put("IDZ" + i, json, System.currentTimeMillis());
+        }
+        WeatherSnapshot snapshot = WeatherSnapshot.build(1, stations, System.currentTimeMillis(), 30000);
+        byte[] gzip = snapshot.getBody("gzip");
+        assertSame(gzip, snapshot.getBody("gzip"));
+        assertSame(snapshot.getBody(), snapshot.getBody(null));
+        assertArrayEquals(snapshot.getBody(), HttpCompression.decompress(gzip, "gzip", 1 << 20));
+        System.out.println("testSnapshotCompressesOnce: Passed");
+    }
+
+    @Test
+    public void testServerCompressesGetsAndAcceptsCompressedPuts() throws Exception {
+        Thread server = new Thread(() -> {
+            try {
+                main.AggregationServer.main(new String[]{});
+            } catch (BindException e) {
+                // already started by another test in this JVM
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(1000);
+
+        try (PersistentConnection connection = new PersistentConnection("localhost", 4567)) {
+            StringBuilder batch = new StringBuilder("[");
+            for (int i = 0; i < 40; i++) {
+                batch.append(i == 0 ? "" : ",").append("{\"id\": \"IDGZ").append(i).append("\", \"name\": \"Compressed ")
+                        .append(i).append("\", \"state\": \"SA\", \"air_temp\": 13.3}");
+            }
+            byte[] compressed = HttpCompression.compress(batch.append(']').toString().getBytes(StandardCharsets.UTF_8), "gzip");
+            HttpResponse response = connection.send("PUT", "/weather.json", Map.of("Content-Encoding", "gzip"), compressed);
+            assertEquals(200, response.getStatus());
+            assertTrue(response.getBodyText().contains("\"IDGZ39\""));
+            assertEquals(415, connection.send("PUT", "/weather.json", Map.of("Content-Encoding", "br"), compressed).getStatus());
+            assertEquals(400, connection.send("PUT", "/weather.json", Map.of("Content-Encoding", "deflate"), compressed).getStatus());
+
+            HttpResponse plain = connection.send("GET", "/weather.json", Map.of(), new byte[0]);
+            HttpResponse gzip = connection.send("GET", "/weather.json", Map.of("Accept-Encoding", "gzip, deflate"), new byte[0]);
+            assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+            assertEquals("W/" + plain.getHeader("ETag"), gzip.getHeader("ETag"));
+            assertTrue(gzip.getBody().length < plain.getBody().length / 2);
+            assertEquals(plain.getBodyText(), gzip.decode().getBodyText());
+
+            // the weak ETag still gives 304 while nothing changed
+            assertEquals(304, connection.send("GET", "/weather.json",
+                    Map.of("Accept-Encoding", "gzip", "If-None-Match", gzip.getHeader("ETag")), new byte[0]).getStatus());
+
+            // other responses are compressed on the way out
+            HttpResponse query = connection.send("GET", "/weather.json?state=SA", Map.of("Accept-Encoding", "deflate"), new byte[0]);
+            assertEquals("deflate", query.getHeader("Content-Encoding"));
+            assertTrue(query.decode().getBodyText().contains("IDGZ7"));
+        }
+        System.out.println("testServerCompressesGetsAndAcceptsCompressedPuts: Passed");
+    }
+}
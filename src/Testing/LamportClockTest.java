@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+import main.LamportClock;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LamportClockTest {
+
+    @Test
+    public void testConcurrentTicksAreUnique() throws Exception {
+        LamportClock clock = new LamportClock();
+        int threads = 8;
+        int ticks = 50000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            results.add(executor.submit(() -> {
+                long[] seen = new long[ticks];
+                for (int i = 0; i < ticks; i++) {
+                    // every other thread also merges in a received time, as a server does per request
+                    seen[i] = thread % 2 == 0 ? clock.increment() : clock.update(i);
+                }
+                return seen;
+            }));
+        }
+
+        Set<Long> all = new HashSet<>();
+        for (Future<long[]> result : results) {
+            long previous = 0;
+            for (long time : result.get()) {
+                assertTrue(time > previous, "time went backwards on one thread");
+                assertTrue(all.add(time), "time " + time + " handed out twice");
+                previous = time;
+            }
+        }
+        executor.shutdown();
+        assertEquals(threads * ticks, clock.getTime());
+        System.out.println("testConcurrentTicksAreUnique: Passed");
+    }
+
+    @Test
+    public void testUpdateGoesPastReceivedTime() {
+        LamportClock clock = new LamportClock();
+        assertEquals(1, clock.increment());
+        assertEquals(11, clock.update(10));
+        assertEquals(12, clock.update(3));
+        // 64-bit: no overflow past the range of an int
+        assertEquals(Integer.MAX_VALUE + 2L, clock.update(Integer.MAX_VALUE + 1L));
+        System.out.println("testUpdateGoesPastReceivedTime: Passed");
+    }
+}
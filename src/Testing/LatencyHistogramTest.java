@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+import main.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000); // 1 us to 100 ms
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000, histogram.getMax());
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            double exact = percentile * 1000 * 1000;
+            double reported = histogram.percentile(percentile);
+            assertTrue(reported >= exact && reported <= exact * 1.04, percentile + "%: " + reported + " for " + exact);
+        }
+        assertEquals(histogram.getMax(), histogram.percentile(100));
+
+        // small values are exact, and an empty histogram reports 0
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(3);
+        small.record(-5);
+        assertEquals(0, small.percentile(50));
+        assertEquals(3, small.percentile(100));
+        assertEquals(0, new LatencyHistogram().percentile(99));
+        System.out.println("testPercentilesAreWithinBucketPrecision: Passed");
+    }
+
+    @Test
+    public void testCumulativeCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value : new long[]{5, 900, 1000, 1100, 50_000, 2_000_000}) {
+            histogram.record(value);
+        }
+        // a value is counted under a bound once its bucket lies wholly below it, and the last
+        // element is the total
+        long[] cumulative = histogram.cumulativeCounts(new long[]{10, 1000, 1200, 100_000, 1_000_000});
+        assertArrayEquals(new long[]{1, 2, 4, 5, 5, 6}, cumulative);
+        assertArrayEquals(new long[]{0}, new LatencyHistogram().cumulativeCounts(new long[0]));
+        System.out.println("testCumulativeCounts: Passed");
+    }
+
+    @Test
+    public void testConcurrentRecordingAndMerging() throws InterruptedException {
+        LatencyHistogram shared = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            long offset = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    shared.record(i % 1000 + offset);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800_000, shared.getCount());
+        assertEquals(1006, shared.getMax());
+
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.record(5_000_000);
+        merged.add(shared);
+        assertEquals(800_001, merged.getCount());
+        assertEquals(5_000_000, merged.getMax());
+        assertEquals(shared.percentile(50), merged.percentile(50));
+        System.out.println("testConcurrentRecordingAndMerging: Passed");
+    }
+}
@@ -0,0 +1,39 @@
+import org.junit.jupiter.api.Test;
+import main.LoadGenerator;
+import main.LocalCluster;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void testClosedAndOpenLoopRuns() throws Exception {
+        try (LocalCluster cluster = new LocalCluster(1, 4869, Collections.emptyList())) {
+            cluster.start(0);
+
+            // closed loop: every connection keeps one request in flight
+            LoadGenerator closed = new LoadGenerator(cluster.getAddress(0), 500, 100, 100, 0.5, 0, 4);
+            closed.preload();
+            LoadGenerator.Result result = closed.run(300, 1500);
+            for (int type : new int[]{LoadGenerator.PUT, LoadGenerator.GET}) {
+                assertTrue(result.getLatencies(type).getCount() > 50, "too few requests of type " + type);
+                assertEquals(0, result.getErrors(type));
+                assertTrue(result.getLatencies(type).percentile(50) <= result.getLatencies(type).percentile(99.9));
+            }
+            // each content server sends one PUT at a time, from a clock that started at the server's
+            assertTrue(result.getStatuses(LoadGenerator.PUT).containsKey(200));
+            assertFalse(result.getStatuses(LoadGenerator.PUT).containsKey(409));
+            // readers that already hold the current feed are answered 304
+            assertTrue(result.getStatuses(LoadGenerator.GET).keySet().stream().allMatch(s -> s == 200 || s == 304));
+
+            // open loop: the requests due in the run are sent, whatever the latency
+            LoadGenerator open = new LoadGenerator(cluster.getAddress(0), 500, 100, 100, 0.2, 400, 4);
+            LoadGenerator.Result paced = open.run(0, 1000);
+            long sent = paced.getLatencies(LoadGenerator.PUT).getCount() + paced.getLatencies(LoadGenerator.GET).getCount();
+            assertTrue(sent >= 380 && sent <= 400, sent + " requests at 400 req/s");
+        }
+        System.out.println("testClosedAndOpenLoopRuns: Passed");
+    }
+}
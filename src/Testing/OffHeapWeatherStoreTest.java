@@ -0,0 +1,133 @@
+import main.HttpResponse;
+import main.LocalCluster;
+import main.OffHeapWeatherStore;
+import main.PersistentConnection;
+import main.StationVersions;
+import main.WeatherSnapshot;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapWeatherStoreTest {
+
+    private static final String ADELAIDE = "{\"id\": \"IDS60901\", \"name\": \"Adelaide (West Terrace)\", \"state\": \"SA\", "
+            + "\"lat\": -34.9, \"air_temp\": 13.3, \"cloud\": \"Partly \\\"cloudy\\\"\", \"wind_spd_kmh\": 15}";
+
+    @Test
+    public void testPutAndGetRoundTrip() {
+        OffHeapWeatherStore store = new OffHeapWeatherStore();
+        assertTrue(store.put("IDS60901", ADELAIDE, 1000L));
+        assertFalse(store.put("IDS60901", ADELAIDE, 2000L));
+
+        // Only the fields that were sent are rendered back, with their original values
+        String json = store.get("IDS60901");
+        assertTrue(json.contains("\"id\": \"IDS60901\""));
+        assertTrue(json.contains("\"name\": \"Adelaide (West Terrace)\""));
+        assertTrue(json.contains("\"lat\": -34.9"));
+        assertTrue(json.contains("\"air_temp\": 13.3"));
+        assertTrue(json.contains("\"cloud\": \"Partly \\\"cloudy\\\"\""));
+        assertTrue(json.contains("\"wind_spd_kmh\": 15"));
+        assertFalse(json.contains("press"));
+
+        Map<String, Long> timestamps = new HashMap<>();
+        store.forEach((stationId, data, timestamp) -> timestamps.put(stationId, timestamp));
+        assertEquals(Map.of("IDS60901", 2000L), timestamps);
+        System.out.println("testPutAndGetRoundTrip: Passed");
+    }
+
+    @Test
+    public void testRemovedSlotsAreReused() {
+        OffHeapWeatherStore store = new OffHeapWeatherStore();
+        for (int i = 0; i < 20000; i++) {
+            store.put("ID" + i, "{\"id\": \"ID" + i + "\", \"state\": \"SA\", \"air_temp\": " + i + "}", i);
+        }
+        long reserved = store.reservedBytes();
+        for (int i = 0; i < 20000; i += 2) {
+            assertTrue(store.remove("ID" + i));
+        }
+        assertNull(store.get("ID0"));
+        assertEquals(10000, store.size());
+
+        // Refilling the freed slots must not grow the off-heap area or disturb other stations
+        for (int i = 0; i < 20000; i += 2) {
+            store.put("NEW" + i, "{\"id\": \"NEW" + i + "\", \"air_temp\": -1.5}", i);
+        }
+        assertEquals(reserved, store.reservedBytes());
+        assertTrue(store.get("ID19999").contains("\"air_temp\": 19999\n"));
+        assertTrue(store.get("NEW0").contains("\"air_temp\": -1.5"));
+        System.out.println("testRemovedSlotsAreReused: Passed");
+    }
+
+    @Test
+    public void testRendersStationAsSent() throws Exception {
+        OffHeapWeatherStore store = new OffHeapWeatherStore();
+        String json = "{\n    \"id\": \"IDS60901\",\n    \"name\": \"Adelaide\",\n    \"lat\": -34.90,"
+                + "\n    \"local_date_time\": \"15/04:00pm\",\n    \"local_date_time_full\": \"20230715160000\","
+                + "\n    \"air_temp\": 13,\n    \"apparent_t\": -0.05,\n    \"dewpt\": 5.7,\n    \"rel_hum\": 60\n}";
+        store.put("IDS60901", json, 1000L);
+        assertEquals(json, store.get("IDS60901"));
+
+        // local times differ in every observation and are kept in the record, not the dictionary
+        int dictionary = store.dictionarySize();
+        for (int i = 0; i < 1000; i++) {
+            store.put("IDS60901", json.replace("20230715160000", "2023071516" + (1000 + i)), 1000L + i);
+        }
+        assertEquals(dictionary, store.dictionarySize());
+        assertTrue(store.get("IDS60901").contains("\"local_date_time_full\": \"20230715161999\""));
+        System.out.println("testRendersStationAsSent: Passed");
+    }
+
+    @Test
+    public void testVersionsAreKeptInTheRecords() {
+        OffHeapWeatherStore store = new OffHeapWeatherStore();
+        StationVersions versions = StationVersions.forStore(store);
+        store.put("IDS60901", ADELAIDE, 1000L);
+        assertNull(versions.get("IDS60901"));
+        versions.put("IDS60901", 7, "content-a", 1000L);
+        assertEquals(7, versions.get("IDS60901").getLamportTime());
+        assertEquals("content-a", versions.get("IDS60901").getOrigin());
+        assertEquals(1000L, versions.get("IDS60901").getTimestamp());
+        assertFalse(versions.isNewer("IDS60901", 7, "content-a"));
+        assertTrue(versions.isNewer("IDS60901", 7, "content-b"));
+
+        // the version goes with the record, and a slot reused for another station starts without one
+        assertTrue(store.remove("IDS60901", 1000L));
+        assertNull(versions.get("IDS60901"));
+        assertTrue(versions.isNewer("IDS60901", 1, "content-a"));
+        store.put("IDS60902", ADELAIDE.replace("IDS60901", "IDS60902"), 2000L);
+        assertNull(versions.get("IDS60902"));
+        System.out.println("testVersionsAreKeptInTheRecords: Passed");
+    }
+
+    @Test
+    public void testEveryReadMatchesTheFeed() throws Exception {
+        // the snapshot is rendered from the records, one station per line
+        OffHeapWeatherStore store = new OffHeapWeatherStore();
+        store.put("IDS60901", ADELAIDE, System.currentTimeMillis());
+        WeatherSnapshot snapshot = WeatherSnapshot.build(1, store, System.currentTimeMillis(), 30000, null);
+        assertEquals(store.get("IDS60901") + "\n", new String(snapshot.getBody(), StandardCharsets.UTF_8));
+
+        // a server with the off-heap store serves the full feed, a filtered GET and the change
+        // stream the same station, rendered from its record without the unknown field
+        try (LocalCluster cluster = new LocalCluster(1, 4877, Arrays.asList("--store=offheap"))) {
+            cluster.start(0);
+            PersistentConnection connection = new PersistentConnection("localhost", 4877);
+            String sent = "{\"id\": \"IDOFF01\", \"state\": \"SA\", \"air_temp\": 13.30, \"extra\": [1, 2]}";
+            assertEquals(201, connection.send("PUT", "/weather.json", Map.of(), sent.getBytes(StandardCharsets.UTF_8)).getStatus());
+            String feed = connection.send("GET", "/weather.json", Map.of(), new byte[0]).getBodyText();
+            String filtered = connection.send("GET", "/weather.json?id=IDOFF01", Map.of(), new byte[0]).getBodyText();
+            HttpResponse delta = connection.send("GET", "/weather.json?since=0", Map.of(), new byte[0]);
+            assertFalse(feed.contains("extra"));
+            assertTrue(feed.contains("\"air_temp\": 13.30"));
+            assertTrue(filtered.contains(feed.trim()), filtered);
+            assertTrue(delta.getBodyText().contains(feed.trim().replace('\n', ' ')), delta.getBodyText());
+            connection.close();
+        }
+        System.out.println("testEveryReadMatchesTheFeed: Passed");
+    }
+}
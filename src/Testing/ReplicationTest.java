@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.Test;
+import main.HttpResponse;
+import main.LocalCluster;
+import main.PersistentConnection;
+import main.ReplicationLog;
+import main.StationVersions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicationTest {
+
+    private static HttpResponse put(String server, String id) throws IOException {
+        try (PersistentConnection connection = PersistentConnection.forAddress(server)) {
+            byte[] body = ("{\"id\": \"" + id + "\", \"name\": \"Station " + id + "\", \"state\": \"SA\"}")
+                    .getBytes(StandardCharsets.UTF_8);
+            return connection.send("PUT", "/weather.json", Collections.singletonMap("Content-Type", "application/json"), body);
+        }
+    }
+
+    private static String get(String server) {
+        try (PersistentConnection connection = PersistentConnection.forAddress(server)) {
+            return connection.send("GET", "/weather.json", Collections.emptyMap(), new byte[0]).getBodyText();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    // Method to wait until the server holds all of the stations, copies are asynchronous
+    private static void awaitStations(String server, String... ids) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        String body = "";
+        while (System.currentTimeMillis() < deadline) {
+            body = get(server);
+            String current = body;
+            if (Arrays.stream(ids).allMatch(id -> current.contains("\"" + id + "\""))) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail(server + " is missing some of " + Arrays.toString(ids) + ": " + body);
+    }
+
+    @Test
+    public void testReplicasSurviveKillAndRestart() throws Exception {
+        try (LocalCluster cluster = new LocalCluster(3, 4667, Collections.singletonList("--replication-interval=50"))) {
+            for (int i = 0; i < 3; i++) {
+                cluster.start(i);
+            }
+
+            // a write to the primary is copied to both backups, and either can answer a GET
+            assertEquals(201, put(cluster.getAddress(0), "IDREP1").getStatus());
+            awaitStations(cluster.getAddress(1), "IDREP1");
+            awaitStations(cluster.getAddress(2), "IDREP1");
+
+            // a backup that was down catches up from a snapshot when it restarts
+            cluster.kill(1);
+            assertEquals(201, put(cluster.getAddress(0), "IDREP2").getStatus());
+            cluster.start(1);
+            awaitStations(cluster.getAddress(1), "IDREP1", "IDREP2");
+
+            // with the primary gone, writes fail over to a backup and nothing is lost
+            cluster.kill(0);
+            assertEquals(201, put(cluster.getAddress(2), "IDREP3").getStatus());
+            awaitStations(cluster.getAddress(1), "IDREP1", "IDREP2", "IDREP3");
+
+            // and the old primary gets everything back when it rejoins
+            cluster.start(0);
+            awaitStations(cluster.getAddress(0), "IDREP1", "IDREP2", "IDREP3");
+        }
+        System.out.println("testReplicasSurviveKillAndRestart: Passed");
+    }
+
+    @Test
+    public void testLogKeepsNewestWriteAndBoundedTail() throws IOException {
+        StationVersions versions = new StationVersions();
+        versions.put("S1", 5, "b", 1000);
+
+        // an older copy loses, a newer one wins, and equal times are settled by server id
+        assertFalse(versions.isNewer("S1", 4, "c"));
+        assertFalse(versions.isNewer("S1", 5, "a"));
+        assertTrue(versions.isNewer("S1", 5, "c"));
+        assertTrue(versions.isNewer("S2", 1, "a"));
+
+        // the tail holds the last three writes; reading from before it means loading a snapshot
+        ReplicationLog log = new ReplicationLog("b", 3);
+        log.record("S1", "{\"id\": \"S1\"}", 1000, 5, "b");
+        log.record("S1", "{}", 900, 5, "c");
+        log.record("S1", "{\"id\": \"S1\", \"v\": 2}", 1100, 6, "a");
+        log.record("S2", "{\"id\": \"S2\"}", 1200, 7, "b");
+        assertEquals(2, log.since(2, 10).size());
+        assertEquals(4, log.since(2, 10).get(1).getSequence());
+        assertNull(log.since(0, 10));
+        assertNull(log.since(9, 10));
+
+        // a snapshot is read from the stations, at the sequence reached before reading them
+        ReplicationLog.Snapshot snapshot = log.snapshot(() -> log.since(2, 10));
+        assertEquals(4, snapshot.getSequence());
+        assertEquals(2, snapshot.getEntries().size());
+
+        // entries survive the wire unchanged
+        List<ReplicationLog.Entry> decoded = ReplicationLog.decode(ReplicationLog.encode(snapshot.getEntries()));
+        assertEquals("S1", decoded.get(0).getStationId());
+        assertEquals("{\"id\": \"S1\", \"v\": 2}", decoded.get(0).getJson());
+        assertEquals(6, decoded.get(0).getLamportTime());
+        assertEquals("a", decoded.get(0).getOrigin());
+        assertEquals(1100, decoded.get(0).getTimestamp());
+
+        // an expired station loses its version, unless it was written again
+        versions.put("S2", 7, "b", 1200);
+        versions.remove("S2", 1100);
+        versions.remove("S1", 1000);
+        assertNull(versions.get("S1"));
+        assertEquals(1200, versions.get("S2").getTimestamp());
+        System.out.println("testLogKeepsNewestWriteAndBoundedTail: Passed");
+    }
+}
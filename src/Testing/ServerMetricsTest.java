@@ -0,0 +1,108 @@
+import org.junit.jupiter.api.Test;
+import main.HttpResponse;
+import main.LocalCluster;
+import main.PersistentConnection;
+import main.ServerMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerMetricsTest {
+    private static final Pattern SAMPLE = Pattern.compile("([a-z_]+)(\\{[^}]*\\})? (-?[0-9.E+-]+)");
+    private static final String[] HISTOGRAMS = {
+            "weather_accept_to_first_byte_seconds", "weather_header_parse_seconds", "weather_put_apply_seconds",
+            "weather_get_render_seconds", "weather_get_write_seconds", "weather_expiry_sweep_seconds"
+    };
+
+    // Method to parse an exposition into its samples, checking every line is well formed
+    private static Map<String, Double> parse(String text) {
+        Map<String, Double> samples = new LinkedHashMap<>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith("# HELP ") || line.startsWith("# TYPE ")) {
+                continue;
+            }
+            Matcher matcher = SAMPLE.matcher(line);
+            assertTrue(matcher.matches(), line);
+            String labels = matcher.group(2) != null ? matcher.group(2) : "";
+            samples.put(matcher.group(1) + labels, Double.parseDouble(matcher.group(3)));
+        }
+        return samples;
+    }
+
+    // Method to check a histogram's buckets never decrease and end at its count, returning the count
+    private static double checkHistogram(Map<String, Double> samples, String name) {
+        double previous = 0;
+        for (Map.Entry<String, Double> sample : samples.entrySet()) {
+            if (sample.getKey().startsWith(name + "_bucket")) {
+                assertTrue(sample.getValue() >= previous, sample.getKey());
+                previous = sample.getValue();
+            }
+        }
+        double count = samples.get(name + "_count");
+        assertEquals(count, samples.get(name + "_bucket{le=\"+Inf\"}"));
+        assertEquals(count, previous);
+        return count;
+    }
+
+    @Test
+    public void testRenderIsPrometheusText() {
+        ServerMetrics.PUT_APPLY.record(20_000);       // 20 us
+        ServerMetrics.PUT_APPLY.record(3_000_000);    // 3 ms
+        ServerMetrics.countRequest("DELETE", 400);
+        Map<String, Double> samples = parse(new String(ServerMetrics.render(12, 345), StandardCharsets.UTF_8));
+
+        for (String histogram : HISTOGRAMS) {
+            checkHistogram(samples, histogram);
+        }
+        assertTrue(samples.get("weather_put_apply_seconds_count") >= 2);
+        assertTrue(samples.get("weather_put_apply_seconds_bucket{le=\"0.000025\"}") >= 1);
+        assertTrue(samples.get("weather_put_apply_seconds_sum") >= 0.00302);
+        assertTrue(samples.get("weather_requests_total{method=\"other\",code=\"400\"}") >= 1);
+        assertEquals(12, samples.get("weather_stations"));
+        assertEquals(345, samples.get("weather_lamport_clock"));
+        System.out.println("testRenderIsPrometheusText: Passed");
+    }
+
+    private static void checkServer(String engine, int port) throws Exception {
+        try (LocalCluster cluster = new LocalCluster(1, port, Collections.singletonList("--engine=" + engine));
+             PersistentConnection connection = new PersistentConnection("localhost", port)) {
+            cluster.start(0);
+            String station = "{\"id\": \"IDMET1\", \"name\": \"Adelaide\", \"air_temp\": 13.3}";
+            assertEquals(201, connection.send("PUT", "/weather.json", Map.of(),
+                    station.getBytes(StandardCharsets.UTF_8)).getStatus());
+            assertEquals(200, connection.send("GET", "/weather.json", Map.of(), new byte[0]).getStatus());
+            assertEquals(200, connection.send("GET", "/weather.json", Map.of(), new byte[0]).getStatus());
+
+            Thread.sleep(500); // at least one expiry sweep
+            HttpResponse response = connection.send("GET", "/metrics", Map.of(), new byte[0]);
+            assertEquals(200, response.getStatus());
+            assertTrue(response.getHeader("Content-Type").startsWith("text/plain; version=0.0.4"));
+            Map<String, Double> samples = parse(response.getBodyText());
+
+            // every stage this connection went through has been timed
+            assertEquals(1, checkHistogram(samples, "weather_accept_to_first_byte_seconds"));
+            assertEquals(4, checkHistogram(samples, "weather_header_parse_seconds"));
+            assertEquals(1, checkHistogram(samples, "weather_put_apply_seconds"));
+            assertEquals(2, checkHistogram(samples, "weather_get_render_seconds"));
+            assertEquals(2, checkHistogram(samples, "weather_get_write_seconds"));
+            assertTrue(checkHistogram(samples, "weather_expiry_sweep_seconds") > 0);
+            assertEquals(0, samples.get("weather_expiry_evictions_total"));
+            assertEquals(1, samples.get("weather_requests_total{method=\"PUT\",code=\"201\"}"));
+            assertEquals(2, samples.get("weather_requests_total{method=\"GET\",code=\"200\"}"));
+            assertEquals(1, samples.get("weather_connections"));
+            assertEquals(1, samples.get("weather_stations"));
+            assertEquals(Long.parseLong(response.getHeader("Lamport-Clock")), samples.get("weather_lamport_clock"));
+        }
+    }
+
+    @Test
+    public void testServerExposesMetrics() throws Exception {
+        checkServer("nio", 4870);
+        checkServer("thread", 4871);
+        System.out.println("testServerExposesMetrics: Passed");
+    }
+}
@@ -0,0 +1,143 @@
+import org.junit.jupiter.api.Test;
+import main.ContentFeed;
+import main.HashRing;
+import main.HttpResponse;
+import main.LocalCluster;
+import main.PersistentConnection;
+import main.ShardRouter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardingTest {
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("IDS" + (60000 + i));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testRingSpreadsStationsAndMovesFewOnResize() {
+        HashRing ring = new HashRing(Arrays.asList("a:1", "b:2", "c:3"));
+        Map<String, Integer> load = new HashMap<>();
+        for (String id : ids(30000)) {
+            load.merge(ring.owner(id), 1, Integer::sum);
+        }
+        for (int stations : load.values()) {
+            assertTrue(stations > 8000 && stations < 12000, "uneven load: " + load);
+        }
+
+        // a fourth server takes about a quarter of the stations, all of them from the others
+        HashRing larger = ring.with("d:4");
+        int moved = 0;
+        for (String id : ids(30000)) {
+            if (!ring.owner(id).equals(larger.owner(id))) {
+                assertEquals("d:4", larger.owner(id));
+                moved++;
+            }
+        }
+        assertTrue(moved > 5000 && moved < 10000, "moved " + moved);
+
+        // removing it again moves exactly those stations back
+        HashRing smaller = larger.without("d:4");
+        for (String id : ids(1000)) {
+            assertEquals(ring.owner(id), smaller.owner(id));
+        }
+        assertEquals(Arrays.asList("c:3", "a:1", "b:2"), HashRing.parseMembers("c:3\na:1, b:2"));
+        System.out.println("testRingSpreadsStationsAndMovesFewOnResize: Passed");
+    }
+
+    private static String get(String server, String target) throws IOException {
+        try (PersistentConnection connection = PersistentConnection.forAddress(server)) {
+            HttpResponse response = connection.send("GET", target, Collections.emptyMap(), new byte[0]);
+            return response.getStatus() == 200 ? response.getBodyText() : "";
+        }
+    }
+
+    private static Set<String> stationsIn(String body) {
+        Set<String> found = new TreeSet<>();
+        for (String id : ids(40)) {
+            if (body.contains("\"" + id + "\"")) {
+                found.add(id);
+            }
+        }
+        return found;
+    }
+
+    // Method to wait until the cluster-wide GET and every shard agree with the ring
+    private static void awaitPlacement(LocalCluster cluster, List<String> expected) throws Exception {
+        HashRing ring = new HashRing(cluster.getMembers());
+        long deadline = System.currentTimeMillis() + 15000;
+        String problem = null;
+        while (System.currentTimeMillis() < deadline) {
+            problem = null;
+            for (String member : cluster.getMembers()) {
+                Set<String> held = stationsIn(get(member, "/weather.json"));
+                for (String id : expected) {
+                    if (ring.owner(id).equals(member) != held.contains(id)) {
+                        problem = member + " holds " + held;
+                    }
+                }
+            }
+            Set<String> merged = stationsIn(get(cluster.getMembers().get(0), "/weather.json?scope=cluster"));
+            if (!merged.equals(new TreeSet<>(expected))) {
+                problem = "cluster GET returned " + merged;
+            }
+            if (problem == null) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        fail(problem);
+    }
+
+    @Test
+    public void testShardedClusterRoutesGathersAndRebalances() throws Exception {
+        File input = File.createTempFile("weather_shards", ".txt");
+        input.deleteOnExit();
+        List<String> expected = ids(40);
+        try (Writer writer = new FileWriter(input)) {
+            for (String id : expected) {
+                writer.write("id:" + id + "\nname:Station " + id + "\nstate:SA\nair_temp:12.5\n\n");
+            }
+        }
+
+        try (LocalCluster cluster = new LocalCluster(3, 4767, true, Collections.emptyList());
+             ShardRouter router = new ShardRouter(Arrays.asList("localhost:4767", "localhost:4768", "localhost:4769"))) {
+            for (int i = 0; i < 3; i++) {
+                cluster.start(i);
+            }
+
+            // every station goes straight to its owner, and any server can gather the whole feed
+            ContentFeed feed = new ContentFeed(Collections.singletonList(input), router, 100, 10000);
+            assertEquals(40, feed.pollOnce(System.currentTimeMillis()));
+            awaitPlacement(cluster, expected);
+            ShardRouter.Gathered gathered = router.getAll("/weather.json", Collections.emptyMap());
+            assertEquals(new TreeSet<>(expected), stationsIn(new String(gathered.getBody(), StandardCharsets.UTF_8)));
+            assertTrue(gathered.getMissing().isEmpty());
+
+            // a new shard receives its stations from the others
+            cluster.add();
+            awaitPlacement(cluster, expected);
+
+            // a leaving shard hands its stations over before it stops
+            cluster.remove(1);
+            awaitPlacement(cluster, expected);
+
+            // the content server still has the old membership: stations sent to a server that no longer
+            // owns them are answered 421, which makes it reload the membership and resend them
+            long later = System.currentTimeMillis() + 20000;
+            feed.pollOnce(later);
+            assertEquals(new HashSet<>(cluster.getMembers()), new HashSet<>(router.getRing().getNodes()));
+            assertTrue(feed.pollOnce(later + 10000) > 0);
+            assertEquals(0, feed.pollOnce(later + 10000)); // nothing left pending
+        }
+        System.out.println("testShardedClusterRoutesGathersAndRebalances: Passed");
+    }
+}
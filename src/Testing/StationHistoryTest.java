@@ -0,0 +1,117 @@
+import main.StationHistory;
+import main.WeatherDataParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StationHistoryTest {
+
+    private static void record(StationHistory history, double airTemp, long time) throws Exception {
+        String json = "{\"id\": \"IDS60901\", \"air_temp\": " + airTemp + "}";
+        history.record(WeatherDataParser.parse(json.getBytes(StandardCharsets.UTF_8)), time);
+    }
+
+    @Test
+    public void testRingKeepsLatestObservationsInRange() throws Exception {
+        StationHistory history = new StationHistory(4, 0);
+        for (int i = 1; i <= 6; i++) {
+            record(history, i, i * 1000L);
+        }
+
+        // Only the last four fit; a range query returns the ones inside it, oldest first
+        List<StationHistory.Point> all = history.range("IDS60901", 0, Long.MAX_VALUE, 6000);
+        assertEquals(4, all.size());
+        assertEquals(3000, all.get(0).getTime());
+        assertEquals(6.0, all.get(3).getValue(0));
+
+        List<StationHistory.Point> some = history.range("IDS60901", 4000, 5000, 6000);
+        assertEquals(2, some.size());
+        assertNull(history.range("IDS00000", 0, Long.MAX_VALUE, 6000));
+
+        // Removing the station drops its whole history, however recent its observations
+        history.remove("IDS60901");
+        assertNull(history.range("IDS60901", 0, Long.MAX_VALUE, 6000));
+        assertEquals(0, history.size());
+        System.out.println("testRingKeepsLatestObservationsInRange: Passed");
+    }
+
+    @Test
+    public void testWindowAndDownsampling() throws Exception {
+        StationHistory history = new StationHistory(100, 10000);
+        for (int i = 0; i < 20; i++) {
+            record(history, i, i * 1000L);
+        }
+
+        // Observations older than the window are left out
+        List<StationHistory.Point> points = history.range("IDS60901", 0, Long.MAX_VALUE, 19000);
+        assertEquals(11, points.size());
+        assertEquals(9000, points.get(0).getTime());
+
+        // Five-second buckets: [5000, 10000) holds 9 only, [10000, 15000) holds 10 to 14
+        String json = StationHistory.toJson("IDS60901", points, 5000);
+        assertTrue(json.contains("{\"start\": 5000, \"count\": 1, \"air_temp\": {\"min\": 9.0, \"max\": 9.0, \"avg\": 9.0}}"));
+        assertTrue(json.contains("{\"start\": 10000, \"count\": 5, \"air_temp\": {\"min\": 10.0, \"max\": 14.0, \"avg\": 12.0}}"));
+        assertTrue(StationHistory.toJson("IDS60901", points, 0).contains("{\"time\": 19000, \"air_temp\": 19.0}"));
+        System.out.println("testWindowAndDownsampling: Passed");
+    }
+
+    private static void record(StationHistory history, String stationId, long time) throws Exception {
+        String json = "{\"id\": \"" + stationId + "\", \"air_temp\": " + time + "}";
+        history.record(WeatherDataParser.parse(json.getBytes(StandardCharsets.UTF_8)), time);
+    }
+
+    @Test
+    public void testBudgetDropsOldestObservations() throws Exception {
+        StationHistory history = new StationHistory(100, 0, 10);
+        for (int i = 1; i <= 5; i++) {
+            record(history, "A", i);
+        }
+        for (int i = 6; i <= 10; i++) {
+            record(history, "B", i);
+        }
+        assertEquals(10, history.size());
+
+        // Over the budget the oldest observations go first, whichever station they belong to
+        for (int i = 11; i <= 13; i++) {
+            record(history, "C", i);
+        }
+        assertEquals(10, history.size());
+        List<StationHistory.Point> a = history.range("A", 0, Long.MAX_VALUE, 13);
+        assertEquals(2, a.size());
+        assertEquals(4, a.get(0).getTime());
+        assertEquals(5, history.range("B", 0, Long.MAX_VALUE, 13).size());
+
+        // A station whose every observation was dropped has no history left
+        for (int i = 14; i <= 15; i++) {
+            record(history, "C", i);
+        }
+        assertNull(history.range("A", 0, Long.MAX_VALUE, 15));
+        assertEquals(10, history.size());
+        System.out.println("testBudgetDropsOldestObservations: Passed");
+    }
+
+    @Test
+    public void testRecordRacingRemoveIsNotLost() throws Exception {
+        StationHistory history = new StationHistory(8, 0, 1000);
+        Thread remover = new Thread(() -> {
+            for (int i = 0; i < 20000; i++) {
+                history.remove("A");
+            }
+        });
+        remover.start();
+        for (int i = 0; i < 20000; i++) {
+            record(history, "A", i);
+        }
+        remover.join();
+
+        // a write after the last removal always lands in the history that queries see
+        record(history, "A", 20000);
+        List<StationHistory.Point> points = history.range("A", 0, Long.MAX_VALUE, 20000);
+        assertEquals(20000, points.get(points.size() - 1).getTime());
+        assertEquals(points.size(), history.size());
+        System.out.println("testRecordRacingRemoveIsNotLost: Passed");
+    }
+}
@@ -0,0 +1,84 @@
+import main.StationIndex;
+import main.StationQuery;
+import main.WeatherDataParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StationIndexTest {
+
+    private static void put(StationIndex index, String json, long timestamp) throws Exception {
+        index.update(WeatherDataParser.parse(json.getBytes(StandardCharsets.UTF_8)), timestamp);
+    }
+
+    private static StationIndex sampleIndex() throws Exception {
+        StationIndex index = new StationIndex();
+        put(index, "{\"id\": \"ADL\", \"state\": \"SA\", \"lat\": -34.9, \"lon\": 138.6}", 1000);
+        put(index, "{\"id\": \"MEL\", \"state\": \"VIC\", \"lat\": -37.8, \"lon\": 145.0}", 1000);
+        put(index, "{\"id\": \"PTA\", \"state\": \"SA\", \"lat\": -32.5, \"lon\": 137.8}", 1000);
+        put(index, "{\"id\": \"SUV\", \"lat\": -18.1, \"lon\": 178.4}", 1000);
+        put(index, "{\"id\": \"APW\", \"lat\": -13.8, \"lon\": -171.8}", 1000);
+        put(index, "{\"id\": \"NOPOS\", \"state\": \"SA\"}", 1000);
+        return index;
+    }
+
+    @Test
+    public void testStateAndSpatialLookups() throws Exception {
+        StationIndex index = sampleIndex();
+        assertEquals(Set.of("ADL", "PTA", "NOPOS"), new HashSet<>(index.inState("SA")));
+        assertEquals(Set.of("ADL", "PTA"), new HashSet<>(index.inBox(-36, 136, -32, 139)));
+
+        // A box whose west edge is east of its east edge wraps around the antimeridian
+        assertEquals(Set.of("SUV", "APW"), new HashSet<>(index.inBox(-20, 175, -10, -170)));
+
+        // Adelaide to Port Augusta is about 270 km, Melbourne is over 600 km away
+        assertEquals(Set.of("ADL"), new HashSet<>(index.near(-34.9, 138.6, 100)));
+        assertEquals(Set.of("ADL", "PTA"), new HashSet<>(index.near(-34.9, 138.6, 300)));
+        assertEquals(Set.of("SUV", "APW"), new HashSet<>(index.near(-16, 180, 1000)));
+        System.out.println("testStateAndSpatialLookups: Passed");
+    }
+
+    @Test
+    public void testUpdatesAndRemovalsMoveStations() throws Exception {
+        StationIndex index = sampleIndex();
+
+        // A station that moves state and grid cell leaves its old buckets
+        put(index, "{\"id\": \"ADL\", \"state\": \"VIC\", \"lat\": -37.7, \"lon\": 145.1}", 2000);
+        assertFalse(index.inState("SA").contains("ADL"));
+        assertEquals(Set.of("ADL", "MEL"), new HashSet<>(index.inState("VIC")));
+        assertTrue(index.inBox(-36, 136, -32, 139).stream().noneMatch("ADL"::equals));
+
+        // A write that won by Lamport version replaces it even though it was received earlier,
+        // and an expiry for the version it replaced is ignored
+        put(index, "{\"id\": \"ADL\", \"state\": \"SA\", \"lat\": -34.9, \"lon\": 138.6}", 1500);
+        assertEquals("SA", index.get("ADL").getState());
+        assertTrue(index.inState("SA").contains("ADL"));
+        assertFalse(index.remove("ADL", 2000));
+        assertTrue(index.remove("ADL", 1500));
+        assertFalse(index.inState("SA").contains("ADL"));
+        assertEquals(Set.of("MEL"), new HashSet<>(index.inState("VIC")));
+        assertTrue(index.near(-37.7, 145.1, 5).isEmpty());
+        System.out.println("testUpdatesAndRemovalsMoveStations: Passed");
+    }
+
+    @Test
+    public void testQueriesCombineFiltersAndSkipExpired() throws Exception {
+        StationIndex index = sampleIndex();
+        put(index, "{\"id\": \"OLD\", \"state\": \"SA\", \"lat\": -34.8, \"lon\": 138.5}", 0);
+
+        assertEquals(List.of("ADL", "NOPOS", "PTA"), StationQuery.parse(Map.of("state", "SA")).run(index, 30500, 30000));
+        assertEquals(List.of("ADL"), StationQuery.parse(Map.of("state", "SA", "near", "-34.9,138.6", "radius", "50"))
+                .run(index, 30500, 30000));
+        assertEquals(List.of("PTA"), StationQuery.parse(Map.of("id", "PTA", "bbox", "-33,137,-32,138"))
+                .run(index, 1000, 30000));
+        assertNull(StationQuery.parse(Map.of()));
+
+        assertThrows(IllegalArgumentException.class, () -> StationQuery.parse(Map.of("near", "-34.9,138.6")));
+        assertThrows(IllegalArgumentException.class, () -> StationQuery.parse(Map.of("bbox", "1,2,3")));
+        assertThrows(IllegalArgumentException.class, () -> StationQuery.parse(Map.of("bbox", "-10,0,-20,10")));
+        System.out.println("testQueriesCombineFiltersAndSkipExpired: Passed");
+    }
+}
@@ -0,0 +1,112 @@
+import main.StationStatistics;
+import main.WeatherData;
+import main.WeatherDataParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StationStatisticsTest {
+
+    private static void put(StationStatistics statistics, String json, long timestamp) throws Exception {
+        statistics.update(WeatherDataParser.parse(json.getBytes(StandardCharsets.UTF_8)), timestamp);
+    }
+
+    @Test
+    public void testStatisticsFollowUpdatesAndRemovals() throws Exception {
+        StationStatistics statistics = new StationStatistics();
+        put(statistics, "{\"id\": \"A\", \"state\": \"SA\", \"air_temp\": 10.0, \"wind_spd_kmh\": 5}", 1);
+        put(statistics, "{\"id\": \"B\", \"state\": \"SA\", \"air_temp\": 20.0}", 1);
+        put(statistics, "{\"id\": \"C\", \"state\": \"VIC\", \"air_temp\": 30.0, \"press\": 1010.5}", 1);
+
+        assertEquals(3, statistics.getCount(null, WeatherData.AIR_TEMP));
+        assertEquals(20.0, statistics.getMean(null, WeatherData.AIR_TEMP));
+        assertEquals(15.0, statistics.getMean("SA", WeatherData.AIR_TEMP));
+        assertEquals(1, statistics.getCount(null, WeatherData.WIND_SPD_KMH));
+        assertEquals(0, statistics.getCount("SA", WeatherData.PRESS));
+
+        // Replacing the maximum and removing the minimum both move the extremes
+        put(statistics, "{\"id\": \"C\", \"state\": \"VIC\", \"air_temp\": 25.0}", 2);
+        assertEquals(25.0, statistics.getMax(null, WeatherData.AIR_TEMP));
+        assertEquals(0, statistics.getCount(null, WeatherData.PRESS));
+        assertTrue(statistics.remove("A", 1));
+        assertEquals(20.0, statistics.getMin(null, WeatherData.AIR_TEMP));
+        assertEquals(20.0, statistics.getMax("SA", WeatherData.AIR_TEMP));
+
+        // A stale removal does not change anything, while a write that won by Lamport version
+        // replaces the values even though it was received earlier
+        assertFalse(statistics.remove("C", 1));
+        put(statistics, "{\"id\": \"C\", \"state\": \"VIC\", \"air_temp\": 99.0}", 1);
+        assertEquals(99.0, statistics.getMax(null, WeatherData.AIR_TEMP));
+        assertFalse(statistics.remove("C", 2));
+        put(statistics, "{\"id\": \"C\", \"state\": \"VIC\", \"air_temp\": 25.0}", 2);
+
+        String json = statistics.toJson(null);
+        assertTrue(json.contains("\"SA\""));
+        assertTrue(json.contains("\"VIC\""));
+        assertFalse(statistics.toJson("SA").contains("\"VIC\""));
+        System.out.println("testStatisticsFollowUpdatesAndRemovals: Passed");
+    }
+
+    @Test
+    public void testMatchesRecomputationUnderChurn() throws Exception {
+        StationStatistics statistics = new StationStatistics();
+        Random random = new Random(42);
+        double[] temps = new double[200];
+        boolean[] stored = new boolean[temps.length];
+        for (int step = 0; step < 5000; step++) {
+            int station = random.nextInt(temps.length);
+            if (random.nextInt(4) == 0) {
+                statistics.remove("S" + station);
+                stored[station] = false;
+            } else {
+                temps[station] = Math.round(random.nextGaussian() * 100) / 10.0;
+                put(statistics, "{\"id\": \"S" + station + "\", \"state\": \"S" + (station % 3) + "\", \"air_temp\": "
+                        + temps[station] + "}", step);
+                stored[station] = true;
+            }
+            if (step % 1000 != 999) {
+                continue;
+            }
+
+            // Compare the incremental results with a full rescan, also between updates so the
+            // extremes are rescanned and then kept incrementally again
+            for (int group = 0; group < 3; group++) {
+                double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+                int count = 0;
+                for (int other = group; other < temps.length; other += 3) {
+                    if (stored[other]) {
+                        min = Math.min(min, temps[other]);
+                        max = Math.max(max, temps[other]);
+                        sum += temps[other];
+                        count++;
+                    }
+                }
+                assertEquals(count, statistics.getCount("S" + group, WeatherData.AIR_TEMP));
+                assertEquals(min, statistics.getMin("S" + group, WeatherData.AIR_TEMP));
+                assertEquals(max, statistics.getMax("S" + group, WeatherData.AIR_TEMP));
+                assertEquals(sum / count, statistics.getMean("S" + group, WeatherData.AIR_TEMP), 1e-9);
+            }
+        }
+        System.out.println("testMatchesRecomputationUnderChurn: Passed");
+    }
+
+    @Test
+    public void testSumsDoNotDriftAsValuesComeAndGo() throws Exception {
+        StationStatistics statistics = new StationStatistics();
+        for (int i = 0; i < 3; i++) {
+            put(statistics, "{\"id\": \"S" + i + "\", \"air_temp\": 0.1}", 1);
+        }
+
+        // A huge value rounds away the small ones while it is in the sum; once it goes they are back
+        for (int round = 0; round < 100; round++) {
+            put(statistics, "{\"id\": \"BIG\", \"air_temp\": 1000000000000000}", round);
+            assertTrue(statistics.remove("BIG", round));
+        }
+        assertEquals(0.1, statistics.getMean(null, WeatherData.AIR_TEMP), 1e-15);
+        assertEquals(0.1, statistics.getMax(null, WeatherData.AIR_TEMP));
+        System.out.println("testSumsDoNotDriftAsValuesComeAndGo: Passed");
+    }
+}
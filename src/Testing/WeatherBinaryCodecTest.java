@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.Test;
+import main.ContentServer;
+import main.HttpResponse;
+import main.JsonText;
+import main.PersistentConnection;
+import main.WeatherBinaryCodec;
+import main.WeatherData;
+import main.WeatherDataParser;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeatherBinaryCodecTest {
+
+    private static WeatherData sample(String id) {
+        return new WeatherData(id, "Adelaide (West Terrace)", "SA", "CST", -34.9, 138.6,
+                "15/04:00pm", "20230715160000", 13.3, 9.5, "Partly cloudy", 5.7, 1023.9, 60.0, "S", 15, 8);
+    }
+
+    @Test
+    public void testRoundTripMatchesJson() throws Exception {
+        WeatherData station = sample("IDS60901");
+        byte[] binary = WeatherBinaryCodec.encode(station);
+        byte[] json = ContentServer.convertWeatherDataToJson(station).getBytes(StandardCharsets.UTF_8);
+        assertTrue(binary.length < json.length / 4, binary.length + " bytes");
+
+        // decoding gives the same station as parsing the JSON, and renders back to the same JSON
+        List<WeatherData> decoded = WeatherBinaryCodec.decode(binary);
+        assertEquals(1, decoded.size());
+        assertEquals(new String(json, StandardCharsets.UTF_8), JsonText.station(decoded.get(0)));
+        assertEquals(JsonText.station(WeatherDataParser.parse(json)), JsonText.station(decoded.get(0)));
+        System.out.println("testRoundTripMatchesJson: Passed");
+    }
+
+    @Test
+    public void testRoundTripsUnusualValuesAndMissingFields() throws Exception {
+        WeatherData odd = new WeatherData("IDS\u00e9\"1", "Mt. \u6771\u4eac", null, "ACST", 0.123456789, -0.0,
+                null, null, 1e300, -40.05, "", -1e-9, 0, 100, "NNW", Integer.MIN_VALUE, Integer.MAX_VALUE);
+        odd.setPresentFields(odd.getPresentFields() & ~(1 << WeatherData.DEWPT));
+        WeatherData decoded = WeatherBinaryCodec.decode(WeatherBinaryCodec.encode(odd)).get(0);
+
+        // null strings and the fields left out are absent, everything else is exact
+        assertFalse(decoded.has(WeatherData.STATE) || decoded.has(WeatherData.LOCAL_DATE_TIME) || decoded.has(WeatherData.DEWPT));
+        assertEquals(odd.getId(), decoded.getId());
+        assertEquals(odd.getName(), decoded.getName());
+        assertEquals("", decoded.getCloud());
+        assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(decoded.getLon()));
+        assertEquals(0.123456789, decoded.getLat());
+        assertEquals(1e300, decoded.getAir_temp());
+        assertEquals(-40.05, decoded.getApparent_t());
+        assertEquals(Integer.MIN_VALUE, decoded.getWind_spd_kmh());
+        assertEquals(Integer.MAX_VALUE, decoded.getWind_spd_kt());
+        System.out.println("testRoundTripsUnusualValuesAndMissingFields: Passed");
+    }
+
+    @Test
+    public void testBatchSharesStringsAndRejectsMalformedBodies() throws Exception {
+        List<WeatherData> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(sample("IDS" + (60000 + i)));
+        }
+        byte[] body = WeatherBinaryCodec.encode(batch);
+        // the name and times are sent once, every later station refers back to them
+        assertTrue(body.length < 100 * WeatherBinaryCodec.encode(batch.get(0)).length / 2, body.length + " bytes");
+        List<WeatherData> decoded = WeatherBinaryCodec.decode(body);
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(JsonText.station(batch.get(i)), JsonText.station(decoded.get(i)));
+        }
+
+        assertThrows(WeatherDataParser.ParseException.class, () -> WeatherBinaryCodec.decode(new byte[0]));
+        assertThrows(WeatherDataParser.ParseException.class, () -> WeatherBinaryCodec.decode(Arrays.copyOf(body, body.length - 1)));
+        assertThrows(WeatherDataParser.ParseException.class, () -> WeatherBinaryCodec.decode(new byte[]{1, 1, 1, 100}));
+        assertThrows(WeatherDataParser.ParseException.class, () -> WeatherBinaryCodec.decode(new byte[]{2, 0}));
+        assertThrows(WeatherDataParser.ParseException.class, () -> WeatherBinaryCodec.decode(
+                WeatherBinaryCodec.encode(new WeatherData("IDNAN", null, null, null, Double.NaN, 0, null, null,
+                        0, 0, null, 0, 0, 0, null, 0, 0))));
+        System.out.println("testBatchSharesStringsAndRejectsMalformedBodies: Passed");
+    }
+
+    @Test
+    public void testServerStoresBinaryPutsAsJson() throws Exception {
+        Thread server = new Thread(() -> {
+            try {
+                main.AggregationServer.main(new String[]{});
+            } catch (BindException e) {
+                // already started by another test in this JVM
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(1000);
+
+        try (PersistentConnection connection = new PersistentConnection("localhost", 4567)) {
+            WeatherData noId = sample(null);
+            byte[] body = WeatherBinaryCodec.encode(Arrays.asList(sample("IDBIN1"), noId, sample("IDBIN2")));
+            HttpResponse response = connection.send("PUT", "/weather.json",
+                    Map.of("Content-Type", WeatherBinaryCodec.CONTENT_TYPE), body);
+            assertEquals(200, response.getStatus());
+            String results = response.getBodyText();
+            assertTrue(results.contains("\"IDBIN1\"") && results.contains("\"status\": 400"), results);
+
+            // a GET client gets the station as JSON, as if it had been sent that way
+            HttpResponse station = connection.send("GET", "/weather.json?id=IDBIN2", Map.of(), new byte[0]);
+            assertEquals(200, station.getStatus());
+            assertTrue(station.getBodyText().contains("\"name\": \"Adelaide (West Terrace)\""), station.getBodyText());
+            assertTrue(station.getBodyText().contains("\"press\": 1023.9"));
+
+            assertEquals(400, connection.send("PUT", "/weather.json",
+                    Map.of("Content-Type", WeatherBinaryCodec.CONTENT_TYPE), new byte[]{1, 5}).getStatus());
+        }
+        System.out.println("testServerStoresBinaryPutsAsJson: Passed");
+    }
+}
@@ -0,0 +1,132 @@
+import main.WeatherData;
+import main.WeatherDataParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeatherDataParserTest {
+
+    private static WeatherData parse(String json) throws WeatherDataParser.ParseException {
+        return WeatherDataParser.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testParsesFieldsInAnyOrder() throws Exception {
+        WeatherData data = parse("{\n  \"air_temp\": 13.3, \"wind_spd_kmh\": 15, \"lat\": -34.9,\n"
+                + "  \"extra\": {\"nested\": [1, true, null]},\n"
+                + "  \"name\": \"Adelaide \\\"West\\\" Terrace \\u00e9\", \"id\": \"IDS60901\",\n"
+                + "  \"press\": 1.0235e3, \"cloud\": null, \"state\": \"S\u00e3o Paulo\"\n}");
+
+        assertEquals("IDS60901", data.getId());
+        assertEquals("Adelaide \"West\" Terrace \u00e9", data.getName());
+        assertEquals("S\u00e3o Paulo", data.getState());
+        assertEquals(13.3, data.getAir_temp());
+        assertEquals(-34.9, data.getLat());
+        assertEquals(1023.5, data.getPress());
+        assertEquals(15, data.getWind_spd_kmh());
+
+        // Only the fields that were sent with a value are marked present
+        assertTrue(data.has(WeatherData.AIR_TEMP));
+        assertFalse(data.has(WeatherData.CLOUD));
+        assertFalse(data.has(WeatherData.DEWPT));
+        System.out.println("testParsesFieldsInAnyOrder: Passed");
+    }
+
+    @Test
+    public void testNumbersMatchDoubleParsing() throws Exception {
+        String[] numbers = {"0", "-0.0", "7", "0.1", "123456.789", "-34.92857142857143", "1e-7", "2.5E+10",
+                "0.000123", "12345678901234567890", "3.141592653589793238"};
+        for (String number : numbers) {
+            WeatherData data = parse("{\"id\": \"X\", \"dewpt\": " + number + "}");
+            assertEquals(Double.parseDouble(number), data.getDewpt(), number);
+        }
+        System.out.println("testNumbersMatchDoubleParsing: Passed");
+    }
+
+    @Test
+    public void testRejectsMalformedAndInvalidBodies() {
+        // Not JSON at all, or broken JSON, is a syntax error
+        String[] malformed = {"", "id=IDS60901", "{\"id\": \"A\"", "{\"id\": \"A\",}", "{\"id\": \"A\"} trailing",
+                "{\"id\": \"A\", \"air_temp\": 1.}", "{\"id\": \"A\", \"air_temp\": -}", "{\"id\": \"A\\q\"}"};
+        for (String body : malformed) {
+            WeatherDataParser.ParseException e = assertThrows(WeatherDataParser.ParseException.class, () -> parse(body), body);
+            assertTrue(e.isSyntaxError(), body);
+        }
+
+        // Valid JSON that is not valid weather data
+        String[] invalid = {"{}", "{\"id\": \"\"}", "{\"id\": 5}", "{\"id\": \"A\", \"lat\": \"north\"}",
+                "{\"id\": \"A\", \"wind_spd_kt\": 8.5}"};
+        for (String body : invalid) {
+            WeatherDataParser.ParseException e = assertThrows(WeatherDataParser.ParseException.class, () -> parse(body), body);
+            assertFalse(e.isSyntaxError(), body);
+        }
+        System.out.println("testRejectsMalformedAndInvalidBodies: Passed");
+    }
+
+    @Test
+    public void testParsesBatches() throws Exception {
+        // In an array, an invalid station is rejected on its own but broken syntax fails the batch
+        byte[] array = "[ {\"id\": \"A\", \"air_temp\": 1.5}, {\"id\": \"B\", \"lat\": \"x\"}, {\"id\": \"C\"} ]"
+                .getBytes(StandardCharsets.UTF_8);
+        List<WeatherDataParser.Element> elements = WeatherDataParser.parseArray(array, 0, array.length);
+        assertEquals(3, elements.size());
+        assertEquals(1.5, elements.get(0).getData().getAir_temp());
+        assertNull(elements.get(1).getData());
+        assertFalse(elements.get(1).getError().isSyntaxError());
+        assertEquals("{\"id\": \"C\"}", new String(array, elements.get(2).getOffset(), elements.get(2).getLength(),
+                StandardCharsets.UTF_8));
+        byte[] broken = "[{\"id\": \"A\"} {\"id\": \"B\"}]".getBytes(StandardCharsets.UTF_8);
+        assertThrows(WeatherDataParser.ParseException.class, () -> WeatherDataParser.parseArray(broken, 0, broken.length));
+
+        // In newline-delimited JSON every line stands alone
+        byte[] lines = "{\"id\": \"A\"}\r\n\n{\"id\": \n{\"id\": \"C\", \"wind_spd_kt\": 4}\n".getBytes(StandardCharsets.UTF_8);
+        elements = WeatherDataParser.parseLines(lines, 0, lines.length);
+        assertEquals(3, elements.size());
+        assertEquals("A", elements.get(0).getData().getId());
+        assertTrue(elements.get(1).getError().isSyntaxError());
+        assertEquals(4, elements.get(2).getData().getWind_spd_kt());
+        System.out.println("testParsesBatches: Passed");
+    }
+
+    // Method to make a stream that hands out one byte per read, as a slow network would
+    private static InputStream trickle(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)) {
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    @Test
+    public void testParsesStream() throws Exception {
+        // A GET feed: pretty-printed stations one after another, with braces inside strings
+        String feed = "{\n  \"id\": \"A\",\n  \"name\": \"Brace } \\\" {\",\n  \"air_temp\": 1.5\n}\n"
+                + "{\n  \"id\": \"B\",\n  \"extra\": {\"list\": [1, {}]}\n}\n";
+        List<WeatherData> stations = new ArrayList<>();
+        assertEquals(2, WeatherDataParser.parseStream(trickle(feed), stations::add));
+        assertEquals("Brace } \" {", stations.get(0).getName());
+        assertEquals(1.5, stations.get(0).getAir_temp());
+        assertEquals("B", stations.get(1).getId());
+
+        // A JSON array, where an invalid station is skipped
+        stations.clear();
+        String array = "[{\"id\": \"A\"}, {\"lat\": 1}, {\"id\": \"C\"}]";
+        assertEquals(2, WeatherDataParser.parseStream(trickle(array), stations::add));
+        assertEquals("C", stations.get(1).getId());
+
+        // Broken syntax and a stream cut off inside a station both fail
+        for (String broken : new String[]{"{\"id\": \"A\"} x {\"id\": \"B\"}", "{\"id\": \"A\"}\n{\"id\": \"B", "{\"id\" \"A\"}"}) {
+            WeatherDataParser.ParseException e = assertThrows(WeatherDataParser.ParseException.class,
+                    () -> WeatherDataParser.parseStream(trickle(broken), data -> { }), broken);
+            assertTrue(e.isSyntaxError());
+        }
+        assertEquals(0, WeatherDataParser.parseStream(trickle(""), data -> { }));
+        System.out.println("testParsesStream: Passed");
+    }
+}
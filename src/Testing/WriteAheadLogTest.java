@@ -0,0 +1,99 @@
+import main.WriteAheadLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+
+    private Path directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("wal-test");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testRecordsAreReplayedAfterReopen() throws IOException {
+        // Append records from several threads and wait for each to become durable
+        WriteAheadLog log = WriteAheadLog.open(directory, record -> fail("Log should start empty"));
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            int writer = i;
+            writers.add(new Thread(() -> {
+                try {
+                    long sequence = log.append(new WriteAheadLog.Record("IDS" + writer, "{\"id\": \"IDS" + writer + "\"}", 1000L, writer), () -> { });
+                    log.awaitDurable(sequence);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                fail(e);
+            }
+        }
+        log.close();
+
+        // Reopening replays every record and restores the highest Lamport time
+        Map<String, String> replayed = new HashMap<>();
+        WriteAheadLog reopened = WriteAheadLog.open(directory, record -> replayed.put(record.getStationId(), record.getJson()));
+        reopened.close();
+        assertEquals(8, replayed.size());
+        assertEquals("{\"id\": \"IDS3\"}", replayed.get("IDS3"));
+        assertEquals(7, reopened.getRecoveredClockTime());
+        System.out.println("testRecordsAreReplayedAfterReopen: Passed");
+    }
+
+    @Test
+    public void testCheckpointTruncatesLog() throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(directory, record -> { });
+        for (int i = 0; i < 10; i++) {
+            log.awaitDurable(log.append(new WriteAheadLog.Record("IDS60901", "{\"version\": " + i + "}", 1000L, i), () -> { }));
+        }
+
+        // The snapshot holds the compacted state, so replay sees one record per station
+        log.checkpoint(42, () -> List.of(new WriteAheadLog.Record("IDS60901", "{\"version\": 9}", 1000L, 42)));
+        log.awaitDurable(log.append(new WriteAheadLog.Record("IDS60902", "{}", 2000L, 43), () -> { }));
+        log.close();
+
+        List<String> replayed = new ArrayList<>();
+        WriteAheadLog reopened = WriteAheadLog.open(directory, record -> replayed.add(record.getStationId()));
+        reopened.close();
+        assertEquals(List.of("IDS60901", "IDS60902"), replayed);
+        assertEquals(43, reopened.getRecoveredClockTime());
+        System.out.println("testCheckpointTruncatesLog: Passed");
+    }
+
+    @Test
+    public void testClosedLogRejectsAppends() throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(directory, record -> { });
+        log.awaitDurable(log.append(new WriteAheadLog.Record("IDS60901", "{}", 1000L, 1), () -> { }));
+        log.close();
+
+        // a write that can never become durable is refused before it is applied
+        boolean[] applied = new boolean[1];
+        assertThrows(IOException.class, () -> log.append(new WriteAheadLog.Record("IDS60902", "{}", 2000L, 2), () -> applied[0] = true));
+        assertFalse(applied[0]);
+        System.out.println("testClosedLogRejectsAppends: Passed");
+    }
+}
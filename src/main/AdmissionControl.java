@@ -0,0 +1,192 @@
+package main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides which requests the connection engines hand to RequestHandler, so a burst cannot take
+// every thread or all the memory and slow down everyone.
+//
+// PUTs (ingest) and everything else (reads) go through separate lanes, so readers cannot starve
+// content servers or the other way round. Each lane handles a fixed number of requests at once
+// and lets a bounded number more wait, for at most the queue timeout. Each client address also
+// has a token bucket when a rate limit is set. A request turned away gets 503 with Retry-After
+// straight away, before any of its body is parsed. The engines also give each request a deadline
+// for its headers and then its body, answered with 408, so a client trickling bytes cannot hold a
+// connection's worker.
+public class AdmissionControl {
+    private static final int SWEEP_THRESHOLD = 10000;
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Lane ingest;
+    private final Lane read;
+    private final double rateLimit;
+    private final int rateBurst;
+    private final int headerTimeout;
+    private final int bodyTimeout;
+    private final ConcurrentHashMap<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    public AdmissionControl(ServerConfig config) {
+        this.ingest = new Lane("put", config.getPutConcurrency(), config.getPutQueue(), config.getQueueTimeout());
+        this.read = new Lane("get", config.getGetConcurrency(), config.getGetQueue(), config.getQueueTimeout());
+        this.rateLimit = config.getRateLimit();
+        this.rateBurst = config.getRateBurst();
+        this.headerTimeout = config.getHeaderTimeout();
+        this.bodyTimeout = config.getBodyTimeout();
+    }
+
+    public Lane getIngest() { return ingest; }
+
+    public Lane getRead() { return read; }
+
+    public int getHeaderTimeout() { return headerTimeout; }
+
+    public int getBodyTimeout() { return bodyTimeout; }
+
+    // The lane a request is scheduled in
+    public Lane laneOf(HttpRequest request) {
+        return request.getMethod().equals("PUT") ? ingest : read;
+    }
+
+    // Method to take a token from the client's bucket. Returns the 503 to answer with if the
+    // client is over its rate, otherwise null.
+    public HttpResponse checkRate(HttpRequest request, String client) {
+        if (rateLimit <= 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        TokenBucket bucket = clients.get(client);
+        if (bucket == null) {
+            sweep(now);
+            bucket = clients.computeIfAbsent(client, address -> new TokenBucket(rateBurst, now));
+        }
+        long wait = bucket.take(now, rateLimit, rateBurst);
+        if (wait == 0) {
+            return null;
+        }
+        ServerMetrics.RATE_LIMITED.increment();
+        return unavailable(request, "Rate limit of " + rateLimit + " requests/s exceeded",
+                TimeUnit.NANOSECONDS.toSeconds(wait - 1) + 1);
+    }
+
+    // Method to forget clients that have been idle long enough for their buckets to refill, once
+    // there are many of them
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (clients.size() < SWEEP_THRESHOLD || now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        clients.values().removeIf(bucket -> bucket.isFull(now, rateLimit, rateBurst));
+    }
+
+    // Method to build the response for a request shed because its lane is full
+    public static HttpResponse overloaded(HttpRequest request) {
+        ServerMetrics.OVERLOADED.increment();
+        return unavailable(request, "Server is busy", 1);
+    }
+
+    private static HttpResponse unavailable(HttpRequest request, String message, long retryAfter) {
+        HttpResponse response = new HttpResponse(503, "Service Unavailable")
+                .header("Retry-After", String.valueOf(retryAfter))
+                .body("text/plain", (message + ", retry after " + retryAfter + " s\n").getBytes(StandardCharsets.UTF_8));
+        if (!request.isKeepAlive()) {
+            response.header("Connection", "close");
+        }
+        ServerMetrics.countRequest(request.getMethod(), 503);
+        return response;
+    }
+
+    // Method to build the response for a request that did not arrive within its deadline; the
+    // connection is closed afterwards, as the rest of the request may still be on its way
+    public static HttpResponse requestTimeout() {
+        ServerMetrics.REQUEST_TIMEOUTS.increment();
+        return new HttpResponse(408, "Request Timeout").header("Connection", "close");
+    }
+
+    // Requests of one kind being handled, and those waiting for their turn
+    public static class Lane {
+        private final String name;
+        private final int concurrency;
+        private final int queue;
+        private final long queueTimeout;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        Lane(String name, int concurrency, int queue, long queueTimeout) {
+            this.name = name;
+            this.concurrency = concurrency;
+            this.queue = queue;
+            this.queueTimeout = queueTimeout;
+            this.permits = new Semaphore(concurrency);
+        }
+
+        public String getName() { return name; }
+
+        public int getConcurrency() { return concurrency; }
+
+        public int getQueue() { return queue; }
+
+        // Requests being handled in this lane right now
+        public int getActive() { return concurrency - permits.availablePermits(); }
+
+        // Method to start handling a request if the lane has room right now, without waiting
+        public boolean tryEnter() {
+            return permits.tryAcquire();
+        }
+
+        // Method to start handling a request, waiting up to the queue timeout for room if no more
+        // than the queue length are waiting already. Returns false if the request must be shed.
+        public boolean enter() {
+            if (permits.tryAcquire()) {
+                return true;
+            }
+            if (waiting.incrementAndGet() > queue) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            try {
+                return permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        // Method to finish handling a request, after tryEnter or enter returned true
+        public void exit() {
+            permits.release();
+        }
+    }
+
+    // A client's allowance: refills at the rate limit up to the burst, one token per request
+    private static class TokenBucket {
+        private double tokens;
+        private long updatedAt;
+
+        TokenBucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.updatedAt = now;
+        }
+
+        // Method to take a token, returns 0 if there was one or the nanoseconds until there is
+        synchronized long take(long now, double rate, int burst) {
+            tokens = Math.min(burst, tokens + (now - updatedAt) * rate / 1e9);
+            updatedAt = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / rate * 1e9));
+        }
+
+        synchronized boolean isFull(long now, double rate, int burst) {
+            return tokens + (now - updatedAt) * rate / 1e9 >= burst;
+        }
+    }
+}
@@ -2,135 +2,1510 @@ package main;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
 
 public class AggregationServer {
-    private static final int PORT = 4567;
-    private static final int EXPIRY_TIME = 30000;
+    public static final int EXPIRY_TIME = 30000;
+    private static final int EXPIRY_TICK = 250;
 
-    // Store timestamps, weather data and lamport clocks
-    private static ConcurrentHashMap<String, Long> dataStore = new ConcurrentHashMap<>();
-    private static ConcurrentHashMap<String, String> weatherData = new ConcurrentHashMap<>();
+    // Store weather data with its timestamps, and the lamport clock
+    private static volatile WeatherStore store = new MapWeatherStore();
     private static LamportClock clock = new LamportClock();
 
+    // Each station's JSON encoded once into direct memory, which GET /weather.json is written from.
+    // Null with a store that does not keep the JSON as sent, which every read then comes from.
+    private static volatile EncodedStations encodedStations = new EncodedStations();
+
+    // State and lat/lon indexes over the stored stations, for filtered GETs
+    private static volatile StationIndex stationIndex = new StationIndex();
+
+    // Running statistics over the stored stations, for GET /stats
+    private static volatile StationStatistics statistics = new StationStatistics();
+
+    // Recent observations of each station, for GET /history
+    private static volatile StationHistory history = new StationHistory(0, 0);
+
+    // Lamport time of the last change to the store that every earlier change was published before,
+    // and the GET response built for it. The snapshot's direct buffer comes from the pool and goes back to it once no response uses it.
+    private static final AtomicLong storeVersion = new AtomicLong();
+    private static final Object snapshotLock = new Object();
+    private static final WeatherSnapshot.BufferPool snapshotBuffers = new WeatherSnapshot.BufferPool(2);
+    private static volatile WeatherSnapshot snapshot = WeatherSnapshot.EMPTY;
+
+    // Every change to the store, for subscribers of GET /weather/stream and long-polls of GET /weather/poll
+    private static final ChangeFeed changeFeed = new ChangeFeed(ChangeFeed.DEFAULT_HISTORY, ChangeFeed.DEFAULT_SUBSCRIBER_QUEUE);
+
+    // Expiry deadlines of stored stations, advanced by the sweeper every tick
+    private static final ExpiryWheel expiryWheel = new ExpiryWheel(EXPIRY_TICK, 512, System.currentTimeMillis());
+
+    // Write-ahead log of accepted PUTs, null unless started with --data-dir
+    private static volatile WriteAheadLog writeAheadLog;
+
+    // This server's id, the origin of writes ordered by its own clock and its name on the shard ring
+    private static volatile String nodeId = "localhost:4567";
+
+    // The Lamport version of every stored station's current write
+    private static volatile StationVersions versions = new StationVersions();
+
+    // Writes applied here, for peers to copy, null unless started with --peers
+    private static volatile ReplicationLog replicationLog;
+
+    // Locks striped by station id. A write of a station is checked against the station's current
+    // version and applied while holding its stripe, so the store, the write-ahead log and the
+    // replication log see each station's writes in the same order, while writes of stations in other
+    // stripes go ahead in parallel. Stripes are always taken in index order.
+    private static final ReentrantLock[] stationLocks = new ReentrantLock[64];
+    static {
+        for (int i = 0; i < stationLocks.length; i++) {
+            stationLocks[i] = new ReentrantLock();
+        }
+    }
+
+    // Owner of every station when sharded (--shards), null when this server holds every station.
+    // Stations that move to another server on a membership change are handed off by the rebalancer.
+    private static volatile ShardRouter shards;
+    private static final ExecutorService rebalancer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "shard-rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     // Main method to start the AggregationServer
+    // Usage: java main.AggregationServer [port] [--engine=nio|virtual|thread] [--workers=N]
+    //        [--store=map|offheap] [--data-dir=DIR] [--history=N] [--history-window=ms] [--history-budget=N]
+    //        [--node-id=NAME] [--peers=host:port,...] [--shards=host:port,...]
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(PORT);
+        ServerConfig config = ServerConfig.parse(args);
+
+        try (ConnectionEngine engine = ConnectionEngine.create(config)) {
+            // claim the port before touching any shared state
+            engine.bind(config.getPort());
+            store = WeatherStore.create(config.getStore());
+            encodedStations = store.keepsJsonAsSent() ? new EncodedStations() : null;
+            stationIndex = new StationIndex();
+            statistics = new StationStatistics();
+            history = new StationHistory(config.getHistory(), config.getHistoryWindow(), config.getHistoryBudget());
+            versions = StationVersions.forStore(store);
+            nodeId = config.getNodeId();
+            if (!config.getPeers().isEmpty()) {
+                replicationLog = new ReplicationLog(nodeId, config.getReplicationLog());
+            }
+            if (!config.getShards().isEmpty()) {
+                if (!config.getShards().contains(config.getNodeId())) {
+                    ServerLog.warn(config.getNodeId() + " is not one of the shards " + config.getShards());
+                }
+                shards = new ShardRouter(config.getShards());
+            }
+            Timer timer = new Timer();
+
+            // restore the store from disk before accepting any requests
+            if (config.getDataDir() != null) {
+                openWriteAheadLog(config, timer);
+            }
 
-        // expunge expired data every 30 seconds
-        new Timer().schedule(new TimerTask() {
+            // copy the writes of the other servers, starting from their snapshots
+            for (String peer : config.getPeers()) {
+                Replicator.start(peer, config.getNodeId(), config.getReplicationInterval(),
+                        AggregationServer::applyReplicated);
+            }
+
+            // expunge expired data as soon as it is due, one wheel tick at a time
+            new Timer("expiry-sweeper", true).schedule(new TimerTask() {
+                public void run() {
+                    expungeExpiredData();
+                }
+            }, EXPIRY_TICK, EXPIRY_TICK);
+
+            // accept and handle client requests with the selected connection engine
+            engine.serve();
+        }
+    }
+
+    // Method to recover the store from the snapshot and log, then schedule periodic checkpoints
+    private static void openWriteAheadLog(ServerConfig config, Timer timer) throws IOException {
+        long startTime = System.currentTimeMillis();
+        WriteAheadLog log = WriteAheadLog.open(config.getDataDir(), record -> {
+            // records replay in order, so later ones overwrite earlier ones; expired ones are skipped
+            if (startTime - record.getTimestamp() > EXPIRY_TIME) {
+                store.remove(record.getStationId());
+                if (encodedStations != null) {
+                    encodedStations.remove(record.getStationId());
+                }
+                stationIndex.remove(record.getStationId());
+                statistics.remove(record.getStationId());
+                history.remove(record.getStationId());
+                versions.remove(record.getStationId());
+            } else {
+                String origin = record.getOrigin() != null ? record.getOrigin() : nodeId;
+                if (!versions.isNewer(record.getStationId(), record.getLamportTime(), origin)) {
+                    return; // already recovered from the checkpoint, or a newer write was replayed
+                }
+                try {
+                    WeatherData data = WeatherDataParser.parse(record.getJson().getBytes(StandardCharsets.UTF_8));
+                    storeStation(data, record.getJson(), record.getTimestamp());
+                    versions.put(record.getStationId(), record.getLamportTime(), origin, record.getTimestamp());
+                } catch (WeatherDataParser.ParseException e) {
+                    ServerLog.warn("Skipping unreadable record for " + record.getStationId(), e);
+                }
+            }
+        });
+        clock.update(log.getRecoveredClockTime());
+        changeFeed.truncate(publishChange(time -> Collections.emptyList())); // the recovered changes have no events
+        writeAheadLog = log;
+        ServerLog.info("Recovered " + store.size() + " stations in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        // flush the writes still queued and close the log when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                ServerLog.error("Closing the write-ahead log failed", e);
+            }
+        }, "wal-shutdown"));
+
+        timer.schedule(new TimerTask() {
             public void run() {
-                expungeExpiredData();
+                try {
+                    log.checkpoint(clock.getTime(), AggregationServer::currentRecords);
+                } catch (IOException e) {
+                    ServerLog.error("Checkpoint failed", e);
+                }
             }
-        }, 0, EXPIRY_TIME);
+        }, config.getCheckpointInterval(), config.getCheckpointInterval());
+    }
 
-        // loop to accept and handle client requests concurrently
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(new RequestHandler(clientSocket)).start();
+    // Method to capture the live stations as log records for a checkpoint, each with the Lamport
+    // version it was written at
+    private static Collection<WriteAheadLog.Record> currentRecords() {
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        for (ReplicationLog.Entry entry : liveStations()) {
+            records.add(new WriteAheadLog.Record(entry.getStationId(), entry.getJson(), entry.getTimestamp(),
+                    entry.getLamportTime(), entry.getOrigin()));
+        }
+        return records;
+    }
+
+    // Method to read every stored station with its version, for checkpoints, peer snapshots and
+    // handoffs. Each station's JSON and version are read under its stripe, so they always belong
+    // to the same write.
+    private static List<ReplicationLog.Entry> liveStations() {
+        List<String> stationIds = new ArrayList<>(store.size());
+        store.forEach((stationId, json, timestamp) -> stationIds.add(stationId));
+        List<ReplicationLog.Entry> entries = new ArrayList<>(stationIds.size());
+        for (String stationId : stationIds) {
+            ReentrantLock lock = stationLock(stationId);
+            lock.lock();
+            try {
+                String json = store.get(stationId);
+                StationVersions.Version version = versions.get(stationId);
+                if (json != null && version != null) {
+                    entries.add(new ReplicationLog.Entry(0, stationId, json, version.getTimestamp(),
+                            version.getLamportTime(), version.getOrigin()));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entries;
+    }
+
+    // Method to store, index and summarise a station and schedule its expiry, returns true if the
+    // station is new
+    private static boolean storeStation(WeatherData data, String json, long timestamp) {
+        boolean isNewStation = store.put(data, json, timestamp);
+        if (encodedStations != null) {
+            encodedStations.put(data.getId(), json, timestamp);
+        }
+        stationIndex.update(data, timestamp);
+        statistics.update(data, timestamp);
+        history.record(data, timestamp);
+        expiryWheel.schedule(data.getId(), timestamp + EXPIRY_TIME);
+        return isNewStation;
+    }
+
+    // Method to store a batch of stations received together, taking each shared lock once.
+    // Returns for each station whether it is new.
+    private static boolean[] storeStations(List<WeatherData> batch, List<String> json, long timestamp) {
+        boolean[] isNewStation = store.putAll(batch, json, timestamp);
+        for (int i = 0; encodedStations != null && i < isNewStation.length; i++) {
+            encodedStations.put(batch.get(i).getId(), json.get(i), timestamp);
+        }
+        stationIndex.updateAll(batch, timestamp);
+        statistics.updateAll(batch, timestamp);
+        for (WeatherData data : batch) {
+            history.record(data, timestamp);
+            expiryWheel.schedule(data.getId(), timestamp + EXPIRY_TIME);
+        }
+        return isNewStation;
+    }
+
+    // Method to remove expired weather data from the data store. Only the wheel buckets that
+    // came due are visited, and a station is only removed if it was not updated since its
+    // deadline was scheduled. Returns the number of stations removed.
+    public static int expungeExpiredData() {
+        long start = System.nanoTime();
+        List<String> removed = new ArrayList<>();
+        int expired = expiryWheel.advance(System.currentTimeMillis(), (stationId, deadline) -> {
+            if (!dropStation(stationId, deadline - EXPIRY_TIME)) {
+                return false;
+            }
+            removed.add(stationId);
+            return true;
+        });
+        if (expired > 0) {
+            publishChange(time -> removals(removed, time));
+        }
+        ServerMetrics.EXPIRY_EVICTIONS.add(expired);
+        ServerMetrics.recordSince(ServerMetrics.EXPIRY_SWEEP, start);
+        return expired;
+    }
+
+    // Method to remove a station from the store and every structure kept beside it, only if it
+    // was last stored at the given time. Returns true if it was removed. Holds the station's
+    // stripe, so a write of the station lands either wholly before or wholly after it.
+    private static boolean dropStation(String stationId, long timestamp) {
+        ReentrantLock lock = stationLock(stationId);
+        lock.lock();
+        try {
+            if (!store.remove(stationId, timestamp)) {
+                return false;
+            }
+            if (encodedStations != null) {
+                encodedStations.remove(stationId, timestamp);
+            }
+            stationIndex.remove(stationId, timestamp);
+            statistics.remove(stationId, timestamp);
+            history.remove(stationId);
+            versions.remove(stationId, timestamp);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Method to change the members of a sharded cluster, then hand the stations this server no
+    // longer owns to their new owners in the background
+    public static void setShardMembers(List<String> members) {
+        ShardRouter router = shards;
+        if (router == null) {
+            shards = router = new ShardRouter(members);
+        } else {
+            router.setMembers(members);
+        }
+        ShardRouter current = router;
+        rebalancer.execute(() -> rebalance(current));
+    }
+
+    // Method to send every station owned by another server to its owner, as replicated writes so
+    // they keep their receive time and Lamport version, and drop them here once accepted. A
+    // handoff that fails is retried with backoff until it succeeds or the membership changes again.
+    private static void rebalance(ShardRouter router) {
+        HashRing ring = router.getRing();
+        String self = nodeId;
+        for (int attempt = 1; router.getRing() == ring; attempt++) {
+            Map<String, List<ReplicationLog.Entry>> moving = new HashMap<>();
+            for (ReplicationLog.Entry entry : liveStations()) {
+                String owner = ring.owner(entry.getStationId());
+                if (!owner.equals(self)) {
+                    moving.computeIfAbsent(owner, member -> new ArrayList<>()).add(entry);
+                }
+            }
+
+            boolean failed = false;
+            for (Map.Entry<String, List<ReplicationLog.Entry>> handoff : moving.entrySet()) {
+                try {
+                    HttpResponse response = router.pool(handoff.getKey()).send("PUT", "/cluster/handoff",
+                            Collections.singletonMap("Content-Type", "application/octet-stream"),
+                            ReplicationLog.encode(handoff.getValue()));
+                    if (response.getStatus() != 200) {
+                        throw new IOException(handoff.getKey() + " answered " + response.getStatus());
+                    }
+                    List<String> removed = new ArrayList<>();
+                    for (ReplicationLog.Entry entry : handoff.getValue()) {
+                        if (dropStation(entry.getStationId(), entry.getTimestamp())) {
+                            removed.add(entry.getStationId());
+                        }
+                    }
+                    publishChange(time -> removals(removed, time));
+                    ServerLog.info("Handed " + handoff.getValue().size() + " stations to " + handoff.getKey());
+                } catch (IOException e) {
+                    ServerLog.warn("Handoff to " + handoff.getKey() + " failed", e);
+                    failed = true;
+                }
+            }
+            if (!failed) {
+                return;
+            }
+            try {
+                Thread.sleep(ServerPool.backoff(attempt));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Method to tick the clock for a change already made to the store and publish its events at
+    // that time. Returns the Lamport time of the change.
+    private static long publishChange(LongFunction<List<ChangeFeed.Event>> events) {
+        ChangeFeed.Reservation change = reserveChange();
+        List<ChangeFeed.Event> made = Collections.emptyList();
+        try {
+            made = events.apply(change.getVersion());
+        } finally {
+            publishChange(change, made);
+        }
+        return change.getVersion();
+    }
+
+    // Method to tick the clock for a change to the store, reserving its Lamport time in the change
+    // feed's order, so the feed never shows a version while an earlier one is still to come
+    private static ChangeFeed.Reservation reserveChange() {
+        return changeFeed.reserve(clock::increment);
+    }
+
+    // Method to publish a change once it is in the store. The GET snapshot is invalidated once
+    // every earlier change is in too, so a snapshot's version covers every change up to it.
+    private static void publishChange(ChangeFeed.Reservation change, List<ChangeFeed.Event> events) {
+        change.publish(events);
+        storeVersion.accumulateAndGet(changeFeed.getPublishedVersion(), Math::max);
+    }
+
+    private static List<ChangeFeed.Event> removals(List<String> stationIds, long time) {
+        List<ChangeFeed.Event> events = new ArrayList<>(stationIds.size());
+        for (String stationId : stationIds) {
+            events.add(ChangeFeed.remove(stationId, time));
+        }
+        return events;
+    }
+
+    // Method to apply a write of some stations while holding their locks. check runs first and
+    // returns the log records of the writes that are newer than the stations' current versions;
+    // apply then applies those, queued with their records when there is a write-ahead log.
+    // Returns the sequence to wait on for durability, 0 without a write-ahead log or when no write won.
+    // Throws without applying anything if the write-ahead log has failed or is closed.
+    private static long applyWrite(Collection<String> stationIds, WriteAheadLog log,
+                                   Supplier<List<WriteAheadLog.Record>> check, Runnable apply) throws IOException {
+        long start = System.nanoTime();
+        boolean[] stripes = new boolean[stationLocks.length];
+        for (String stationId : stationIds) {
+            stripes[stripeOf(stationId)] = true;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[i]) {
+                stationLocks[i].lock();
+            }
+        }
+        try {
+            List<WriteAheadLog.Record> records = check.get();
+            if (records.isEmpty()) {
+                return 0;
+            }
+            if (log == null) {
+                apply.run();
+                return 0;
+            }
+            return log.append(records, apply);
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                if (stripes[i]) {
+                    stationLocks[i].unlock();
+                }
+            }
+            ServerMetrics.recordSince(ServerMetrics.PUT_APPLY, start);
+        }
+    }
+
+    private static int stripeOf(String stationId) {
+        return Math.floorMod(stationId.hashCode(), stationLocks.length);
+    }
+
+    private static ReentrantLock stationLock(String stationId) {
+        return stationLocks[stripeOf(stationId)];
+    }
+
+    // Method to apply a write copied from a peer, unless this server already holds a newer write
+    // of the station. Writes that would expire straight away are skipped. Throws if the write
+    // cannot be logged, so the replicator retries it instead of moving past it.
+    public static void applyReplicated(ReplicationLog.Entry entry) {
+        if (System.currentTimeMillis() - entry.getTimestamp() >= EXPIRY_TIME) {
+            return;
+        }
+        WeatherData data;
+        try {
+            data = WeatherDataParser.parse(entry.getJson().getBytes(StandardCharsets.UTF_8));
+        } catch (WeatherDataParser.ParseException e) {
+            ServerLog.warn("Skipping unreadable replicated write for " + entry.getStationId(), e);
+            return;
+        }
+        clock.update(entry.getLamportTime());
+
+        try {
+            applyWrite(Collections.singletonList(entry.getStationId()), writeAheadLog, () ->
+                    versions.isNewer(entry.getStationId(), entry.getLamportTime(), entry.getOrigin())
+                            ? Collections.singletonList(new WriteAheadLog.Record(entry.getStationId(), entry.getJson(),
+                                    entry.getTimestamp(), entry.getLamportTime(), entry.getOrigin()))
+                            : Collections.emptyList(),
+                    () -> {
+                        storeStation(data, entry.getJson(), entry.getTimestamp());
+                        recordVersion(entry.getStationId(), entry.getJson(), entry.getTimestamp(),
+                                entry.getLamportTime(), entry.getOrigin());
+                        publishChange(time -> Collections.singletonList(
+                                ChangeFeed.update(entry.getStationId(), servedJson(entry.getStationId(), entry.getJson()), time)));
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Method to record the version of a write that won, and log it for peers when replicating.
+    // Called with the station's stripe held.
+    private static void recordVersion(String stationId, String json, long timestamp, long lamportTime, String origin) {
+        versions.put(stationId, lamportTime, origin, timestamp);
+        ReplicationLog log = replicationLog;
+        if (log != null) {
+            log.record(stationId, json, timestamp, lamportTime, origin);
         }
     }
 
-    // Method to remove expired weather data from the data store
-    public static synchronized void expungeExpiredData() {
-        long currentTime = System.currentTimeMillis();
-        for (Map.Entry<String, Long> entry : dataStore.entrySet()) {
-            if (currentTime - entry.getValue() > EXPIRY_TIME) {
-                weatherData.remove(entry.getKey());
-                dataStore.remove(entry.getKey());
+    // The JSON a station just stored is served as: as it was sent, or as the store renders it when
+    // it keeps the fields instead, so change events match every other read. Called with the
+    // station's stripe held.
+    private static String servedJson(String stationId, String json) {
+        return store.keepsJsonAsSent() ? json : store.get(stationId);
+    }
+
+    // Method to get the pre-encoded GET response, rebuilding it only if the store changed
+    // since it was last built. Concurrent readers share a single rebuild. A station that
+    // reached its deadline is hidden straight away, even if the sweeper has not removed it yet.
+    public static WeatherSnapshot currentSnapshot() {
+        WeatherSnapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current.getVersion() == storeVersion.get() && now < current.getExpiresAt()) {
+            return current;
+        }
+        synchronized (snapshotLock) {
+            if (now >= snapshot.getExpiresAt()) {
+                publishChange(time -> Collections.emptyList()); // a station expired, so the content and its ETag change
+            }
+            // read the version before the data, so a racing PUT forces another rebuild
+            long version = storeVersion.get();
+            if (snapshot.getVersion() != version) {
+                WeatherSnapshot previous = snapshot;
+                EncodedStations encoded = encodedStations;
+                snapshot = encoded != null
+                        ? WeatherSnapshot.build(version, encoded, now, EXPIRY_TIME, snapshotBuffers)
+                        : WeatherSnapshot.build(version, store, now, EXPIRY_TIME, snapshotBuffers);
+                previous.release();
             }
+            return snapshot;
         }
     }
 
-    // Method to handle invalid HTTP requests
-    public static void handleInvalidRequest(PrintWriter out) {
-        out.println("HTTP/1.1 400 Bad Request");
-        out.println(); // End of headers
-        out.flush();
+    // Method to get the current snapshot with a reference held on its body, for the caller to
+    // release. A snapshot replaced and given back in between is skipped for the newer one.
+    private static WeatherSnapshot retainSnapshot() {
+        while (true) {
+            WeatherSnapshot current = currentSnapshot();
+            if (current.retain()) {
+                return current;
+            }
+        }
+    }
+
+    // Method to handle invalid HTTP requests, the connection is closed afterwards
+    public static HttpResponse handleInvalidRequest() {
+        return new HttpResponse(400, "Bad Request").header("Connection", "close");
     }
 
-    // Nested class to handle client requests in separate threads
+    // Nested class to handle client requests, either on a dedicated thread per socket or
+    // through process() when the request was framed by a non-blocking engine
     static class RequestHandler implements Runnable {
         private Socket clientSocket;
+        private AdmissionControl admission;
+        private int idleTimeout;
+        private final long acceptedAt = System.nanoTime();
 
-        public RequestHandler(Socket clientSocket) {
+        public RequestHandler(Socket clientSocket, AdmissionControl admission, int idleTimeout) {
             this.clientSocket = clientSocket;
+            this.admission = admission;
+            this.idleTimeout = idleTimeout;
         }
 
-        // Run method that processes the client's request
+        // Run method that serves requests on the connection until it is closed or goes idle.
+        // Responses to pipelined requests are only flushed once no further request is buffered.
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+            ServerMetrics.CONNECTIONS.increment();
+            try (Socket socket = clientSocket;
+                 DeadlineInputStream deadlines = new DeadlineInputStream(socket, idleTimeout);
+                 InputStream in = new BufferedInputStream(deadlines);
+                 OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                String client = socket.getInetAddress().getHostAddress();
 
-                String request = in.readLine();  // Read the request line
-                String header;
-                int contentLength = 0;
-                int clientClockTime = 0;
+                boolean first = true;
+                while (true) {
+                    // wait for the request's first byte, so idle time between requests is not timed as parsing
+                    in.mark(1);
+                    if (in.read() < 0) {
+                        break; // client closed the connection
+                    }
+                    in.reset();
+                    if (first) {
+                        ServerMetrics.recordSince(ServerMetrics.ACCEPT_TO_FIRST_BYTE, acceptedAt);
+                        first = false;
+                    }
 
-                // Process request headers
-                while (!(header = in.readLine()).isEmpty()) {
-                    if (header.startsWith("Lamport-Clock:")) {
-                        clientClockTime = Integer.parseInt(header.split(":")[1].trim());
-                        clock.update(clientClockTime);
-                    } else if (header.startsWith("Content-Length:")) {
-                        contentLength = Integer.parseInt(header.split(":")[1].trim());
+                    // once a request has started, its headers and then its body must arrive in time
+                    HttpRequest request;
+                    long parseStart = System.nanoTime();
+                    try {
+                        deadlines.setTimeout(admission.getHeaderTimeout());
+                        request = HttpRequest.read(in, () -> deadlines.setTimeout(admission.getBodyTimeout()));
+                        deadlines.setTimeout(0);
+                    } catch (HttpRequest.MalformedRequestException e) {
+                        handleInvalidRequest().writeTo(out);
+                        break;
+                    } catch (HttpRequest.RequestTimeoutException e) {
+                        AdmissionControl.requestTimeout().writeTo(out);
+                        break;
                     }
-                }
+                    if (request == null) {
+                        break; // only line breaks before the end of stream
+                    }
+                    ServerMetrics.recordSince(ServerMetrics.HEADER_PARSE, parseStart);
 
-                // Handle PUT or GET requests
-                if (request.startsWith("PUT")) {
-                    handlePutRequest(in, out, contentLength);
-                } else if (request.startsWith("GET")) {
-                    handleGetRequest(out);
-                } else {
-                    handleInvalidRequest(out);
+                    HttpResponse response = processAdmitted(request, client);
+                    long writeStart = System.nanoTime();
+                    try {
+                        response.writeTo(out);
+                    } finally {
+                        response.release();
+                    }
+                    if (response.getStream() != null) {
+                        streamEvents(socket, out, response.getStream());
+                        break;
+                    }
+                    if (response.isClose()) {
+                        break;
+                    }
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                    if (request.getMethod().equals("GET")) {
+                        ServerMetrics.recordSince(ServerMetrics.GET_WRITE, writeStart);
+                    }
                 }
-
                 out.flush(); // Ensure response is sent
+            } catch (SocketTimeoutException e) {
+                // idle connection reaped
             } catch (IOException e) {
-                e.printStackTrace();
+                ServerLog.warn("Connection from " + clientSocket.getRemoteSocketAddress() + " failed", e);
+            } finally {
+                ServerMetrics.CONNECTIONS.decrement();
+            }
+        }
+
+        // Method to process a request once the client's rate limit and the request's lane let it
+        // through, waiting in the lane's queue if need be; otherwise it gets 503. A long-poll holds
+        // no place in its lane while it waits, as it uses no resources until it is answered.
+        private HttpResponse processAdmitted(HttpRequest request, String client) {
+            HttpResponse rejected = admission.checkRate(request, client);
+            if (rejected != null) {
+                return rejected;
+            }
+            if (isDeferred(request)) {
+                return process(request);
+            }
+            AdmissionControl.Lane lane = admission.laneOf(request);
+            if (!lane.enter()) {
+                return AdmissionControl.overloaded(request);
+            }
+            try {
+                return process(request);
+            } finally {
+                lane.exit();
+            }
+        }
+
+        // Socket input that gives up once a deadline passes, however slowly the bytes trickle in.
+        // Without a deadline, a read waits up to the idle timeout.
+        private static class DeadlineInputStream extends FilterInputStream {
+            private final Socket socket;
+            private final int idleTimeout;
+            private long deadline; // System.nanoTime(), 0 for none
+            private int soTimeout = -1;
+
+            DeadlineInputStream(Socket socket, int idleTimeout) throws IOException {
+                super(socket.getInputStream());
+                this.socket = socket;
+                this.idleTimeout = idleTimeout;
+            }
+
+            // Method to allow the given ms from now for the reads that follow, 0 to go back to the idle timeout
+            void setTimeout(int millis) {
+                deadline = millis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis) : 0;
+            }
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int timeout = idleTimeout;
+                if (deadline != 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        throw new HttpRequest.RequestTimeoutException("Request not received in time");
+                    }
+                    timeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+                }
+                if (timeout != soTimeout) {
+                    socket.setSoTimeout(timeout);
+                    soTimeout = timeout;
+                }
+                try {
+                    return super.read(b, off, len);
+                } catch (SocketTimeoutException e) {
+                    if (deadline != 0) {
+                        throw new HttpRequest.RequestTimeoutException("Request not received in time");
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        // Method to write a subscription's frames to the socket as they arrive, until the client goes
+        // away or falls so far behind that it is dropped, which closes the socket under a blocked write
+        private static void streamEvents(Socket socket, OutputStream out, ChangeFeed.Subscription subscription)
+                throws IOException {
+            subscription.setListener(() -> {
+                if (subscription.isDropped()) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            WritableByteChannel channel = Channels.newChannel(out);
+            try {
+                out.flush();
+                ByteBuffer frame;
+                while ((frame = subscription.take()) != null) {
+                    channel.write(frame);
+                    if (!subscription.hasQueued()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SocketException e) {
+                // client went away or was dropped
+            } finally {
+                subscription.close();
+            }
+        }
+
+        // Whether the response waits for a later change (a long-poll), so engines must not hold a
+        // thread or event loop for it and use processDeferred instead
+        public static boolean isDeferred(HttpRequest request) {
+            return request.getMethod().equals("GET") && request.getPath().equals("/weather/poll");
+        }
+
+        // Method to handle a deferred request, passing its response to done once there is one,
+        // possibly on another thread
+        public static void processDeferred(HttpRequest request, Consumer<HttpResponse> done) {
+            handleLongPollRequest(request, response -> {
+                compress(request, response);
+                response.header("Lamport-Clock", String.valueOf(clock.getTime()));
+                if (!request.isKeepAlive()) {
+                    response.header("Connection", "close");
+                }
+                ServerMetrics.countRequest(request.getMethod(), response.getStatus());
+                done.accept(response);
+            });
+        }
+
+        // Whether handling the request may block, e.g. a PUT waiting for the log to be fsynced,
+        // so that non-blocking engines hand it off rather than run it on an event loop. Compressed
+        // bodies are decompressed off the event loop too.
+        public static boolean mayBlock(HttpRequest request) {
+            return (writeAheadLog != null && request.getMethod().equals("PUT"))
+                    || request.getHeader("Content-Encoding") != null
+                    || "cluster".equals(request.getQueryParameter("scope"));
+        }
+
+        // Method to update the clock and dispatch a complete request to the PUT or GET handler.
+        // The time taken to build GET responses and the status of every response are recorded.
+        public static HttpResponse process(HttpRequest request) {
+            long start = System.nanoTime();
+            HttpResponse response = dispatch(request);
+            compress(request, response);
+            response.header("Lamport-Clock", String.valueOf(clock.getTime()));
+            if (!request.isKeepAlive()) {
+                response.header("Connection", "close");
+            }
+            if (request.getMethod().equals("GET") && !isDeferred(request)) {
+                ServerMetrics.recordSince(ServerMetrics.GET_RENDER, start);
             }
+            ServerMetrics.countRequest(request.getMethod(), response.getStatus());
+            return response;
         }
 
-        // Method to handle PUT requests and store weather data
-        private void handlePutRequest(BufferedReader in, PrintWriter out, int contentLength) throws IOException {
-            char[] body = new char[contentLength];
-            in.read(body, 0, contentLength);
-            String jsonData = new String(body);
+        // Method to compress a response body for a client that accepts gzip or deflate, unless it is
+        // small, streamed or already compressed (GET /weather.json uses the snapshot's cached copy).
+        // The ETag becomes weak, as the bytes differ from the uncompressed body's.
+        private static void compress(HttpRequest request, HttpResponse response) {
+            if (response.getStream() != null || response.getHeader("Content-Encoding") != null
+                    || response.getBodyLength() < HttpCompression.MIN_SIZE) {
+                return;
+            }
+            String encoding = HttpCompression.negotiate(request.getHeader("Accept-Encoding"));
+            if (encoding == null) {
+                return;
+            }
+            response.body(response.getHeader("Content-Type"), HttpCompression.compress(response.getBody(), encoding))
+                    .header("Content-Encoding", encoding)
+                    .header("Vary", "Accept-Encoding");
+            String etag = response.getHeader("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                response.header("ETag", "W/" + etag);
+            }
+        }
+
+        private static HttpResponse dispatch(HttpRequest request) {
+            // a compressed body is decoded before anything reads it
+            String contentEncoding = request.getHeader("Content-Encoding");
+            if (contentEncoding != null) {
+                if (!HttpCompression.isSupported(contentEncoding)) {
+                    return new HttpResponse(415, "Unsupported Media Type")
+                            .body("text/plain", ("Unsupported Content-Encoding: " + contentEncoding + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                try {
+                    request = request.withDecodedBody(
+                            HttpCompression.decompress(request.getBody(), contentEncoding, HttpRequest.MAX_BODY_BYTES));
+                } catch (IOException e) {
+                    return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+                }
+            }
+
+            String lamportClock = request.getHeader("Lamport-Clock");
+            if (lamportClock != null) {
+                try {
+                    clock.update(Long.parseLong(lamportClock.trim()));
+                } catch (NumberFormatException e) {
+                    return handleInvalidRequest();
+                }
+            }
+
+            // Handle PUT or GET requests
+            if (request.getMethod().equals("PUT") && request.getPath().equals("/cluster/members")) {
+                return handleMembersUpdate(request);
+            } else if (request.getMethod().equals("PUT") && request.getPath().equals("/cluster/handoff")) {
+                return handleHandoffRequest(request);
+            } else if (request.getMethod().equals("PUT")) {
+                return handlePutRequest(request);
+            } else if (request.getMethod().equals("GET") && request.getPath().equals("/cluster/members")) {
+                return handleMembersRequest();
+            } else if (request.getMethod().equals("GET") && "cluster".equals(request.getQueryParameter("scope"))) {
+                return handleClusterGetRequest(request);
+            } else if (request.getMethod().equals("GET") && request.getPath().equals("/metrics")) {
+                return handleMetricsRequest();
+            } else if (request.getMethod().equals("GET") && request.getPath().equals("/stats")) {
+                return handleStatsRequest(request);
+            } else if (request.getMethod().equals("GET") && request.getPath().equals("/history")) {
+                return handleHistoryRequest(request);
+            } else if (request.getMethod().equals("GET") && request.getPath().equals("/replication/log")) {
+                return handleReplicationLogRequest(request);
+            } else if (request.getMethod().equals("GET") && request.getPath().equals("/replication/snapshot")) {
+                return handleReplicationSnapshotRequest();
+            } else if (request.getMethod().equals("GET") && request.getPath().equals("/weather/stream")) {
+                return handleStreamRequest(request);
+            } else if (isDeferred(request)) {
+                // a thread per connection can simply wait for the long-poll to complete
+                CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+                handleLongPollRequest(request, response::complete);
+                return response.join();
+            } else if (request.getMethod().equals("GET")) {
+                return handleGetRequest(request);
+            } else {
+                return handleInvalidRequest();
+            }
+        }
+
+        // Method to handle PUT requests and store weather data. The body is parsed straight from
+        // its bytes: an empty body is 204, malformed JSON is 500 and JSON that is not valid
+        // weather data (no id, wrong value types) is 400.
+        private static HttpResponse handlePutRequest(HttpRequest request) {
+            byte[] body = request.getBody();
+            if (body.length == 0) {
+                return new HttpResponse(204, "No Content");
+            }
+            if (WeatherBinaryCodec.isBinary(request.getHeader("Content-Type"))) {
+                return handleBinaryPutRequest(request, body);
+            }
+            if (isNdjson(request) || firstByte(body) == '[') {
+                return handleBatchPutRequest(request, body);
+            }
+
+            WeatherData data;
+            try {
+                data = WeatherDataParser.parse(body);
+            } catch (WeatherDataParser.ParseException e) {
+                return e.isSyntaxError()
+                        ? new HttpResponse(500, "Internal Server Error").body("text/plain", errorBody(e))
+                        : new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            }
+            String stationId = data.getId();
+            String jsonData = new String(body, StandardCharsets.UTF_8);
+            String owner = ownerElsewhere(stationId);
+            if (owner != null) {
+                return new HttpResponse(421, "Misdirected Request").header("Shard-Owner", owner);
+            }
 
-            String[] fields = jsonData.split(",");
-            String stationId = fields[0].split(":")[1].replace("\"", "").trim();
+            // Store data and timestamp then increment clock, and log the write for peers, unless a
+            // newer write of the station is already stored
+            String source = sourceOf(request);
+            String origin = source != null ? source : nodeId;
+            long[] version = new long[1];
+            ChangeFeed.Reservation[] change = new ChangeFeed.Reservation[1];
+            boolean[] isNewStation = new boolean[1];
+            boolean[] won = new boolean[1];
+            long timestamp = System.currentTimeMillis();
+            Supplier<List<WriteAheadLog.Record>> check = () -> {
+                version[0] = takeVersion(request, change);
+                won[0] = versions.isNewer(stationId, version[0], origin);
+                return won[0]
+                        ? Collections.singletonList(new WriteAheadLog.Record(stationId, jsonData, timestamp, version[0], origin))
+                        : Collections.emptyList();
+            };
+            Runnable apply = () -> {
+                isNewStation[0] = storeStation(data, jsonData, timestamp);
+                recordVersion(stationId, jsonData, timestamp, version[0], origin);
+                publishWrite(change[0], time -> Collections.singletonList(ChangeFeed.update(stationId, servedJson(stationId, jsonData), time)));
+            };
 
-            // Store data and timestamp then increment clock
-            boolean isNewStation = !weatherData.containsKey(stationId);
-            weatherData.put(stationId, jsonData);
-            dataStore.put(stationId, System.currentTimeMillis());
-            clock.increment();
+            // With a write-ahead log, only acknowledge once the record is durable
+            WriteAheadLog log = writeAheadLog;
+            try {
+                long sequence;
+                try {
+                    sequence = applyWrite(Collections.singletonList(stationId), log, check, apply);
+                } finally {
+                    releaseVersion(change[0]);
+                }
+                if (log != null && won[0]) {
+                    log.awaitDurable(sequence);
+                }
+            } catch (IOException e) {
+                ServerLog.error("Storing " + stationId + " failed", e);
+                return new HttpResponse(500, "Internal Server Error");
+            }
 
             // Respond with appropriate status code
-            if (isNewStation) {
-                out.println("HTTP/1.1 201 Created");
+            if (!won[0]) {
+                return new HttpResponse(409, "Conflict")
+                        .body("text/plain", ("A newer write of " + stationId + " is stored\n").getBytes(StandardCharsets.UTF_8));
+            } else if (isNewStation[0]) {
+                return new HttpResponse(201, "Created");
             } else {
-                out.println("HTTP/1.1 200 OK");
+                return new HttpResponse(200, "OK");
             }
-            out.println();
         }
 
-        // Method to handle GET requests and return weather data
-        private void handleGetRequest(PrintWriter out) {
-            if (weatherData.isEmpty()) {
-                out.println("HTTP/1.1 204 No Content");
+        // Method to handle a batch of stations in one PUT, as a JSON array or as newline-delimited
+        // JSON (Content-Type: application/x-ndjson). The valid stations are applied together: one
+        // log append and fsync, one clock tick and one snapshot invalidation for the whole batch.
+        // The response lists a status for every station, in the order they were sent.
+        private static HttpResponse handleBatchPutRequest(HttpRequest request, byte[] body) {
+            List<WeatherDataParser.Element> elements;
+            if (isNdjson(request)) {
+                elements = WeatherDataParser.parseLines(body, 0, body.length);
             } else {
-                out.println("HTTP/1.1 200 OK");
-                out.println("Content-Type: application/json");
-                out.println();
+                try {
+                    elements = WeatherDataParser.parseArray(body, 0, body.length);
+                } catch (WeatherDataParser.ParseException e) {
+                    return new HttpResponse(500, "Internal Server Error").body("text/plain", errorBody(e));
+                }
+            }
+            List<String> json = new ArrayList<>(elements.size());
+            for (WeatherDataParser.Element element : elements) {
+                json.add(element.getData() == null ? null
+                        : new String(body, element.getOffset(), element.getLength(), StandardCharsets.UTF_8));
+            }
+            return applyBatch(request, elements, json);
+        }
+
+        // Method to handle a PUT in the binary encoding (Content-Type: application/x-weather-binary).
+        // The stations are rendered to JSON once, here, so they are stored, replicated and served to
+        // GET clients exactly as if they had been sent as JSON. The response is always the per-station
+        // list of a batch; a body that cannot be decoded is 400.
+        private static HttpResponse handleBinaryPutRequest(HttpRequest request, byte[] body) {
+            List<WeatherData> stations;
+            try {
+                stations = WeatherBinaryCodec.decode(body);
+            } catch (WeatherDataParser.ParseException e) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            }
+            List<WeatherDataParser.Element> elements = new ArrayList<>(stations.size());
+            List<String> json = new ArrayList<>(stations.size());
+            for (WeatherData station : stations) {
+                if (station.getId() == null) {
+                    elements.add(new WeatherDataParser.Element(null,
+                            new WeatherDataParser.ParseException("Station has no id", false), 0, 0));
+                    json.add(null);
+                } else {
+                    elements.add(new WeatherDataParser.Element(station, null, 0, 0));
+                    json.add(JsonText.station(station));
+                }
+            }
+            return applyBatch(request, elements, json);
+        }
+
+        // Method to apply the valid stations of a batch, given with the JSON each is stored as
+        private static HttpResponse applyBatch(HttpRequest request, List<WeatherDataParser.Element> elements,
+                                               List<String> json) {
+            List<WeatherData> batch = new ArrayList<>(elements.size());
+            List<String> jsonData = new ArrayList<>(elements.size());
+            String[] owners = new String[elements.size()];
+            for (int i = 0; i < elements.size(); i++) {
+                WeatherDataParser.Element element = elements.get(i);
+                if (element.getData() != null) {
+                    owners[i] = ownerElsewhere(element.getData().getId());
+                }
+                if (element.getData() != null && owners[i] == null) {
+                    batch.add(element.getData());
+                    jsonData.add(json.get(i));
+                }
+            }
+
+            // the whole batch has one Lamport version; each station is applied only if that is newer
+            // than the station's current one
+            String source = sourceOf(request);
+            String origin = source != null ? source : nodeId;
+            long[] version = new long[1];
+            ChangeFeed.Reservation[] change = new ChangeFeed.Reservation[1];
+            boolean[] won = new boolean[batch.size()];
+            List<WeatherData> winners = new ArrayList<>(batch.size());
+            List<String> winnersJson = new ArrayList<>(batch.size());
+            boolean[][] isNewStation = {new boolean[0]};
+            long timestamp = System.currentTimeMillis();
+            if (!batch.isEmpty()) {
+                List<String> stationIds = new ArrayList<>(batch.size());
+                for (WeatherData data : batch) {
+                    stationIds.add(data.getId());
+                }
+                Supplier<List<WriteAheadLog.Record>> check = () -> {
+                    version[0] = takeVersion(request, change);
+                    List<WriteAheadLog.Record> records = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        won[i] = versions.isNewer(stationIds.get(i), version[0], origin);
+                        if (won[i]) {
+                            winners.add(batch.get(i));
+                            winnersJson.add(jsonData.get(i));
+                            records.add(new WriteAheadLog.Record(stationIds.get(i), jsonData.get(i), timestamp, version[0], origin));
+                        }
+                    }
+                    return records;
+                };
+                Runnable apply = () -> {
+                    isNewStation[0] = storeStations(winners, winnersJson, timestamp);
+                    for (int i = 0; i < winners.size(); i++) {
+                        recordVersion(winners.get(i).getId(), winnersJson.get(i), timestamp, version[0], origin);
+                    }
+                    publishWrite(change[0], time -> {
+                        List<ChangeFeed.Event> events = new ArrayList<>(winners.size());
+                        for (int i = 0; i < winners.size(); i++) {
+                            String stationId = winners.get(i).getId();
+                            events.add(ChangeFeed.update(stationId, servedJson(stationId, winnersJson.get(i)), time));
+                        }
+                        return events;
+                    });
+                };
+
+                WriteAheadLog log = writeAheadLog;
+                try {
+                    long sequence;
+                    try {
+                        sequence = applyWrite(stationIds, log, check, apply);
+                    } finally {
+                        releaseVersion(change[0]);
+                    }
+                    if (log != null && !winners.isEmpty()) {
+                        log.awaitDurable(sequence);
+                    }
+                } catch (IOException e) {
+                    ServerLog.error("Storing a batch of " + stationIds.size() + " stations failed", e);
+                    return new HttpResponse(500, "Internal Server Error");
+                }
+            }
+
+            // one result per station sent: 201/200 as for a single PUT, 400 invalid, 500 malformed,
+            // 409 when a newer write of the station is stored
+            StringBuilder results = new StringBuilder(64 + elements.size() * 48).append('[');
+            int valid = 0;
+            int applied = 0;
+            for (int i = 0; i < elements.size(); i++) {
+                WeatherDataParser.Element element = elements.get(i);
+                results.append(i == 0 ? "\n    {\"index\": " : ",\n    {\"index\": ").append(i);
+                if (owners[i] != null) {
+                    results.append(", \"id\": ");
+                    JsonText.appendString(results, element.getData().getId());
+                    results.append(", \"status\": 421, \"owner\": ");
+                    JsonText.appendString(results, owners[i]);
+                } else if (element.getData() != null && !won[valid++]) {
+                    results.append(", \"id\": ");
+                    JsonText.appendString(results, element.getData().getId());
+                    results.append(", \"status\": 409, \"error\": \"A newer write of the station is stored\"");
+                } else if (element.getData() != null) {
+                    results.append(", \"id\": ");
+                    JsonText.appendString(results, element.getData().getId());
+                    results.append(", \"status\": ").append(isNewStation[0][applied++] ? 201 : 200);
+                } else {
+                    results.append(", \"status\": ").append(element.getError().isSyntaxError() ? 500 : 400)
+                            .append(", \"error\": ");
+                    JsonText.appendString(results, element.getError().getMessage());
+                }
+                results.append('}');
+            }
+            results.append(elements.isEmpty() ? "]\n" : "\n]\n");
+            return new HttpResponse(200, "OK").body("application/json", results.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        // The source a PUT is ordered by: its Source-Id when it also carries the sender's Lamport-Clock,
+        // null when the server orders it by its own clock instead
+        private static String sourceOf(HttpRequest request) {
+            String source = request.getHeader("Source-Id");
+            return source != null && !source.trim().isEmpty() && request.getHeader("Lamport-Clock") != null
+                    ? source.trim()
+                    : null;
+        }
+
+        // The sender's Lamport time, already checked to be a number by dispatch
+        private static long sentAt(HttpRequest request) {
+            return Long.parseLong(request.getHeader("Lamport-Clock").trim());
+        }
+
+        // Method to take the Lamport version a PUT is ordered by: the sender's time when it has a
+        // source, otherwise one tick of the server's clock, reserved in the change feed so the
+        // write is stored, published and tagged at that same version
+        private static long takeVersion(HttpRequest request, ChangeFeed.Reservation[] change) {
+            if (sourceOf(request) != null) {
+                return sentAt(request);
+            }
+            change[0] = reserveChange();
+            return change[0].getVersion();
+        }
+
+        // Method to publish nothing at a PUT's reserved version if it did not publish its events,
+        // because no station won or the write failed, so later changes do not wait for it
+        private static void releaseVersion(ChangeFeed.Reservation change) {
+            if (change != null) {
+                publishChange(change, Collections.emptyList());
+            }
+        }
+
+        // Method to publish a PUT's events: at its reserved version when the server's clock ordered
+        // it, otherwise at a tick taken now
+        private static void publishWrite(ChangeFeed.Reservation change, LongFunction<List<ChangeFeed.Event>> events) {
+            if (change == null) {
+                publishChange(events);
+            } else {
+                publishChange(change, events.apply(change.getVersion()));
+            }
+        }
+
+        // The server that owns the station if it is not this one, null when it is or when not sharded
+        private static String ownerElsewhere(String stationId) {
+            ShardRouter router = shards;
+            if (router == null) {
+                return null;
+            }
+            String owner = router.owner(stationId);
+            return owner.equals(nodeId) ? null : owner;
+        }
+
+        // Method to handle GET /cluster/members: the servers of a sharded cluster, one per line
+        private static HttpResponse handleMembersRequest() {
+            ShardRouter router = shards;
+            if (router == null) {
+                return new HttpResponse(404, "Not Found");
+            }
+            String members = String.join("\n", router.getRing().getNodes()) + "\n";
+            return new HttpResponse(200, "OK").body("text/plain", members.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Method to handle PUT /cluster/members: a new membership, sent to every server when one is
+        // added or removed. Stations this server no longer owns are handed off in the background.
+        private static HttpResponse handleMembersUpdate(HttpRequest request) {
+            List<String> members = HashRing.parseMembers(new String(request.getBody(), StandardCharsets.UTF_8));
+            if (members.isEmpty()) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", "No members given\n".getBytes(StandardCharsets.UTF_8));
+            }
+            setShardMembers(members);
+            return new HttpResponse(200, "OK");
+        }
+
+        // Method to handle PUT /cluster/handoff: stations moved here from another server, applied
+        // like replicated writes so the newest version of each station wins
+        private static HttpResponse handleHandoffRequest(HttpRequest request) {
+            try {
+                for (ReplicationLog.Entry entry : ReplicationLog.decode(request.getBody())) {
+                    applyReplicated(entry);
+                }
+            } catch (IOException e) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            } catch (UncheckedIOException e) {
+                ServerLog.error("Applying a handoff failed", e);
+                return new HttpResponse(500, "Internal Server Error"); // the sender keeps the stations and retries
+            }
+            return new HttpResponse(200, "OK");
+        }
+
+        // Method to handle GET /weather.json?scope=cluster on a sharded cluster: the same GET is sent
+        // to every server in parallel and their stations are merged. Servers that did not answer
+        // are listed in a Missing-Shards header.
+        private static HttpResponse handleClusterGetRequest(HttpRequest request) {
+            ShardRouter router = shards;
+            if (router == null) {
+                return handleGetRequest(request);
+            }
+            StringBuilder target = new StringBuilder(request.getPath());
+            for (Map.Entry<String, String> parameter : request.getQueryParameters().entrySet()) {
+                if (!parameter.getKey().equals("scope")) {
+                    target.append(target.indexOf("?") < 0 ? '?' : '&')
+                            .append(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8)).append('=')
+                            .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+                }
+            }
+
+            ShardRouter.Gathered gathered = router.getAll(target.toString(), Collections.emptyMap());
+            HttpResponse response = gathered.getBody().length == 0
+                    ? new HttpResponse(204, "No Content")
+                    : new HttpResponse(200, "OK").body("application/json", gathered.getBody());
+            if (!gathered.getMissing().isEmpty()) {
+                response.header("Missing-Shards", String.join(",", gathered.getMissing()));
+            }
+            return response;
+        }
+
+        private static boolean isNdjson(HttpRequest request) {
+            String contentType = request.getHeader("Content-Type");
+            return contentType != null && (contentType.startsWith("application/x-ndjson")
+                    || contentType.startsWith("application/ndjson"));
+        }
+
+        private static int firstByte(byte[] body) {
+            for (byte b : body) {
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return b;
+                }
+            }
+            return -1;
+        }
+
+        private static byte[] errorBody(Exception e) {
+            return (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Method to handle GET requests and return weather data. The body is the shared snapshot,
+        // copied once per change from the stations' encoded buffers into one direct buffer that
+        // every response is written from, and lent to the response until it has been written.
+        // Clients that already hold the current version get 304 Not Modified. With query
+        // parameters only the matching stations are looked up, through the station index.
+        private static HttpResponse handleGetRequest(HttpRequest request) {
+            StationQuery query;
+            try {
+                query = StationQuery.parse(request.getQueryParameters());
+            } catch (IllegalArgumentException e) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            }
+
+            if (request.getQueryParameter("since") != null) {
+                if (query != null) {
+                    return new HttpResponse(400, "Bad Request")
+                            .body("text/plain", "since cannot be combined with a filter\n".getBytes(StandardCharsets.UTF_8));
+                }
+                return handleDeltaRequest(request);
+            }
 
-                for (String data : weatherData.values()) {
-                    out.println(data);
+            if (query != null) {
+                return handleQuery(request, query, currentSnapshot());
+            }
+
+            // hold the snapshot while its body is read, so a rebuild cannot reuse its memory
+            WeatherSnapshot current = retainSnapshot();
+            boolean lent = false;
+            try {
+                if (current.isEmpty()) {
+                    return new HttpResponse(204, "No Content");
+                }
+                if (current.matches(request.getHeader("If-None-Match"))) {
+                    return new HttpResponse(304, "Not Modified").header("ETag", current.getETag());
+                }
+
+                // the compressed feed is cached with the snapshot, so it is compressed once per change
+                String encoding = current.getLength() >= HttpCompression.MIN_SIZE
+                        ? HttpCompression.negotiate(request.getHeader("Accept-Encoding"))
+                        : null;
+                if (encoding != null) {
+                    return new HttpResponse(200, "OK")
+                            .header("ETag", "W/" + current.getETag())
+                            .header("Content-Encoding", encoding)
+                            .header("Vary", "Accept-Encoding")
+                            .body("application/json", current.getBody(encoding));
+                }
+                lent = true;
+                return new HttpResponse(200, "OK")
+                        .header("ETag", current.getETag())
+                        .body("application/json", current.getDirectBody(), current::release);
+            } finally {
+                if (!lent) {
+                    current.release();
                 }
             }
         }
+
+        // Method to handle GET /metrics: the server's counters and latency histograms in the
+        // Prometheus text format, with the live connections, store size and Lamport clock
+        private static HttpResponse handleMetricsRequest() {
+            return new HttpResponse(200, "OK")
+                    .body(ServerMetrics.CONTENT_TYPE, ServerMetrics.render(store.size(), clock.getTime()));
+        }
+
+        // Method to handle GET /stats: min/max/mean/count of the main fields over all stations and
+        // per state (or only ?state=...). The statistics are kept up to date on every change, so
+        // this only renders them.
+        private static HttpResponse handleStatsRequest(HttpRequest request) {
+            WeatherSnapshot current = currentSnapshot();
+            if (current.matches(request.getHeader("If-None-Match"))) {
+                return new HttpResponse(304, "Not Modified").header("ETag", current.getETag());
+            }
+            byte[] body = statistics.toJson(request.getQueryParameter("state")).getBytes(StandardCharsets.UTF_8);
+            return new HttpResponse(200, "OK")
+                    .header("ETag", current.getETag())
+                    .body("application/json", body);
+        }
+
+        // Method to handle GET /history?id=...[&from=ms][&to=ms][&bucket=ms]: a station's recent
+        // observations between two receive times, or min/max/avg per bucket when a bucket width is given
+        private static HttpResponse handleHistoryRequest(HttpRequest request) {
+            String stationId = request.getQueryParameter("id");
+            long from;
+            long to;
+            long bucket;
+            try {
+                if (stationId == null) {
+                    throw new IllegalArgumentException("id is required");
+                }
+                from = longParameter(request, "from", 0);
+                to = longParameter(request, "to", Long.MAX_VALUE);
+                bucket = longParameter(request, "bucket", 0);
+                if (bucket < 0) {
+                    throw new IllegalArgumentException("bucket must not be negative");
+                }
+            } catch (IllegalArgumentException e) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            }
+
+            List<StationHistory.Point> points = history.range(stationId, from, to, System.currentTimeMillis());
+            if (points == null) {
+                return new HttpResponse(404, "Not Found");
+            }
+            byte[] body = StationHistory.toJson(stationId, points, bucket).getBytes(StandardCharsets.UTF_8);
+            return new HttpResponse(200, "OK").body("application/json", body);
+        }
+
+        // Method to handle GET /replication/log?epoch=...&since=N[&max=N]: the writes applied after
+        // sequence N, for a peer to copy. 410 Gone tells the peer to load a snapshot instead, because
+        // this server restarted since (a new epoch) or no longer holds all of those writes.
+        private static HttpResponse handleReplicationLogRequest(HttpRequest request) {
+            long epoch;
+            long since;
+            long max;
+            try {
+                epoch = longParameter(request, "epoch", 0);
+                since = longParameter(request, "since", 0);
+                max = longParameter(request, "max", 1000);
+            } catch (IllegalArgumentException e) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            }
+
+            ReplicationLog log = replicationLog;
+            if (log == null) {
+                return new HttpResponse(404, "Not Found");
+            }
+            List<ReplicationLog.Entry> entries = epoch == log.getEpoch()
+                    ? log.since(since, (int) Math.max(1, Math.min(max, 10000)))
+                    : null;
+            if (entries == null) {
+                return new HttpResponse(410, "Gone").header("Replication-Epoch", String.valueOf(log.getEpoch()));
+            }
+            return new HttpResponse(200, "OK")
+                    .header("Replication-Epoch", String.valueOf(log.getEpoch()))
+                    .body("application/octet-stream", ReplicationLog.encode(entries));
+        }
+
+        // Method to handle GET /replication/snapshot: the latest write of every live station, with
+        // the epoch and sequence to follow the log from afterwards
+        private static HttpResponse handleReplicationSnapshotRequest() {
+            ReplicationLog log = replicationLog;
+            if (log == null) {
+                return new HttpResponse(404, "Not Found");
+            }
+            ReplicationLog.Snapshot snapshot = log.snapshot(AggregationServer::liveStations);
+            return new HttpResponse(200, "OK")
+                    .header("Replication-Epoch", String.valueOf(snapshot.getEpoch()))
+                    .header("Replication-Sequence", String.valueOf(snapshot.getSequence()))
+                    .body("application/octet-stream", ReplicationLog.encode(snapshot.getEntries()));
+        }
+
+        // Method to handle GET /weather/stream: Server-Sent Events, one per station stored or removed,
+        // for as long as the client stays connected. A client that reconnects with Last-Event-ID (or
+        // ?since=) first gets the changes it missed, or a reset and every station when those are no
+        // longer kept or the version is not one this server has reached.
+        private static HttpResponse handleStreamRequest(HttpRequest request) {
+            long since;
+            try {
+                String lastEventId = request.getHeader("Last-Event-ID");
+                since = lastEventId != null ? Long.parseLong(lastEventId.trim()) : longParameter(request, "since", -1);
+            } catch (IllegalArgumentException e) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            }
+
+            boolean unknown = since > storeVersion.get();
+            ChangeFeed.Subscription subscription = changeFeed.subscribe(unknown ? -1 : since);
+            List<ChangeFeed.Event> initial = unknown || subscription.getBacklog() == null
+                    ? currentState()
+                    : subscription.getBacklog();
+            return new HttpResponse(200, "OK")
+                    .header("Cache-Control", "no-cache")
+                    .body("text/event-stream", ChangeFeed.frames(initial))
+                    .stream(subscription);
+        }
+
+        // Method to handle GET /weather/poll?since=N[&timeout=ms]: waits up to the timeout (30 s by
+        // default, at most 60 s) for a change after version N, then answers with every change after
+        // it as JSON lines, or 204 if there was none. The ETag is the version to poll from next.
+        // Without since it waits for the next change.
+        private static void handleLongPollRequest(HttpRequest request, Consumer<HttpResponse> done) {
+            long since;
+            long timeout;
+            try {
+                since = longParameter(request, "since", storeVersion.get());
+                timeout = Math.max(0, Math.min(longParameter(request, "timeout", 30000), 60000));
+            } catch (IllegalArgumentException e) {
+                done.accept(new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e)));
+                return;
+            }
+
+            if (since > storeVersion.get()) {
+                done.accept(changesResponse(currentState()));
+                return;
+            }
+            changeFeed.await(since, timeout, events -> {
+                if (events == null) {
+                    done.accept(changesResponse(currentState()));
+                } else if (events.isEmpty()) {
+                    done.accept(new HttpResponse(204, "No Content").header("ETag", "\"" + since + "\""));
+                } else {
+                    done.accept(changesResponse(events));
+                }
+            });
+        }
+
+        // Method to handle GET /weather.json?since=N: only the stations stored or removed after version
+        // N, as JSON lines like a long-poll's, each station once as it is now. The ETag is the version
+        // to ask from next, and 204 means nothing changed. When those changes are no longer kept, or N
+        // is not a version this server has reached, a reset and every station are sent instead.
+        private static HttpResponse handleDeltaRequest(HttpRequest request) {
+            long since;
+            try {
+                since = longParameter(request, "since", -1);
+            } catch (IllegalArgumentException e) {
+                return new HttpResponse(400, "Bad Request").body("text/plain", errorBody(e));
+            }
+
+            List<ChangeFeed.Event> changes = since < 0 || since > storeVersion.get() ? null : changeFeed.changedSince(since);
+            if (changes == null) {
+                return changesResponse(currentState());
+            }
+            if (changes.isEmpty()) {
+                return new HttpResponse(204, "No Content").header("ETag", "\"" + since + "\"");
+            }
+            return changesResponse(changes);
+        }
+
+        private static HttpResponse changesResponse(List<ChangeFeed.Event> events) {
+            long version = 0;
+            for (ChangeFeed.Event event : events) {
+                version = Math.max(version, event.getVersion());
+            }
+            return new HttpResponse(200, "OK")
+                    .header("ETag", "\"" + version + "\"")
+                    .body("application/x-ndjson", ChangeFeed.lines(events));
+        }
+
+        // Method to describe the whole store as events: a reset, then every live station
+        private static List<ChangeFeed.Event> currentState() {
+            long version = storeVersion.get();
+            long now = System.currentTimeMillis();
+            List<ChangeFeed.Event> events = new ArrayList<>();
+            events.add(ChangeFeed.reset(version));
+            store.forEach((stationId, json, timestamp) -> {
+                if (now - timestamp < EXPIRY_TIME) {
+                    events.add(ChangeFeed.update(stationId, json, version));
+                }
+            });
+            return events;
+        }
+
+        private static long longParameter(HttpRequest request, String name, long defaultValue) {
+            String value = request.getQueryParameter(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " is not a number: " + value);
+            }
+        }
+
+        // Method to answer a filtered GET. The result is tagged with the version of the snapshot
+        // taken before the lookup, so a racing PUT can only make the client fetch again.
+        private static HttpResponse handleQuery(HttpRequest request, StationQuery query, WeatherSnapshot current) {
+            if (current.matches(request.getHeader("If-None-Match"))) {
+                return new HttpResponse(304, "Not Modified").header("ETag", current.getETag());
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (String stationId : query.run(stationIndex, System.currentTimeMillis(), EXPIRY_TIME)) {
+                String json = store.get(stationId);
+                if (json != null) {
+                    byte[] encoded = json.getBytes(StandardCharsets.UTF_8);
+                    body.write(encoded, 0, encoded.length);
+                    body.write('\n');
+                }
+            }
+            if (body.size() == 0) {
+                return new HttpResponse(204, "No Content").header("ETag", current.getETag());
+            }
+            return new HttpResponse(200, "OK")
+                    .header("ETag", current.getETag())
+                    .body("application/json", body.toByteArray());
+        }
     }
 }
-
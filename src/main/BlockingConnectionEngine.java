@@ -0,0 +1,73 @@
+package main;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.concurrent.*;
+
+// Connection engine that serves every accepted socket on its own thread using blocking I/O.
+// With virtual threads this is cheap enough for thousands of connections. Connection threads
+// only read and write; how many requests are handled at once is bounded by admission control.
+public class BlockingConnectionEngine implements ConnectionEngine {
+    private final ExecutorService executor;
+    private final AdmissionControl admission;
+    private final int backlog;
+    private final int idleTimeout;
+    private volatile ServerSocket serverSocket;
+
+    public BlockingConnectionEngine(ExecutorService executor, AdmissionControl admission, int backlog, int idleTimeout) {
+        this.executor = executor;
+        this.admission = admission;
+        this.backlog = backlog;
+        this.idleTimeout = idleTimeout;
+    }
+
+    // Original behaviour: one platform thread per connection
+    public static BlockingConnectionEngine platformThreads(AdmissionControl admission, int backlog, int idleTimeout) {
+        return new BlockingConnectionEngine(Executors.newCachedThreadPool(), admission, backlog, idleTimeout);
+    }
+
+    // One virtual thread per connection. The project is built for Java 17, so virtual threads are
+    // looked up reflectively and only exist when it runs on Java 21 or later. On an older JVM the
+    // server refuses to start rather than quietly serving on platform threads.
+    public static BlockingConnectionEngine virtualThreads(AdmissionControl admission, int backlog, int idleTimeout) {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            throw new IllegalArgumentException("--engine=virtual needs Java 21 or later, this JVM is Java "
+                    + Runtime.version().feature() + "; use --engine=nio or --engine=thread");
+        }
+        return new BlockingConnectionEngine(executor, admission, backlog, idleTimeout);
+    }
+
+    public void bind(int port) throws IOException {
+        serverSocket = new ServerSocket(port, backlog);
+    }
+
+    public void serve() throws IOException {
+        try {
+            // loop to accept and handle client requests concurrently
+            while (!serverSocket.isClosed()) {
+                Socket clientSocket = serverSocket.accept();
+                try {
+                    executor.execute(new AggregationServer.RequestHandler(clientSocket, admission, idleTimeout));
+                } catch (RejectedExecutionException e) {
+                    clientSocket.close();
+                }
+            }
+        } catch (SocketException e) {
+            if (!serverSocket.isClosed()) {
+                throw e;
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public void close() throws IOException {
+        executor.shutdown();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+
+// Change events for clients that follow the store instead of polling it: subscribers of
+// GET /weather/stream (Server-Sent Events), long-polls of GET /weather/poll and delta GETs of
+// GET /weather.json?since=N.
+//
+// Every change is encoded once, as an SSE frame and as a JSON line, and the same read-only bytes
+// are handed to every subscriber. Each subscriber has a bounded queue of frames; one that falls so
+// far behind that its queue fills up is dropped, so a slow client can neither hold up the writers
+// nor make the server buffer without limit. The last changes are kept so a long-poll or a
+// reconnecting stream can resume from the version it last saw.
+//
+// A change first reserves its version, briefly under the feed's lock, and publishes its events
+// once it has been made. Reservations join the history in version order, a change waiting for
+// every earlier one still being made, so once a client has seen a version every earlier change is
+// already in the history and cannot arrive after it. Events are passed to subscribers outside the
+// lock, by one publishing thread at a time in the order they joined the history, so writers never
+// wait on the subscribers.
+public class ChangeFeed {
+    public static final int DEFAULT_HISTORY = 4096;
+    public static final int DEFAULT_SUBSCRIBER_QUEUE = 1024;
+    public static final long HEARTBEAT_INTERVAL = 15000;
+
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(": ping\n\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    private final int historySize;
+    private final int queueSize;
+    private final Deque<Event> history = new ArrayDeque<>();
+    private long truncatedVersion = -1; // newest version no longer in the history
+    private volatile long publishedVersion = -1; // newest version whose events joined the history
+    private long reservedVersion = -1; // newest version reserved
+    // Changes still being made, oldest first, and ones made after them that wait to join the history
+    private final Deque<Reservation> pending = new ArrayDeque<>();
+    // Events that joined the history but are not yet passed to subscribers, the number that joined
+    // it, and the number passed on, only changed by the thread delivering
+    private final Queue<Event> undelivered = new ConcurrentLinkedQueue<>();
+    private long appended;
+    private long delivered;
+    private final AtomicInteger deliveries = new AtomicInteger();
+    private final Set<Subscription> subscribers = ConcurrentHashMap.newKeySet();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "change-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // One change, encoded once for every subscriber
+    public static class Event {
+        private final long version;
+        private final String type;
+        private final String stationId;
+        private final ByteBuffer frame;
+        private final byte[] line;
+
+        private Event(long version, String type, String stationId, String json) {
+            this.version = version;
+            this.type = type;
+            this.stationId = stationId;
+
+            StringBuilder payload = new StringBuilder(64 + (json == null ? 0 : json.length()));
+            payload.append("{\"type\": \"").append(type).append('"');
+            if (stationId != null) {
+                payload.append(", \"id\": ");
+                JsonText.appendString(payload, stationId);
+            }
+            payload.append(", \"version\": ").append(version);
+            if (json != null) {
+                // raw line breaks can only be whitespace in JSON, so the station fits on one line
+                payload.append(", \"data\": ").append(json.trim().replace('\r', ' ').replace('\n', ' '));
+            }
+            payload.append('}');
+
+            this.line = (payload + "\n").getBytes(StandardCharsets.UTF_8);
+            this.frame = ByteBuffer.wrap(("id: " + version + "\nevent: " + type + "\ndata: " + payload + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+
+        public long getVersion() { return version; }
+
+        public String getType() { return type; }
+
+        public String getStationId() { return stationId; }
+
+        // A view of the shared SSE frame with its own position
+        public ByteBuffer getFrame() { return frame.duplicate(); }
+
+        // The event as one line of JSON, shared, callers must not modify it
+        public byte[] getLine() { return line; }
+    }
+
+    // A station stored or replaced at the given version
+    public static Event update(String stationId, String json, long version) {
+        return new Event(version, "update", stationId, json);
+    }
+
+    // A station removed (expired or handed to another shard) at the given version
+    public static Event remove(String stationId, long version) {
+        return new Event(version, "remove", stationId, null);
+    }
+
+    // Tells a client to forget every station, sent before a full copy of the store
+    public static Event reset(long version) {
+        return new Event(version, "reset", null, null);
+    }
+
+    // A version reserved for a change still being made. Its events, made at that version, are
+    // kept and delivered once it and every earlier reservation have been published.
+    public class Reservation {
+        private final long version;
+        private List<Event> events; // null until published
+
+        private Reservation(long version) {
+            this.version = version;
+        }
+
+        public long getVersion() { return version; }
+
+        // Method to publish the change's events, none if nothing changed after all. Every
+        // reservation must be published, as later changes wait for it; only the first call counts.
+        public void publish(List<Event> events) {
+            finish(this, events);
+        }
+    }
+
+    // A subscriber's queue of frames still to be written to it
+    public class Subscription implements Closeable {
+        private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(queueSize);
+        private final List<Event> backlog;
+        private final long after; // events that joined the history before it subscribed
+        private volatile Runnable listener = () -> {};
+        private volatile boolean dropped;
+        private volatile boolean closed;
+
+        private Subscription(List<Event> backlog, long after) {
+            this.backlog = backlog;
+            this.after = after;
+        }
+
+        // The changes after the version subscribed from, null if they are no longer all kept
+        public List<Event> getBacklog() { return backlog; }
+
+        // Called, on the publishing thread, after a frame is queued or the subscriber is dropped
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+            listener.run();
+        }
+
+        // Method to take the next frame, null if none is queued
+        public ByteBuffer poll() {
+            return queue.poll();
+        }
+
+        // Method to wait for the next frame, null once the subscription is dropped or closed
+        public ByteBuffer take() throws InterruptedException {
+            while (!dropped && !closed) {
+                ByteBuffer frame = queue.poll(1, TimeUnit.SECONDS);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        public boolean hasQueued() {
+            return !queue.isEmpty();
+        }
+
+        // Whether the subscriber was dropped for falling too far behind
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        // Method to queue the frame of the event that was the given one to join the history,
+        // unless the subscriber already has it in its backlog
+        private void deliver(long index, ByteBuffer frame) {
+            if (index > after) {
+                offer(frame);
+            }
+        }
+
+        private void offer(ByteBuffer frame) {
+            if (dropped || closed) {
+                return;
+            }
+            if (!queue.offer(frame.duplicate())) {
+                dropped = true;
+                subscribers.remove(this);
+                queue.clear();
+                ChangeFeed.this.dropped.incrementAndGet();
+            }
+            listener.run();
+        }
+
+        public void close() {
+            closed = true;
+            subscribers.remove(this);
+        }
+    }
+
+    // A long-poll waiting for a change after its version
+    private static class Waiter {
+        final long since;
+        final Consumer<List<Event>> done;
+        boolean completed;
+        ScheduledFuture<?> timeout;
+
+        Waiter(long since, Consumer<List<Event>> done) {
+            this.since = since;
+            this.done = done;
+        }
+    }
+
+    public ChangeFeed(int historySize, int queueSize) {
+        this.historySize = historySize;
+        this.queueSize = queueSize;
+        timer.scheduleAtFixedRate(() -> {
+            for (Subscription subscription : subscribers) {
+                subscription.offer(HEARTBEAT);
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Method to record a change and pass it to every subscriber and waiting long-poll. Throws if
+    // its version is older than one already reserved.
+    public void publish(Event event) {
+        publish(event::getVersion, version -> Collections.singletonList(event));
+    }
+
+    // Method to reserve a version and publish the changes made at it, built by changes once the
+    // version is known. Returns the version.
+    public long publish(LongSupplier tick, LongFunction<List<Event>> changes) {
+        Reservation reservation = reserve(tick);
+        List<Event> events = Collections.emptyList();
+        try {
+            events = changes.apply(reservation.getVersion());
+        } finally {
+            reservation.publish(events);
+        }
+        return reservation.getVersion();
+    }
+
+    // Method to reserve the version tick returns for a change about to be made. tick runs under
+    // the feed's lock, so versions are reserved in the order they are taken. Throws if the version
+    // is older than one already reserved.
+    public Reservation reserve(LongSupplier tick) {
+        synchronized (this) {
+            long version = tick.getAsLong();
+            if (version < reservedVersion) {
+                throw new IllegalArgumentException("Version " + version + " reserved after version " + reservedVersion);
+            }
+            reservedVersion = version;
+            Reservation reservation = new Reservation(version);
+            pending.addLast(reservation);
+            return reservation;
+        }
+    }
+
+    // Method to take a reservation's events, then add those of every published reservation no
+    // longer waiting for an earlier one to the history, deliver them and wake the long-polls
+    private void finish(Reservation reservation, List<Event> events) {
+        List<Waiter> woken = Collections.emptyList();
+        synchronized (this) {
+            if (reservation.events != null) {
+                return;
+            }
+            reservation.events = events;
+            boolean added = false;
+            while (!pending.isEmpty() && pending.peekFirst().events != null) {
+                Reservation done = pending.removeFirst();
+                for (Event event : done.events) {
+                    history.addLast(event);
+                    if (history.size() > historySize) {
+                        truncatedVersion = history.removeFirst().getVersion();
+                    }
+                    undelivered.add(event);
+                    appended++;
+                    added = true;
+                }
+                publishedVersion = done.version;
+            }
+            if (added && !waiters.isEmpty()) {
+                woken = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+        }
+        deliver();
+        for (Waiter waiter : woken) {
+            complete(waiter, since(waiter.since));
+        }
+    }
+
+    // Method to pass the events that joined the history to every subscriber, in that order. One
+    // thread delivers at a time; a publisher that finds another delivering leaves its events to it.
+    private void deliver() {
+        if (deliveries.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Event event;
+            while ((event = undelivered.poll()) != null) {
+                delivered++;
+                for (Subscription subscription : subscribers) {
+                    subscription.deliver(delivered, event.frame);
+                }
+            }
+            missed = deliveries.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // The newest version whose changes, and every earlier one's, are in the history
+    public long getPublishedVersion() {
+        return publishedVersion;
+    }
+
+    // Method to forget the changes up to a version, e.g. ones made before a restart that were
+    // recovered from disk without events, so clients behind it get the whole store
+    public synchronized void truncate(long version) {
+        truncatedVersion = Math.max(truncatedVersion, version);
+        history.removeIf(event -> event.getVersion() <= version);
+    }
+
+    // Method to find the changes after a version, null if some of them are no longer kept
+    public synchronized List<Event> since(long version) {
+        if (version < truncatedVersion) {
+            return null;
+        }
+        List<Event> events = new ArrayList<>();
+        for (Event event : history) {
+            if (event.getVersion() > version) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    // Method to find what changed after a version for a delta GET: the last event of each station
+    // that changed, in the order they were published, so a station updated many times is sent once.
+    // Null if some of the changes are no longer kept or the store was reset since.
+    public synchronized List<Event> changedSince(long version) {
+        List<Event> events = since(version);
+        if (events == null) {
+            return null;
+        }
+        Map<String, Event> latest = new LinkedHashMap<>();
+        for (Event event : events) {
+            if (event.getStationId() == null) {
+                return null;
+            }
+            latest.remove(event.getStationId());
+            latest.put(event.getStationId(), event);
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    // Method to subscribe to every change from now on. With a version of 0 or more, the changes
+    // after it that are still kept become the subscription's backlog.
+    public synchronized Subscription subscribe(long since) {
+        Subscription subscription = new Subscription(since < 0 ? Collections.emptyList() : since(since), appended);
+        subscribers.add(subscription);
+        return subscription;
+    }
+
+    // Method to wait for the changes after a version: done receives them as soon as there are
+    // any, null if they are no longer all kept, or an empty list once the timeout passes
+    public void await(long since, long timeout, Consumer<List<Event>> done) {
+        Waiter waiter = new Waiter(since, done);
+        List<Event> events;
+        synchronized (this) {
+            events = since(since);
+            if (events != null && events.isEmpty()) {
+                waiters.add(waiter);
+                waiter.timeout = timer.schedule(() -> {
+                    synchronized (this) {
+                        waiters.remove(waiter);
+                    }
+                    complete(waiter, Collections.emptyList());
+                }, timeout, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        complete(waiter, events);
+    }
+
+    private void complete(Waiter waiter, List<Event> events) {
+        synchronized (waiter) {
+            if (waiter.completed) {
+                return;
+            }
+            waiter.completed = true;
+        }
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+        waiter.done.accept(events);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    // Number of subscribers dropped for falling behind
+    public int getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Method to render events as SSE frames, for the start of a stream
+    public static byte[] frames(List<Event> events) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Event event : events) {
+            byte[] frame = toBytes(event.getFrame());
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    // Method to render events as JSON lines, for a long-poll response
+    public static byte[] lines(List<Event> events) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Event event : events) {
+            out.write(event.getLine(), 0, event.getLine().length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,31 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Accepts client connections and feeds their requests to RequestHandler.
+// The engine is chosen at startup with --engine=nio|virtual|thread; virtual needs Java 21 or later.
+public interface ConnectionEngine extends Closeable {
+
+    // Bind to the given port, failing with a BindException if it is already in use
+    void bind(int port) throws IOException;
+
+    // Serve connections on the bound port until close() is called
+    void serve() throws IOException;
+
+    // Method to create the engine selected in the server configuration, with the admission control
+    // its requests go through
+    static ConnectionEngine create(ServerConfig config) {
+        AdmissionControl admission = new AdmissionControl(config);
+        switch (config.getEngine()) {
+            case "nio":
+                return new NioConnectionEngine(config.getWorkers(), admission, config.getBacklog(), config.getIdleTimeout());
+            case "virtual":
+                return BlockingConnectionEngine.virtualThreads(admission, config.getBacklog(), config.getIdleTimeout());
+            case "thread":
+                return BlockingConnectionEngine.platformThreads(admission, config.getBacklog(), config.getIdleTimeout());
+            default:
+                throw new IllegalArgumentException("Unknown connection engine: " + config.getEngine());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package main;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// The content server's long-running mode: watches its input files and keeps the aggregation
+// server up to date with them.
+//
+// Each poll re-reads only the files whose size or modification time changed, then pushes the
+// stations whose content changed since they were last accepted, plus any station not pushed for
+// refreshInterval so it is re-sent before the server expires it. A push that fails on every
+// server is retried after an exponential, jittered backoff, with the stations still pending.
+// Against a sharded cluster every station goes straight to the server that owns it.
+public class ContentFeed implements Runnable {
+    public static final long DEFAULT_POLL_INTERVAL = 1000;
+    public static final long DEFAULT_REFRESH_INTERVAL = AggregationServer.EXPIRY_TIME / 2;
+
+    private final List<File> files;
+    private final ServerPool servers;
+    private final ShardRouter shards;
+    private final long pollInterval;
+    private final long refreshInterval;
+    private final LamportClock clock = new LamportClock();
+    private final String sourceId = ContentServer.newSourceId();
+
+    // Input files as last read: size and modification time, and the stations they held
+    private final Map<File, long[]> fileVersions = new HashMap<>();
+    private final Map<File, List<WeatherData>> fileStations = new LinkedHashMap<>();
+
+    // What each station was last pushed as, and when
+    private final Map<String, String> pushedJson = new HashMap<>();
+    private final Map<String, Long> pushedAt = new HashMap<>();
+
+    private volatile boolean binary;
+
+    private int failures;
+    private long retryAt;
+    private volatile boolean running = true;
+
+    public ContentFeed(List<File> files, ServerPool servers, long pollInterval, long refreshInterval) {
+        this(files, servers, null, pollInterval, refreshInterval);
+    }
+
+    // A feed for a sharded cluster sends each station straight to the server that owns it
+    public ContentFeed(List<File> files, ShardRouter shards, long pollInterval, long refreshInterval) {
+        this(files, null, shards, pollInterval, refreshInterval);
+    }
+
+    private ContentFeed(List<File> files, ServerPool servers, ShardRouter shards, long pollInterval, long refreshInterval) {
+        this.files = files;
+        this.servers = servers;
+        this.shards = shards;
+        this.pollInterval = pollInterval;
+        this.refreshInterval = refreshInterval;
+        for (File file : files) {
+            fileStations.put(file, Collections.emptyList());
+        }
+    }
+
+    public void run() {
+        while (running) {
+            pollOnce(System.currentTimeMillis());
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // Method to send the stations in the binary encoding instead of JSON, always as a batch
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    // Method to run one poll: reload changed files and push the stations that are due.
+    // Returns the number of stations the server accepted, 0 if nothing was due or the push failed.
+    public synchronized int pollOnce(long now) {
+        reloadChangedFiles();
+
+        Map<String, WeatherData> due = new LinkedHashMap<>();
+        Map<String, String> dueJson = new HashMap<>();
+        for (List<WeatherData> stations : fileStations.values()) {
+            for (WeatherData station : stations) {
+                String json = ContentServer.convertWeatherDataToJson(station);
+                Long lastPush = pushedAt.get(station.getId());
+                if (!json.equals(pushedJson.get(station.getId())) || lastPush == null || now - lastPush >= refreshInterval) {
+                    due.put(station.getId(), station); // a later file overrides an earlier one
+                    dueJson.put(station.getId(), json);
+                }
+            }
+        }
+        if (due.isEmpty() || now < retryAt) {
+            return 0;
+        }
+
+        // when sharded, each owner gets its own stations; a failed owner does not hold up the others
+        Map<ServerPool, List<WeatherData>> batches = new LinkedHashMap<>();
+        for (WeatherData station : due.values()) {
+            ServerPool target = shards == null ? servers : shards.pool(shards.owner(station.getId()));
+            batches.computeIfAbsent(target, pool -> new ArrayList<>()).add(station);
+        }
+
+        int accepted = 0;
+        boolean failed = false;
+        boolean misdirected = false;
+        for (Map.Entry<ServerPool, List<WeatherData>> batch : batches.entrySet()) {
+            List<WeatherData> done = new ArrayList<>();
+            List<WeatherData> elsewhere = new ArrayList<>();
+            try {
+                accepted += push(batch.getValue(), batch.getKey(), done, elsewhere);
+                misdirected |= !elsewhere.isEmpty();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Push of " + batch.getValue().size() + " stations failed: " + e.getMessage());
+                failed = true;
+            }
+            for (WeatherData station : done) {
+                pushedJson.put(station.getId(), dueJson.get(station.getId()));
+                pushedAt.put(station.getId(), now);
+            }
+        }
+
+        if (misdirected) {
+            shards.refresh(); // the cluster was resized; the stations are sent to their new owners next poll
+        }
+        if (failed) {
+            failures++;
+            long delay = ServerPool.backoff(failures);
+            retryAt = now + delay;
+            System.err.println("Retrying in " + delay + " ms");
+        } else {
+            failures = 0;
+            retryAt = 0;
+        }
+        return accepted;
+    }
+
+    // Method to re-read the input files whose size or modification time changed. A file that
+    // cannot be read or parsed keeps the stations it held before.
+    private void reloadChangedFiles() {
+        for (File file : files) {
+            long[] version = {file.length(), file.lastModified()};
+            if (Arrays.equals(version, fileVersions.get(file))) {
+                continue;
+            }
+            List<WeatherData> stations = file.isFile() ? ContentServer.parseInputFileStations(file.getPath()) : null;
+            if (stations != null) {
+                fileStations.put(file, stations);
+                fileVersions.put(file, version);
+            }
+        }
+    }
+
+    // Method to send stations to the best available server, singly or as one batch (always a batch
+    // in the binary encoding). Returns how
+    // many were accepted, and adds to done every station that needs no resending: those the
+    // server rejected are reported and not retried until they change. Stations the server says
+    // belong to another shard (421) go to elsewhere instead. Those the server holds a write with a
+    // later Lamport time of (409) are in neither: they are resent next poll, with the clock now past
+    // the server's.
+    private int push(List<WeatherData> stations, ServerPool servers, List<WeatherData> done,
+                     List<WeatherData> elsewhere) throws IOException {
+        boolean single = stations.size() == 1 && !binary;
+        byte[] body = binary
+                ? WeatherBinaryCodec.encode(stations)
+                : (single
+                        ? ContentServer.convertWeatherDataToJson(stations.get(0))
+                        : ContentServer.convertWeatherDataToJson(stations)).getBytes(StandardCharsets.UTF_8);
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "ATOMClient/1.0");
+        headers.put("Content-Type", binary ? WeatherBinaryCodec.CONTENT_TYPE : "application/json");
+        headers.put("Lamport-Clock", String.valueOf(clock.increment()));
+        headers.put("Source-Id", sourceId);
+        if (body.length >= ContentServer.COMPRESS_THRESHOLD) {
+            body = HttpCompression.compress(body, HttpCompression.GZIP);
+            headers.put("Content-Encoding", HttpCompression.GZIP);
+        }
+        HttpResponse response = servers.send("PUT", "/weather.json", headers, body);
+
+        String serverTime = response.getHeader("Lamport-Clock");
+        if (serverTime != null) {
+            clock.update(Long.parseLong(serverTime.trim()));
+        }
+        if (single) {
+            if (response.getStatus() == 421) {
+                elsewhere.add(stations.get(0));
+                return 0;
+            } else if (response.getStatus() == 409) {
+                return 0;
+            }
+            done.add(stations.get(0));
+            if (response.getStatus() != 200 && response.getStatus() != 201 && response.getStatus() != 204) {
+                System.err.println("Station " + stations.get(0).getId() + " rejected (" + response.getStatus() + ")");
+                return 0;
+            }
+            return 1;
+        }
+        if (response.getStatus() != 200) {
+            throw new IOException("Batch rejected (" + response.getStatus() + " " + response.getReason() + ")");
+        }
+
+        int accepted = 0;
+        for (JsonElement result : JsonParser.parseString(response.getBodyText()).getAsJsonArray()) {
+            JsonObject station = result.getAsJsonObject();
+            int status = station.get("status").getAsInt();
+            if (status == 421) {
+                elsewhere.add(stations.get(station.get("index").getAsInt()));
+                continue;
+            } else if (status == 409) {
+                continue;
+            }
+            done.add(stations.get(station.get("index").getAsInt()));
+            if (status == 200 || status == 201) {
+                accepted++;
+            } else {
+                System.err.println("Station " + stations.get(station.get("index").getAsInt()).getId()
+                        + " rejected (" + status + "): " + station.get("error").getAsString());
+            }
+        }
+        return accepted;
+    }
+}
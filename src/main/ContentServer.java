@@ -1,169 +1,264 @@
 package main;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import java.io.*;
-import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ContentServer {
     private static final String[] SERVERS = {"localhost:4567", "localhost:4568", "localhost:4569"};
 
-    // Main method to start the ContentServer
+    // PUT bodies at least this large are sent gzip-compressed
+    public static final int COMPRESS_THRESHOLD = 4096;
+
+    // Persistent connections to each server, reused by every update sent to it
+    private static final Map<String, PersistentConnection> connections = new ConcurrentHashMap<>();
+
+    // The Lamport clock and source id that the servers order this content server's PUTs by
+    private static final LamportClock clock = new LamportClock();
+    private static final String SOURCE_ID = newSourceId();
+
+    // Whether PUT bodies are sent in the binary encoding instead of JSON
+    private static boolean binary;
+
+    // Main method to start the ContentServer. With --feed it keeps running, watching the input
+    // files given (weather_input.txt by default) and pushing their stations as they change. With
+    // --binary (first) the stations are sent in the binary encoding.
     public static void main(String[] args) {
-        WeatherData weatherData = parseInputFile("weather_input.txt");
+        if (args.length > 0 && args[0].equals("--binary")) {
+            binary = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length > 0 && args[0].equals("--feed")) {
+            runFeed(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
 
-        if (weatherData == null) {
+        List<WeatherData> stations = parseInputFileStations("weather_input.txt");
+
+        if (stations == null || stations.isEmpty()) {
             return;
         }
 
-        // Try sending weather data to each server in the list
+        // Try sending weather data to each server in the list, all stations in one request
         for (String server : SERVERS) {
-            if (sendWeatherData(server, weatherData)) {
+            boolean sent = stations.size() == 1 && !binary
+                    ? sendWeatherData(server, stations.get(0))
+                    : sendWeatherData(server, stations);
+            if (sent) {
                 break;
             }
         }
+        closeConnections();
     }
 
-    // Method to send weather data to a given server
-    public static boolean sendWeatherData(String serverAddress, WeatherData weatherData) {
-        String[] serverDetails = serverAddress.split(":");
-        String host = serverDetails[0];
-        int port = Integer.parseInt(serverDetails[1]);
+    // Method to run the feed until the process is stopped. Options: --interval=ms between polls,
+    // --refresh=ms after which an unchanged station is re-sent, --servers=host:port,... to fail
+    // over between, or --shards=host:port,... to send each station to the server that owns it
+    private static void runFeed(String[] args) {
+        long interval = ContentFeed.DEFAULT_POLL_INTERVAL;
+        long refresh = ContentFeed.DEFAULT_REFRESH_INTERVAL;
+        List<String> servers = Arrays.asList(SERVERS);
+        List<String> shards = Collections.emptyList();
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--shards=")) {
+                shards = HashRing.parseMembers(arg.substring("--shards=".length()));
+            } else if (arg.startsWith("--interval=")) {
+                interval = Long.parseLong(arg.substring("--interval=".length()));
+            } else if (arg.startsWith("--refresh=")) {
+                refresh = Long.parseLong(arg.substring("--refresh=".length()));
+            } else if (arg.startsWith("--servers=")) {
+                servers = Arrays.asList(arg.substring("--servers=".length()).split(","));
+            } else {
+                files.add(new File(arg));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(new File("weather_input.txt"));
+        }
+
+        ServerPool pool = new ServerPool(servers, 2);
+        ShardRouter router = shards.isEmpty() ? null : new ShardRouter(shards);
+        ContentFeed feed = router == null
+                ? new ContentFeed(files, pool, interval, refresh)
+                : new ContentFeed(files, router, interval, refresh);
+        feed.setBinary(binary);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            feed.stop();
+            pool.close();
+            if (router != null) {
+                router.close();
+            }
+        }));
+        feed.run();
+    }
+
+    // Method to make an id for a content server's writes, unique to this run
+    public static String newSourceId() {
+        return "content-" + UUID.randomUUID();
+    }
+
+    // Method to build the headers of a PUT, ticking the clock for the send
+    private static Map<String, String> putHeaders() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "ATOMClient/1.0");
+        headers.put("Content-Type", "application/json");
+        headers.put("Lamport-Clock", String.valueOf(clock.increment()));
+        headers.put("Source-Id", SOURCE_ID);
+        return headers;
+    }
 
-        try (Socket socket = new Socket(host, port)) {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    // Method to move the clock past the server's, as returned with every response
+    private static void observeClock(HttpResponse response) {
+        String serverTime = response.getHeader("Lamport-Clock");
+        if (serverTime != null) {
+            clock.update(Long.parseLong(serverTime.trim()));
+        }
+    }
 
-            LamportClock clock = new LamportClock();
-            String weatherDataJson = convertWeatherDataToJson(weatherData);
-            int contentLength = weatherDataJson.length();
+    // Method to send weather data to a given server. A 409 means the server holds a write with a
+    // later Lamport time, e.g. from before this content server started; it is sent once more,
+    // now that the clock has caught up with the server's.
+    public static boolean sendWeatherData(String serverAddress, WeatherData weatherData) {
+        PersistentConnection connection = connections.computeIfAbsent(serverAddress, PersistentConnection::forAddress);
+
+        try {
+            byte[] body = convertWeatherDataToJson(weatherData).getBytes(StandardCharsets.UTF_8);
 
             // Send PUT request with weather data
-            out.println("PUT /weather.json HTTP/1.1");
-            out.println("Host: " + host + ":" + port);
-            out.println("User-Agent: ATOMClient/1.0");
-            out.println("Content-Type: application/json");
-            out.println("Content-Length: " + contentLength);
-            out.println("Lamport-Clock: " + clock.getTime());
-            out.println();
-            out.println(weatherDataJson);
-            out.flush();
-
-            // Read server response, check if the data was successfully stored
-            String response = in.readLine();
-            if (response != null && (response.startsWith("HTTP/1.1 200 OK") || response.startsWith("HTTP/1.1 201 Created"))) {
+            HttpResponse response = connection.send("PUT", "/weather.json", putHeaders(), body);
+            observeClock(response);
+            if (response.getStatus() == 409) {
+                response = connection.send("PUT", "/weather.json", putHeaders(), body);
+                observeClock(response);
+            }
+
+            // Check if the data was successfully stored
+            if (response.getStatus() == 200 || response.getStatus() == 201) {
                 return true;
             }
         } catch (IOException e) {
+            connection.close();
             e.printStackTrace();
         }
         return false;  // Failed to send data
     }
 
-    // Method to convert WeatherData object to JSON format
+    // Method to send many stations to a given server in a single batched PUT (a JSON array, or one
+    // binary message with --binary). Returns true if the server accepted the batch; stations it
+    // rejected are reported. Stations answered 409 are sent once more, as for a single station.
+    public static boolean sendWeatherData(String serverAddress, List<WeatherData> stations) {
+        PersistentConnection connection = connections.computeIfAbsent(serverAddress, PersistentConnection::forAddress);
+
+        try {
+            List<WeatherData> pending = stations;
+            for (int attempt = 0; attempt < 2 && !pending.isEmpty(); attempt++) {
+                byte[] body = binary
+                        ? WeatherBinaryCodec.encode(pending)
+                        : convertWeatherDataToJson(pending).getBytes(StandardCharsets.UTF_8);
+                Map<String, String> headers = putHeaders();
+                if (binary) {
+                    headers.put("Content-Type", WeatherBinaryCodec.CONTENT_TYPE);
+                }
+                if (body.length >= COMPRESS_THRESHOLD) {
+                    body = HttpCompression.compress(body, HttpCompression.GZIP);
+                    headers.put("Content-Encoding", HttpCompression.GZIP);
+                }
+                HttpResponse response = connection.send("PUT", "/weather.json", headers, body);
+                observeClock(response);
+                if (response.getStatus() != 200) {
+                    return false;
+                }
+
+                // The server answers with a status per station
+                List<WeatherData> stale = new ArrayList<>();
+                for (JsonElement result : JsonParser.parseString(response.getBodyText()).getAsJsonArray()) {
+                    JsonObject station = result.getAsJsonObject();
+                    int status = station.get("status").getAsInt();
+                    WeatherData sent = pending.get(station.get("index").getAsInt());
+                    if (status == 409 && attempt == 0) {
+                        stale.add(sent);
+                    } else if (status != 200 && status != 201) {
+                        System.err.println("Station " + sent.getId() + " rejected (" + status + "): "
+                                + (station.has("error") ? station.get("error").getAsString() : ""));
+                    }
+                }
+                pending = stale;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Method to choose whether stations are sent in the binary encoding instead of JSON
+    public static void setBinary(boolean useBinary) {
+        binary = useBinary;
+    }
+
+    // Method to close the connections held open to the servers
+    public static void closeConnections() {
+        for (PersistentConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    // Method to convert WeatherData object to JSON format, with every text field escaped and the
+    // fields the station does not have left out
     public static String convertWeatherDataToJson(WeatherData weatherData) {
-        return "{\n" +
-                "    \"id\": \"" + weatherData.getId() + "\",\n" +
-                "    \"name\": \"" + weatherData.getName() + "\",\n" +
-                "    \"state\": \"" + weatherData.getState() + "\",\n" +
-                "    \"time_zone\": \"" + weatherData.getTime_zone() + "\",\n" +
-                "    \"lat\": " + weatherData.getLat() + ",\n" +
-                "    \"lon\": " + weatherData.getLon() + ",\n" +
-                "    \"local_date_time\": \"" + weatherData.getLocal_date_time() + "\",\n" +
-                "    \"local_date_time_full\": \"" + weatherData.getLocal_date_time_full() + "\",\n" +
-                "    \"air_temp\": " + weatherData.getAir_temp() + ",\n" +
-                "    \"apparent_t\": " + weatherData.getApparent_t() + ",\n" +
-                "    \"cloud\": \"" + weatherData.getCloud() + "\",\n" +
-                "    \"dewpt\": " + weatherData.getDewpt() + ",\n" +
-                "    \"press\": " + weatherData.getPress() + ",\n" +
-                "    \"rel_hum\": " + weatherData.getRel_hum() + ",\n" +
-                "    \"wind_dir\": \"" + weatherData.getWind_dir() + "\",\n" +
-                "    \"wind_spd_kmh\": " + weatherData.getWind_spd_kmh() + ",\n" +
-                "    \"wind_spd_kt\": " + weatherData.getWind_spd_kt() + "\n" +
-                "}";
-    }
-
-    // Method to parse the input file into a WeatherData object
+        return JsonText.stationToSend(weatherData);
+    }
+
+    // Method to convert many stations to a JSON array, the body of a batched PUT
+    public static String convertWeatherDataToJson(List<WeatherData> stations) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < stations.size(); i++) {
+            json.append(i == 0 ? "" : ",\n").append(convertWeatherDataToJson(stations.get(i)));
+        }
+        return json.append("\n]").toString();
+    }
+
+    // Method to parse the input file into a WeatherData object, the first station if it holds several
     public static WeatherData parseInputFile(String filename) {
+        List<WeatherData> stations = parseInputFileStations(filename);
+        return stations == null ? null : stations.get(0);
+    }
+
+    // Method to parse an input file holding one or more stations. Each station starts at its id
+    // line; blank lines between stations are ignored.
+    public static List<WeatherData> parseInputFileStations(String filename) {
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            List<WeatherData> stations = new ArrayList<>();
+            Map<String, String> fields = new HashMap<>();
             String line;
-            String id = null, name = null, state = null, time_zone = null;
-            double lat = 0, lon = 0;
-            String local_date_time = null, local_date_time_full = null;
-            double air_temp = 0, apparent_t = 0, dewpt = 0, press = 0;
-            int rel_hum = 0;
-            String cloud = null, wind_dir = null;
-            int wind_spd_kmh = 0, wind_spd_kt = 0;
-
-            // Parse file content into individual variables
+
+            // Parse file content into one set of fields per station
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split(":", 2);
                 if (parts.length != 2) continue;
 
                 String key = parts[0].trim();
                 String value = parts[1].trim();
-
-                switch (key) {
-                    case "id":
-                        id = value;
-                        break;
-                    case "name":
-                        name = value;
-                        break;
-                    case "state":
-                        state = value;
-                        break;
-                    case "time_zone":
-                        time_zone = value;
-                        break;
-                    case "lat":
-                        lat = Double.parseDouble(value);
-                        break;
-                    case "lon":
-                        lon = Double.parseDouble(value);
-                        break;
-                    case "local_date_time":
-                        local_date_time = value;
-                        break;
-                    case "local_date_time_full":
-                        local_date_time_full = value;
-                        break;
-                    case "air_temp":
-                        air_temp = Double.parseDouble(value);
-                        break;
-                    case "apparent_t":
-                        apparent_t = Double.parseDouble(value);
-                        break;
-                    case "cloud":
-                        cloud = value;
-                        break;
-                    case "dewpt":
-                        dewpt = Double.parseDouble(value);
-                        break;
-                    case "press":
-                        press = Double.parseDouble(value);
-                        break;
-                    case "rel_hum":
-                        rel_hum = Integer.parseInt(value);
-                        break;
-                    case "wind_dir":
-                        wind_dir = value;
-                        break;
-                    case "wind_spd_kmh":
-                        wind_spd_kmh = Integer.parseInt(value);
-                        break;
-                    case "wind_spd_kt":
-                        wind_spd_kt = Integer.parseInt(value);
-                        break;
+                if (key.equals("id") && fields.containsKey("id")) {
+                    stations.add(toWeatherData(fields));
+                    fields.clear();
                 }
+                fields.put(key, value);
             }
 
-            if (id == null) {
+            if (!fields.containsKey("id")) {
                 throw new IllegalArgumentException("No id found in input file. Invalid data.");
             }
-
-            // Return populated WeatherData object
-            return new WeatherData(id, name, state, time_zone, lat, lon,
-                    local_date_time, local_date_time_full, air_temp, apparent_t, cloud, dewpt,
-                    press, rel_hum, wind_dir, wind_spd_kmh, wind_spd_kt);
+            stations.add(toWeatherData(fields));
+            return stations;
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -173,6 +268,31 @@ public class ContentServer {
             return null;
         }
     }
-}
 
+    // Method to build a WeatherData object from one station's fields, marking only the fields the
+    // file gave as present
+    private static WeatherData toWeatherData(Map<String, String> fields) {
+        WeatherData data = new WeatherData(fields.get("id"), fields.get("name"), fields.get("state"), fields.get("time_zone"),
+                parseDouble(fields.get("lat")), parseDouble(fields.get("lon")),
+                fields.get("local_date_time"), fields.get("local_date_time_full"),
+                parseDouble(fields.get("air_temp")), parseDouble(fields.get("apparent_t")), fields.get("cloud"),
+                parseDouble(fields.get("dewpt")), parseDouble(fields.get("press")), parseInt(fields.get("rel_hum")),
+                fields.get("wind_dir"), parseInt(fields.get("wind_spd_kmh")), parseInt(fields.get("wind_spd_kt")));
+        int present = 0;
+        for (int field = 0; field < WeatherData.FIELD_NAMES.length; field++) {
+            if (fields.containsKey(WeatherData.FIELD_NAMES[field])) {
+                present |= 1 << field;
+            }
+        }
+        data.setPresentFields(present);
+        return data;
+    }
 
+    private static double parseDouble(String value) {
+        return value == null ? 0 : Double.parseDouble(value);
+    }
+
+    private static int parseInt(String value) {
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+}
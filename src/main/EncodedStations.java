@@ -0,0 +1,156 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Each stored station's JSON as the server accepted it, encoded to UTF-8 once when it is stored
+// and kept in direct memory for GET responses. Rebuilding a snapshot of the feed then only gathers
+// these bytes into one direct buffer, without encoding a station again, and every reader is
+// written a view of that buffer.
+//
+// Direct memory is slow to allocate one small buffer at a time, so stations are carved out of
+// 64 KB slabs. Each slab counts the bytes of its stations still stored; once a slab other than
+// the one being filled is down to a quarter, its remaining stations are copied into the current
+// slab, so a few long-lived stations cannot keep many mostly empty slabs alive. A slab is freed
+// by the garbage collector once none of its stations is referenced.
+public class EncodedStations {
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int MAX_SLAB_STATION = SLAB_SIZE / 8;
+    private static final int COMPACT_BELOW = SLAB_SIZE / 4;
+
+    private final ConcurrentHashMap<String, Entry> stations = new ConcurrentHashMap<>();
+    private Slab slab;
+    private int slabCount;
+
+    // A station's encoded JSON, ending in a line break, the time it was received, and the slab it
+    // was carved from (null for a station too big for one)
+    private static class Entry {
+        final String stationId;
+        final ByteBuffer buffer;
+        final long timestamp;
+        final Slab slab;
+
+        Entry(String stationId, ByteBuffer buffer, long timestamp, Slab slab) {
+            this.stationId = stationId;
+            this.buffer = buffer;
+            this.timestamp = timestamp;
+            this.slab = slab;
+        }
+    }
+
+    // A block of direct memory, the stations carved from it and how many of their bytes are stored
+    private static class Slab {
+        final ByteBuffer memory = ByteBuffer.allocateDirect(SLAB_SIZE);
+        final List<Entry> entries = new ArrayList<>();
+        int live;
+        boolean compacted;
+    }
+
+    public interface StationVisitor {
+        // Called with a read-only buffer shared by every reader; use duplicate() to write it
+        void visit(String stationId, ByteBuffer json, long timestamp);
+    }
+
+    // Method to encode and store a station's JSON, replacing what was stored for it
+    public void put(String stationId, String json, long timestamp) {
+        byte[] encoded = json.getBytes(StandardCharsets.UTF_8);
+        Entry previous = stations.put(stationId, allocate(stationId, ByteBuffer.wrap(encoded), timestamp));
+        if (previous != null) {
+            released(previous);
+        }
+    }
+
+    public boolean remove(String stationId) {
+        Entry entry = stations.remove(stationId);
+        if (entry == null) {
+            return false;
+        }
+        released(entry);
+        return true;
+    }
+
+    // Remove a station only if it was last stored at the given time
+    public boolean remove(String stationId, long timestamp) {
+        Entry entry = stations.get(stationId);
+        if (entry == null || entry.timestamp != timestamp || !stations.remove(stationId, entry)) {
+            return false;
+        }
+        released(entry);
+        return true;
+    }
+
+    public int size() {
+        return stations.size();
+    }
+
+    // Number of slabs still holding stored stations, for tests
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    public void forEach(StationVisitor visitor) {
+        stations.forEach((stationId, entry) -> visitor.visit(stationId, entry.buffer, entry.timestamp));
+    }
+
+    // Method to copy a station's JSON and a line break into direct memory, from the current slab
+    // when it is small
+    private synchronized Entry allocate(String stationId, ByteBuffer json, long timestamp) {
+        int size = json.remaining() + 1;
+        if (size > MAX_SLAB_STATION) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            buffer.put(json.duplicate()).put((byte) '\n').flip();
+            return new Entry(stationId, buffer.asReadOnlyBuffer(), timestamp, null);
+        }
+        if (slab == null || slab.memory.remaining() < size) {
+            Slab full = slab;
+            slab = new Slab();
+            slabCount++;
+            if (full != null && full.live < COMPACT_BELOW) {
+                compact(full);
+            }
+        }
+        ByteBuffer buffer = slab.memory.slice();
+        buffer.limit(size);
+        slab.memory.position(slab.memory.position() + size);
+        buffer.put(json.duplicate()).put((byte) '\n').flip();
+        Entry entry = new Entry(stationId, buffer.asReadOnlyBuffer(), timestamp, slab);
+        slab.entries.add(entry);
+        slab.live += size;
+        return entry;
+    }
+
+    // Method to account for a station's bytes that are no longer stored, compacting its slab if
+    // that leaves it mostly empty
+    private synchronized void released(Entry entry) {
+        Slab owner = entry.slab;
+        if (owner == null || owner.compacted) {
+            return;
+        }
+        owner.live -= entry.buffer.capacity();
+        if (owner != slab && owner.live < COMPACT_BELOW) {
+            compact(owner);
+        }
+    }
+
+    // Method to move a slab's stations that are still stored into the current slab, after which
+    // nothing stored refers to it. A station replaced meanwhile keeps its newer entry.
+    private void compact(Slab old) {
+        old.compacted = true;
+        slabCount--;
+        for (Entry entry : old.entries) {
+            if (stations.get(entry.stationId) != entry) {
+                continue;
+            }
+            ByteBuffer json = entry.buffer.duplicate();
+            json.limit(json.limit() - 1); // without the line break, which allocate adds again
+            Entry moved = allocate(entry.stationId, json, entry.timestamp);
+            if (!stations.replace(entry.stationId, entry, moved)) {
+                moved.slab.live -= moved.buffer.capacity();
+            }
+        }
+        old.entries.clear();
+    }
+}
@@ -0,0 +1,107 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hashed timing wheel of station expiry deadlines.
+//
+// Each bucket covers one tick; a deadline more than one revolution away stays in its bucket
+// and is skipped until its remaining rounds reach zero. Scheduling is lock-free, and advancing
+// the wheel only visits the buckets for the ticks that passed, so a sweep costs O(expired)
+// rather than O(stations). A station that is refreshed simply gets a new entry; its stale one
+// is discarded by the expiry handler when its bucket comes due.
+public class ExpiryWheel {
+    private final long tickMillis;
+    private final List<List<Entry>> buckets;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private long currentTick;
+
+    // Called for every entry whose deadline has passed
+    public interface ExpiryHandler {
+        // Returns true if the key was actually expired, false if its entry was stale
+        boolean expire(String key, long deadline);
+    }
+
+    private static class Entry {
+        final String key;
+        final long deadline;
+        long rounds;
+
+        Entry(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    public ExpiryWheel(long tickMillis, int wheelSize, long startTime) {
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.currentTick = startTime / tickMillis;
+    }
+
+    // Method to schedule a key to expire at the given time, safe to call from any thread
+    public void schedule(String key, long deadline) {
+        pending.add(new Entry(key, deadline));
+    }
+
+    // Method to fire every entry due by the given time. Must only be called from one thread
+    // at a time. Returns the number of keys that were actually expired.
+    public synchronized int advance(long now, ExpiryHandler handler) {
+        drainPending();
+
+        int expired = 0;
+        long targetTick = now / tickMillis;
+        while (currentTick < targetTick) {
+            // this tick has fully passed, so every entry in its last round is due
+            List<Entry> bucket = buckets.get((int) (currentTick % buckets.size()));
+            int kept = 0;
+            for (Entry entry : bucket) {
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                    bucket.set(kept++, entry);
+                } else if (handler.expire(entry.key, entry.deadline)) {
+                    expired++;
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+            currentTick++;
+        }
+
+        // the current tick is only partly over, fire what is due and revisit it next sweep
+        List<Entry> bucket = buckets.get((int) (currentTick % buckets.size()));
+        int kept = 0;
+        for (Entry entry : bucket) {
+            if (entry.rounds > 0 || entry.deadline > now) {
+                bucket.set(kept++, entry);
+            } else if (handler.expire(entry.key, entry.deadline)) {
+                expired++;
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+        return expired;
+    }
+
+    // Number of scheduled entries, including stale ones not yet discarded
+    public synchronized int size() {
+        drainPending();
+        int size = 0;
+        for (List<Entry> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    private void drainPending() {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            long tick = Math.max(entry.deadline / tickMillis, currentTick);
+            entry.rounds = (tick - currentTick) / buckets.size();
+            buckets.get((int) (tick % buckets.size())).add(entry);
+        }
+    }
+}
@@ -1,51 +1,380 @@
 package main;
 
 import java.io.*;
-import java.net.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class GETClient {
+// Client for the aggregation servers' GET API, used as a library or from the command line.
+//
+// A GET goes to the fastest replica first. If it has not been answered once a percentile of
+// recent response times has passed (p95 by default), the same request is also sent to the next
+// replica, and so on; the first good answer is used and the others are abandoned. A slow server
+// then costs a request about that percentile instead of its own delay, for a few percent more
+// requests. A connection error or 5xx moves on to the next replica straight away. Responses are
+// framed by Content-Length on persistent connections, and the feed is parsed into WeatherData
+// as it arrives, one station at a time.
+public class GETClient implements Closeable {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int PORT = 4567;
 
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final int CONNECTIONS_PER_SERVER = 2;
+
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95;
+    // Hedging delay until enough responses have been timed to estimate the percentile, and its
+    // default floor, which keeps a scheduling hiccup on a fast replica from sending a second request
+    private static final long DEFAULT_HEDGE_DELAY = TimeUnit.MILLISECONDS.toNanos(50);
+    public static final long DEFAULT_MIN_HEDGE_DELAY = 15;
+    private static final int MIN_SAMPLES = 20;
+    // Response times are kept for this many requests, so the delay follows the servers' current latency
+    private static final int LATENCY_WINDOW = 1000;
+
+    private static final ExecutorService attempts = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "get-attempt");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ServerPool replicas;
+    private final double hedgePercentile;
+    private final long minHedgeDelay;
+    private final LamportClock clock = new LamportClock();
+    private final AtomicLong hedges = new AtomicLong();
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private LatencyHistogram previousLatencies = new LatencyHistogram();
+
+    // Receives the events of a subscription to GET /weather/stream
+    public interface EventListener {
+        // Called with the event type (update, remove or reset), its version and its JSON data.
+        // Returning false ends the subscription.
+        boolean onEvent(String type, long version, String data);
+    }
+
+    public GETClient(List<String> replicas) {
+        this(replicas, DEFAULT_HEDGE_PERCENTILE);
+    }
+
+    public GETClient(List<String> replicas, double hedgePercentile) {
+        this(replicas, hedgePercentile, DEFAULT_MIN_HEDGE_DELAY);
+    }
+
+    // minHedgeDelay is the shortest wait before hedging, in milliseconds
+    public GETClient(List<String> replicas, double hedgePercentile, long minHedgeDelay) {
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("No servers given");
+        }
+        this.replicas = new ServerPool(replicas, CONNECTIONS_PER_SERVER);
+        this.hedgePercentile = hedgePercentile;
+        this.minHedgeDelay = TimeUnit.MILLISECONDS.toNanos(minHedgeDelay);
+    }
+
+    // Usage: java main.GETClient [host:port,...] [--hedge-percentile=P] [--min-hedge-delay=ms].
+    // Any replica can answer a GET, so when it is slow the request is hedged to the next one.
+    // With --shards=host:port,... the GET goes to every server of a sharded cluster in parallel
+    // and their stations are merged. With --subscribe [host:port,...] it prints every change as
+    // it happens instead, reconnecting (to the next server) where it left off if the stream breaks.
     public static void main(String[] args) {
-        String data = retrieveWeatherData(SERVER_ADDRESS + ":" + PORT);
-        if (data != null) {
-            System.out.println("Received weather data:\n" + data);
-        } else {
-            System.out.println("Failed to retrieve data.");
+        if (args.length > 0 && args[0].equals("--subscribe")) {
+            List<String> servers = args.length > 1
+                    ? Arrays.asList(args[1].split(","))
+                    : Collections.singletonList(SERVER_ADDRESS + ":" + PORT);
+            follow(servers);
+            return;
+        }
+        if (args.length > 0 && args[0].startsWith("--shards=")) {
+            try (ShardRouter router = new ShardRouter(HashRing.parseMembers(args[0].substring("--shards=".length())))) {
+                ShardRouter.Gathered gathered = router.getAll("/weather.json",
+                        Collections.singletonMap("Accept-Encoding", ACCEPT_ENCODING));
+                System.out.println("Received weather data:\n" + new String(gathered.getBody(), StandardCharsets.UTF_8));
+                if (!gathered.getMissing().isEmpty()) {
+                    System.out.println("No answer from " + gathered.getMissing());
+                }
+            }
+            return;
+        }
+
+        List<String> servers = Collections.singletonList(SERVER_ADDRESS + ":" + PORT);
+        double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+        long minHedgeDelay = DEFAULT_MIN_HEDGE_DELAY;
+        for (String arg : args) {
+            if (arg.startsWith("--hedge-percentile=")) {
+                hedgePercentile = Double.parseDouble(arg.substring("--hedge-percentile=".length()));
+            } else if (arg.startsWith("--min-hedge-delay=")) {
+                minHedgeDelay = Long.parseLong(arg.substring("--min-hedge-delay=".length()));
+            } else {
+                servers = Arrays.asList(arg.split(","));
+            }
+        }
+        try (GETClient client = new GETClient(servers, hedgePercentile, minHedgeDelay)) {
+            List<WeatherData> stations = client.getWeather();
+            System.out.println("Received " + stations.size() + " stations:");
+            for (WeatherData station : stations) {
+                System.out.println(JsonText.station(station));
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to retrieve data: " + e.getMessage());
         }
     }
 
-    // Method to retrieve weather data from the AggregationServer
-    public static String retrieveWeatherData(String serverAddress) {
-        String[] serverDetails = serverAddress.split(":");
-        String host = serverDetails[0];
-        int port = Integer.parseInt(serverDetails[1]);
+    // Method to fetch every station in the feed
+    public List<WeatherData> getWeather() throws IOException {
+        return get("/weather.json");
+    }
+
+    // Method to GET a path that answers with stations, hedging across the replicas. Throws the
+    // last error if no replica gave a good answer.
+    public List<WeatherData> get(String target) throws IOException {
+        List<String> order = replicas.order(System.currentTimeMillis());
+        BlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+        List<Attempt> sent = new ArrayList<>();
+        long hedgeDelay = getHedgeDelay();
+        IOException failure = null;
+        try {
+            sent.add(send(order.get(0), target, finished));
+            int answered = 0;
+            while (answered < sent.size()) {
+                Attempt attempt = sent.size() < order.size()
+                        ? finished.poll(hedgeDelay, TimeUnit.NANOSECONDS)
+                        : finished.take();
+                if (attempt == null) {
+                    // still waiting after the delay, ask the next replica as well
+                    hedges.incrementAndGet();
+                    sent.add(send(order.get(sent.size()), target, finished));
+                    continue;
+                }
+                answered++;
+                if (attempt.stations != null) {
+                    return attempt.stations;
+                }
+                failure = attempt.error;
+                if (attempt.rejected) {
+                    break; // the request itself is wrong, another replica would refuse it too
+                }
+                if (answered == sent.size() && sent.size() < order.size()) {
+                    sent.add(send(order.get(sent.size()), target, finished));
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + target);
+        } finally {
+            for (Attempt attempt : sent) {
+                attempt.abandon();
+            }
+        }
+    }
+
+    private Attempt send(String address, String target, BlockingQueue<Attempt> finished) {
+        Attempt attempt = new Attempt(address, target, finished);
+        attempts.execute(attempt);
+        return attempt;
+    }
+
+    // How long a request waits for an answer before it is hedged to the next replica, in nanoseconds
+    public synchronized long getHedgeDelay() {
+        LatencyHistogram window = latencies.getCount() >= MIN_SAMPLES ? latencies : previousLatencies;
+        if (window.getCount() < MIN_SAMPLES) {
+            return Math.max(minHedgeDelay, DEFAULT_HEDGE_DELAY);
+        }
+        return Math.max(minHedgeDelay, window.percentile(hedgePercentile));
+    }
+
+    // Requests that were also sent to another replica because the first was slow
+    public long getHedges() { return hedges.get(); }
+
+    public long getLamportClock() { return clock.getTime(); }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies.record(nanos);
+        if (latencies.getCount() >= LATENCY_WINDOW) {
+            previousLatencies = latencies;
+            latencies = new LatencyHistogram();
+        }
+    }
+
+    public void close() {
+        replicas.close();
+    }
 
-        StringBuilder responseBuilder = new StringBuilder();
-        try (Socket socket = new Socket(host, port)) {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    // One copy of a request, sent to one replica
+    private class Attempt implements Runnable {
+        final String address;
+        final String target;
+        final BlockingQueue<Attempt> finished;
+        PersistentConnection connection;
+        long start;
+        boolean done;
+        boolean abandoned;
+        List<WeatherData> stations;
+        IOException error;
+        boolean rejected;
 
-            LamportClock clock = new LamportClock();
+        Attempt(String address, String target, BlockingQueue<Attempt> finished) {
+            this.address = address;
+            this.target = target;
+            this.finished = finished;
+        }
 
-            // Send GET request to the server
-            out.println("GET /weather.json HTTP/1.1");
-            out.println("User-Agent: ATOMClient/1.0");
-            out.println(clock.getTime());
-            out.println();
+        public void run() {
+            PersistentConnection connection = replicas.borrow(address);
+            synchronized (this) {
+                if (abandoned) {
+                    replicas.release(address, connection);
+                    return;
+                }
+                this.connection = connection;
+                start = System.nanoTime();
+            }
 
-            // Read the response from the server
-            String responseLine;
-            while ((responseLine = in.readLine()) != null) {
-                responseBuilder.append(responseLine).append("\n");
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("User-Agent", "ATOMClient/1.0");
+            headers.put("Lamport-Clock", String.valueOf(clock.increment()));
+            headers.put("Accept-Encoding", ACCEPT_ENCODING);
+            try {
+                List<WeatherData> result = connection.send("GET", target, headers, new byte[0], this::read);
+                long elapsed = System.nanoTime() - start;
+                synchronized (this) {
+                    done = true;
+                }
+                recordLatency(elapsed);
+                replicas.recordSuccess(address, elapsed / 1e6);
+                replicas.release(address, connection);
+                stations = result;
+            } catch (IOException e) {
+                connection.close();
+                synchronized (this) {
+                    done = true;
+                    if (abandoned) {
+                        return; // cut off on purpose, not the server's fault
+                    }
+                }
+                if (!rejected) {
+                    replicas.recordFailure(address, System.currentTimeMillis());
+                }
+                error = e;
             }
+            finished.add(this);
+        }
 
-            return responseBuilder.toString().trim();
+        // Method to read the response as it arrives, parsing the stations one by one
+        private List<WeatherData> read(HttpResponse head, InputStream body) throws IOException {
+            String lamportClock = head.getHeader("Lamport-Clock");
+            if (lamportClock != null) {
+                try {
+                    clock.update(Long.parseLong(lamportClock.trim()));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            int status = head.getStatus();
+            if (status != 200 && status != 204) {
+                rejected = status < 500;
+                throw new IOException(address + " answered " + status + " " + head.getReason());
+            }
+            List<WeatherData> result = new ArrayList<>();
+            try {
+                WeatherDataParser.parseStream(body, result::add);
+            } catch (WeatherDataParser.ParseException e) {
+                throw new IOException("Malformed feed from " + address + ": " + e.getMessage());
+            }
+            return result;
+        }
 
-        } catch (IOException e) {
-            return null;
+        // Method to give up on this copy once another has answered, closing its connection. The
+        // replica is charged the time it had taken so far, so it is no longer asked first.
+        synchronized void abandon() {
+            if (!done) {
+                abandoned = true;
+                if (connection != null) {
+                    connection.abort();
+                    replicas.recordLatency(address, (System.nanoTime() - start) / 1e6);
+                }
+            }
         }
     }
-}
 
+    // Method to print the changes from the first server that answers, forever. When a stream
+    // breaks the next server is tried from the last version seen, after a backoff if none answer.
+    private static void follow(List<String> servers) {
+        long[] version = {0};
+        int failures = 0;
+        for (int i = 0; ; i = (i + 1) % servers.size()) {
+            try {
+                subscribe(servers.get(i), version[0], (type, eventVersion, data) -> {
+                    version[0] = eventVersion;
+                    System.out.println(type + " " + data);
+                    return true;
+                });
+                failures = 0;
+            } catch (IOException e) {
+                System.err.println("Stream from " + servers.get(i) + " failed: " + e.getMessage());
+                if (i == servers.size() - 1) {
+                    failures++;
+                }
+            }
+            try {
+                Thread.sleep(failures == 0 ? 0 : ServerPool.backoff(failures));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Method to subscribe to a server's changes (GET /weather/stream) and pass each event to the
+    // listener until it returns false or the server closes the stream. With a version of 0 or
+    // more the stream starts with the changes after it, or with a reset and every station when
+    // the server no longer has them. Returns normally only when the listener ended it.
+    public static void subscribe(String serverAddress, long since, EventListener listener) throws IOException {
+        String[] serverDetails = serverAddress.split(":");
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(serverDetails[0], Integer.parseInt(serverDetails[1])), CONNECT_TIMEOUT);
+            // the server sends a heartbeat while there are no changes, so silence means it is gone
+            socket.setSoTimeout((int) (2 * ChangeFeed.HEARTBEAT_INTERVAL));
+
+            String request = "GET /weather/stream HTTP/1.1\r\n"
+                    + "Host: " + serverAddress + "\r\n"
+                    + "User-Agent: ATOMClient/1.0\r\n"
+                    + "Accept: text/event-stream\r\n"
+                    + (since >= 0 ? "Last-Event-ID: " + since + "\r\n" : "")
+                    + "\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            HttpResponse head = HttpResponse.readHead(in);
+            if (head.getStatus() != 200) {
+                throw new IOException("Subscription refused (" + head.getStatus() + " " + head.getReason() + ")");
+            }
+
+            // Server-Sent Events: fields up to a blank line, comments start with a colon
+            BufferedReader events = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String type = "message";
+            long version = -1;
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = events.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (data.length() > 0 && !listener.onEvent(type, version, data.toString())) {
+                        return;
+                    }
+                    type = "message";
+                    data.setLength(0);
+                } else if (line.startsWith("event:")) {
+                    type = line.substring(6).trim();
+                } else if (line.startsWith("id:")) {
+                    version = Long.parseLong(line.substring(3).trim());
+                } else if (line.startsWith("data:")) {
+                    data.append(data.length() > 0 ? "\n" : "").append(line.substring(5).trim());
+                }
+            }
+            throw new EOFException("Stream closed by the server");
+        }
+    }
+}
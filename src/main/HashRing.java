@@ -0,0 +1,100 @@
+package main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Consistent hashing of station ids onto aggregation servers.
+//
+// Every server is placed on a 64-bit ring at many points (virtual nodes), and a station belongs to
+// the first server point at or after the hash of its id. Adding or removing a server only moves
+// the stations in the arcs next to its points, about 1/N of them, and the virtual nodes spread
+// both the load and the moved stations evenly over the other servers. Rings are immutable: a
+// membership change builds a new one.
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final int virtualNodes;
+    private final long[] points;   // sorted
+    private final String[] owners; // server at each point
+
+    public HashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one server");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        this.virtualNodes = virtualNodes;
+
+        long[][] placed = new long[this.nodes.size() * virtualNodes][];
+        int p = 0;
+        for (int n = 0; n < this.nodes.size(); n++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                placed[p++] = new long[]{hash(this.nodes.get(n) + "#" + v), n};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = this.nodes.get((int) placed[i][1]);
+        }
+    }
+
+    // The servers on the ring, sorted
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    // Method to find the server that owns a station
+    public String owner(String stationId) {
+        int i = Arrays.binarySearch(points, hash(stationId));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public HashRing with(String node) {
+        List<String> changed = new ArrayList<>(nodes);
+        changed.add(node);
+        return new HashRing(changed, virtualNodes);
+    }
+
+    public HashRing without(String node) {
+        List<String> changed = new ArrayList<>(nodes);
+        changed.remove(node);
+        return new HashRing(changed, virtualNodes);
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, finished with the MurmurHash3 mixer so that similar ids
+    // (IDS60901, IDS60902, ...) land far apart on the ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Method to parse a membership list: one address per line or comma-separated
+    public static List<String> parseMembers(String text) {
+        List<String> members = new ArrayList<>();
+        for (String member : text.split("[,\\s]+")) {
+            if (!member.isEmpty()) {
+                members.add(member);
+            }
+        }
+        return members;
+    }
+}
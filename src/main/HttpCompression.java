@@ -0,0 +1,106 @@
+package main;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// gzip and deflate content codings for request and response bodies.
+//
+// Responses are only compressed for clients that list the coding in Accept-Encoding, and only
+// when the body is large enough to gain from it. "deflate" is the zlib format, as HTTP defines it.
+// Decompression is bounded, so a small compressed body cannot expand into unbounded memory.
+public class HttpCompression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // Bodies smaller than this are sent as they are, the coding overhead would outweigh the saving
+    public static final int MIN_SIZE = 256;
+
+    // Method to pick the coding for a response from an Accept-Encoding header: gzip if the client
+    // accepts it, else deflate, else null. A coding with q=0 is refused.
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean any = false;
+        for (String candidate : acceptEncoding.split(",")) {
+            String[] parts = candidate.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = accepted;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = accepted;
+            } else if (coding.equals("*")) {
+                any = accepted;
+            }
+        }
+        return gzip || any ? GZIP : deflate ? DEFLATE : null;
+    }
+
+    public static boolean isSupported(String encoding) {
+        String coding = encoding.trim().toLowerCase(Locale.ROOT);
+        return coding.equals(GZIP) || coding.equals("x-gzip") || coding.equals(DEFLATE) || coding.equals("identity");
+    }
+
+    // Method to compress a body with the given coding
+    public static byte[] compress(byte[] data, String encoding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream out = encoding.equals(GZIP)
+                ? new GZIPOutputStream(compressed, 8192)
+                : new DeflaterOutputStream(compressed)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen writing to memory
+        }
+        return compressed.toByteArray();
+    }
+
+    // Method to decompress a body as it is read, for a stream sent with the given Content-Encoding
+    public static InputStream decompressing(InputStream in, String encoding) throws IOException {
+        String coding = encoding.trim().toLowerCase(Locale.ROOT);
+        if (coding.equals("identity")) {
+            return in;
+        }
+        try {
+            return coding.equals(DEFLATE) ? new InflaterInputStream(in) : new GZIPInputStream(in, 8192);
+        } catch (EOFException e) {
+            throw new IOException("Truncated " + coding + " body");
+        }
+    }
+
+    // Method to decompress a body sent with the given Content-Encoding, failing if it is corrupt or
+    // would expand to more than maxBytes
+    public static byte[] decompress(byte[] data, String encoding, int maxBytes) throws IOException {
+        String coding = encoding.trim().toLowerCase(Locale.ROOT);
+        if (coding.equals("identity")) {
+            return data;
+        }
+        try (InputStream in = coding.equals(DEFLATE)
+                ? new InflaterInputStream(new ByteArrayInputStream(data))
+                : new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] decompressed = in.readNBytes(maxBytes + 1);
+            if (decompressed.length > maxBytes) {
+                throw new IOException("Decompressed body is larger than " + maxBytes + " bytes");
+            }
+            return decompressed;
+        } catch (EOFException e) {
+            throw new IOException("Truncated " + coding + " body");
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package main;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// A single parsed HTTP-like request: request line, headers and a Content-Length framed body.
+// Requests can be read from a blocking stream or framed out of a non-blocking read buffer.
+public class HttpRequest {
+    public static final int MAX_HEADER_BYTES = 8192;
+    public static final int MAX_BODY_BYTES = 1 << 20;
+
+    private final String method;
+    private final String target;
+    private final String version;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private Map<String, String> queryParameters;
+
+    public HttpRequest(String method, String target, String version, Map<String, String> headers, byte[] body) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public String getMethod() { return method; }
+
+    public String getTarget() { return target; }
+
+    public String getVersion() { return version; }
+
+    public byte[] getBody() { return body; }
+
+    // The target without its query string
+    public String getPath() {
+        int query = target.indexOf('?');
+        return query < 0 ? target : target.substring(0, query);
+    }
+
+    // A decoded query string parameter, or null if it was not given
+    public String getQueryParameter(String name) {
+        return getQueryParameters().get(name);
+    }
+
+    // Method to decode the query string on first use; a repeated parameter keeps its first value
+    public Map<String, String> getQueryParameters() {
+        if (queryParameters == null) {
+            Map<String, String> parameters = new LinkedHashMap<>();
+            int query = target.indexOf('?');
+            if (query >= 0) {
+                for (String pair : target.substring(query + 1).split("&")) {
+                    if (pair.isEmpty()) {
+                        continue;
+                    }
+                    int equals = pair.indexOf('=');
+                    String name = equals < 0 ? pair : pair.substring(0, equals);
+                    String value = equals < 0 ? "" : pair.substring(equals + 1);
+                    try {
+                        parameters.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                                URLDecoder.decode(value, StandardCharsets.UTF_8));
+                    } catch (IllegalArgumentException e) {
+                        parameters.putIfAbsent(name, value); // leave malformed escapes as sent
+                    }
+                }
+            }
+            queryParameters = parameters;
+        }
+        return queryParameters;
+    }
+
+    // Method to copy the request with its body decoded, so the Content-Encoding no longer applies
+    public HttpRequest withDecodedBody(byte[] decoded) {
+        Map<String, String> decodedHeaders = new HashMap<>(headers);
+        decodedHeaders.remove("content-encoding");
+        decodedHeaders.put("content-length", String.valueOf(decoded.length));
+        return new HttpRequest(method, target, version, decodedHeaders, decoded);
+    }
+
+    // Header names are case-insensitive, so they are stored lower-cased
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    // HTTP/1.1 connections persist unless the client asks to close, HTTP/1.0 ones only on request
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("close")) {
+                return false;
+            }
+            if (connection.equalsIgnoreCase("keep-alive")) {
+                return true;
+            }
+        }
+        return version.equals("HTTP/1.1");
+    }
+
+    // Method to read one request from a blocking stream, returns null on a clean end of stream
+    public static HttpRequest read(InputStream in) throws IOException {
+        return read(in, () -> { });
+    }
+
+    // Method to read one request, calling headersRead once the headers are in and before the body
+    // is read, e.g. to give the body its own deadline
+    public static HttpRequest read(InputStream in, Runnable headersRead) throws IOException {
+        String requestLine;
+        do {
+            requestLine = readLine(in);
+            if (requestLine == null) {
+                return null;
+            }
+        } while (requestLine.isEmpty()); // tolerate stray line breaks between requests
+
+        List<String> headerLines = new ArrayList<>();
+        int headerBytes = requestLine.length();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new MalformedRequestException("Request headers too large");
+            }
+            headerLines.add(line);
+        }
+
+        Map<String, String> headers = parseHeaders(headerLines);
+        int contentLength = contentLength(headers);
+        headersRead.run();
+        byte[] body = in.readNBytes(contentLength);
+        if (body.length < contentLength) {
+            throw new MalformedRequestException("Unexpected end of request body");
+        }
+        return create(requestLine, headers, body);
+    }
+
+    // Method to frame one request out of a read buffer (in read mode). Returns null and leaves the
+    // buffer position untouched if the request is not complete yet, otherwise consumes it.
+    public static HttpRequest parse(ByteBuffer buffer) throws MalformedRequestException {
+        int start = skipLineBreaks(buffer);
+        int limit = buffer.limit();
+        int bodyStart = bodyStart(buffer, start, limit);
+        if (bodyStart < 0) {
+            if (limit - start > MAX_HEADER_BYTES) {
+                throw new MalformedRequestException("Request headers too large");
+            }
+            buffer.position(start);
+            return null;
+        }
+
+        byte[] head = new byte[bodyStart - start]; // the blank line splits into nothing
+        for (int i = 0; i < head.length; i++) {
+            head[i] = buffer.get(start + i);
+        }
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r?\n");
+        Map<String, String> headers = parseHeaders(Arrays.asList(lines).subList(1, lines.length));
+        int contentLength = contentLength(headers);
+        if (limit - bodyStart < contentLength) {
+            buffer.position(start);
+            return null;
+        }
+
+        byte[] body = new byte[contentLength];
+        buffer.position(bodyStart);
+        buffer.get(body);
+        return create(lines[0], headers, body);
+    }
+
+    // Method to check whether a read buffer (in read mode) holds the whole head of its next request
+    public static boolean hasCompleteHead(ByteBuffer buffer) {
+        return bodyStart(buffer, skipLineBreaks(buffer), buffer.limit()) >= 0;
+    }
+
+    // Method to skip stray line breaks between requests, returns the index of the next request
+    private static int skipLineBreaks(ByteBuffer buffer) {
+        int start = buffer.position();
+        while (start < buffer.limit() && (buffer.get(start) == '\r' || buffer.get(start) == '\n')) {
+            start++;
+        }
+        return start;
+    }
+
+    // Method to look for the blank line that terminates the headers, returns the index just after
+    // it, where the body starts, or -1 if it has not arrived yet
+    private static int bodyStart(ByteBuffer buffer, int start, int limit) {
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (i + 1 < limit && buffer.get(i + 1) == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < limit && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Method to check whether a buffered request has grown past what parse() will ever accept
+    public static boolean exceedsLimits(ByteBuffer buffer) {
+        return buffer.remaining() > MAX_HEADER_BYTES + MAX_BODY_BYTES;
+    }
+
+    private static HttpRequest create(String requestLine, Map<String, String> headers, byte[] body) {
+        String[] parts = requestLine.trim().split("\\s+");
+        String method = parts[0];
+        String target = parts.length > 1 ? parts[1] : "/";
+        String version = parts.length > 2 ? parts[2] : "HTTP/1.0";
+        return new HttpRequest(method, target, version, headers, body);
+    }
+
+    private static Map<String, String> parseHeaders(List<String> lines) {
+        Map<String, String> headers = new HashMap<>();
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue; // ignore lines that are not headers
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    private static int contentLength(Map<String, String> headers) throws MalformedRequestException {
+        String value = headers.get("content-length");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int contentLength = Integer.parseInt(value);
+            if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+                throw new MalformedRequestException("Invalid Content-Length: " + value);
+            }
+            return contentLength;
+        } catch (NumberFormatException e) {
+            throw new MalformedRequestException("Invalid Content-Length: " + value);
+        }
+    }
+
+    // Method to read a single ISO-8859-1 line, stripping the line terminator
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_HEADER_BYTES) {
+                throw new MalformedRequestException("Request line too long");
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    // Thrown when a request does not arrive within its deadline, the connection should answer 408 and close
+    public static class RequestTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    // Thrown when a request cannot be framed, the connection should answer 400 and close
+    public static class MalformedRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedRequestException(String message) {
+            super(message);
+        }
+    }
+}
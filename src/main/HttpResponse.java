@@ -0,0 +1,259 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// An HTTP-like response: status line, headers and a body framed by Content-Length.
+// Used by the server to render replies and by the clients to read them back.
+public class HttpResponse {
+    private static final byte[] NO_BODY = new byte[0];
+    // Per-thread copy space for writing direct buffers to streams, the size of the buffered
+    // stream the server writes to, so each chunk is one write to the socket
+    private static final ThreadLocal<byte[]> WRITE_CHUNK = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final int status;
+    private final String reason;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private byte[] body = NO_BODY;
+    private ByteBuffer buffer; // the body as a shared buffer instead, e.g. in direct memory
+    private Runnable release; // gives the buffer back once it has been written
+    private ChangeFeed.Subscription stream;
+
+    public HttpResponse(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    public int getStatus() { return status; }
+
+    public String getReason() { return reason; }
+
+    // The body, copied into an array if it was given as a buffer
+    public byte[] getBody() {
+        if (buffer != null) {
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            return copy;
+        }
+        return body;
+    }
+
+    public int getBodyLength() {
+        return buffer != null ? buffer.remaining() : body.length;
+    }
+
+    public String getBodyText() { return new String(getBody(), StandardCharsets.UTF_8); }
+
+    // Header lookups ignore case, header names keep the case they were set with
+    public String getHeader(String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    // Method to remove a header, whatever the case of its name, returning its value
+    private String removeHeader(String name) {
+        for (Iterator<Map.Entry<String, String>> it = headers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> header = it.next();
+            if (header.getKey().equalsIgnoreCase(name)) {
+                it.remove();
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    public HttpResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public HttpResponse body(String contentType, byte[] body) {
+        release();
+        headers.put("Content-Type", contentType);
+        this.body = body;
+        this.buffer = null;
+        return this;
+    }
+
+    // Method to set a body held in a buffer, which is written to a channel as it is. The response
+    // writes it from its position, so it needs a view of its own (duplicate()).
+    public HttpResponse body(String contentType, ByteBuffer buffer) {
+        release();
+        headers.put("Content-Type", contentType);
+        this.body = NO_BODY;
+        this.buffer = buffer;
+        return this;
+    }
+
+    // Method to set a body held in a buffer that is only lent to the response: release runs once
+    // the connection has written it, or will not write it
+    public HttpResponse body(String contentType, ByteBuffer buffer, Runnable release) {
+        body(contentType, buffer);
+        this.release = release;
+        return this;
+    }
+
+    // Whether the body must be released once written
+    public boolean isLent() {
+        return release != null;
+    }
+
+    // Method to give a lent body back, called by the connection once it is done with it. Runs the
+    // release at most once.
+    public void release() {
+        Runnable pending = release;
+        release = null;
+        if (pending != null) {
+            pending.run();
+        }
+    }
+
+    // Method to make this a streaming response: after the head and body, the subscription's
+    // frames are written as they arrive, with no Content-Length, until either side closes
+    public HttpResponse stream(ChangeFeed.Subscription subscription) {
+        this.stream = subscription;
+        return this;
+    }
+
+    // The subscription that follows the body, null for an ordinary response
+    public ChangeFeed.Subscription getStream() { return stream; }
+
+    // Method to undo the Content-Encoding of a response to a request sent with Accept-Encoding
+    public HttpResponse decode() throws IOException {
+        String encoding = getHeader("Content-Encoding");
+        if (encoding == null) {
+            return this;
+        }
+        body = HttpCompression.decompress(getBody(), encoding, Integer.MAX_VALUE - 8);
+        buffer = null;
+        release();
+        removeHeader("Content-Encoding");
+        return this;
+    }
+
+    // Whether the connection must be closed once this response has been written
+    public boolean isClose() {
+        return "close".equalsIgnoreCase(getHeader("Connection"));
+    }
+
+    // 1xx, 204 and 304 responses never carry a body
+    static boolean hasBody(int status) {
+        return status >= 200 && status != 204 && status != 304;
+    }
+
+    // Method to render the status line and headers, adding Content-Length framing
+    public byte[] encodeHead() {
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (hasBody(status) && stream == null) {
+            head.append("Content-Length: ").append(getBodyLength()).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Method to render the response as buffers suitable for a gathering write
+    public ByteBuffer[] toBuffers() {
+        return new ByteBuffer[]{ByteBuffer.wrap(encodeHead()), buffer != null ? buffer : ByteBuffer.wrap(body)};
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(encodeHead());
+        if (buffer == null) {
+            out.write(body);
+            return;
+        }
+        // a stream only takes arrays, so a direct buffer is copied out a chunk at a time
+        ByteBuffer view = buffer.duplicate();
+        if (view.hasArray()) {
+            out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            return;
+        }
+        byte[] chunk = WRITE_CHUNK.get();
+        while (view.hasRemaining()) {
+            int size = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, size);
+            out.write(chunk, 0, size);
+        }
+    }
+
+    // Render the whole response as text, as printed by the command line clients
+    public String toString() {
+        String head = new String(encodeHead(), StandardCharsets.ISO_8859_1).replace("\r\n", "\n");
+        return head + getBodyText();
+    }
+
+    // Method to read one response from a stream. Bodies are framed by Content-Length and only
+    // read up to end of stream when the server did not send one.
+    public static HttpResponse read(InputStream in) throws IOException {
+        HttpResponse response = readHead(in);
+        if (hasBody(response.status)) {
+            String contentLength = response.removeHeader("Content-Length");
+            if (contentLength != null) {
+                int length = Integer.parseInt(contentLength);
+                response.body = in.readNBytes(length);
+                if (response.body.length < length) {
+                    throw new EOFException("Connection closed mid-response");
+                }
+            } else {
+                response.body = in.readAllBytes();
+                response.headers.put("Connection", "close");
+            }
+        }
+        return response;
+    }
+
+    // Method to read only the status line and headers, leaving the body in the stream, e.g. to
+    // follow an event stream
+    public static HttpResponse readHead(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before response");
+        }
+
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        HttpResponse response;
+        try {
+            response = new HttpResponse(Integer.parseInt(parts[1]), parts.length > 2 ? parts[2] : "");
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                response.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,132 @@
+package main;
+
+// Helpers for the JSON the server writes by hand
+public class JsonText {
+
+    // Method to append a value as a quoted JSON string, escaping quotes, backslashes and control characters
+    public static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14
+    };
+
+    // Method to append a number with the count of fraction digits it was written with, so "13" and
+    // "13.30" come back unchanged. With a negative scale it is appended in Java's shortest form.
+    public static void appendNumber(StringBuilder json, double value, int scale) {
+        if (scale < 0 || scale >= POWERS_OF_TEN.length || Double.isNaN(value) || Double.isInfinite(value)) {
+            json.append(value);
+            return;
+        }
+        if (Double.doubleToRawLongBits(value) < 0) {
+            json.append('-'); // including -0
+        }
+        String digits = Long.toString(Math.round(Math.abs(value) * POWERS_OF_TEN[scale]));
+        if (scale == 0) {
+            json.append(digits);
+            return;
+        }
+        for (int i = digits.length(); i <= scale; i++) {
+            json.append('0');
+        }
+        int point = json.length() + digits.length() - scale;
+        json.append(digits).insert(point, '.');
+    }
+
+    // Method to render a station as JSON in the layout the content servers send, with only the
+    // fields it has
+    public static String station(WeatherData data) {
+        return station(data, false);
+    }
+
+    // Method to render a station as the content servers send it, leaving out text fields without
+    // a value rather than writing them as null
+    public static String stationToSend(WeatherData data) {
+        return station(data, true);
+    }
+
+    private static String station(WeatherData data, boolean omitNulls) {
+        StringBuilder json = new StringBuilder(384).append('{');
+        String separator = "\n    \"";
+        for (int field = 0; field < WeatherData.FIELD_NAMES.length; field++) {
+            if (!data.has(field) || (omitNulls && isText(field) && stringField(data, field) == null)) {
+                continue;
+            }
+            json.append(separator).append(WeatherData.FIELD_NAMES[field]).append("\": ");
+            separator = ",\n    \"";
+            switch (field) {
+                case WeatherData.LAT: json.append(data.getLat()); break;
+                case WeatherData.LON: json.append(data.getLon()); break;
+                case WeatherData.AIR_TEMP: json.append(data.getAir_temp()); break;
+                case WeatherData.APPARENT_T: json.append(data.getApparent_t()); break;
+                case WeatherData.DEWPT: json.append(data.getDewpt()); break;
+                case WeatherData.PRESS: json.append(data.getPress()); break;
+                case WeatherData.REL_HUM: json.append(data.getRel_hum()); break;
+                case WeatherData.WIND_SPD_KMH: json.append(data.getWind_spd_kmh()); break;
+                case WeatherData.WIND_SPD_KT: json.append(data.getWind_spd_kt()); break;
+                default: appendNullable(json, stringField(data, field));
+            }
+        }
+        return json.append("\n}").toString();
+    }
+
+    private static boolean isText(int field) {
+        switch (field) {
+            case WeatherData.LAT: case WeatherData.LON: case WeatherData.AIR_TEMP: case WeatherData.APPARENT_T:
+            case WeatherData.DEWPT: case WeatherData.PRESS: case WeatherData.REL_HUM:
+            case WeatherData.WIND_SPD_KMH: case WeatherData.WIND_SPD_KT:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static void appendNullable(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+        } else {
+            appendString(json, value);
+        }
+    }
+
+    private static String stringField(WeatherData data, int field) {
+        switch (field) {
+            case WeatherData.ID: return data.getId();
+            case WeatherData.NAME: return data.getName();
+            case WeatherData.STATE: return data.getState();
+            case WeatherData.TIME_ZONE: return data.getTime_zone();
+            case WeatherData.LOCAL_DATE_TIME: return data.getLocal_date_time();
+            case WeatherData.LOCAL_DATE_TIME_FULL: return data.getLocal_date_time_full();
+            case WeatherData.CLOUD: return data.getCloud();
+            default: return data.getWind_dir();
+        }
+    }
+}
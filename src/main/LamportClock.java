@@ -1,24 +1,30 @@
 package main;
 
-public class LamportClock {
-    private int time;
+import java.util.concurrent.atomic.AtomicLong;
 
-    public LamportClock() {
-        this.time = 0; // Initialize clock to 0
-    }
+// A 64-bit Lamport clock. Ticks and updates are single compare-and-set operations, so the many
+// request threads that touch it never queue on a monitor.
+public class LamportClock {
+    private final AtomicLong time = new AtomicLong();
 
-    // Increment clock on every event (local event or sending message)
-    public synchronized void increment() {
-        time++;
+    // Increment clock on every event (local event or sending message), returning the new time
+    public long increment() {
+        return time.incrementAndGet();
     }
 
-    // Update clock based on received timestamp
-    public synchronized void update(int receivedTime) {
-        time = Math.max(time, receivedTime) + 1;
+    // Update clock based on received timestamp, returning the new time
+    public long update(long receivedTime) {
+        long current;
+        long next;
+        do {
+            current = time.get();
+            next = Math.max(current, receivedTime) + 1;
+        } while (!time.compareAndSet(current, next));
+        return next;
     }
 
     // Get current clock time
-    public synchronized int getTime() {
-        return time;
+    public long getTime() {
+        return time.get();
     }
 }
@@ -0,0 +1,418 @@
+package main;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator that plays many content servers and GET readers against an aggregation server
+// and reports the throughput and latency distribution of each request type.
+//
+// Each simulated content server owns some of the stations and PUTs them with its own Source-Id
+// and Lamport clock; each simulated reader GETs the feed with the ETag it last saw. Requests are
+// spread over a fixed number of persistent connections. In closed-loop mode (no --rate) every
+// connection sends its next request as soon as the last one is answered. In open-loop mode
+// requests are due at a fixed rate, and latency is measured from when a request was due, not when
+// it was sent, so a stalled server is charged for the requests that queued up behind the stall
+// (no coordinated omission). With --full-reads readers ignore their ETag and download the whole
+// feed every time, to load the response path rather than 304s.
+// Usage: java main.LoadGenerator [--server=host:port | --start=inprocess|process] [--port=4567]
+//        [--stations=N] [--content-servers=N] [--readers=N] [--put-ratio=0.2] [--rate=req/s]
+//        [--connections=N] [--duration=s] [--warmup=s] [--full-reads] [--histogram] [server options ...]
+// Options not listed here are passed to the server started with --start.
+public class LoadGenerator {
+    public static final int PUT = 0;
+    public static final int GET = 1;
+    private static final String[] TYPE_NAMES = {"PUT", "GET"};
+    private static final long START_TIMEOUT = 15000;
+    private static final int PRELOAD_BATCH = 500;
+
+    private final String server;
+    private final int stations;
+    private final double putRatio;
+    private final double rate;
+    private final int connections;
+    private final Source[] sources;
+    private final Reader[] readers;
+    private boolean fullReads;
+
+    // A simulated content server
+    private static class Source {
+        final String id;
+        final LamportClock clock = new LamportClock();
+
+        Source(String id) {
+            this.id = id;
+        }
+    }
+
+    // A simulated GET client, which polls with the ETag of the feed it last received
+    private static class Reader {
+        volatile String etag;
+    }
+
+    // What one connection measured
+    private static class Worker {
+        final LatencyHistogram[] latencies = {new LatencyHistogram(), new LatencyHistogram()};
+        final long[] errors = new long[2];
+        final List<Map<Integer, Long>> statuses = Arrays.asList(new TreeMap<>(), new TreeMap<>());
+        long missed;
+    }
+
+    // Latencies, statuses and errors of a run, per request type
+    public static class Result {
+        private final LatencyHistogram[] latencies = {new LatencyHistogram(), new LatencyHistogram()};
+        private final long[] errors = new long[2];
+        private final List<Map<Integer, Long>> statuses = Arrays.asList(new TreeMap<>(), new TreeMap<>());
+        private final double seconds;
+        private final double targetRate;
+        private long missed;
+
+        private Result(List<Worker> workers, double seconds, double targetRate) {
+            this.seconds = seconds;
+            this.targetRate = targetRate;
+            for (Worker worker : workers) {
+                missed += worker.missed;
+                for (int type = 0; type < 2; type++) {
+                    latencies[type].add(worker.latencies[type]);
+                    errors[type] += worker.errors[type];
+                    for (Map.Entry<Integer, Long> status : worker.statuses.get(type).entrySet()) {
+                        statuses.get(type).merge(status.getKey(), status.getValue(), Long::sum);
+                    }
+                }
+            }
+        }
+
+        // Latencies in nanoseconds of the requests of one type (PUT or GET) that were answered
+        public LatencyHistogram getLatencies(int type) { return latencies[type]; }
+
+        public long getErrors(int type) { return errors[type]; }
+
+        // Number of responses of each status code
+        public Map<Integer, Long> getStatuses(int type) { return statuses.get(type); }
+
+        // Requests answered per second, over the measured part of the run
+        public double getThroughput(int type) { return latencies[type].getCount() / seconds; }
+
+        // Requests that fell due in open loop but could not be sent before the run ended, because
+        // the server was answering more slowly than the rate asked for
+        public long getMissed() { return missed; }
+
+        // Method to print a table of throughput and latency percentiles, and with histogram the
+        // latency distribution of each type
+        public void print(PrintStream out, boolean histogram) {
+            out.printf("Measured %.1f s%s%n", seconds,
+                    targetRate > 0 ? String.format(", open loop at %.0f req/s", targetRate) : ", closed loop");
+            out.printf("%-5s %10s %10s %8s %9s %9s %9s %9s %9s  (ms)%n",
+                    "type", "count", "req/s", "errors", "p50", "p90", "p99", "p99.9", "max");
+            for (int type = 0; type < 2; type++) {
+                LatencyHistogram latency = latencies[type];
+                out.printf("%-5s %10d %10.1f %8d %9.3f %9.3f %9.3f %9.3f %9.3f%n", TYPE_NAMES[type],
+                        latency.getCount(), getThroughput(type), errors[type], millis(latency.percentile(50)),
+                        millis(latency.percentile(90)), millis(latency.percentile(99)),
+                        millis(latency.percentile(99.9)), millis(latency.getMax()));
+            }
+            for (int type = 0; type < 2; type++) {
+                out.println(TYPE_NAMES[type] + " statuses: " + statuses.get(type));
+            }
+            if (missed > 0) {
+                out.println(missed + " requests fell due but were not sent before the end: the server is saturated");
+            }
+            if (histogram) {
+                double[] percentiles = {0, 50, 75, 90, 95, 99, 99.5, 99.9, 99.95, 99.99, 100};
+                for (int type = 0; type < 2; type++) {
+                    out.println(TYPE_NAMES[type] + " latency distribution:");
+                    out.printf("%12s %12s %12s%n", "percentile", "ms", "count");
+                    for (double percentile : percentiles) {
+                        out.printf("%12s %12.3f %12d%n", percentile + "%",
+                                millis(latencies[type].percentile(percentile)),
+                                (long) Math.ceil(percentile / 100 * latencies[type].getCount()));
+                    }
+                }
+            }
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    // A rate of 0 or less runs closed-loop
+    public LoadGenerator(String server, int stations, int contentServers, int readers, double putRatio,
+                         double rate, int connections) {
+        this.server = server;
+        this.stations = stations;
+        this.putRatio = putRatio;
+        this.rate = rate;
+        this.connections = connections;
+        this.sources = new Source[contentServers];
+        for (int i = 0; i < contentServers; i++) {
+            sources[i] = new Source("load-" + i + "-" + UUID.randomUUID());
+        }
+        this.readers = new Reader[readers];
+        for (int i = 0; i < readers; i++) {
+            this.readers[i] = new Reader();
+        }
+    }
+
+    // Method to make readers download the whole feed every time instead of polling with their ETag
+    public void setFullReads(boolean fullReads) {
+        this.fullReads = fullReads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String server = null;
+        String start = null;
+        int port = 4567;
+        int stations = 10000;
+        int contentServers = 1000;
+        int readers = 1000;
+        double putRatio = 0.2;
+        double rate = 0;
+        int connections = 64;
+        double duration = 30;
+        double warmup = 5;
+        boolean histogram = false;
+        boolean fullReads = false;
+        List<String> serverArgs = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            if (arg.startsWith("--server=")) {
+                server = value;
+            } else if (arg.startsWith("--start=")) {
+                start = value;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--stations=")) {
+                stations = Integer.parseInt(value);
+            } else if (arg.startsWith("--content-servers=")) {
+                contentServers = Integer.parseInt(value);
+            } else if (arg.startsWith("--readers=")) {
+                readers = Integer.parseInt(value);
+            } else if (arg.startsWith("--put-ratio=")) {
+                putRatio = Double.parseDouble(value);
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration=")) {
+                duration = Double.parseDouble(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Double.parseDouble(value);
+            } else if (arg.equals("--histogram")) {
+                histogram = true;
+            } else if (arg.equals("--full-reads")) {
+                fullReads = true;
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+
+        LocalCluster cluster = null;
+        if (server == null) {
+            server = "localhost:" + port;
+            serverArgs.add(0, String.valueOf(port));
+            if ("process".equals(start)) {
+                cluster = new LocalCluster(1, port, serverArgs.subList(1, serverArgs.size()));
+                cluster.start(0);
+            } else if ("inprocess".equals(start)) {
+                startInProcess(serverArgs.toArray(new String[0]), port);
+            }
+        }
+
+        try {
+            LoadGenerator generator = new LoadGenerator(server, stations, contentServers, readers, putRatio, rate, connections);
+            generator.setFullReads(fullReads);
+            System.out.printf("%d content servers and %d readers over %d connections, %d stations, %.0f%% PUTs, against %s%n",
+                    contentServers, readers, connections, stations, putRatio * 100, server);
+            generator.preload();
+            generator.run((long) (warmup * 1000), (long) (duration * 1000)).print(System.out, histogram);
+        } finally {
+            if (cluster != null) {
+                cluster.close();
+            }
+        }
+        System.exit(0); // an in-process server does not stop on its own
+    }
+
+    // Method to run an aggregation server on a thread of this process and wait until it accepts connections
+    private static void startInProcess(String[] serverArgs, int port) throws IOException, InterruptedException {
+        Thread thread = new Thread(() -> {
+            try {
+                AggregationServer.main(serverArgs);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "aggregation-server");
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Server did not start on port " + port);
+    }
+
+    // Method to store every station once before the run, so readers get the full feed from the start
+    public void preload() throws IOException {
+        try (PersistentConnection connection = PersistentConnection.forAddress(server)) {
+            SplittableRandom random = new SplittableRandom();
+            String serverTime = "0";
+            for (int first = 0; first < stations; first += PRELOAD_BATCH) {
+                StringBuilder batch = new StringBuilder("[");
+                for (int station = first; station < Math.min(stations, first + PRELOAD_BATCH); station++) {
+                    batch.append(station == first ? "" : ",").append(stationJson(station, random));
+                }
+                HttpResponse response = connection.send("PUT", "/weather.json",
+                        Collections.singletonMap("Content-Type", "application/json"),
+                        batch.append(']').toString().getBytes(StandardCharsets.UTF_8));
+                if (response.getStatus() != 200) {
+                    throw new IOException("Preloading stations failed (" + response.getStatus() + ")");
+                }
+                serverTime = response.getHeader("Lamport-Clock");
+            }
+            // the content servers start where the server's clock is, as if they had been sending all
+            // along, so their first PUTs are not older than the preloaded stations
+            for (Source source : sources) {
+                source.clock.update(Long.parseLong(serverTime.trim()));
+            }
+        }
+    }
+
+    // Method to run the load for warmup plus duration milliseconds and return what was measured
+    // after the warm-up
+    public Result run(long warmupMillis, long durationMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + warmupMillis * 1_000_000;
+        long end = measureFrom + durationMillis * 1_000_000;
+
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker();
+            workers.add(worker);
+            int index = i;
+            Thread thread = new Thread(() -> drive(worker, index, start, measureFrom, end), "load-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // the last requests may be answered after the end
+        return new Result(workers, Math.max(durationMillis, (System.nanoTime() - measureFrom) / 1_000_000) / 1000.0, rate);
+    }
+
+    // Method to send one connection's share of the requests until the end of the run. Each
+    // connection plays its own share of the content servers, so that like a real content server
+    // each sends one PUT at a time.
+    private void drive(Worker worker, int index, long start, long measureFrom, long end) {
+        SplittableRandom random = new SplittableRandom(index * 31L + System.nanoTime());
+        // in open loop each connection has its own evenly spaced schedule, offset from the others
+        long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        long due = start + (rate > 0 ? (long) (1e9 * index / rate) : 0);
+        try (PersistentConnection connection = PersistentConnection.forAddress(server)) {
+            while (true) {
+                long intended;
+                if (interval > 0) {
+                    intended = due;
+                    due += interval;
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    intended = System.nanoTime();
+                }
+                if (intended >= end) {
+                    return;
+                } else if (interval > 0 && System.nanoTime() >= end) {
+                    // behind schedule at the end of the run, the requests still due are not sent
+                    worker.missed += (end - intended + interval - 1) / interval;
+                    return;
+                }
+
+                int type = random.nextDouble() < putRatio ? PUT : GET;
+                int status;
+                try {
+                    status = type == PUT ? put(connection, index, random) : get(connection, random);
+                } catch (IOException e) {
+                    // the connection closed itself, the next request reconnects
+                    if (intended >= measureFrom) {
+                        worker.errors[type]++;
+                    }
+                    continue;
+                }
+                if (intended >= measureFrom) {
+                    worker.latencies[type].record(System.nanoTime() - intended);
+                    worker.statuses.get(type).merge(status, 1L, Long::sum);
+                }
+            }
+        }
+    }
+
+    // Method to PUT a new observation of a random station, from one of the connection's content
+    // servers. Station i belongs to content server i % content servers.
+    private int put(PersistentConnection connection, int index, SplittableRandom random) throws IOException {
+        int owner = pickStriped(index, connections, sources.length, random);
+        int station = pickStriped(owner, sources.length, stations, random);
+        Source source = sources[owner];
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Lamport-Clock", String.valueOf(source.clock.increment()));
+        headers.put("Source-Id", source.id);
+        HttpResponse response = connection.send("PUT", "/weather.json", headers,
+                stationJson(station, random).getBytes(StandardCharsets.UTF_8));
+        String serverTime = response.getHeader("Lamport-Clock");
+        if (serverTime != null) {
+            source.clock.update(Long.parseLong(serverTime.trim()));
+        }
+        return response.getStatus();
+    }
+
+    // Method to GET the feed as a random reader, which gets 304 if it already holds the current version
+    private int get(PersistentConnection connection, SplittableRandom random) throws IOException {
+        Reader reader = readers[random.nextInt(readers.length)];
+        String etag = fullReads ? null : reader.etag;
+        HttpResponse response = connection.send("GET", "/weather.json",
+                etag == null ? Collections.emptyMap() : Collections.singletonMap("If-None-Match", etag), new byte[0]);
+        if (response.getStatus() == 200) {
+            reader.etag = response.getHeader("ETag");
+        }
+        return response.getStatus();
+    }
+
+    // Method to pick a random value below limit that equals first modulo step, or first (wrapped
+    // below limit) if first is already past the limit
+    private static int pickStriped(int first, int step, int limit, SplittableRandom random) {
+        if (first >= limit) {
+            return first % limit;
+        }
+        return first + step * random.nextInt((limit - first + step - 1) / step);
+    }
+
+    // Method to render a station with readings that change from one observation to the next
+    private static String stationJson(int station, SplittableRandom random) {
+        return "{\n"
+                + "    \"id\": \"IDL" + station + "\",\n"
+                + "    \"name\": \"Load station " + station + "\",\n"
+                + "    \"state\": \"SA\",\n"
+                + "    \"time_zone\": \"CST\",\n"
+                + "    \"lat\": " + (-44 + station % 3400 / 100.0) + ",\n"
+                + "    \"lon\": " + (113 + station % 4100 / 100.0) + ",\n"
+                + "    \"air_temp\": " + random.nextInt(-100, 450) / 10.0 + ",\n"
+                + "    \"press\": " + random.nextInt(9800, 10400) / 10.0 + ",\n"
+                + "    \"rel_hum\": " + random.nextInt(101) + ",\n"
+                + "    \"wind_dir\": \"S\",\n"
+                + "    \"wind_spd_kmh\": " + random.nextInt(80) + "\n"
+                + "}";
+    }
+}
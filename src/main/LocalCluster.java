@@ -0,0 +1,235 @@
+package main;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Runs aggregation servers as separate local processes, so failover and resizing can be tried by
+// killing, restarting, adding and removing them. By default every server replicates all the
+// others; with --sharded the stations are partitioned across the servers instead.
+// Usage: java main.LocalCluster [nodes] [basePort] [--sharded], then type "kill N", "start N",
+// "add", "remove N", "status" or "quit".
+public class LocalCluster implements Closeable {
+    private static final long START_TIMEOUT = 15000;
+    private static final long HANDOFF_TIMEOUT = 15000;
+
+    private final int basePort;
+    private final boolean sharded;
+    private final List<Process> processes = new ArrayList<>();
+    private final SortedSet<Integer> members = new TreeSet<>();
+    private final List<String> extraArgs;
+    private final Path logDirectory;
+
+    public LocalCluster(int nodes, int basePort, List<String> extraArgs) throws IOException {
+        this(nodes, basePort, false, extraArgs);
+    }
+
+    public LocalCluster(int nodes, int basePort, boolean sharded, List<String> extraArgs) throws IOException {
+        this.basePort = basePort;
+        this.sharded = sharded;
+        this.extraArgs = extraArgs;
+        this.logDirectory = Files.createTempDirectory("weather-cluster");
+        for (int i = 0; i < nodes; i++) {
+            processes.add(null);
+            members.add(i);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> positional = new ArrayList<>();
+        boolean sharded = false;
+        for (String arg : args) {
+            if (arg.equals("--sharded")) {
+                sharded = true;
+            } else {
+                positional.add(arg);
+            }
+        }
+        int nodes = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 3;
+        int basePort = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 4567;
+
+        try (LocalCluster cluster = new LocalCluster(nodes, basePort, sharded, Collections.emptyList())) {
+            for (int i = 0; i < nodes; i++) {
+                cluster.start(i);
+            }
+            System.out.println("Started " + nodes + (sharded ? " shards on " : " replicas on ")
+                    + cluster.getMembers() + ", logs in " + cluster.logDirectory);
+
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while ((line = commands.readLine()) != null) {
+                String[] command = line.trim().split("\\s+");
+                try {
+                    switch (command[0]) {
+                        case "kill":
+                            cluster.kill(Integer.parseInt(command[1]));
+                            break;
+                        case "start":
+                            cluster.start(Integer.parseInt(command[1]));
+                            break;
+                        case "add":
+                            System.out.println("Added " + cluster.getAddress(cluster.add()));
+                            break;
+                        case "remove":
+                            cluster.remove(Integer.parseInt(command[1]));
+                            break;
+                        case "status":
+                            for (int i = 0; i < cluster.processes.size(); i++) {
+                                System.out.println(cluster.getAddress(i) + (cluster.isRunning(i) ? " up" : " down")
+                                        + (cluster.members.contains(i) ? "" : " (not a member)"));
+                            }
+                            break;
+                        case "quit":
+                            return;
+                        default:
+                            System.out.println("Commands: kill N, start N, add, remove N, status, quit");
+                    }
+                } catch (RuntimeException | IOException e) {
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public String getAddress(int node) {
+        return "localhost:" + (basePort + node);
+    }
+
+    // Addresses of the servers that are members of the cluster
+    public List<String> getMembers() {
+        List<String> addresses = new ArrayList<>();
+        for (int node : members) {
+            addresses.add(getAddress(node));
+        }
+        return addresses;
+    }
+
+    public boolean isRunning(int node) {
+        return node < processes.size() && processes.get(node) != null && processes.get(node).isAlive();
+    }
+
+    // Method to start a server process and wait until it accepts connections
+    public void start(int node) throws IOException, InterruptedException {
+        if (isRunning(node)) {
+            throw new IllegalStateException(getAddress(node) + " is already running");
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classPath());
+        command.add("main.AggregationServer");
+        command.add(String.valueOf(basePort + node));
+        if (sharded) {
+            command.add("--shards=" + String.join(",", getMembers()));
+        } else {
+            List<String> peers = getMembers();
+            peers.remove(getAddress(node));
+            command.add("--peers=" + String.join(",", peers));
+        }
+        command.addAll(extraArgs);
+
+        File log = logDirectory.resolve("node-" + node + ".log").toFile();
+        processes.set(node, new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                .start());
+        awaitListening(node);
+    }
+
+    // Method to kill a server process at once, as a crash would, without a clean shutdown
+    public void kill(int node) throws InterruptedException {
+        if (!isRunning(node)) {
+            throw new IllegalStateException(getAddress(node) + " is not running");
+        }
+        processes.get(node).destroyForcibly().waitFor();
+    }
+
+    // Method to start one more shard and tell every shard the new membership, so the stations that
+    // now belong to the new one are handed to it. Returns the new node's number.
+    public int add() throws IOException, InterruptedException {
+        requireSharded();
+        int node = processes.size();
+        processes.add(null);
+        members.add(node);
+        start(node);
+        announceMembers();
+        return node;
+    }
+
+    // Method to take a shard out of the cluster: every shard is told the new membership, the
+    // leaving one hands all its stations to the others, and it is stopped once it holds none
+    public void remove(int node) throws IOException, InterruptedException {
+        requireSharded();
+        if (!members.remove(node)) {
+            throw new IllegalStateException(getAddress(node) + " is not a member");
+        }
+        announceMembers();
+        if (isRunning(node)) {
+            send(getAddress(node), "PUT", "/cluster/members", String.join("\n", getMembers()));
+            long deadline = System.currentTimeMillis() + HANDOFF_TIMEOUT;
+            while (send(getAddress(node), "GET", "/weather.json", "").getStatus() != 204
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            kill(node);
+        }
+    }
+
+    private void announceMembers() throws IOException {
+        String body = String.join("\n", getMembers());
+        for (int node : members) {
+            if (isRunning(node)) {
+                send(getAddress(node), "PUT", "/cluster/members", body);
+            }
+        }
+    }
+
+    private static HttpResponse send(String address, String method, String target, String body) throws IOException {
+        try (PersistentConnection connection = PersistentConnection.forAddress(address)) {
+            return connection.send(method, target, Collections.emptyMap(), body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void requireSharded() {
+        if (!sharded) {
+            throw new IllegalStateException("Only a sharded cluster can be resized");
+        }
+    }
+
+    public void close() {
+        for (int i = 0; i < processes.size(); i++) {
+            if (isRunning(i)) {
+                processes.get(i).destroyForcibly();
+            }
+        }
+    }
+
+    private void awaitListening(int node) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (!processes.get(node).isAlive()) {
+                throw new IOException(getAddress(node) + " exited with " + processes.get(node).exitValue()
+                        + ", see " + logDirectory.resolve("node-" + node + ".log"));
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", basePort + node), 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException(getAddress(node) + " did not start within " + START_TIMEOUT + " ms");
+    }
+
+    // The classes of this process, wherever they were loaded from (a test runner may not put
+    // them on java.class.path)
+    private static String classPath() {
+        String own = new File(LocalCluster.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath();
+        return own + File.pathSeparator + System.getProperty("java.class.path");
+    }
+}
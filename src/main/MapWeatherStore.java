@@ -0,0 +1,45 @@
+package main;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Default store: each station's raw JSON and receive time in a ConcurrentHashMap
+public class MapWeatherStore implements WeatherStore {
+    // Store weather data together with its timestamp, so both are replaced and removed atomically
+    private final ConcurrentHashMap<String, Entry> weatherData = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final String json;
+        final long timestamp;
+
+        Entry(String json, long timestamp) {
+            this.json = json;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public boolean put(String stationId, String json, long timestamp) {
+        return weatherData.put(stationId, new Entry(json, timestamp)) == null;
+    }
+
+    public String get(String stationId) {
+        Entry entry = weatherData.get(stationId);
+        return entry == null ? null : entry.json;
+    }
+
+    public boolean remove(String stationId) {
+        return weatherData.remove(stationId) != null;
+    }
+
+    public boolean remove(String stationId, long timestamp) {
+        Entry entry = weatherData.get(stationId);
+        return entry != null && entry.timestamp == timestamp && weatherData.remove(stationId, entry);
+    }
+
+    public int size() {
+        return weatherData.size();
+    }
+
+    public void forEach(StationVisitor visitor) {
+        weatherData.forEach((stationId, entry) -> visitor.visit(stationId, entry.json, entry.timestamp));
+    }
+}
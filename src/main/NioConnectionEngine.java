@@ -0,0 +1,537 @@
+package main;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking connection engine. A single acceptor hands sockets round-robin to a small,
+// fixed pool of event loops, each multiplexing its connections over one Selector.
+//
+// Requests run on the event loop when their admission lane has room. Those that may block, and
+// those that find their lane full, go to the lane's own handler pool, whose threads and queue are
+// as many as the lane allows; a request the pool cannot queue gets 503 straight away.
+public class NioConnectionEngine implements ConnectionEngine {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int IDLE_SWEEP_INTERVAL = 1000;
+    private static final int STREAM_WRITE_LIMIT = 64 * 1024;
+
+    private final int workerCount;
+    private final AdmissionControl admission;
+    private final int backlog;
+    private final int idleTimeout;
+    private volatile ServerSocketChannel serverChannel;
+    private EventLoop[] loops = new EventLoop[0];
+    private ExecutorService putHandlers;
+    private ExecutorService getHandlers;
+
+    public NioConnectionEngine(int workerCount, AdmissionControl admission, int backlog, int idleTimeout) {
+        this.workerCount = workerCount;
+        this.admission = admission;
+        this.backlog = backlog;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void bind(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+    }
+
+    public void serve() throws IOException {
+        try {
+            // requests that may block (e.g. durable PUTs) run here instead of on an event loop
+            putHandlers = handlerPool(admission.getIngest());
+            getHandlers = handlerPool(admission.getRead());
+
+            loops = new EventLoop[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                loops[i] = new EventLoop(idleTimeout, admission, putHandlers, getHandlers);
+                Thread thread = new Thread(loops[i], "nio-worker-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            // accept connections and spread them across the event loops
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                long acceptedAt = System.nanoTime();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel, acceptedAt);
+                next = (next + 1) % loops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // close() was called
+        } finally {
+            close();
+        }
+    }
+
+    public void close() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        if (putHandlers != null) {
+            putHandlers.shutdown();
+            getHandlers.shutdown();
+        }
+    }
+
+    // Method to create the pool that runs a lane's offloaded requests: a thread for each request
+    // the lane handles at once, started on demand, and a queue as long as the lane's
+    private static ExecutorService handlerPool(AdmissionControl.Lane lane) {
+        BlockingQueue<Runnable> queue = lane.getQueue() > 0
+                ? new ArrayBlockingQueue<>(lane.getQueue())
+                : new SynchronousQueue<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(lane.getConcurrency(), lane.getConcurrency(),
+                60, TimeUnit.SECONDS, queue, task -> {
+                    Thread thread = new Thread(task, "nio-" + lane.getName() + "-handler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // A worker thread that owns a Selector and every connection registered with it
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final int idleTimeout;
+        private final AdmissionControl admission;
+        private final Executor putHandlers;
+        private final Executor getHandlers;
+        private volatile boolean running = true;
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop(int idleTimeout, AdmissionControl admission, Executor putHandlers, Executor getHandlers)
+                throws IOException {
+            this.selector = Selector.open();
+            this.idleTimeout = idleTimeout;
+            this.admission = admission;
+            this.putHandlers = putHandlers;
+            this.getHandlers = getHandlers;
+        }
+
+        Executor handlersFor(AdmissionControl.Lane lane) {
+            return lane == admission.getIngest() ? putHandlers : getHandlers;
+        }
+
+        // Method to run a task on this loop's thread, e.g. to deliver an offloaded response
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Method to hand a newly accepted channel to this loop, with the System.nanoTime() it was accepted at
+        void register(SocketChannel channel, long acceptedAt) {
+            pending.add(new Connection(channel, this, acceptedAt));
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        // Method to close connections that have not sent anything within the idle timeout, and
+        // those whose current request has not arrived within its deadlines
+        private void reapIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < IDLE_SWEEP_INTERVAL) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdle(now, idleTimeout)) {
+                    connection.close();
+                } else {
+                    connection.checkDeadlines(now, admission.getHeaderTimeout(), admission.getBodyTimeout());
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(IDLE_SWEEP_INTERVAL);
+
+                    Connection accepted;
+                    while ((accepted = pending.poll()) != null) {
+                        accepted.open(selector);
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    reapIdleConnections();
+                }
+            } catch (IOException e) {
+                ServerLog.error("Event loop stopped", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // A queued response's lent body buffer, and the response to release once it is written
+    private static class LentBody {
+        final ByteBuffer buffer;
+        final HttpResponse response;
+
+        LentBody(ByteBuffer buffer, HttpResponse response) {
+            this.buffer = buffer;
+            this.response = response;
+        }
+    }
+
+    // Per-connection state: the partially read requests and the queued response bytes. A connection
+    // that answered GET /weather/stream then only carries its subscription's frames.
+    private static class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final EventLoop loop;
+        private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        // Queued responses whose bodies are lent to them, released once the socket has taken the body
+        private final Deque<LentBody> lent = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean closing;
+        private boolean closed;
+        private boolean inFlight;
+        private ChangeFeed.Subscription stream;
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private long lastActive = System.currentTimeMillis();
+
+        // For the metrics: when the connection was accepted and whether it has sent anything since,
+        // and the last buffer of a queued GET response with when it was queued. Only one GET
+        // response per connection is timed at once.
+        private final long acceptedAt;
+        private boolean firstByteRead;
+        private ByteBuffer timedWrite;
+        private long timedWriteStart;
+
+        // The client's address for its rate limit, and when the request that has partly arrived
+        // started and when its headers were complete, 0 if there is none or they are not yet
+        private final String client;
+        private long requestStartedAt;
+        private long headReadAt;
+
+        Connection(SocketChannel channel, EventLoop loop, long acceptedAt) {
+            this.channel = channel;
+            this.loop = loop;
+            this.acceptedAt = acceptedAt;
+            this.client = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        // Called on the loop thread to start reading from the connection
+        void open(Selector selector) throws ClosedChannelException {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            ServerMetrics.CONNECTIONS.increment();
+        }
+
+        void onReadable() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            if (stream != null) {
+                readBuffer.clear(); // nothing more is expected from a subscriber
+            }
+            if (channel.read(readBuffer) < 0) {
+                closing = true; // client half-closed, finish any queued responses first
+                if (inFlight) {
+                    key.interestOps(0);
+                } else {
+                    flush();
+                }
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (!firstByteRead) {
+                ServerMetrics.recordSince(ServerMetrics.ACCEPT_TO_FIRST_BYTE, acceptedAt);
+                firstByteRead = true;
+            }
+            processBuffered();
+            flush();
+        }
+
+        // Method to handle every complete request in the buffer, queueing the responses in order.
+        // A request that may block is handed to the handler pool and later requests wait for it.
+        private void processBuffered() {
+            readBuffer.flip();
+            boolean consumed = false;
+            try {
+                while (!closing && !inFlight && stream == null) {
+                    long parseStart = System.nanoTime();
+                    HttpRequest request = HttpRequest.parse(readBuffer);
+                    if (request == null) {
+                        if (HttpRequest.exceedsLimits(readBuffer)) {
+                            throw new HttpRequest.MalformedRequestException("Request too large");
+                        }
+                        break;
+                    }
+                    ServerMetrics.recordSince(ServerMetrics.HEADER_PARSE, parseStart);
+                    consumed = true;
+                    boolean get = request.getMethod().equals("GET");
+                    HttpResponse rejected = loop.admission.checkRate(request, client);
+                    AdmissionControl.Lane lane = loop.admission.laneOf(request);
+                    if (rejected != null) {
+                        enqueue(rejected, false);
+                    } else if (AggregationServer.RequestHandler.mayBlock(request)) {
+                        offload(request, lane, get);
+                    } else if (AggregationServer.RequestHandler.isDeferred(request)) {
+                        // a long-poll holds no place in its lane while it waits
+                        inFlight = true;
+                        AggregationServer.RequestHandler.processDeferred(request,
+                                response -> loop.execute(() -> onCompleted(response, get)));
+                    } else if (lane.tryEnter()) {
+                        try {
+                            enqueue(AggregationServer.RequestHandler.process(request), get);
+                        } finally {
+                            lane.exit();
+                        }
+                    } else {
+                        offload(request, lane, get); // wait for room off the event loop
+                    }
+                }
+            } catch (HttpRequest.MalformedRequestException e) {
+                readBuffer.position(readBuffer.limit());
+                enqueue(AggregationServer.handleInvalidRequest(), false);
+            }
+            trackDeadlines(consumed);
+            readBuffer.compact();
+        }
+
+        // Method to run a request on its lane's handler pool, where it may block or wait for room
+        // in the lane. Later requests on the connection wait for it. A request the pool has no
+        // room to queue is shed with 503.
+        private void offload(HttpRequest request, AdmissionControl.Lane lane, boolean get) {
+            try {
+                loop.handlersFor(lane).execute(() -> {
+                    HttpResponse response;
+                    if (lane.enter()) {
+                        try {
+                            response = AggregationServer.RequestHandler.process(request);
+                        } finally {
+                            lane.exit();
+                        }
+                    } else {
+                        response = AdmissionControl.overloaded(request);
+                    }
+                    loop.execute(() -> onCompleted(response, get));
+                });
+                inFlight = true;
+            } catch (RejectedExecutionException e) {
+                enqueue(AdmissionControl.overloaded(request), false);
+            }
+        }
+
+        // Method to note when the request left in the buffer (in read mode) started, restarting
+        // the clock whenever a whole request was taken out of it, and when its headers were complete
+        private void trackDeadlines(boolean consumed) {
+            if (!readBuffer.hasRemaining() || stream != null || closing) {
+                requestStartedAt = 0;
+                headReadAt = 0;
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (consumed || requestStartedAt == 0) {
+                requestStartedAt = now;
+                headReadAt = 0;
+            }
+            if (headReadAt == 0 && HttpRequest.hasCompleteHead(readBuffer)) {
+                headReadAt = now;
+            }
+        }
+
+        // Method to answer 408 and close once a partly received request runs out of time: its
+        // headers must arrive within headerTimeout of its start, then its body within bodyTimeout.
+        // Requests waiting behind one in flight are not timed.
+        void checkDeadlines(long now, int headerTimeout, int bodyTimeout) {
+            if (requestStartedAt == 0 || inFlight || closing || !writeQueue.isEmpty()) {
+                return;
+            }
+            boolean late = headReadAt == 0
+                    ? now - requestStartedAt > headerTimeout
+                    : now - headReadAt > bodyTimeout;
+            if (late) {
+                readBuffer.clear();
+                requestStartedAt = 0;
+                enqueue(AdmissionControl.requestTimeout(), false);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        // Called on the loop thread once an offloaded request has its response
+        private void onCompleted(HttpResponse response, boolean get) {
+            inFlight = false;
+            if (!channel.isOpen()) {
+                response.release();
+                return;
+            }
+            try {
+                boolean halfClosed = closing;
+                closing = false;
+                enqueue(response, get);
+                processBuffered();
+                closing |= halfClosed;
+                flush();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        // Method to queue a response, timing its write if it answers a GET and none is being timed
+        private void enqueue(HttpResponse response, boolean get) {
+            ByteBuffer[] buffers = response.toBuffers();
+            Collections.addAll(writeQueue, buffers);
+            if (response.isLent()) {
+                lent.addLast(new LentBody(buffers[buffers.length - 1], response));
+            }
+            if (get && timedWrite == null && response.getStream() == null) {
+                int last = buffers.length - 1;
+                while (last > 0 && !buffers[last].hasRemaining()) {
+                    last--; // a response without a body is written once its head is
+                }
+                timedWrite = buffers[last];
+                timedWriteStart = System.nanoTime();
+            }
+            if (response.getStream() != null) {
+                stream = response.getStream();
+                stream.setListener(() -> {
+                    if (drainScheduled.compareAndSet(false, true)) {
+                        loop.execute(this::drainStream);
+                    }
+                });
+            } else if (response.isClose()) {
+                closing = true;
+            }
+        }
+
+        // Called on the loop thread when the subscription has frames: moves them to the write
+        // queue while less than STREAM_WRITE_LIMIT is waiting for the socket. Frames the client
+        // is too slow to take stay in the subscription until it is full and drops the client.
+        private void drainStream() {
+            drainScheduled.set(false);
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (stream.isDropped()) {
+                close();
+                return;
+            }
+            long pending = 0;
+            for (ByteBuffer buffer : writeQueue) {
+                pending += buffer.remaining();
+            }
+            ByteBuffer frame;
+            while (pending < STREAM_WRITE_LIMIT && (frame = stream.poll()) != null) {
+                writeQueue.add(frame);
+                pending += frame.remaining();
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (stream != null) {
+                drainStream();
+            } else {
+                flush();
+            }
+        }
+
+        // Method to write as much of the queue as the socket accepts with one gathering write.
+        // Reading is paused while responses are pending so a pipelining client cannot queue
+        // unbounded output, and while a request is in flight, as the requests behind it are not
+        // parsed (or checked against the size limits) until it completes.
+        private void flush() throws IOException {
+            if (!writeQueue.isEmpty()) {
+                channel.write(writeQueue.toArray(new ByteBuffer[0]));
+                while (!writeQueue.isEmpty() && !writeQueue.peekFirst().hasRemaining()) {
+                    writeQueue.pollFirst();
+                }
+                while (!lent.isEmpty() && !lent.peekFirst().buffer.hasRemaining()) {
+                    lent.pollFirst().response.release();
+                }
+                if (timedWrite != null && !timedWrite.hasRemaining()) {
+                    ServerMetrics.recordSince(ServerMetrics.GET_WRITE, timedWriteStart);
+                    timedWrite = null;
+                }
+            }
+
+            if (!writeQueue.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (closing) {
+                close();
+            } else {
+                key.interestOps(inFlight ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        boolean isIdle(long now, int idleTimeout) {
+            return !inFlight && stream == null && writeQueue.isEmpty() && now - lastActive > idleTimeout;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ServerMetrics.CONNECTIONS.decrement();
+            while (!lent.isEmpty()) {
+                lent.pollFirst().response.release();
+            }
+            if (stream != null) {
+                stream.close();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
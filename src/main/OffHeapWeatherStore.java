@@ -0,0 +1,427 @@
+package main;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Store that keeps every station in a fixed-size record in direct (off-heap) memory, so a large
+// number of stations costs the garbage collector almost nothing. Numeric fields are primitive
+// slots, with the fraction digits each was written with so they render as sent. The repetitive
+// string fields (name, state, time zone, cloud, wind direction) are dictionary codes; the local
+// times, different in every observation, are kept inline as UTF-8 so the dictionary only grows
+// with the number of distinct places. The Lamport version of the station's current write is kept in
+// the record too (see StationVersions). Only the id -> slot index and the dictionary live on the heap.
+//
+// The server keeps no other copy of a station's JSON with this store, so every read, the full feed
+// included, is rendered from the records: stations are served with the known fields only, in the
+// layout the content servers send.
+//
+// Writers are serialised; readers never lock. Each record starts with a version that is odd while
+// the record is being written (a seqlock), and readers retry if it changed under them.
+public class OffHeapWeatherStore implements WeatherStore {
+    private static final int CHUNK_RECORDS = 16384;
+    private static final VarHandle VERSION = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    // Record layout, in bytes
+    private static final int VERSION_OFFSET = 0;
+    private static final int PRESENT_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int SCALES_OFFSET = 104;
+    private static final int TEXT_OFFSET = 112;
+    private static final int LAMPORT_OFFSET = 176;
+    private static final int ORIGIN_OFFSET = 184;
+    private static final int RECORD_SIZE = 192;
+
+    private static final int DOUBLE = 0;
+    private static final int INT = 1;
+    private static final int STRING = 2;
+    private static final int TEXT = 3;
+
+    // An inline string is a length byte and up to 31 bytes of UTF-8. A longer one, which content
+    // servers do not send, is stored in the dictionary instead, marked by a length of TEXT_IN_DICTIONARY.
+    private static final int TEXT_SIZE = 32;
+    private static final int TEXT_IN_DICTIONARY = 0xFF;
+
+    // Every field except id, in the order they are rendered, with its kind and record offset
+    private static final Field[] FIELDS = {
+            new Field("name", STRING, 72),
+            new Field("state", STRING, 76),
+            new Field("time_zone", STRING, 80),
+            new Field("lat", DOUBLE, 16),
+            new Field("lon", DOUBLE, 24),
+            new Field("local_date_time", TEXT, TEXT_OFFSET),
+            new Field("local_date_time_full", TEXT, TEXT_OFFSET + TEXT_SIZE),
+            new Field("air_temp", DOUBLE, 32),
+            new Field("apparent_t", DOUBLE, 40),
+            new Field("cloud", STRING, 84),
+            new Field("dewpt", DOUBLE, 48),
+            new Field("press", DOUBLE, 56),
+            new Field("rel_hum", DOUBLE, 64),
+            new Field("wind_dir", STRING, 88),
+            new Field("wind_spd_kmh", INT, 92),
+            new Field("wind_spd_kt", INT, 96),
+    };
+
+    private static class Field {
+        final String name;
+        final int kind;
+        final int offset;
+
+        Field(String name, int kind, int offset) {
+            this.name = name;
+            this.kind = kind;
+            this.offset = offset;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<>();
+    private final StringDictionary dictionary = new StringDictionary();
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private volatile String[][] owners = new String[0][];
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int nextSlot;
+
+    public boolean put(String stationId, String json, long timestamp) {
+        try {
+            return store(stationId, WeatherDataParser.parse(json.getBytes(StandardCharsets.UTF_8)), timestamp);
+        } catch (WeatherDataParser.ParseException e) {
+            throw new IllegalArgumentException("Invalid weather data: " + e.getMessage(), e);
+        }
+    }
+
+    public boolean put(WeatherData data, String json, long timestamp) {
+        return store(data.getId(), data, timestamp);
+    }
+
+    // A batch is encoded first and then written under a single acquisition of the writer lock
+    public boolean[] putAll(List<WeatherData> data, List<String> json, long timestamp) {
+        Encoded[] values = new Encoded[data.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = encode(data.get(i));
+        }
+        boolean[] isNew = new boolean[values.length];
+        synchronized (this) {
+            for (int i = 0; i < values.length; i++) {
+                isNew[i] = write(data.get(i).getId(), values[i], timestamp);
+            }
+        }
+        return isNew;
+    }
+
+    private boolean store(String stationId, WeatherData data, long timestamp) {
+        Encoded values = encode(data); // outside the writer lock
+        synchronized (this) {
+            return write(stationId, values, timestamp);
+        }
+    }
+
+    // A station's fields encoded for its record
+    private static class Encoded {
+        final long[] values = new long[FIELDS.length];
+        final byte[] text = new byte[2 * TEXT_SIZE];
+        int present;
+        long scales;
+    }
+
+    // Method to encode a station's fields into record values; FIELDS[i] is WeatherData field i + 1
+    private Encoded encode(WeatherData data) {
+        Encoded encoded = new Encoded();
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (!data.has(i + 1)) {
+                continue;
+            }
+            if (FIELDS[i].kind == TEXT) {
+                String value = i + 1 == WeatherData.LOCAL_DATE_TIME ? data.getLocal_date_time() : data.getLocal_date_time_full();
+                if (value == null) {
+                    continue;
+                }
+                encodeText(value, encoded.text, FIELDS[i].offset - TEXT_OFFSET);
+            } else {
+                encoded.values[i] = encode(data, i + 1);
+                if (FIELDS[i].kind == STRING && encoded.values[i] == StringDictionary.NULL_CODE) {
+                    continue; // a null string is left out like a missing one
+                }
+                if (FIELDS[i].kind == DOUBLE) {
+                    encoded.scales |= (long) (data.getScale(i + 1) + 1) << (i * 4);
+                }
+            }
+            encoded.present |= 1 << i;
+        }
+        return encoded;
+    }
+
+    // Method to write a string into its inline slot: its length, then its UTF-8 bytes
+    private void encodeText(String value, byte[] text, int offset) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < TEXT_SIZE) {
+            text[offset] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, text, offset + 1, bytes.length);
+        } else {
+            text[offset] = (byte) TEXT_IN_DICTIONARY;
+            ByteBuffer.wrap(text, offset + 1, 4).putInt(dictionary.encode(value));
+        }
+    }
+
+    private String decodeText(byte[] text, int offset) {
+        int length = text[offset] & 0xFF;
+        return length == TEXT_IN_DICTIONARY
+                ? dictionary.decode(ByteBuffer.wrap(text, offset + 1, 4).getInt())
+                : new String(text, offset + 1, length, StandardCharsets.UTF_8);
+    }
+
+    // Method to write encoded values into the station's record. Must be called holding the writer lock.
+    private boolean write(String stationId, Encoded values, long timestamp) {
+        Integer existing = index.get(stationId);
+        int slot = existing != null ? existing : allocateSlot();
+        ByteBuffer chunk = chunks[slot / CHUNK_RECORDS];
+        int offset = (slot % CHUNK_RECORDS) * RECORD_SIZE;
+
+        int version = (int) VERSION.get(chunk, offset + VERSION_OFFSET);
+        VERSION.setOpaque(chunk, offset + VERSION_OFFSET, version + 1);
+        VarHandle.storeStoreFence();
+        chunk.putInt(offset + PRESENT_OFFSET, values.present);
+        chunk.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+        chunk.putLong(offset + SCALES_OFFSET, values.scales);
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].kind == DOUBLE) {
+                chunk.putLong(offset + FIELDS[i].offset, values.values[i]);
+            } else if (FIELDS[i].kind != TEXT) {
+                chunk.putInt(offset + FIELDS[i].offset, (int) values.values[i]);
+            }
+        }
+        chunk.put(offset + TEXT_OFFSET, values.text, 0, values.text.length);
+        if (existing == null) {
+            chunk.putLong(offset + LAMPORT_OFFSET, 0);
+            chunk.putInt(offset + ORIGIN_OFFSET, StringDictionary.NULL_CODE); // no version yet
+        }
+        owners[slot / CHUNK_RECORDS][slot % CHUNK_RECORDS] = stationId;
+        VERSION.setRelease(chunk, offset + VERSION_OFFSET, version + 2);
+
+        if (existing == null) {
+            index.put(stationId, slot);
+        }
+        return existing == null;
+    }
+
+    // Method to encode one field's value into its record slot
+    private long encode(WeatherData data, int field) {
+        switch (field) {
+            case WeatherData.NAME: return dictionary.encode(data.getName());
+            case WeatherData.STATE: return dictionary.encode(data.getState());
+            case WeatherData.TIME_ZONE: return dictionary.encode(data.getTime_zone());
+            case WeatherData.LAT: return Double.doubleToRawLongBits(data.getLat());
+            case WeatherData.LON: return Double.doubleToRawLongBits(data.getLon());
+            case WeatherData.AIR_TEMP: return Double.doubleToRawLongBits(data.getAir_temp());
+            case WeatherData.APPARENT_T: return Double.doubleToRawLongBits(data.getApparent_t());
+            case WeatherData.CLOUD: return dictionary.encode(data.getCloud());
+            case WeatherData.DEWPT: return Double.doubleToRawLongBits(data.getDewpt());
+            case WeatherData.PRESS: return Double.doubleToRawLongBits(data.getPress());
+            case WeatherData.REL_HUM: return Double.doubleToRawLongBits(data.getRel_hum());
+            case WeatherData.WIND_DIR: return dictionary.encode(data.getWind_dir());
+            case WeatherData.WIND_SPD_KMH: return data.getWind_spd_kmh();
+            case WeatherData.WIND_SPD_KT: return data.getWind_spd_kt();
+            default: throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    public String get(String stationId) {
+        Record record = read(stationId);
+        return record == null ? null : render(stationId, record);
+    }
+
+    public boolean keepsJsonAsSent() {
+        return false;
+    }
+
+    // Method to keep the Lamport version of a stored station's current write in its record, with
+    // the source as a dictionary code. Does nothing if the station is not stored.
+    public synchronized void putVersion(String stationId, long lamportTime, String origin) {
+        Integer slot = index.get(stationId);
+        if (slot == null) {
+            return;
+        }
+        int code = dictionary.encode(origin);
+        ByteBuffer chunk = chunks[slot / CHUNK_RECORDS];
+        int offset = (slot % CHUNK_RECORDS) * RECORD_SIZE;
+        int version = (int) VERSION.get(chunk, offset + VERSION_OFFSET);
+        VERSION.setOpaque(chunk, offset + VERSION_OFFSET, version + 1);
+        VarHandle.storeStoreFence();
+        chunk.putLong(offset + LAMPORT_OFFSET, lamportTime);
+        chunk.putInt(offset + ORIGIN_OFFSET, code);
+        VERSION.setRelease(chunk, offset + VERSION_OFFSET, version + 2);
+    }
+
+    // The Lamport version kept for a station with the time it was received, null if it is not
+    // stored or has none yet
+    public StationVersions.Version getVersion(String stationId) {
+        Record record = read(stationId);
+        return record == null || record.origin == StringDictionary.NULL_CODE
+                ? null
+                : new StationVersions.Version(record.lamportTime, dictionary.decode(record.origin), record.timestamp);
+    }
+
+    public synchronized boolean remove(String stationId) {
+        Integer slot = index.remove(stationId);
+        if (slot == null) {
+            return false;
+        }
+        freeSlot(slot);
+        return true;
+    }
+
+    public synchronized boolean remove(String stationId, long timestamp) {
+        Integer slot = index.get(stationId);
+        if (slot == null) {
+            return false;
+        }
+        ByteBuffer chunk = chunks[slot / CHUNK_RECORDS];
+        if (chunk.getLong((slot % CHUNK_RECORDS) * RECORD_SIZE + TIMESTAMP_OFFSET) != timestamp) {
+            return false;
+        }
+        index.remove(stationId);
+        freeSlot(slot);
+        return true;
+    }
+
+    // Must be called holding the writer lock, after the slot was removed from the index
+    private void freeSlot(int slot) {
+        ByteBuffer chunk = chunks[slot / CHUNK_RECORDS];
+        int offset = (slot % CHUNK_RECORDS) * RECORD_SIZE;
+        int version = (int) VERSION.get(chunk, offset + VERSION_OFFSET);
+        VERSION.setOpaque(chunk, offset + VERSION_OFFSET, version + 1);
+        VarHandle.storeStoreFence();
+        owners[slot / CHUNK_RECORDS][slot % CHUNK_RECORDS] = null;
+        VERSION.setRelease(chunk, offset + VERSION_OFFSET, version + 2);
+
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public void forEach(StationVisitor visitor) {
+        for (String stationId : index.keySet()) {
+            Record record = read(stationId);
+            if (record != null) {
+                visitor.visit(stationId, render(stationId, record), record.timestamp);
+            }
+        }
+    }
+
+    // Off-heap bytes reserved for records, for sizing and monitoring
+    public long reservedBytes() {
+        return (long) chunks.length * CHUNK_RECORDS * RECORD_SIZE;
+    }
+
+    // Distinct strings held in the dictionary on the heap
+    public int dictionarySize() {
+        return dictionary.size();
+    }
+
+    // Must be called holding the writer lock
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        int slot = nextSlot++;
+        if (slot / CHUNK_RECORDS >= chunks.length) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE).order(ByteOrder.nativeOrder());
+            String[][] grownOwners = Arrays.copyOf(owners, owners.length + 1);
+            grownOwners[grownOwners.length - 1] = new String[CHUNK_RECORDS];
+            ByteBuffer[] grownChunks = Arrays.copyOf(chunks, chunks.length + 1);
+            grownChunks[grownChunks.length - 1] = chunk;
+            owners = grownOwners;
+            chunks = grownChunks;
+        }
+        return slot;
+    }
+
+    // A consistent copy of one record, decoded off the off-heap slot
+    private static class Record {
+        int present;
+        long timestamp;
+        long scales;
+        long lamportTime;
+        int origin;
+        final long[] values = new long[FIELDS.length];
+        final byte[] text = new byte[2 * TEXT_SIZE];
+    }
+
+    // Method to copy a station's record without locking, retrying while a writer is active
+    private Record read(String stationId) {
+        Record record = new Record();
+        while (true) {
+            Integer slot = index.get(stationId);
+            if (slot == null) {
+                return null;
+            }
+            ByteBuffer chunk = chunks[slot / CHUNK_RECORDS];
+            int offset = (slot % CHUNK_RECORDS) * RECORD_SIZE;
+
+            int before = (int) VERSION.getAcquire(chunk, offset + VERSION_OFFSET);
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            String owner = owners[slot / CHUNK_RECORDS][slot % CHUNK_RECORDS];
+            record.present = chunk.getInt(offset + PRESENT_OFFSET);
+            record.timestamp = chunk.getLong(offset + TIMESTAMP_OFFSET);
+            record.scales = chunk.getLong(offset + SCALES_OFFSET);
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (FIELDS[i].kind != TEXT) {
+                    record.values[i] = FIELDS[i].kind == DOUBLE
+                            ? chunk.getLong(offset + FIELDS[i].offset)
+                            : chunk.getInt(offset + FIELDS[i].offset);
+                }
+            }
+            chunk.get(offset + TEXT_OFFSET, record.text, 0, record.text.length);
+            record.lamportTime = chunk.getLong(offset + LAMPORT_OFFSET);
+            record.origin = chunk.getInt(offset + ORIGIN_OFFSET);
+            VarHandle.loadLoadFence();
+            int after = (int) VERSION.getOpaque(chunk, offset + VERSION_OFFSET);
+
+            if (before == after) {
+                // the slot may have been freed and reused for another station before we read it
+                return stationId.equals(owner) ? record : null;
+            }
+        }
+    }
+
+    // Method to render a record as JSON in the same layout the content servers send
+    private String render(String stationId, Record record) {
+        StringBuilder json = new StringBuilder(384);
+        json.append("{\n    \"id\": ");
+        JsonText.appendString(json, stationId);
+        for (int i = 0; i < FIELDS.length; i++) {
+            if ((record.present & (1 << i)) == 0) {
+                continue;
+            }
+            json.append(",\n    \"").append(FIELDS[i].name).append("\": ");
+            switch (FIELDS[i].kind) {
+                case DOUBLE:
+                    JsonText.appendNumber(json, Double.longBitsToDouble(record.values[i]),
+                            (int) (record.scales >>> (i * 4) & 0xF) - 1);
+                    break;
+                case INT:
+                    json.append((int) record.values[i]);
+                    break;
+                case TEXT:
+                    JsonText.appendString(json, decodeText(record.text, FIELDS[i].offset - TEXT_OFFSET));
+                    break;
+                default:
+                    JsonText.appendString(json, dictionary.decode((int) record.values[i]));
+            }
+        }
+        return json.append("\n}").toString();
+    }
+}
@@ -0,0 +1,236 @@
+package main;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// A client connection to an aggregation server that stays open across requests, so repeated
+// PUTs and GETs do not pay a TCP handshake each time.
+public class PersistentConnection implements Closeable {
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 10000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    public PersistentConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Method to parse a "host:port" server address
+    public static PersistentConnection forAddress(String serverAddress) {
+        String[] serverDetails = serverAddress.split(":");
+        return new PersistentConnection(serverDetails[0], Integer.parseInt(serverDetails[1]));
+    }
+
+    // Reads a response body as it arrives, rather than once it has been buffered whole
+    public interface BodyReader<T> {
+        // Called with the response's status line and headers and its body, already decoded from
+        // any Content-Encoding. The body ends where the response does; what is left unread is skipped.
+        T read(HttpResponse head, InputStream body) throws IOException;
+    }
+
+    public synchronized boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    // Method to send a request and read its response. A reused connection may have been reaped
+    // by the server while idle, in which case the request is retried once on a fresh socket. The
+    // connection is closed after a failure, so the next request starts on a fresh socket.
+    public synchronized HttpResponse send(String method, String target, Map<String, String> headers,
+                                          byte[] body) throws IOException {
+        boolean reused = isOpen();
+        try {
+            return exchange(method, target, headers, body);
+        } catch (IOException e) {
+            close();
+            if (!reused) {
+                throw e;
+            }
+        }
+        try {
+            return exchange(method, target, headers, body);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Method to send a request and hand its response body to the reader as it is received,
+    // framed by Content-Length. Returns what the reader returns. As with send(), a request on a
+    // reused connection that fails before the response starts is retried once.
+    public synchronized <T> T send(String method, String target, Map<String, String> headers, byte[] body,
+                                   BodyReader<T> reader) throws IOException {
+        boolean reused = isOpen();
+        HttpResponse head;
+        try {
+            writeRequest(method, target, headers, body);
+            head = HttpResponse.readHead(in);
+        } catch (IOException e) {
+            close();
+            if (!reused) {
+                throw e;
+            }
+            try {
+                writeRequest(method, target, headers, body);
+                head = HttpResponse.readHead(in);
+            } catch (IOException retryFailure) {
+                close();
+                throw retryFailure;
+            }
+        }
+
+        try {
+            BodyStream framed = new BodyStream(in, head);
+            String encoding = head.getHeader("Content-Encoding");
+            T result = reader.read(head, encoding != null ? HttpCompression.decompressing(framed, encoding) : framed);
+            framed.skipRest();
+            if (head.isClose() || !framed.isFramed()) {
+                close();
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            close(); // the rest of the response is still on its way
+            throw e;
+        }
+    }
+
+    private HttpResponse exchange(String method, String target, Map<String, String> headers,
+                                  byte[] body) throws IOException {
+        writeRequest(method, target, headers, body);
+        HttpResponse response = HttpResponse.read(in);
+        if (response.isClose()) {
+            close();
+        }
+        return response;
+    }
+
+    private void writeRequest(String method, String target, Map<String, String> headers,
+                              byte[] body) throws IOException {
+        if (!isOpen()) {
+            connect();
+        }
+
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body.length > 0) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+
+    // Method to close the socket from another thread, e.g. to abandon a request that is no longer
+    // wanted; a reader blocked on it fails with an IOException
+    public void abort() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // A response body, ending after Content-Length bytes, or at the end of the stream when the
+    // server sent no length. Closing it leaves the connection open.
+    private static class BodyStream extends FilterInputStream {
+        private final boolean framed;
+        private long remaining;
+
+        BodyStream(InputStream in, HttpResponse head) throws IOException {
+            super(in);
+            String contentLength = head.getHeader("Content-Length");
+            if (!HttpResponse.hasBody(head.getStatus())) {
+                framed = true;
+                remaining = 0;
+            } else if (contentLength != null) {
+                framed = true;
+                try {
+                    remaining = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length: " + contentLength);
+                }
+            } else {
+                framed = false;
+                remaining = Long.MAX_VALUE;
+            }
+        }
+
+        boolean isFramed() { return framed; }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                if (framed) {
+                    throw new EOFException("Connection closed mid-response");
+                }
+                remaining = 0;
+                return -1;
+            }
+            remaining -= n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(read, 0);
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        // Method to read past whatever the reader left, so the next response starts where it should
+        void skipRest() throws IOException {
+            byte[] skipped = new byte[8192];
+            while (read(skipped, 0, skipped.length) >= 0) {
+                // discard
+            }
+        }
+
+        public void close() {
+            // the connection stays open for the next request
+        }
+    }
+}
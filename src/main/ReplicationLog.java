@@ -0,0 +1,167 @@
+package main;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+// The writes this server has applied, in the order it applied them, for other servers to copy.
+// Only kept when the server is started with peers.
+//
+// Every accepted write, whether from a PUT or copied from a peer, gets the next sequence number
+// and goes into a bounded tail that peers read with GET /replication/log?epoch=...&since=....
+// A peer that is new, was down for longer than the tail covers, or finds this server restarted
+// (a new epoch) loads a snapshot of the live stations instead, read from the store, and follows
+// the tail from the sequence it was taken at.
+//
+// Every write keeps its Lamport version, see StationVersions for how writes are ordered.
+public class ReplicationLog {
+    private final String nodeId;
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final int capacity;
+    private final ArrayDeque<Entry> tail = new ArrayDeque<>();
+    private long lastSequence;
+
+    // One applied write: a station's JSON, when it was first received, and its Lamport version
+    public static class Entry {
+        private final long sequence;
+        private final String stationId;
+        private final String json;
+        private final long timestamp;
+        private final long lamportTime;
+        private final String origin;
+
+        public Entry(long sequence, String stationId, String json, long timestamp, long lamportTime, String origin) {
+            this.sequence = sequence;
+            this.stationId = stationId;
+            this.json = json;
+            this.timestamp = timestamp;
+            this.lamportTime = lamportTime;
+            this.origin = origin;
+        }
+
+        public long getSequence() { return sequence; }
+
+        public String getStationId() { return stationId; }
+
+        public String getJson() { return json; }
+
+        public long getTimestamp() { return timestamp; }
+
+        public long getLamportTime() { return lamportTime; }
+
+        public String getOrigin() { return origin; }
+    }
+
+    // A consistent copy of the live stations and the sequence number it was taken at
+    public static class Snapshot {
+        private final long epoch;
+        private final long sequence;
+        private final List<Entry> entries;
+
+        Snapshot(long epoch, long sequence, List<Entry> entries) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.entries = entries;
+        }
+
+        public long getEpoch() { return epoch; }
+
+        public long getSequence() { return sequence; }
+
+        public List<Entry> getEntries() { return entries; }
+    }
+
+    public ReplicationLog(String nodeId, int capacity) {
+        this.nodeId = nodeId;
+        this.capacity = capacity;
+    }
+
+    public String getNodeId() { return nodeId; }
+
+    // Changes on every restart, so peers know their sequence numbers no longer apply
+    public long getEpoch() { return epoch; }
+
+    public synchronized long getLastSequence() { return lastSequence; }
+
+    // Method to record a write applied by this server, with the version it won at
+    public synchronized Entry record(String stationId, String json, long timestamp, long lamportTime, String origin) {
+        Entry recorded = new Entry(++lastSequence, stationId, json, timestamp, lamportTime, origin);
+        tail.addLast(recorded);
+        if (tail.size() > capacity) {
+            tail.removeFirst();
+        }
+        return recorded;
+    }
+
+    // Method to read up to max entries after the given sequence number. Returns null if some of
+    // them are no longer in the tail, in which case the reader must start from a snapshot.
+    public synchronized List<Entry> since(long sequence, int max) {
+        if (sequence > lastSequence) {
+            return null; // from a previous run that got further
+        }
+        long first = tail.isEmpty() ? lastSequence + 1 : tail.peekFirst().sequence;
+        if (sequence + 1 < first) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>();
+        Iterator<Entry> iterator = tail.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.sequence <= sequence) {
+                break;
+            }
+            entries.add(entry);
+        }
+        Collections.reverse(entries);
+        return entries.size() > max ? new ArrayList<>(entries.subList(0, max)) : entries;
+    }
+
+    // Method to take a snapshot of the live stations read by the given supplier. The sequence is
+    // read first, and every write up to it is stored before it is recorded, so the stations hold
+    // at least those writes; any later ones they hold are sent again by the tail and lose harmlessly.
+    public Snapshot snapshot(Supplier<List<Entry>> stations) {
+        long sequence = getLastSequence();
+        return new Snapshot(epoch, sequence, stations.get());
+    }
+
+    // Method to encode entries for the wire, in the same layout as write-ahead log records
+    public static byte[] encode(List<Entry> entries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.sequence);
+                out.writeLong(entry.lamportTime);
+                out.writeLong(entry.timestamp);
+                out.writeUTF(entry.origin);
+                out.writeUTF(entry.stationId);
+                byte[] json = entry.json.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(json.length);
+                out.write(json);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen writing to memory
+        }
+    }
+
+    public static List<Entry> decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(Math.min(count, 4096));
+        for (int i = 0; i < count; i++) {
+            long sequence = in.readLong();
+            long lamportTime = in.readLong();
+            long timestamp = in.readLong();
+            String origin = in.readUTF();
+            String stationId = in.readUTF();
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            entries.add(new Entry(sequence, stationId, new String(json, StandardCharsets.UTF_8), timestamp, lamportTime, origin));
+        }
+        return entries;
+    }
+}
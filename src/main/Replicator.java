@@ -0,0 +1,110 @@
+package main;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Copies the writes of one peer aggregation server into this one, asynchronously.
+//
+// It polls the peer's replication log for entries after the last sequence it applied and hands
+// them over in order. When it has no position yet, or the peer answers that the position is
+// gone (the peer restarted or the tail no longer reaches back that far), it loads the peer's
+// snapshot and follows the log from there. A peer that is down is polled again after an
+// exponential, jittered backoff.
+public class Replicator implements Runnable {
+    private static final int BATCH_SIZE = 1000;
+
+    private final String peer;
+    private final String nodeId;
+    private final long pollInterval;
+    private final Consumer<ReplicationLog.Entry> apply;
+    private final PersistentConnection connection;
+    private long epoch;
+    private long sequence;
+    private int failures;
+    private volatile boolean running = true;
+
+    public Replicator(String peer, String nodeId, long pollInterval, Consumer<ReplicationLog.Entry> apply) {
+        this.peer = peer;
+        this.nodeId = nodeId;
+        this.pollInterval = pollInterval;
+        this.apply = apply;
+        this.connection = PersistentConnection.forAddress(peer);
+    }
+
+    // Method to start replicating on a daemon thread
+    public static Replicator start(String peer, String nodeId, long pollInterval, Consumer<ReplicationLog.Entry> apply) {
+        Replicator replicator = new Replicator(peer, nodeId, pollInterval, apply);
+        Thread thread = new Thread(replicator, "replicator-" + peer);
+        thread.setDaemon(true);
+        thread.start();
+        return replicator;
+    }
+
+    public void run() {
+        while (running) {
+            long delay;
+            try {
+                delay = pollOnce() < BATCH_SIZE ? pollInterval : 0;
+                failures = 0;
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+                delay = ServerPool.backoff(++failures);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // Method to fetch and apply the next entries, returns how many were applied
+    public int pollOnce() throws IOException {
+        if (epoch == 0) {
+            return loadSnapshot();
+        }
+
+        HttpResponse response = request("/replication/log?epoch=" + epoch + "&since=" + sequence + "&max=" + BATCH_SIZE);
+        if (response.getStatus() == 410) {
+            return loadSnapshot(); // the peer can no longer serve our position
+        }
+        if (response.getStatus() != 200) {
+            throw new IOException(peer + " answered " + response.getStatus() + " " + response.getReason());
+        }
+        List<ReplicationLog.Entry> entries = ReplicationLog.decode(response.getBody());
+        for (ReplicationLog.Entry entry : entries) {
+            apply.accept(entry);
+            sequence = entry.getSequence();
+        }
+        return entries.size();
+    }
+
+    // Method to apply the peer's live stations and follow its log from the snapshot's position
+    private int loadSnapshot() throws IOException {
+        HttpResponse response = request("/replication/snapshot");
+        if (response.getStatus() != 200) {
+            throw new IOException(peer + " answered " + response.getStatus() + " " + response.getReason());
+        }
+        List<ReplicationLog.Entry> entries = ReplicationLog.decode(response.getBody());
+        for (ReplicationLog.Entry entry : entries) {
+            apply.accept(entry);
+        }
+        epoch = Long.parseLong(response.getHeader("Replication-Epoch"));
+        sequence = Long.parseLong(response.getHeader("Replication-Sequence"));
+        ServerLog.info("Loaded " + entries.size() + " stations from " + peer + " at sequence " + sequence);
+        return entries.size();
+    }
+
+    private HttpResponse request(String target) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "ATOMReplica/1.0");
+        headers.put("Replication-Node", nodeId);
+        return connection.send("GET", target, headers, new byte[0]);
+    }
+}
@@ -0,0 +1,200 @@
+package main;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Startup options for the AggregationServer.
+// Usage: java main.AggregationServer [port] [--engine=nio|virtual|thread] [--workers=N] [--backlog=N]
+//        [--idle-timeout=ms] [--store=map|offheap] [--data-dir=DIR] [--checkpoint-interval=ms]
+//        [--history=N] [--history-window=ms] [--history-budget=N] [--node-id=NAME] [--peers=host:port,...]
+//        [--replication-interval=ms] [--replication-log=N] [--shards=host:port,...]
+//        [--put-concurrency=N] [--put-queue=N] [--get-concurrency=N] [--get-queue=N] [--queue-timeout=ms]
+//        [--rate-limit=req/s] [--rate-burst=N] [--header-timeout=ms] [--body-timeout=ms]
+public class ServerConfig {
+    private int port = 4567;
+    private String engine = "nio";
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int backlog = 1024;
+    private int idleTimeout = 30000;
+    private String store = "map";
+    private Path dataDir;
+    private long checkpointInterval = 60000;
+    private int history = 120;
+    private long historyWindow;
+    private long historyBudget = StationHistory.DEFAULT_BUDGET;
+    private String nodeId;
+    private List<String> peers = Collections.emptyList();
+    private long replicationInterval = 100;
+    private int replicationLog = 65536;
+    private List<String> shards = Collections.emptyList();
+    private int putConcurrency = 64;
+    private int putQueue = 1024;
+    private int getConcurrency = 256;
+    private int getQueue = 1024;
+    private long queueTimeout = 1000;
+    private double rateLimit;
+    private int rateBurst;
+    private int headerTimeout = 10000;
+    private int bodyTimeout = 30000;
+
+    public int getPort() { return port; }
+
+    public String getEngine() { return engine; }
+
+    public int getWorkers() { return workers; }
+
+    public int getBacklog() { return backlog; }
+
+    public int getIdleTimeout() { return idleTimeout; }
+
+    public String getStore() { return store; }
+
+    // Directory for the write-ahead log and snapshots, null keeps the store in memory only
+    public Path getDataDir() { return dataDir; }
+
+    public long getCheckpointInterval() { return checkpointInterval; }
+
+    // Observations kept per station for GET /history, 0 disables the history
+    public int getHistory() { return history; }
+
+    // Maximum age of kept observations in ms, 0 for no limit
+    public long getHistoryWindow() { return historyWindow; }
+
+    // Observations kept over all stations, the oldest are dropped first beyond it
+    public long getHistoryBudget() { return historyBudget; }
+
+    // Name of this server in replicated writes, localhost:port unless given
+    public String getNodeId() { return nodeId != null ? nodeId : "localhost:" + port; }
+
+    // Other aggregation servers whose writes are copied into this one
+    public List<String> getPeers() { return peers; }
+
+    // How often an idle peer's log is polled for new writes, in ms
+    public long getReplicationInterval() { return replicationInterval; }
+
+    // Writes kept for peers to catch up from before they need a snapshot
+    public int getReplicationLog() { return replicationLog; }
+
+    // Every server of a sharded cluster, this one included; empty when not sharded
+    public List<String> getShards() { return shards; }
+
+    // Requests of each kind handled at once, and how many more may wait for their turn
+    public int getPutConcurrency() { return putConcurrency; }
+
+    public int getPutQueue() { return putQueue; }
+
+    public int getGetConcurrency() { return getConcurrency; }
+
+    public int getGetQueue() { return getQueue; }
+
+    // Longest a queued request waits for its turn before it is shed with 503, in ms
+    public long getQueueTimeout() { return queueTimeout; }
+
+    // Requests per second allowed from each client address, 0 for no limit
+    public double getRateLimit() { return rateLimit; }
+
+    // Requests a client may send at once after being idle, one second's worth unless given
+    public int getRateBurst() { return rateBurst > 0 ? rateBurst : (int) Math.max(1, Math.ceil(rateLimit)); }
+
+    // Time allowed for a request's headers to arrive once it has started, then for its body, in ms
+    public int getHeaderTimeout() { return headerTimeout; }
+
+    public int getBodyTimeout() { return bodyTimeout; }
+
+    // Method to build a configuration from command line arguments
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                config.port = Integer.parseInt(arg);
+                continue;
+            }
+
+            String[] option = arg.substring(2).split("=", 2);
+            String value = option.length == 2 ? option[1] : "";
+            switch (option[0]) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "engine":
+                    config.engine = value;
+                    break;
+                case "workers":
+                    config.workers = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "backlog":
+                    config.backlog = Integer.parseInt(value);
+                    break;
+                case "idle-timeout":
+                    config.idleTimeout = Integer.parseInt(value);
+                    break;
+                case "store":
+                    config.store = value;
+                    break;
+                case "data-dir":
+                    config.dataDir = Paths.get(value);
+                    break;
+                case "checkpoint-interval":
+                    config.checkpointInterval = Long.parseLong(value);
+                    break;
+                case "history":
+                    config.history = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "history-window":
+                    config.historyWindow = Long.parseLong(value);
+                    break;
+                case "history-budget":
+                    config.historyBudget = Math.max(0, Long.parseLong(value));
+                    break;
+                case "node-id":
+                    config.nodeId = value;
+                    break;
+                case "peers":
+                    config.peers = value.isEmpty() ? Collections.emptyList() : Arrays.asList(value.split(","));
+                    break;
+                case "replication-interval":
+                    config.replicationInterval = Long.parseLong(value);
+                    break;
+                case "shards":
+                    config.shards = HashRing.parseMembers(value);
+                    break;
+                case "replication-log":
+                    config.replicationLog = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "put-concurrency":
+                    config.putConcurrency = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "put-queue":
+                    config.putQueue = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "get-concurrency":
+                    config.getConcurrency = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "get-queue":
+                    config.getQueue = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "queue-timeout":
+                    config.queueTimeout = Math.max(0, Long.parseLong(value));
+                    break;
+                case "rate-limit":
+                    config.rateLimit = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "rate-burst":
+                    config.rateBurst = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "header-timeout":
+                    config.headerTimeout = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "body-timeout":
+                    config.bodyTimeout = Math.max(1, Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,37 @@
+package main;
+
+import java.io.PrintStream;
+import java.time.Instant;
+
+// The aggregation server's progress and error lines. Each is one line with the time, the level and
+// the thread, so recovery, replication, handoff and request errors read the same way in the log.
+// Progress goes to standard output and problems to standard error. Stack traces are never printed:
+// a failure is reported by its exception's class and message.
+public class ServerLog {
+
+    public static void info(String message) {
+        log(System.out, "INFO", message, null);
+    }
+
+    public static void warn(String message) {
+        log(System.err, "WARN", message, null);
+    }
+
+    public static void warn(String message, Throwable cause) {
+        log(System.err, "WARN", message, cause);
+    }
+
+    public static void error(String message, Throwable cause) {
+        log(System.err, "ERROR", message, cause);
+    }
+
+    private static void log(PrintStream out, String level, String message, Throwable cause) {
+        StringBuilder line = new StringBuilder(96 + message.length())
+                .append(Instant.now()).append(' ').append(level)
+                .append(" [").append(Thread.currentThread().getName()).append("] ").append(message);
+        if (cause != null) {
+            line.append(": ").append(cause);
+        }
+        out.println(line);
+    }
+}
@@ -0,0 +1,180 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// A set of aggregation servers to fail over between, each with a small pool of persistent
+// connections.
+//
+// Every request goes to the healthiest server first: servers that are up are tried in order
+// of their measured latency (a moving average), and a server that failed is skipped until its
+// backoff has passed. Backoff doubles with each consecutive failure, up to a cap, with random
+// jitter so many content servers do not retry in lockstep. One success resets it.
+public class ServerPool implements Closeable {
+    private static final long BASE_BACKOFF = 250;
+    private static final long MAX_BACKOFF = 8000;
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final List<Server> servers = new ArrayList<>();
+    private final int connectionsPerServer;
+
+    // One server's connections and health
+    private static class Server {
+        final String address;
+        final Deque<PersistentConnection> idle = new ArrayDeque<>();
+        double latency; // moving average in ms, 0 until measured
+        int failures;
+        long retryAt;
+
+        Server(String address) {
+            this.address = address;
+        }
+    }
+
+    public ServerPool(List<String> addresses, int connectionsPerServer) {
+        for (String address : addresses) {
+            servers.add(new Server(address));
+        }
+        this.connectionsPerServer = connectionsPerServer;
+    }
+
+    // Method to send a request to the best available server, failing over to the next on a
+    // connection error or a 5xx response. Throws the last error if every server failed.
+    public HttpResponse send(String method, String target, Map<String, String> headers, byte[] body)
+            throws IOException {
+        IOException failure = null;
+        for (Server server : candidates(System.currentTimeMillis())) {
+            PersistentConnection connection = borrow(server);
+            long start = System.nanoTime();
+            try {
+                HttpResponse response = connection.send(method, target, headers, body);
+                if (response.getStatus() >= 500) {
+                    throw new IOException(server.address + " answered " + response.getStatus() + " " + response.getReason());
+                }
+                recordSuccess(server, (System.nanoTime() - start) / 1e6);
+                release(server, connection);
+                return response;
+            } catch (IOException e) {
+                connection.close();
+                recordFailure(server, System.currentTimeMillis());
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new IOException("No servers configured");
+    }
+
+    // Addresses in the order they would be tried now, for logging and tests
+    public synchronized List<String> order(long now) {
+        List<String> addresses = new ArrayList<>();
+        for (Server server : candidates(now)) {
+            addresses.add(server.address);
+        }
+        return addresses;
+    }
+
+    // Time until the next server in backoff may be retried, 0 if one is available now
+    public synchronized long retryDelay(long now) {
+        long earliest = Long.MAX_VALUE;
+        for (Server server : servers) {
+            if (server.retryAt <= now) {
+                return 0;
+            }
+            earliest = Math.min(earliest, server.retryAt);
+        }
+        return earliest == Long.MAX_VALUE ? 0 : earliest - now;
+    }
+
+    // Servers that are up sorted by latency, then those still backing off by when they may be retried,
+    // so a request is still attempted when every server is marked down
+    private synchronized List<Server> candidates(long now) {
+        List<Server> available = new ArrayList<>();
+        List<Server> backingOff = new ArrayList<>();
+        for (Server server : servers) {
+            (server.retryAt <= now ? available : backingOff).add(server);
+        }
+        available.sort(Comparator.comparingDouble(server -> server.latency));
+        backingOff.sort(Comparator.comparingLong(server -> server.retryAt));
+        available.addAll(backingOff);
+        return available;
+    }
+
+    public synchronized void recordSuccess(String address, double latencyMillis) {
+        recordSuccess(find(address), latencyMillis);
+    }
+
+    // Method to count a response time without a success, e.g. the time a request had already waited
+    // when it was abandoned for a faster server, which is a lower bound on the real one
+    public synchronized void recordLatency(String address, double latencyMillis) {
+        recordLatency(find(address), latencyMillis);
+    }
+
+    public synchronized void recordFailure(String address, long now) {
+        recordFailure(find(address), now);
+    }
+
+    private synchronized void recordSuccess(Server server, double latencyMillis) {
+        recordLatency(server, latencyMillis);
+        server.failures = 0;
+        server.retryAt = 0;
+    }
+
+    private synchronized void recordLatency(Server server, double latencyMillis) {
+        server.latency = server.latency == 0
+                ? latencyMillis
+                : server.latency + LATENCY_WEIGHT * (latencyMillis - server.latency);
+    }
+
+    private synchronized void recordFailure(Server server, long now) {
+        server.failures++;
+        server.retryAt = now + backoff(server.failures);
+    }
+
+    // Exponential backoff with equal jitter: half the delay is fixed, the other half random
+    public static long backoff(int failures) {
+        long delay = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private Server find(String address) {
+        for (Server server : servers) {
+            if (server.address.equals(address)) {
+                return server;
+            }
+        }
+        throw new IllegalArgumentException("Unknown server: " + address);
+    }
+
+    // Method to take an idle connection to the server, or a new one, for a caller sending its own
+    // request. It is handed back with release() once the response has been read.
+    public PersistentConnection borrow(String address) {
+        return borrow(find(address));
+    }
+
+    public void release(String address, PersistentConnection connection) {
+        release(find(address), connection);
+    }
+
+    private synchronized PersistentConnection borrow(Server server) {
+        PersistentConnection connection = server.idle.pollFirst();
+        return connection != null ? connection : PersistentConnection.forAddress(server.address);
+    }
+
+    private synchronized void release(Server server, PersistentConnection connection) {
+        if (connection.isOpen() && server.idle.size() < connectionsPerServer) {
+            server.idle.addFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    public synchronized void close() {
+        for (Server server : servers) {
+            for (PersistentConnection connection : server.idle) {
+                connection.close();
+            }
+            server.idle.clear();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Client side of a sharded cluster: knows which server owns each station, keeps pooled
+// connections to every server, and fans a GET out to all of them in parallel.
+//
+// The membership comes from the command line and is reloaded from the servers
+// (GET /cluster/members) whenever one of them answers 421 Misdirected Request, i.e. after the
+// cluster was resized.
+public class ShardRouter implements Closeable {
+    private static final ExecutorService fanOut = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "shard-fan-out");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile HashRing ring;
+    private final Map<String, ServerPool> pools = new ConcurrentHashMap<>();
+
+    // The merged result of a GET sent to every server
+    public static class Gathered {
+        private final byte[] body;
+        private final List<String> missing;
+
+        Gathered(byte[] body, List<String> missing) {
+            this.body = body;
+            this.missing = missing;
+        }
+
+        // Every server's stations, one after another
+        public byte[] getBody() { return body; }
+
+        // Servers that did not answer, so their stations are not in the body
+        public List<String> getMissing() { return missing; }
+    }
+
+    public ShardRouter(List<String> members) {
+        this.ring = new HashRing(members);
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    public void setMembers(List<String> members) {
+        ring = new HashRing(members);
+    }
+
+    public String owner(String stationId) {
+        return ring.owner(stationId);
+    }
+
+    // Connections to one server
+    public ServerPool pool(String member) {
+        return pools.computeIfAbsent(member, address -> new ServerPool(Collections.singletonList(address), 4));
+    }
+
+    // Method to reload the membership from the first server that answers, returns true if it did
+    public boolean refresh() {
+        for (String member : ring.getNodes()) {
+            try {
+                HttpResponse response = pool(member).send("GET", "/cluster/members", Collections.emptyMap(), new byte[0]);
+                if (response.getStatus() == 200) {
+                    setMembers(HashRing.parseMembers(response.getBodyText()));
+                    return true;
+                }
+            } catch (IOException e) {
+                // try the next server
+            }
+        }
+        return false;
+    }
+
+    // Method to send a GET to every server in parallel and concatenate the stations they return,
+    // decompressed if the headers accept a Content-Encoding. Servers that fail are listed in the
+    // result rather than failing the whole request.
+    public Gathered getAll(String target, Map<String, String> headers) {
+        List<String> members = ring.getNodes();
+        List<Future<HttpResponse>> responses = new ArrayList<>(members.size());
+        for (String member : members) {
+            responses.add(fanOut.submit(() -> pool(member).send("GET", target, headers, new byte[0])));
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            try {
+                HttpResponse response = responses.get(i).get().decode();
+                if (response.getStatus() == 200) {
+                    body.write(response.getBody(), 0, response.getBody().length);
+                } else if (response.getStatus() != 204) {
+                    missing.add(members.get(i));
+                }
+            } catch (ExecutionException | IOException e) {
+                missing.add(members.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                missing.add(members.get(i));
+            }
+        }
+        return new Gathered(body.toByteArray(), missing);
+    }
+
+    public void close() {
+        for (ServerPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+    }
+}
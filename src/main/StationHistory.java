@@ -0,0 +1,333 @@
+package main;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Recent observations of every station, so trends survive a station's next PUT.
+//
+// Each station has a ring buffer of up to a fixed number of observations, stored in primitive
+// arrays (receive times plus one column per numeric field). A ring starts small and doubles as
+// the station reports, so a station seen once costs one small row block. The observations of all
+// stations together are capped by a global budget: every observation is stamped into one queue in
+// the order it was recorded, and once the budget is exceeded the oldest observations anywhere are
+// dropped first. Observations older than the optional time window are left out of queries, and a
+// station's history goes when the station expires.
+public class StationHistory {
+    public static final long DEFAULT_BUDGET = 1_000_000;
+    private static final int INITIAL_ROWS = 4;
+
+    // Numeric fields kept for every observation, in output order
+    public static final int[] FIELDS = {
+            WeatherData.AIR_TEMP, WeatherData.APPARENT_T, WeatherData.DEWPT, WeatherData.PRESS,
+            WeatherData.REL_HUM, WeatherData.WIND_SPD_KMH, WeatherData.WIND_SPD_KT
+    };
+
+    private final int capacity;
+    private final long window;
+    private final long budget;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+    // Stamps of the observations in the order they were recorded, with stale stamps of
+    // observations already overwritten or removed mixed in until they are polled or swept
+    private final ConcurrentLinkedQueue<Stamp> order = new ConcurrentLinkedQueue<>();
+    private final AtomicLong kept = new AtomicLong();
+    private final AtomicLong stamped = new AtomicLong();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    // One station's observations, oldest first from head. Rows are numbered by sequence: the one
+    // at head is firstSequence. A ring removed from the map is detached and never written again.
+    private static class Ring {
+        final String stationId;
+        long[] times;
+        int[] present;
+        double[] values; // rows of FIELDS.length columns
+        int head;
+        int size;
+        volatile long firstSequence;
+        volatile boolean detached;
+
+        Ring(String stationId, int rows) {
+            this.stationId = stationId;
+            times = new long[rows];
+            present = new int[rows];
+            values = new double[rows * FIELDS.length];
+        }
+
+        int row(int i) {
+            return (head + i) % times.length;
+        }
+
+        // Method to move the observations into larger arrays, oldest first
+        void grow(int rows) {
+            long[] grownTimes = new long[rows];
+            int[] grownPresent = new int[rows];
+            double[] grownValues = new double[rows * FIELDS.length];
+            for (int i = 0; i < size; i++) {
+                grownTimes[i] = times[row(i)];
+                grownPresent[i] = present[row(i)];
+                System.arraycopy(values, row(i) * FIELDS.length, grownValues, i * FIELDS.length, FIELDS.length);
+            }
+            times = grownTimes;
+            present = grownPresent;
+            values = grownValues;
+            head = 0;
+        }
+    }
+
+    // An observation's place in the global order
+    private static class Stamp {
+        final Ring ring;
+        final long sequence;
+
+        Stamp(Ring ring, long sequence) {
+            this.ring = ring;
+            this.sequence = sequence;
+        }
+
+        // Whether the observation is no longer kept; once true it stays true
+        boolean isStale() {
+            return ring.detached || sequence < ring.firstSequence;
+        }
+    }
+
+    // One observation in a range query
+    public static class Point {
+        private final long time;
+        private final int present;
+        private final double[] values;
+
+        Point(long time, int present, double[] values) {
+            this.time = time;
+            this.present = present;
+            this.values = values;
+        }
+
+        public long getTime() { return time; }
+
+        // Whether the observation has a value for the column (an index into FIELDS)
+        public boolean has(int column) { return (present & (1 << column)) != 0; }
+
+        public double getValue(int column) { return values[column]; }
+    }
+
+    // Keep up to capacity observations per station, and none older than window ms (0 for no limit)
+    public StationHistory(int capacity, long window) {
+        this(capacity, window, DEFAULT_BUDGET);
+    }
+
+    // Keep as well no more than budget observations over all stations
+    public StationHistory(int capacity, long window, long budget) {
+        this.capacity = capacity;
+        this.window = window;
+        this.budget = budget;
+    }
+
+    // Method to record an observation received at the given time
+    public void record(WeatherData data, long time) {
+        if (capacity == 0 || budget == 0) {
+            return;
+        }
+        while (true) {
+            Ring ring = rings.computeIfAbsent(data.getId(), id -> new Ring(id, Math.min(INITIAL_ROWS, capacity)));
+            synchronized (ring) {
+                if (ring.detached) {
+                    continue; // removed since it was looked up, record into the station's new ring
+                }
+                if (ring.size == ring.times.length && ring.size < capacity) {
+                    ring.grow(Math.min(ring.size * 2, capacity));
+                }
+                int row = ring.row(ring.size);
+                if (ring.size == capacity) {
+                    ring.head = (ring.head + 1) % capacity; // overwrite the oldest
+                    ring.firstSequence++;
+                } else {
+                    ring.size++;
+                    kept.incrementAndGet();
+                }
+                int mask = 0;
+                for (int c = 0; c < FIELDS.length; c++) {
+                    if (data.has(FIELDS[c])) {
+                        mask |= 1 << c;
+                        ring.values[row * FIELDS.length + c] = value(data, FIELDS[c]);
+                    }
+                }
+                ring.times[row] = time;
+                ring.present[row] = mask;
+                order.add(new Stamp(ring, ring.firstSequence + ring.size - 1));
+                stamped.incrementAndGet();
+            }
+            break;
+        }
+
+        while (kept.get() > budget && evictOldest()) {
+            // drop the oldest observations until back within the budget
+        }
+        if (stamped.get() > 2 * kept.get() + 1024) {
+            sweep();
+        }
+    }
+
+    // Method to drop the oldest observation still kept, returns false if there is none
+    private boolean evictOldest() {
+        Stamp stamp;
+        while ((stamp = order.poll()) != null) {
+            stamped.decrementAndGet();
+            Ring ring = stamp.ring;
+            synchronized (ring) {
+                if (stamp.isStale() || ring.size == 0) {
+                    continue;
+                }
+                ring.head = (ring.head + 1) % ring.times.length;
+                ring.size--;
+                ring.firstSequence++;
+                kept.decrementAndGet();
+                ring.detached = ring.size == 0;
+            }
+            if (ring.detached) {
+                rings.remove(ring.stationId, ring); // outside the ring's lock, as remove() nests them the other way
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Method to forget the stamps of observations that were overwritten or removed, so the queue
+    // stays proportional to what is kept. Runs on one recording thread at a time.
+    private void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            order.removeIf(stamp -> {
+                if (stamp.isStale()) {
+                    stamped.decrementAndGet();
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    // Observations kept over all stations
+    public long size() {
+        return kept.get();
+    }
+
+    // Method to drop a station's history. The caller decides, as the store does, whether the
+    // station is gone; observations received later than the stored one do not keep it.
+    public void remove(String stationId) {
+        rings.computeIfPresent(stationId, (id, ring) -> {
+            detach(ring);
+            return null;
+        });
+    }
+
+    private void detach(Ring ring) {
+        synchronized (ring) {
+            ring.detached = true;
+            kept.addAndGet(-ring.size);
+            ring.size = 0;
+        }
+    }
+
+    // Method to copy a station's observations received in [from, to], oldest first.
+    // Returns null if the station has no history.
+    public List<Point> range(String stationId, long from, long to, long now) {
+        Ring ring = rings.get(stationId);
+        if (ring == null) {
+            return null;
+        }
+        long oldest = window > 0 ? Math.max(from, now - window) : from;
+        List<Point> points = new ArrayList<>();
+        synchronized (ring) {
+            for (int i = 0; i < ring.size; i++) {
+                int row = ring.row(i);
+                long time = ring.times[row];
+                if (time >= oldest && time <= to) {
+                    points.add(new Point(time, ring.present[row],
+                            Arrays.copyOfRange(ring.values, row * FIELDS.length, (row + 1) * FIELDS.length)));
+                }
+            }
+        }
+        points.sort(Comparator.comparingLong(Point::getTime)); // concurrent PUTs may land out of order
+        return points;
+    }
+
+    // Method to render a range as JSON: every point, or with a bucket width the min, max and
+    // average of each field per bucket, so a chart only downloads what it draws
+    public static String toJson(String stationId, List<Point> points, long bucket) {
+        StringBuilder json = new StringBuilder(64 + points.size() * 96);
+        json.append("{\n    \"id\": ");
+        JsonText.appendString(json, stationId);
+        if (bucket <= 0) {
+            json.append(",\n    \"points\": [");
+            for (int i = 0; i < points.size(); i++) {
+                Point point = points.get(i);
+                json.append(i == 0 ? "\n        {\"time\": " : ",\n        {\"time\": ").append(point.time);
+                for (int c = 0; c < FIELDS.length; c++) {
+                    if (point.has(c)) {
+                        json.append(", \"").append(WeatherData.FIELD_NAMES[FIELDS[c]]).append("\": ").append(point.values[c]);
+                    }
+                }
+                json.append('}');
+            }
+            return json.append(points.isEmpty() ? "]\n}\n" : "\n    ]\n}\n").toString();
+        }
+
+        json.append(",\n    \"bucket\": ").append(bucket).append(",\n    \"buckets\": [");
+        int i = 0;
+        boolean first = true;
+        while (i < points.size()) {
+            long start = Math.floorDiv(points.get(i).time, bucket) * bucket;
+            int count = 0;
+            int[] counts = new int[FIELDS.length];
+            double[] mins = new double[FIELDS.length];
+            double[] maxs = new double[FIELDS.length];
+            double[] sums = new double[FIELDS.length];
+            for (; i < points.size() && points.get(i).time < start + bucket; i++) {
+                Point point = points.get(i);
+                count++;
+                for (int c = 0; c < FIELDS.length; c++) {
+                    if (point.has(c)) {
+                        double value = point.values[c];
+                        mins[c] = counts[c] == 0 ? value : Math.min(mins[c], value);
+                        maxs[c] = counts[c] == 0 ? value : Math.max(maxs[c], value);
+                        sums[c] += value;
+                        counts[c]++;
+                    }
+                }
+            }
+
+            json.append(first ? "\n        {\"start\": " : ",\n        {\"start\": ").append(start)
+                    .append(", \"count\": ").append(count);
+            for (int c = 0; c < FIELDS.length; c++) {
+                if (counts[c] > 0) {
+                    json.append(", \"").append(WeatherData.FIELD_NAMES[FIELDS[c]]).append("\": {\"min\": ").append(mins[c])
+                            .append(", \"max\": ").append(maxs[c])
+                            .append(", \"avg\": ").append(sums[c] / counts[c]).append('}');
+                }
+            }
+            json.append('}');
+            first = false;
+        }
+        return json.append(first ? "]\n}\n" : "\n    ]\n}\n").toString();
+    }
+
+    private static double value(WeatherData data, int field) {
+        switch (field) {
+            case WeatherData.AIR_TEMP: return data.getAir_temp();
+            case WeatherData.APPARENT_T: return data.getApparent_t();
+            case WeatherData.DEWPT: return data.getDewpt();
+            case WeatherData.PRESS: return data.getPress();
+            case WeatherData.REL_HUM: return data.getRel_hum();
+            case WeatherData.WIND_SPD_KMH: return data.getWind_spd_kmh();
+            case WeatherData.WIND_SPD_KT: return data.getWind_spd_kt();
+            default: throw new IllegalArgumentException("Field has no history: " + WeatherData.FIELD_NAMES[field]);
+        }
+    }
+}
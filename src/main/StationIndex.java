@@ -0,0 +1,241 @@
+package main;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Secondary indexes over the stored stations, kept in step with the store on PUT and expiry:
+// a hash index from state to stations and a uniform lat/lon grid for spatial queries. Queries
+// only visit the stations in the matching state or grid cells, never the whole store.
+//
+// Updates are serialised; queries read the concurrent maps without locking.
+public class StationIndex {
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    private final double cellDegrees;
+    private final ConcurrentHashMap<String, Location> stations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byState = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Set<String>> byCell = new ConcurrentHashMap<>();
+
+    // The indexed attributes of one station, and when it was stored
+    public static class Location {
+        private final String state;
+        private final boolean hasPosition;
+        private final double lat;
+        private final double lon;
+        private final long timestamp;
+
+        Location(String state, boolean hasPosition, double lat, double lon, long timestamp) {
+            this.state = state;
+            this.hasPosition = hasPosition;
+            this.lat = lat;
+            this.lon = lon;
+            this.timestamp = timestamp;
+        }
+
+        public String getState() { return state; }
+
+        public boolean hasPosition() { return hasPosition; }
+
+        public double getLat() { return lat; }
+
+        public double getLon() { return lon; }
+
+        public long getTimestamp() { return timestamp; }
+    }
+
+    public StationIndex() {
+        this(1.0);
+    }
+
+    public StationIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+    }
+
+    // Method to index a station stored at the given time. Updates are applied in the order the
+    // store accepted them, which is by Lamport version, so a winning write is indexed even if it
+    // was received before the one it replaces.
+    public synchronized void update(WeatherData data, long timestamp) {
+        String stationId = data.getId();
+        Location previous = stations.get(stationId);
+        boolean hasPosition = data.has(WeatherData.LAT) && data.has(WeatherData.LON);
+        Location location = new Location(data.has(WeatherData.STATE) ? data.getState() : null,
+                hasPosition, data.getLat(), data.getLon(), timestamp);
+
+        // add to the new buckets before leaving the old ones, so a query never misses the station
+        stations.put(stationId, location);
+        if (location.state != null) {
+            byState.computeIfAbsent(location.state, state -> ConcurrentHashMap.newKeySet()).add(stationId);
+        }
+        if (hasPosition) {
+            byCell.computeIfAbsent(cellOf(location.lat, location.lon), cell -> ConcurrentHashMap.newKeySet()).add(stationId);
+        }
+        if (previous != null) {
+            if (previous.state != null && !previous.state.equals(location.state)) {
+                removeFrom(byState, previous.state, stationId);
+            }
+            if (previous.hasPosition && (!hasPosition
+                    || cellOf(previous.lat, previous.lon) != cellOf(location.lat, location.lon))) {
+                removeFrom(byCell, cellOf(previous.lat, previous.lon), stationId);
+            }
+        }
+    }
+
+    // Method to apply a batch of stations received together under one lock acquisition
+    public synchronized void updateAll(List<WeatherData> batch, long timestamp) {
+        for (WeatherData data : batch) {
+            update(data, timestamp);
+        }
+    }
+
+    // Method to drop a station only if it was last indexed at the given time, mirroring the store
+    public synchronized boolean remove(String stationId, long timestamp) {
+        Location location = stations.get(stationId);
+        if (location == null || location.timestamp != timestamp) {
+            return false;
+        }
+        return remove(stationId);
+    }
+
+    public synchronized boolean remove(String stationId) {
+        Location location = stations.remove(stationId);
+        if (location == null) {
+            return false;
+        }
+        if (location.state != null) {
+            removeFrom(byState, location.state, stationId);
+        }
+        if (location.hasPosition) {
+            removeFrom(byCell, cellOf(location.lat, location.lon), stationId);
+        }
+        return true;
+    }
+
+    private static <K> void removeFrom(Map<K, Set<String>> index, K key, String stationId) {
+        Set<String> bucket = index.get(key);
+        if (bucket != null) {
+            bucket.remove(stationId);
+            if (bucket.isEmpty()) {
+                index.remove(key, bucket);
+            }
+        }
+    }
+
+    public Location get(String stationId) {
+        return stations.get(stationId);
+    }
+
+    public int size() {
+        return stations.size();
+    }
+
+    // Stations in the given state
+    public Collection<String> inState(String state) {
+        Set<String> bucket = byState.get(state);
+        return bucket == null ? Collections.emptySet() : bucket;
+    }
+
+    // Method to find the stations inside a bounding box. A box whose minimum longitude is east of
+    // its maximum crosses the antimeridian.
+    public List<String> inBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<String> result = new ArrayList<>();
+        if (minLon > maxLon) {
+            collectBox(minLat, minLon, maxLat, 180, result);
+            collectBox(minLat, -180, maxLat, maxLon, result);
+        } else {
+            collectBox(minLat, minLon, maxLat, maxLon, result);
+        }
+        return result;
+    }
+
+    // Method to find the stations within a great-circle distance of a point
+    public List<String> near(double lat, double lon, double radiusKm) {
+        double latDelta = radiusKm / KM_PER_DEGREE;
+        double minLat = Math.max(-90, lat - latDelta);
+        double maxLat = Math.min(90, lat + latDelta);
+
+        // widen the longitude range by the latitude furthest from the equator
+        double cos = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+        double lonDelta = cos <= 0 ? 180 : radiusKm / (KM_PER_DEGREE * cos);
+        List<String> candidates = lonDelta >= 180
+                ? inBox(minLat, -180, maxLat, 180)
+                : inBox(minLat, normalise(lon - lonDelta), maxLat, normalise(lon + lonDelta));
+
+        List<String> result = new ArrayList<>();
+        for (String stationId : candidates) {
+            Location location = stations.get(stationId);
+            if (location != null && distanceKm(lat, lon, location.lat, location.lon) <= radiusKm) {
+                result.add(stationId);
+            }
+        }
+        return result;
+    }
+
+    // Haversine distance between two points, in kilometres
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // Method to add the stations in a non-wrapping box, visiting only its grid cells (or only
+    // the occupied cells when the box spans more cells than are in use)
+    private void collectBox(double minLat, double minLon, double maxLat, double maxLon, List<String> result) {
+        long minRow = cellIndex(minLat);
+        long maxRow = cellIndex(maxLat);
+        long minColumn = cellIndex(minLon);
+        long maxColumn = cellIndex(maxLon);
+        if (minRow > maxRow || minColumn > maxColumn) {
+            return;
+        }
+
+        if ((maxRow - minRow + 1) * (maxColumn - minColumn + 1) > byCell.size()) {
+            for (Map.Entry<Long, Set<String>> cell : byCell.entrySet()) {
+                long row = cell.getKey() >> 32;
+                long column = (int) (long) cell.getKey();
+                if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+                    collectCell(cell.getValue(), minLat, minLon, maxLat, maxLon, result);
+                }
+            }
+            return;
+        }
+        for (long row = minRow; row <= maxRow; row++) {
+            for (long column = minColumn; column <= maxColumn; column++) {
+                Set<String> bucket = byCell.get(cellKey(row, column));
+                if (bucket != null) {
+                    collectCell(bucket, minLat, minLon, maxLat, maxLon, result);
+                }
+            }
+        }
+    }
+
+    private void collectCell(Set<String> bucket, double minLat, double minLon, double maxLat, double maxLon,
+                             List<String> result) {
+        for (String stationId : bucket) {
+            Location location = stations.get(stationId);
+            if (location != null && location.hasPosition
+                    && location.lat >= minLat && location.lat <= maxLat
+                    && location.lon >= minLon && location.lon <= maxLon) {
+                result.add(stationId);
+            }
+        }
+    }
+
+    private long cellOf(double lat, double lon) {
+        return cellKey(cellIndex(lat), cellIndex(lon));
+    }
+
+    private long cellIndex(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(long row, long column) {
+        return (row << 32) | (column & 0xffffffffL);
+    }
+
+    private static double normalise(double lon) {
+        return lon > 180 ? lon - 360 : lon < -180 ? lon + 360 : lon;
+    }
+}
@@ -0,0 +1,139 @@
+package main;
+
+import java.util.*;
+
+// A filtered GET: GET /weather.json?id=..., ?state=..., ?bbox=minLat,minLon,maxLat,maxLon or
+// ?near=lat,lon&radius=km. Filters can be combined; the most selective one picks the candidate
+// stations from the index and the others are checked against each candidate.
+public class StationQuery {
+    private String stationId;
+    private String state;
+    private double[] box;
+    private double[] near;
+    private double radiusKm;
+
+    // Method to build a query from the request's parameters, returns null if none were given.
+    // Throws IllegalArgumentException for a parameter that cannot be understood.
+    public static StationQuery parse(Map<String, String> parameters) {
+        StationQuery query = new StationQuery();
+        boolean filtered = false;
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String value = parameter.getValue();
+            switch (parameter.getKey()) {
+                case "id":
+                    query.stationId = value;
+                    filtered = true;
+                    break;
+                case "state":
+                    query.state = value;
+                    filtered = true;
+                    break;
+                case "bbox":
+                    query.box = parseNumbers("bbox", value, 4);
+                    checkLatitude(query.box[0]);
+                    checkLatitude(query.box[2]);
+                    checkLongitude(query.box[1]);
+                    checkLongitude(query.box[3]);
+                    if (query.box[0] > query.box[2]) {
+                        throw new IllegalArgumentException("bbox minimum latitude is above its maximum");
+                    }
+                    filtered = true;
+                    break;
+                case "near":
+                    query.near = parseNumbers("near", value, 2);
+                    checkLatitude(query.near[0]);
+                    checkLongitude(query.near[1]);
+                    filtered = true;
+                    break;
+                case "radius":
+                    query.radiusKm = parseNumbers("radius", value, 1)[0];
+                    if (query.radiusKm < 0) {
+                        throw new IllegalArgumentException("radius must not be negative");
+                    }
+                    break;
+                default:
+                    break; // other parameters are left to other handlers
+            }
+        }
+        if ((query.near != null) != parameters.containsKey("radius")) {
+            throw new IllegalArgumentException("near and radius must be given together");
+        }
+        return filtered ? query : null;
+    }
+
+    // Method to find the matching stations that have not expired, sorted by id
+    public List<String> run(StationIndex index, long now, long expiryTime) {
+        Collection<String> candidates;
+        if (stationId != null) {
+            candidates = Collections.singletonList(stationId);
+        } else if (near != null) {
+            candidates = index.near(near[0], near[1], radiusKm);
+        } else if (box != null) {
+            candidates = index.inBox(box[0], box[1], box[2], box[3]);
+        } else {
+            candidates = index.inState(state);
+        }
+
+        // a station moving between grid cells can briefly be listed by both
+        TreeSet<String> matches = new TreeSet<>();
+        for (String candidate : candidates) {
+            StationIndex.Location location = index.get(candidate);
+            if (location != null && now - location.getTimestamp() < expiryTime && matches(candidate, location)) {
+                matches.add(candidate);
+            }
+        }
+        return new ArrayList<>(matches);
+    }
+
+    private boolean matches(String candidate, StationIndex.Location location) {
+        if (stationId != null && !stationId.equals(candidate)) {
+            return false;
+        }
+        if (state != null && !state.equals(location.getState())) {
+            return false;
+        }
+        if (box != null && !(location.hasPosition() && inBox(location.getLat(), location.getLon()))) {
+            return false;
+        }
+        return near == null || (location.hasPosition()
+                && StationIndex.distanceKm(near[0], near[1], location.getLat(), location.getLon()) <= radiusKm);
+    }
+
+    private boolean inBox(double lat, double lon) {
+        if (lat < box[0] || lat > box[2]) {
+            return false;
+        }
+        return box[1] <= box[3] ? lon >= box[1] && lon <= box[3] : lon >= box[1] || lon <= box[3];
+    }
+
+    private static double[] parseNumbers(String name, String value, int count) {
+        String[] parts = value.split(",");
+        if (parts.length != count) {
+            throw new IllegalArgumentException(name + " needs " + count + " comma-separated numbers");
+        }
+        double[] numbers = new double[count];
+        for (int i = 0; i < count; i++) {
+            try {
+                numbers[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " is not a number: " + parts[i]);
+            }
+            if (!Double.isFinite(numbers[i])) {
+                throw new IllegalArgumentException(name + " is not a finite number: " + parts[i]);
+            }
+        }
+        return numbers;
+    }
+
+    private static void checkLatitude(double lat) {
+        if (lat < -90 || lat > 90) {
+            throw new IllegalArgumentException("Latitude out of range: " + lat);
+        }
+    }
+
+    private static void checkLongitude(double lon) {
+        if (lon < -180 || lon > 180) {
+            throw new IllegalArgumentException("Longitude out of range: " + lon);
+        }
+    }
+}
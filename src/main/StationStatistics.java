@@ -0,0 +1,367 @@
+package main;
+
+import java.util.*;
+
+// Live min/max/mean/count of the main numeric fields, over all stations and per state.
+//
+// Each station's values sit in a slot of primitive, column-per-field arrays, and every group
+// (all stations, or one state) keeps running counts, sums, minimums and maximums that are
+// adjusted as a PUT replaces a station's values or expiry removes them. The sums are compensated
+// (Neumaier), so adding and taking away values leaves no rounding drift behind. Each group keeps
+// its minimum and maximum of every field with how many stations hold them; only once the last
+// station holding one goes is the column rescanned, in one pass on the next read, however many
+// extremes went stale since. Otherwise reading the statistics is O(groups).
+public class StationStatistics {
+    // Fields summarised, in output order
+    public static final int[] FIELDS = {
+            WeatherData.AIR_TEMP, WeatherData.APPARENT_T, WeatherData.PRESS, WeatherData.REL_HUM, WeatherData.WIND_SPD_KMH
+    };
+    private static final int GLOBAL = 0;
+
+    // Station columns, indexed by slot
+    private final Map<String, Integer> slots = new HashMap<>();
+    private double[][] columns = new double[FIELDS.length][64];
+    private int[] present = new int[64];
+    private int[] groupOf = new int[64];
+    private long[] timestamps = new long[64];
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int nextSlot;
+
+    // Group aggregates, indexed by group then field. Group 0 is every station.
+    private final Map<String, Integer> groupIds = new HashMap<>();
+    private final List<String> groupNames = new ArrayList<>(Collections.singletonList(null));
+    private int[] members = new int[1];
+    private long[][] counts = new long[1][FIELDS.length];
+    private double[][] sums = new double[1][FIELDS.length];
+    private double[][] compensations = new double[1][FIELDS.length];
+    private Extremes[][] extremes = {newExtremes()};
+
+    // A group's smallest and largest value of one field, with how many stations hold each. Once
+    // the last holder of either goes the pair is stale, and adds are left to the rescan.
+    private static class Extremes {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int atMin;
+        int atMax;
+        boolean stale;
+
+        void add(double value) {
+            if (!stale) {
+                include(value);
+            }
+        }
+
+        void remove(double value) {
+            if (!stale && ((value == min && --atMin == 0) | (value == max && --atMax == 0))) {
+                stale = true;
+            }
+        }
+
+        void include(double value) {
+            if (value < min) {
+                min = value;
+                atMin = 1;
+            } else if (value == min) {
+                atMin++;
+            }
+            if (value > max) {
+                max = value;
+                atMax = 1;
+            } else if (value == max) {
+                atMax++;
+            }
+        }
+    }
+
+    // Method to add or replace a station's values. Updates are applied in the order the store
+    // accepted them, so a winning write replaces the station's values whenever it was received.
+    public synchronized void update(WeatherData data, long timestamp) {
+        Integer existing = slots.get(data.getId());
+        int slot;
+        if (existing != null) {
+            slot = existing;
+            subtract(slot);
+        } else {
+            slot = allocateSlot();
+            slots.put(data.getId(), slot);
+        }
+
+        int mask = 0;
+        for (int f = 0; f < FIELDS.length; f++) {
+            if (data.has(FIELDS[f])) {
+                mask |= 1 << f;
+                columns[f][slot] = value(data, FIELDS[f]);
+            }
+        }
+        present[slot] = mask;
+        groupOf[slot] = data.has(WeatherData.STATE) && data.getState() != null ? groupId(data.getState()) : -1;
+        timestamps[slot] = timestamp;
+        add(slot);
+    }
+
+    // Method to apply a batch of stations received together under one lock acquisition
+    public synchronized void updateAll(List<WeatherData> batch, long timestamp) {
+        for (WeatherData data : batch) {
+            update(data, timestamp);
+        }
+    }
+
+    // Method to remove a station only if it was last updated at the given time, mirroring the store
+    public synchronized boolean remove(String stationId, long timestamp) {
+        Integer slot = slots.get(stationId);
+        if (slot == null || timestamps[slot] != timestamp) {
+            return false;
+        }
+        return remove(stationId);
+    }
+
+    public synchronized boolean remove(String stationId) {
+        Integer slot = slots.remove(stationId);
+        if (slot == null) {
+            return false;
+        }
+        subtract(slot);
+        present[slot] = 0;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        return true;
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    // Method to render the statistics as JSON, for every state or only the given one
+    public synchronized String toJson(String onlyState) {
+        refreshExtremes();
+        StringBuilder json = new StringBuilder(256 + 128 * groupNames.size());
+        json.append("{\n    \"all\": ");
+        appendGroup(json, GLOBAL);
+        json.append(",\n    \"states\": {");
+
+        boolean first = true;
+        List<String> states = new ArrayList<>(groupIds.keySet());
+        Collections.sort(states);
+        for (String state : states) {
+            int group = groupIds.get(state);
+            if ((onlyState != null && !onlyState.equals(state)) || members[group] == 0) {
+                continue;
+            }
+            json.append(first ? "\n        " : ",\n        ");
+            JsonText.appendString(json, state);
+            json.append(": ");
+            appendGroup(json, group);
+            first = false;
+        }
+        return json.append(first ? "}\n}\n" : "\n    }\n}\n").toString();
+    }
+
+    // Count of stations with a value for the field, its minimum, maximum and mean
+    public synchronized long getCount(String state, int field) {
+        Integer group = state == null ? Integer.valueOf(GLOBAL) : groupIds.get(state);
+        return group == null ? 0 : counts[group][column(field)];
+    }
+
+    public synchronized double getMin(String state, int field) {
+        refreshExtremes();
+        return extremes[groupFor(state)][column(field)].min;
+    }
+
+    public synchronized double getMax(String state, int field) {
+        refreshExtremes();
+        return extremes[groupFor(state)][column(field)].max;
+    }
+
+    public synchronized double getMean(String state, int field) {
+        int group = groupFor(state);
+        return sum(group, column(field)) / counts[group][column(field)];
+    }
+
+    private int groupFor(String state) {
+        Integer group = state == null ? Integer.valueOf(GLOBAL) : groupIds.get(state);
+        if (group == null) {
+            throw new IllegalArgumentException("No stations in state " + state);
+        }
+        return group;
+    }
+
+    private static int column(int field) {
+        for (int f = 0; f < FIELDS.length; f++) {
+            if (FIELDS[f] == field) {
+                return f;
+            }
+        }
+        throw new IllegalArgumentException("Field is not summarised: " + WeatherData.FIELD_NAMES[field]);
+    }
+
+    private void appendGroup(StringBuilder json, int group) {
+        json.append("{\n").append(group == GLOBAL ? "        " : "            ")
+                .append("\"stations\": ").append(members[group]);
+        for (int f = 0; f < FIELDS.length; f++) {
+            json.append(",\n").append(group == GLOBAL ? "        \"" : "            \"")
+                    .append(WeatherData.FIELD_NAMES[FIELDS[f]]).append("\": {\"count\": ").append(counts[group][f]);
+            if (counts[group][f] > 0) {
+                json.append(", \"min\": ").append(extremes[group][f].min)
+                        .append(", \"max\": ").append(extremes[group][f].max)
+                        .append(", \"mean\": ").append(sum(group, f) / counts[group][f]);
+            }
+            json.append('}');
+        }
+        json.append(group == GLOBAL ? "\n    }" : "\n        }");
+    }
+
+    // Method to fold a slot's values into its groups
+    private void add(int slot) {
+        members[GLOBAL]++;
+        if (groupOf[slot] >= 0) {
+            members[groupOf[slot]]++;
+        }
+        for (int f = 0; f < FIELDS.length; f++) {
+            if ((present[slot] & (1 << f)) != 0) {
+                addValue(GLOBAL, f, columns[f][slot]);
+                if (groupOf[slot] >= 0) {
+                    addValue(groupOf[slot], f, columns[f][slot]);
+                }
+            }
+        }
+    }
+
+    // Method to take a slot's values back out of its groups
+    private void subtract(int slot) {
+        members[GLOBAL]--;
+        if (groupOf[slot] >= 0) {
+            members[groupOf[slot]]--;
+        }
+        for (int f = 0; f < FIELDS.length; f++) {
+            if ((present[slot] & (1 << f)) != 0) {
+                subtractValue(GLOBAL, f, columns[f][slot]);
+                if (groupOf[slot] >= 0) {
+                    subtractValue(groupOf[slot], f, columns[f][slot]);
+                }
+            }
+        }
+    }
+
+    private void addValue(int group, int f, double value) {
+        counts[group][f]++;
+        addToSum(group, f, value);
+        extremes[group][f].add(value);
+    }
+
+    private void subtractValue(int group, int f, double value) {
+        extremes[group][f].remove(value);
+        if (--counts[group][f] == 0) {
+            sums[group][f] = 0;
+            compensations[group][f] = 0;
+            return;
+        }
+        addToSum(group, f, -value);
+    }
+
+    // Method to add to a running sum, keeping the low-order bits the addition rounded away
+    private void addToSum(int group, int f, double value) {
+        double sum = sums[group][f];
+        double total = sum + value;
+        compensations[group][f] += Math.abs(sum) >= Math.abs(value) ? (sum - total) + value : (value - total) + sum;
+        sums[group][f] = total;
+    }
+
+    private double sum(int group, int f) {
+        return sums[group][f] + compensations[group][f];
+    }
+
+    // Method to recompute the stale extremes from the columns, in one pass over the slots
+    private void refreshExtremes() {
+        boolean anyStale = false;
+        for (Extremes[] group : extremes) {
+            for (Extremes field : group) {
+                if (field.stale) {
+                    field.min = Double.POSITIVE_INFINITY;
+                    field.max = Double.NEGATIVE_INFINITY;
+                    field.atMin = 0;
+                    field.atMax = 0;
+                    anyStale = true;
+                }
+            }
+        }
+        if (!anyStale) {
+            return;
+        }
+        for (int slot = 0; slot < nextSlot; slot++) {
+            for (int f = 0; f < FIELDS.length; f++) {
+                if ((present[slot] & (1 << f)) == 0) {
+                    continue;
+                }
+                if (extremes[GLOBAL][f].stale) {
+                    extremes[GLOBAL][f].include(columns[f][slot]);
+                }
+                if (groupOf[slot] >= 0 && extremes[groupOf[slot]][f].stale) {
+                    extremes[groupOf[slot]][f].include(columns[f][slot]);
+                }
+            }
+        }
+        for (Extremes[] group : extremes) {
+            for (Extremes field : group) {
+                field.stale = false;
+            }
+        }
+    }
+
+    private int groupId(String state) {
+        Integer group = groupIds.get(state);
+        if (group != null) {
+            return group;
+        }
+        int id = groupNames.size();
+        groupNames.add(state);
+        groupIds.put(state, id);
+        members = Arrays.copyOf(members, id + 1);
+        counts = Arrays.copyOf(counts, id + 1);
+        counts[id] = new long[FIELDS.length];
+        sums = Arrays.copyOf(sums, id + 1);
+        sums[id] = new double[FIELDS.length];
+        compensations = Arrays.copyOf(compensations, id + 1);
+        compensations[id] = new double[FIELDS.length];
+        extremes = Arrays.copyOf(extremes, id + 1);
+        extremes[id] = newExtremes();
+        return id;
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (nextSlot == present.length) {
+            int capacity = present.length * 2;
+            for (int f = 0; f < FIELDS.length; f++) {
+                columns[f] = Arrays.copyOf(columns[f], capacity);
+            }
+            present = Arrays.copyOf(present, capacity);
+            groupOf = Arrays.copyOf(groupOf, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        return nextSlot++;
+    }
+
+    private static double value(WeatherData data, int field) {
+        switch (field) {
+            case WeatherData.AIR_TEMP: return data.getAir_temp();
+            case WeatherData.APPARENT_T: return data.getApparent_t();
+            case WeatherData.PRESS: return data.getPress();
+            case WeatherData.REL_HUM: return data.getRel_hum();
+            case WeatherData.WIND_SPD_KMH: return data.getWind_spd_kmh();
+            default: throw new IllegalArgumentException("Field is not summarised: " + WeatherData.FIELD_NAMES[field]);
+        }
+    }
+
+    private static Extremes[] newExtremes() {
+        Extremes[] group = new Extremes[FIELDS.length];
+        for (int f = 0; f < FIELDS.length; f++) {
+            group[f] = new Extremes();
+        }
+        return group;
+    }
+}
@@ -0,0 +1,88 @@
+package main;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// The Lamport version of every stored station's current write: the Lamport time and id of the
+// content server that sent it (or the time it was accepted at and this server's id when the sender
+// gave none), and when it was received. A write only replaces a station's current one if it is
+// newer (a higher Lamport time, or the same time from a higher source id), so servers converge
+// whatever order writes reach them in.
+//
+// Updates are made while holding the station's stripe lock, so checking and replacing a station's
+// version never race; the concurrent map lets writes of different stations go ahead in parallel.
+// With the off-heap store the versions are kept in its records instead, so a station costs no heap
+// object for its version, and they are removed with the station.
+public class StationVersions {
+    private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<>();
+    private final OffHeapWeatherStore records; // null to keep the versions in the map
+
+    public StationVersions() {
+        this(null);
+    }
+
+    private StationVersions(OffHeapWeatherStore records) {
+        this.records = records;
+    }
+
+    // Method to create the versions for the server's store, kept in its records when it is off-heap
+    public static StationVersions forStore(WeatherStore store) {
+        return store instanceof OffHeapWeatherStore ? new StationVersions((OffHeapWeatherStore) store) : new StationVersions();
+    }
+
+    // One station's current version
+    public static class Version {
+        private final long lamportTime;
+        private final String origin;
+        private final long timestamp;
+
+        Version(long lamportTime, String origin, long timestamp) {
+            this.lamportTime = lamportTime;
+            this.origin = origin;
+            this.timestamp = timestamp;
+        }
+
+        public long getLamportTime() { return lamportTime; }
+
+        public String getOrigin() { return origin; }
+
+        public long getTimestamp() { return timestamp; }
+    }
+
+    // Whether a write with the given version would win over the station's current one
+    public boolean isNewer(String stationId, long lamportTime, String origin) {
+        Version current = get(stationId);
+        return current == null
+                || (lamportTime != current.lamportTime ? lamportTime > current.lamportTime : origin.compareTo(current.origin) > 0);
+    }
+
+    // Method to record the version of a write that won, once the write is in the store
+    public void put(String stationId, long lamportTime, String origin, long timestamp) {
+        if (records != null) {
+            records.putVersion(stationId, lamportTime, origin);
+        } else {
+            versions.put(stationId, new Version(lamportTime, origin, timestamp));
+        }
+    }
+
+    // The station's current version, or null if it is not stored
+    public Version get(String stationId) {
+        return records != null ? records.getVersion(stationId) : versions.get(stationId);
+    }
+
+    // Method to forget an expired station, unless it was written again after the given time
+    public void remove(String stationId, long timestamp) {
+        if (records == null) {
+            versions.computeIfPresent(stationId, (id, current) -> current.timestamp == timestamp ? null : current);
+        }
+    }
+
+    public void remove(String stationId) {
+        if (records == null) {
+            versions.remove(stationId);
+        }
+    }
+
+    public int size() {
+        return records != null ? records.size() : versions.size();
+    }
+}
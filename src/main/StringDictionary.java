@@ -0,0 +1,47 @@
+package main;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps repeated strings to small integer codes so records can store an int instead of the text.
+// Codes are never reused, so decoding needs no locking.
+public class StringDictionary {
+    public static final int NULL_CODE = -1;
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private int size;
+
+    // Method to get the code for a string, adding it to the dictionary on first use
+    public int encode(String value) {
+        if (value == null) {
+            return NULL_CODE;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code == null) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                String[] current = values;
+                current[size] = value;
+                code = size++;
+                values = current; // publish the new entry before its code
+                codes.put(value, code);
+            }
+            return code;
+        }
+    }
+
+    public String decode(int code) {
+        return code == NULL_CODE ? null : values[code];
+    }
+
+    public int size() {
+        return codes.size();
+    }
+}
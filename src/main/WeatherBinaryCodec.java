@@ -0,0 +1,309 @@
+package main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Compact binary encoding of stations, an alternative to JSON for PUT bodies
+// (Content-Type: application/x-weather-binary).
+//
+// A message is a version byte, a varint count of stations and then each station: a varint mask of
+// the fields present (the WeatherData.FIELD_* bits) followed by those fields in field-number order.
+// Integers are zigzag varints. A double that is a whole number of hundredths, which every reading
+// in the feed is, is a zigzag varint of its hundredths shifted left by one; anything else is the
+// byte 1 followed by its 8 IEEE bytes. A string is a varint reference into the message's
+// dictionary: 0 means its UTF-8 bytes follow (varint length first) and it becomes the next entry,
+// n means entry n - 1. The dictionary starts with the common states, time zones and wind
+// directions, so a station's repeated strings are usually one byte each.
+public class WeatherBinaryCodec {
+    public static final String CONTENT_TYPE = "application/x-weather-binary";
+    public static final int VERSION = 1;
+
+    // The dictionary every message starts with; entries may only ever be appended to, with VERSION
+    // bumped, or messages already encoded would decode differently
+    private static final String[] PRESET = {
+            "SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT",
+            "CST", "EST", "WST", "ACST", "AEST", "AWST", "ACDT", "AEDT",
+            "N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE", "S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW", "CALM",
+            "Sunny", "Clear", "Mostly sunny", "Partly cloudy", "Mostly cloudy", "Cloudy", "Overcast"
+    };
+    private static final Map<String, Integer> PRESET_CODES = new HashMap<>();
+    static {
+        for (int i = 0; i < PRESET.length; i++) {
+            PRESET_CODES.put(PRESET[i], i);
+        }
+    }
+
+    private static final int RAW_DOUBLE = 1;
+    private static final long MAX_SCALED = 1L << 52;
+
+    // Whether a request or response body is in this encoding
+    public static boolean isBinary(String contentType) {
+        return contentType != null && contentType.trim().startsWith(CONTENT_TYPE);
+    }
+
+    public static byte[] encode(WeatherData station) {
+        return encode(Collections.singletonList(station));
+    }
+
+    // Method to encode stations as one message. A string field that is null is sent as absent.
+    public static byte[] encode(List<WeatherData> stations) {
+        Writer out = new Writer(64 + stations.size() * 48);
+        out.buffer[out.length++] = VERSION;
+        out.writeVarint(stations.size());
+        for (WeatherData station : stations) {
+            int present = station.getPresentFields();
+            String[] strings = strings(station);
+            for (int field = 0; field < strings.length; field++) {
+                if (isString(field) && strings[field] == null) {
+                    present &= ~(1 << field);
+                }
+            }
+            out.writeVarint(present);
+            for (int field = 0; field < WeatherData.FIELD_NAMES.length; field++) {
+                if ((present & (1 << field)) == 0) {
+                    continue;
+                }
+                if (isString(field)) {
+                    out.writeString(strings[field]);
+                } else if (isInt(field)) {
+                    out.writeVarint(zigzag(field == WeatherData.WIND_SPD_KMH ? station.getWind_spd_kmh() : station.getWind_spd_kt()));
+                } else {
+                    out.writeDouble(doubleField(station, field));
+                }
+            }
+        }
+        return Arrays.copyOf(out.buffer, out.length);
+    }
+
+    // Method to decode a message. A malformed one, truncated, with an unknown version, a bad
+    // dictionary reference or a NaN or infinite number, is a syntax error; a station without an id
+    // is not rejected here.
+    public static List<WeatherData> decode(byte[] body) throws WeatherDataParser.ParseException {
+        return new Reader(body).readMessage();
+    }
+
+    private static boolean isString(int field) {
+        return field == WeatherData.ID || field == WeatherData.NAME || field == WeatherData.STATE
+                || field == WeatherData.TIME_ZONE || field == WeatherData.LOCAL_DATE_TIME
+                || field == WeatherData.LOCAL_DATE_TIME_FULL || field == WeatherData.CLOUD || field == WeatherData.WIND_DIR;
+    }
+
+    private static boolean isInt(int field) {
+        return field == WeatherData.WIND_SPD_KMH || field == WeatherData.WIND_SPD_KT;
+    }
+
+    // The string fields of a station by field number, null for the others
+    private static String[] strings(WeatherData station) {
+        String[] strings = new String[WeatherData.FIELD_NAMES.length];
+        strings[WeatherData.ID] = station.getId();
+        strings[WeatherData.NAME] = station.getName();
+        strings[WeatherData.STATE] = station.getState();
+        strings[WeatherData.TIME_ZONE] = station.getTime_zone();
+        strings[WeatherData.LOCAL_DATE_TIME] = station.getLocal_date_time();
+        strings[WeatherData.LOCAL_DATE_TIME_FULL] = station.getLocal_date_time_full();
+        strings[WeatherData.CLOUD] = station.getCloud();
+        strings[WeatherData.WIND_DIR] = station.getWind_dir();
+        return strings;
+    }
+
+    private static double doubleField(WeatherData station, int field) {
+        switch (field) {
+            case WeatherData.LAT: return station.getLat();
+            case WeatherData.LON: return station.getLon();
+            case WeatherData.AIR_TEMP: return station.getAir_temp();
+            case WeatherData.APPARENT_T: return station.getApparent_t();
+            case WeatherData.DEWPT: return station.getDewpt();
+            case WeatherData.PRESS: return station.getPress();
+            default: return station.getRel_hum();
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Writer {
+        byte[] buffer;
+        int length;
+        Map<String, Integer> added; // the message's own entries, after the preset ones
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void ensure(int bytes) {
+            if (length + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+            }
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        void writeDouble(double value) {
+            long scaled = Math.round(value * 100);
+            if (Math.abs(scaled) < MAX_SCALED && Double.doubleToLongBits(scaled / 100.0) == Double.doubleToLongBits(value)) {
+                writeVarint(zigzag(scaled) << 1);
+                return;
+            }
+            ensure(9);
+            buffer[length++] = RAW_DOUBLE;
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (bits >>> shift);
+            }
+        }
+
+        void writeString(String value) {
+            Integer code = PRESET_CODES.get(value);
+            if (code == null && added != null) {
+                code = added.get(value);
+            }
+            if (code != null) {
+                writeVarint(code + 1);
+                return;
+            }
+            if (added == null) {
+                added = new HashMap<>();
+            }
+            added.put(value, PRESET.length + added.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(0);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buffer;
+        private int position;
+        private final List<String> added = new ArrayList<>(); // entries after the preset ones
+
+        Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        List<WeatherData> readMessage() throws WeatherDataParser.ParseException {
+            if (buffer.length == 0 || buffer[0] != VERSION) {
+                throw error("Unknown binary format version");
+            }
+            position = 1;
+            long count = readVarint();
+            if (count > buffer.length - position) { // every station takes at least one byte
+                throw error("Station count " + count + " is larger than the body");
+            }
+            List<WeatherData> stations = new ArrayList<>((int) count);
+            for (int i = 0; i < count; i++) {
+                stations.add(readStation());
+            }
+            if (position != buffer.length) {
+                throw error("Unexpected bytes after the last station");
+            }
+            return stations;
+        }
+
+        private WeatherData readStation() throws WeatherDataParser.ParseException {
+            long present = readVarint();
+            if ((present & ~(long) WeatherData.ALL_FIELDS) != 0) {
+                throw error("Unknown field in mask " + Long.toHexString(present));
+            }
+            String[] strings = new String[WeatherData.FIELD_NAMES.length];
+            double[] doubles = new double[WeatherData.FIELD_NAMES.length];
+            int[] ints = new int[WeatherData.FIELD_NAMES.length];
+            for (int field = 0; field < WeatherData.FIELD_NAMES.length; field++) {
+                if ((present & (1 << field)) == 0) {
+                    continue;
+                }
+                if (isString(field)) {
+                    strings[field] = readString();
+                } else if (isInt(field)) {
+                    long value = unzigzag(readVarint());
+                    if (value != (int) value) {
+                        throw error(WeatherData.FIELD_NAMES[field] + " is out of range");
+                    }
+                    ints[field] = (int) value;
+                } else {
+                    doubles[field] = readDouble();
+                }
+            }
+            WeatherData station = new WeatherData(strings[WeatherData.ID], strings[WeatherData.NAME],
+                    strings[WeatherData.STATE], strings[WeatherData.TIME_ZONE], doubles[WeatherData.LAT],
+                    doubles[WeatherData.LON], strings[WeatherData.LOCAL_DATE_TIME], strings[WeatherData.LOCAL_DATE_TIME_FULL],
+                    doubles[WeatherData.AIR_TEMP], doubles[WeatherData.APPARENT_T], strings[WeatherData.CLOUD],
+                    doubles[WeatherData.DEWPT], doubles[WeatherData.PRESS], doubles[WeatherData.REL_HUM],
+                    strings[WeatherData.WIND_DIR], ints[WeatherData.WIND_SPD_KMH], ints[WeatherData.WIND_SPD_KT]);
+            station.setPresentFields((int) present);
+            return station;
+        }
+
+        private long readVarint() throws WeatherDataParser.ParseException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position == buffer.length) {
+                    throw error("Truncated body");
+                }
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw error("Varint is longer than 10 bytes");
+        }
+
+        private double readDouble() throws WeatherDataParser.ParseException {
+            long tagged = readVarint();
+            if ((tagged & 1) == 0) {
+                return unzigzag(tagged >>> 1) / 100.0;
+            }
+            if (tagged != RAW_DOUBLE || buffer.length - position < 8) {
+                throw error("Malformed double");
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (buffer[position++] & 0xFF);
+            }
+            double value = Double.longBitsToDouble(bits);
+            if (!Double.isFinite(value)) {
+                throw error("Non-finite number"); // the station could not be served as JSON
+            }
+            return value;
+        }
+
+        private String readString() throws WeatherDataParser.ParseException {
+            long reference = readVarint();
+            if (reference > 0) {
+                if (reference <= PRESET.length) {
+                    return PRESET[(int) reference - 1];
+                } else if (reference > PRESET.length + added.size()) {
+                    throw error("Unknown dictionary entry " + reference);
+                }
+                return added.get((int) reference - 1 - PRESET.length);
+            }
+            long length = readVarint();
+            if (length > buffer.length - position) {
+                throw error("Truncated string");
+            }
+            String value = new String(buffer, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            added.add(value);
+            return value;
+        }
+
+        private WeatherDataParser.ParseException error(String message) {
+            return new WeatherDataParser.ParseException(message + " at byte " + position, true);
+        }
+    }
+}
@@ -1,6 +1,32 @@
 package main;
 
 public class WeatherData {
+    // Field numbers, also the bit positions in the present-fields mask
+    public static final int ID = 0;
+    public static final int NAME = 1;
+    public static final int STATE = 2;
+    public static final int TIME_ZONE = 3;
+    public static final int LAT = 4;
+    public static final int LON = 5;
+    public static final int LOCAL_DATE_TIME = 6;
+    public static final int LOCAL_DATE_TIME_FULL = 7;
+    public static final int AIR_TEMP = 8;
+    public static final int APPARENT_T = 9;
+    public static final int CLOUD = 10;
+    public static final int DEWPT = 11;
+    public static final int PRESS = 12;
+    public static final int REL_HUM = 13;
+    public static final int WIND_DIR = 14;
+    public static final int WIND_SPD_KMH = 15;
+    public static final int WIND_SPD_KT = 16;
+
+    // JSON names of the fields, indexed by field number
+    public static final String[] FIELD_NAMES = {
+            "id", "name", "state", "time_zone", "lat", "lon", "local_date_time", "local_date_time_full",
+            "air_temp", "apparent_t", "cloud", "dewpt", "press", "rel_hum", "wind_dir", "wind_spd_kmh", "wind_spd_kt"
+    };
+    public static final int ALL_FIELDS = (1 << FIELD_NAMES.length) - 1;
+
     private String id;
     private String name;
     private String state;
@@ -19,6 +45,14 @@ public class WeatherData {
     private int wind_spd_kmh;
     private int wind_spd_kt;
 
+    // Which fields were actually sent, primitives that were not still read as zero
+    private transient int presentFields = ALL_FIELDS;
+
+    // How many fraction digits each number field was written with, so it can be rendered as sent:
+    // 4 bits per field number holding the count plus one, 0 when unknown (not parsed from JSON, or
+    // written with an exponent or too many digits)
+    private transient long numberScales;
+
     public WeatherData(String id, String name, String state, String time_zone, double lat, double lon,
                        String local_date_time, String local_date_time_full, double air_temp, double apparent_t,
                        String cloud, double dewpt, double press, double rel_hum, String wind_dir,
@@ -93,4 +127,18 @@ public class WeatherData {
 
     public int getWind_spd_kt() { return wind_spd_kt; }
     public void setWind_spd_kt(int wind_spd_kt) { this.wind_spd_kt = wind_spd_kt; }
+
+    public int getPresentFields() { return presentFields; }
+    public void setPresentFields(int presentFields) { this.presentFields = presentFields; }
+
+    // Whether the given field (one of the field numbers above) was present
+    public boolean has(int field) { return (presentFields & (1 << field)) != 0; }
+
+    // Fraction digits a number field was written with, -1 when unknown
+    public int getScale(int field) { return (int) (numberScales >>> (field * 4) & 0xF) - 1; }
+
+    public void setScale(int field, int scale) {
+        long bits = scale >= 0 && scale < 15 ? scale + 1 : 0;
+        numberScales = numberScales & ~(0xFL << (field * 4)) | bits << (field * 4);
+    }
 }
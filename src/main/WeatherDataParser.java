@@ -0,0 +1,684 @@
+package main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Streaming JSON parser that reads a PUT body straight from its bytes into a WeatherData.
+//
+// Keys are matched against the known field names byte by byte and numbers are accumulated
+// directly from their digits, so the only Strings created are the values of string fields.
+// Unknown fields are skipped. A body that is not well-formed JSON is a syntax error; one that
+// is well-formed but has no id or a value of the wrong type is invalid. Batches of stations can
+// be parsed from a JSON array or from newline-delimited JSON, one object per line, and a GET
+// feed can be parsed from a stream as it arrives.
+public class WeatherDataParser {
+    private static final int MAX_DEPTH = 32;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Field names in the order of the WeatherData.FIELD_* bits
+    private static final byte[][] FIELD_NAMES = new byte[WeatherData.FIELD_NAMES.length][];
+    static {
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            FIELD_NAMES[i] = WeatherData.FIELD_NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final byte[] buffer;
+    private final int end;
+    private int position;
+    private int lastField = -1;
+
+    // Result of the last number read
+    private double numberValue;
+    private boolean numberIsIntegral;
+    private int numberScale; // fraction digits of a plain decimal, -1 otherwise
+
+    private WeatherDataParser(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    // Thrown for a body that cannot be accepted. Syntax errors are reported separately from
+    // well-formed JSON that is not valid weather data.
+    public static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean syntaxError;
+
+        public ParseException(String message, boolean syntaxError) {
+            super(message);
+            this.syntaxError = syntaxError;
+        }
+
+        public boolean isSyntaxError() { return syntaxError; }
+    }
+
+    // One station of a batch: the parsed data, or why it was rejected, and where its JSON is
+    public static class Element {
+        private final WeatherData data;
+        private final ParseException error;
+        private final int offset;
+        private final int length;
+
+        Element(WeatherData data, ParseException error, int offset, int length) {
+            this.data = data;
+            this.error = error;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        // The station, or null if it was rejected
+        public WeatherData getData() { return data; }
+
+        public ParseException getError() { return error; }
+
+        // Position of the element's JSON in the parsed buffer
+        public int getOffset() { return offset; }
+
+        public int getLength() { return length; }
+    }
+
+    public static WeatherData parse(byte[] body) throws ParseException {
+        return parse(body, 0, body.length);
+    }
+
+    // Method to parse one JSON object into a WeatherData, recording which fields were present
+    public static WeatherData parse(byte[] buffer, int offset, int length) throws ParseException {
+        WeatherDataParser parser = new WeatherDataParser(buffer, offset, length);
+        WeatherData data = parser.readObject();
+        parser.expectEnd();
+        return data;
+    }
+
+    // Method to parse a JSON array of stations. A station that is not valid weather data is
+    // rejected on its own, but a syntax error anywhere makes the whole array unreadable.
+    public static List<Element> parseArray(byte[] buffer, int offset, int length) throws ParseException {
+        WeatherDataParser parser = new WeatherDataParser(buffer, offset, length);
+        List<Element> elements = new ArrayList<>();
+        parser.skipWhitespace();
+        parser.expect('[');
+        parser.skipWhitespace();
+        if (parser.peek() == ']') {
+            parser.position++;
+        } else {
+            while (true) {
+                parser.skipWhitespace();
+                int start = parser.position;
+                WeatherData data = null;
+                ParseException error = null;
+                try {
+                    data = parser.readObject();
+                } catch (ParseException e) {
+                    if (e.isSyntaxError()) {
+                        throw e;
+                    }
+                    error = e;
+                }
+                elements.add(new Element(data, error, start, parser.position - start));
+
+                parser.skipWhitespace();
+                byte next = parser.next();
+                if (next == ']') {
+                    break;
+                }
+                if (next != ',') {
+                    throw parser.syntaxError("Expected ',' or ']'");
+                }
+            }
+        }
+        parser.expectEnd();
+        return elements;
+    }
+
+    // Method to parse newline-delimited JSON, one station per line. Each line stands alone, so a
+    // malformed line only rejects that station. Blank lines are skipped.
+    public static List<Element> parseLines(byte[] buffer, int offset, int length) {
+        List<Element> elements = new ArrayList<>();
+        int end = offset + length;
+        int start = offset;
+        while (start < end) {
+            int lineEnd = start;
+            while (lineEnd < end && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int trimmed = lineEnd;
+            while (trimmed > start && (buffer[trimmed - 1] == '\r' || buffer[trimmed - 1] == ' ' || buffer[trimmed - 1] == '\t')) {
+                trimmed--;
+            }
+            int first = start;
+            while (first < trimmed && (buffer[first] == ' ' || buffer[first] == '\t')) {
+                first++;
+            }
+            if (first < trimmed) {
+                try {
+                    elements.add(new Element(parse(buffer, first, trimmed - first), null, first, trimmed - first));
+                } catch (ParseException e) {
+                    elements.add(new Element(null, e, first, trimmed - first));
+                }
+            }
+            start = lineEnd + 1;
+        }
+        return elements;
+    }
+
+    // Method to parse stations from a stream as it arrives, passing each one on as soon as its
+    // closing brace is read. The stations may follow each other separated by whitespace, as in a
+    // GET feed, or be the elements of a JSON array. Only the station being read is held in memory.
+    // A station that is not valid weather data is skipped, a syntax error stops the parse.
+    // Returns the number of stations passed on.
+    public static int parseStream(InputStream in, Consumer<WeatherData> stations) throws IOException, ParseException {
+        byte[] chunk = new byte[8192];
+        byte[] station = new byte[1024];
+        int length = 0;
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int count = 0;
+        int n;
+        while ((n = in.read(chunk)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                byte b = chunk[i];
+                if (depth == 0) {
+                    // between stations only the array's punctuation may appear
+                    if (b == '{') {
+                        station[0] = b;
+                        length = 1;
+                        depth = 1;
+                    } else if (b != ' ' && b != '\n' && b != '\r' && b != '\t' && b != '[' && b != ',' && b != ']') {
+                        throw new ParseException("Unexpected '" + (char) b + "' between stations", true);
+                    }
+                    continue;
+                }
+                if (length == station.length) {
+                    if (length >= HttpRequest.MAX_BODY_BYTES) {
+                        throw new ParseException("Station larger than " + HttpRequest.MAX_BODY_BYTES + " bytes", true);
+                    }
+                    station = Arrays.copyOf(station, length * 2);
+                }
+                station[length++] = b;
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    try {
+                        stations.accept(parse(station, 0, length));
+                        count++;
+                    } catch (ParseException e) {
+                        if (e.isSyntaxError()) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+        }
+        if (depth != 0) {
+            throw new ParseException("Stream ended inside a station", true);
+        }
+        return count;
+    }
+
+    // Method to read one object. A value of the wrong type does not stop the parse, so the whole
+    // object is consumed before the first such error is thrown; syntax errors stop it at once.
+    private WeatherData readObject() throws ParseException {
+        WeatherData data = new WeatherData(null, null, null, null, 0, 0, null, null, 0, 0,
+                null, 0, 0, 0, null, 0, 0);
+        int present = 0;
+        ParseException invalid = null;
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                int field = readKey();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+
+                if (field < 0) {
+                    skipValue(0);
+                } else if (peek() == 'n') {
+                    expectLiteral("null"); // a null value leaves the field absent
+                } else {
+                    try {
+                        readField(data, field);
+                        present |= 1 << field;
+                    } catch (ParseException e) {
+                        if (e.isSyntaxError()) {
+                            throw e;
+                        }
+                        if (invalid == null) {
+                            invalid = e;
+                        }
+                    }
+                }
+
+                skipWhitespace();
+                byte next = next();
+                if (next == '}') {
+                    break;
+                }
+                if (next != ',') {
+                    throw syntaxError("Expected ',' or '}'");
+                }
+            }
+        }
+
+        if (invalid != null) {
+            throw invalid;
+        }
+        if (data.getId() == null || data.getId().isEmpty()) {
+            throw new ParseException("Missing station id", false);
+        }
+        data.setPresentFields(present);
+        return data;
+    }
+
+    private void expectEnd() throws ParseException {
+        skipWhitespace();
+        if (position != end) {
+            throw syntaxError("Unexpected data after the JSON value");
+        }
+    }
+
+    private void readField(WeatherData data, int field) throws ParseException {
+        switch (field) {
+            case WeatherData.ID: data.setId(readString(field)); break;
+            case WeatherData.NAME: data.setName(readString(field)); break;
+            case WeatherData.STATE: data.setState(readString(field)); break;
+            case WeatherData.TIME_ZONE: data.setTime_zone(readString(field)); break;
+            case WeatherData.LAT: data.setLat(readDouble(data, field)); break;
+            case WeatherData.LON: data.setLon(readDouble(data, field)); break;
+            case WeatherData.LOCAL_DATE_TIME: data.setLocal_date_time(readString(field)); break;
+            case WeatherData.LOCAL_DATE_TIME_FULL: data.setLocal_date_time_full(readString(field)); break;
+            case WeatherData.AIR_TEMP: data.setAir_temp(readDouble(data, field)); break;
+            case WeatherData.APPARENT_T: data.setApparent_t(readDouble(data, field)); break;
+            case WeatherData.CLOUD: data.setCloud(readString(field)); break;
+            case WeatherData.DEWPT: data.setDewpt(readDouble(data, field)); break;
+            case WeatherData.PRESS: data.setPress(readDouble(data, field)); break;
+            case WeatherData.REL_HUM: data.setRel_hum(readDouble(data, field)); break;
+            case WeatherData.WIND_DIR: data.setWind_dir(readString(field)); break;
+            case WeatherData.WIND_SPD_KMH: data.setWind_spd_kmh(readInt(field)); break;
+            case WeatherData.WIND_SPD_KT: data.setWind_spd_kt(readInt(field)); break;
+            default: throw new IllegalStateException("Unknown field " + field);
+        }
+    }
+
+    // Method to read a key and return its field number, or -1 for a field we do not store
+    private int readKey() throws ParseException {
+        if (peek() != '"') {
+            throw syntaxError("Expected a field name");
+        }
+        int start = position + 1;
+        int scan = start;
+        while (scan < end && buffer[scan] != '"' && buffer[scan] != '\\') {
+            scan++;
+        }
+        if (scan < end && buffer[scan] == '"') {
+            position = scan + 1;
+            return fieldNumber(start, scan - start);
+        }
+
+        // escaped key, decode it the slow way
+        byte[] decoded = readStringValue().getBytes(StandardCharsets.UTF_8);
+        return fieldNumber(decoded, 0, decoded.length);
+    }
+
+    // Content servers send the fields in order, so the one after the last match is tried first
+    private int fieldNumber(int start, int length) {
+        int expected = lastField + 1;
+        if (expected < FIELD_NAMES.length && matches(buffer, start, length, FIELD_NAMES[expected])) {
+            lastField = expected;
+            return expected;
+        }
+        int field = fieldNumber(buffer, start, length);
+        if (field >= 0) {
+            lastField = field;
+        }
+        return field;
+    }
+
+    private static int fieldNumber(byte[] bytes, int start, int length) {
+        for (int field = 0; field < FIELD_NAMES.length; field++) {
+            if (matches(bytes, start, length, FIELD_NAMES[field])) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] bytes, int start, int length, byte[] name) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString(int field) throws ParseException {
+        if (peek() != '"') {
+            throw mismatch(field, "a string");
+        }
+        return readStringValue();
+    }
+
+    // Method to read a number field, keeping how many fraction digits it was written with
+    private double readDouble(WeatherData data, int field) throws ParseException {
+        byte first = peek();
+        if (first != '-' && (first < '0' || first > '9')) {
+            throw mismatch(field, "a number");
+        }
+        readNumber();
+        data.setScale(field, numberScale);
+        return numberValue;
+    }
+
+    private int readInt(int field) throws ParseException {
+        byte first = peek();
+        if (first != '-' && (first < '0' || first > '9')) {
+            throw mismatch(field, "an integer");
+        }
+        readNumber();
+        if (!numberIsIntegral || numberValue < Integer.MIN_VALUE || numberValue > Integer.MAX_VALUE) {
+            throw typeError(field, "an integer");
+        }
+        return (int) numberValue;
+    }
+
+    // Method to read a JSON number without building a String. Up to 15 significant digits with a
+    // small exponent are converted exactly with one multiply or divide; anything longer falls
+    // back to Double.parseDouble.
+    private void readNumber() throws ParseException {
+        int start = position;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            position++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        int fraction = 0;
+        boolean integral = true;
+        boolean plain = true;
+
+        if (!isDigit(peekOrZero())) {
+            throw syntaxError("Invalid number");
+        }
+        if (buffer[position] == '0') {
+            position++;
+        } else {
+            while (position < end && isDigit(buffer[position])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (buffer[position] - '0');
+                    digits++;
+                } else {
+                    exponent++;
+                }
+                position++;
+            }
+        }
+
+        if (position < end && buffer[position] == '.') {
+            integral = false;
+            position++;
+            if (!isDigit(peekOrZero())) {
+                throw syntaxError("Invalid number");
+            }
+            while (position < end && isDigit(buffer[position])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (buffer[position] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                fraction++;
+                position++;
+            }
+        }
+
+        if (position < end && (buffer[position] == 'e' || buffer[position] == 'E')) {
+            integral = false;
+            plain = false;
+            position++;
+            boolean negativeExponent = false;
+            if (position < end && (buffer[position] == '+' || buffer[position] == '-')) {
+                negativeExponent = buffer[position] == '-';
+                position++;
+            }
+            if (!isDigit(peekOrZero())) {
+                throw syntaxError("Invalid number");
+            }
+            int value = 0;
+            while (position < end && isDigit(buffer[position])) {
+                value = Math.min(value * 10 + (buffer[position] - '0'), 100000);
+                position++;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        double value;
+        if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+            value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            value = Double.parseDouble(new String(buffer, start, position - start, StandardCharsets.US_ASCII));
+            negative = false; // already signed
+        }
+        numberValue = negative ? -value : value;
+        numberIsIntegral = integral && digits <= 15;
+        numberScale = plain && digits <= 15 ? fraction : -1;
+    }
+
+    // Method to read a string value. Plain ASCII is copied directly; escapes and multi-byte
+    // UTF-8 take the slower decoding path.
+    private String readStringValue() throws ParseException {
+        position++; // opening quote
+        int start = position;
+        while (position < end) {
+            byte b = buffer[position];
+            if (b == '"') {
+                String value = new String(buffer, start, position - start, StandardCharsets.ISO_8859_1);
+                position++;
+                return value;
+            }
+            if (b == '\\' || b < 0x20) {
+                break; // negative bytes (non-ASCII) are below 0x20 too
+            }
+            position++;
+        }
+
+        StringBuilder value = new StringBuilder(position - start + 16);
+        value.append(new String(buffer, start, position - start, StandardCharsets.ISO_8859_1));
+        while (true) {
+            if (position >= end) {
+                throw syntaxError("Unterminated string");
+            }
+            byte b = buffer[position];
+            if (b == '"') {
+                position++;
+                return value.toString();
+            }
+            if (b == '\\') {
+                position++;
+                byte escape = next();
+                switch (escape) {
+                    case '"': value.append('"'); break;
+                    case '\\': value.append('\\'); break;
+                    case '/': value.append('/'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (end - position < 4) {
+                            throw syntaxError("Invalid unicode escape");
+                        }
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(buffer[position++], 16);
+                            if (digit < 0) {
+                                throw syntaxError("Invalid unicode escape");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        value.append((char) code);
+                        break;
+                    default:
+                        throw syntaxError("Invalid escape");
+                }
+            } else if (b >= 0 && b < 0x20) {
+                throw syntaxError("Control character in string");
+            } else {
+                // a run of plain or multi-byte characters
+                int run = position;
+                while (position < end && buffer[position] != '"' && buffer[position] != '\\'
+                        && (buffer[position] < 0 || buffer[position] >= 0x20)) {
+                    position++;
+                }
+                value.append(new String(buffer, run, position - run, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    // Method to skip over a value of a field we do not store
+    private void skipValue(int depth) throws ParseException {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("JSON nested too deeply");
+        }
+        byte b = peek();
+        switch (b) {
+            case '"':
+                readStringValue();
+                break;
+            case 't':
+                expectLiteral("true");
+                break;
+            case 'f':
+                expectLiteral("false");
+                break;
+            case 'n':
+                expectLiteral("null");
+                break;
+            case '{':
+            case '[':
+                byte close = b == '{' ? (byte) '}' : (byte) ']';
+                position++;
+                skipWhitespace();
+                if (peek() == close) {
+                    position++;
+                    break;
+                }
+                while (true) {
+                    skipWhitespace();
+                    if (b == '{') {
+                        if (peek() != '"') {
+                            throw syntaxError("Expected a field name");
+                        }
+                        readStringValue();
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                    }
+                    skipValue(depth + 1);
+                    skipWhitespace();
+                    byte next = next();
+                    if (next == close) {
+                        break;
+                    }
+                    if (next != ',') {
+                        throw syntaxError("Expected ',' or '" + (char) close + "'");
+                    }
+                }
+                break;
+            default:
+                readNumber();
+        }
+    }
+
+    private void expectLiteral(String literal) throws ParseException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) {
+                throw syntaxError("Invalid literal");
+            }
+        }
+    }
+
+    private void expect(char c) throws ParseException {
+        if (next() != c) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte b = buffer[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private byte peek() throws ParseException {
+        if (position >= end) {
+            throw syntaxError("Unexpected end of JSON");
+        }
+        return buffer[position];
+    }
+
+    private byte peekOrZero() {
+        return position < end ? buffer[position] : 0;
+    }
+
+    private byte next() throws ParseException {
+        byte b = peek();
+        position++;
+        return b;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private ParseException syntaxError(String message) {
+        return new ParseException(message + " at byte " + position, true);
+    }
+
+    // Method to report a value of the wrong type, unless the value is not valid JSON at all
+    private ParseException mismatch(int field, String expected) throws ParseException {
+        skipValue(0);
+        return typeError(field, expected);
+    }
+
+    private static ParseException typeError(int field, String expected) {
+        return new ParseException("Field " + WeatherData.FIELD_NAMES[field] + " must be " + expected, false);
+    }
+}
@@ -0,0 +1,229 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// An immutable /weather.json response body. It is tagged with the Lamport time of the store
+// change it reflects, which is also exposed to clients as its ETag.
+//
+// The body is assembled once per rebuild from the stations' already encoded buffers into one
+// read-only direct buffer, so no station is encoded again (with a store that renders its stations
+// instead, each is rendered and encoded during the rebuild). Every reader is written a view of
+// that same buffer, and a channel writes direct memory without first copying it to a native one.
+//
+// Built with a BufferPool, the direct buffer is taken from the pool and given back once the
+// snapshot has been replaced and every response written from it has been released, so a server
+// rebuilding on every change reuses a couple of buffers instead of allocating one each time.
+// Readers of the body hold a reference (retain() and release()) for as long as they use it.
+public class WeatherSnapshot {
+    public static final WeatherSnapshot EMPTY = new WeatherSnapshot(-1, ByteBuffer.allocateDirect(0), 0, Long.MAX_VALUE, null);
+
+    private final long version;
+    private final ByteBuffer memory;
+    private final ByteBuffer direct;
+    private final BufferPool pool;
+    // One for being the current snapshot, plus one per reader; the memory is reused at zero
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final int stationCount;
+    private final long expiresAt;
+    private final String etag;
+
+    // The body copied to the heap, for writing to a stream, and compressed copies of it, made when
+    // first asked for and shared until the next rebuild
+    private volatile byte[] body;
+    private volatile byte[] gzipBody;
+    private volatile byte[] deflateBody;
+
+    // Direct buffers kept for later rebuilds, at most a couple, each large enough for the feed at
+    // the time it was taken with some room to grow
+    public static class BufferPool {
+        private static final int MIN_CAPACITY = 4096;
+
+        private final int maxBuffers;
+        private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+        public BufferPool(int maxBuffers) {
+            this.maxBuffers = maxBuffers;
+        }
+
+        // Method to take a cleared buffer holding at least the given number of bytes, reusing a
+        // kept one unless it is too small or more than four times too large
+        synchronized ByteBuffer take(int length) {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.capacity() >= length && buffer.capacity() / 4 <= Math.max(length, MIN_CAPACITY)) {
+                    buffers.remove(buffer);
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+            return ByteBuffer.allocateDirect(Math.max(MIN_CAPACITY, length + length / 4));
+        }
+
+        synchronized void give(ByteBuffer buffer) {
+            if (buffers.size() < maxBuffers) {
+                buffers.addLast(buffer);
+            }
+        }
+
+        public synchronized int size() {
+            return buffers.size();
+        }
+    }
+
+    private WeatherSnapshot(long version, ByteBuffer memory, int stationCount, long expiresAt, BufferPool pool) {
+        this.version = version;
+        this.memory = memory;
+        this.direct = memory.asReadOnlyBuffer();
+        this.pool = pool;
+        this.stationCount = stationCount;
+        this.expiresAt = expiresAt;
+        this.etag = "\"" + version + "\"";
+    }
+
+    // Method to gather every live station's encoded JSON, one station per line. Stations whose
+    // expiry time has passed are left out even if they are still stored.
+    public static WeatherSnapshot build(long version, EncodedStations encoded, long now, long expiryTime) {
+        return build(version, encoded, now, expiryTime, null);
+    }
+
+    // Method to build a snapshot into a buffer from the pool, given back to it once released
+    public static WeatherSnapshot build(long version, EncodedStations encoded, long now, long expiryTime,
+                                        BufferPool pool) {
+        return build(version, encoded::forEach, encoded.size(), now, expiryTime, pool);
+    }
+
+    // Method to build a snapshot from a store that renders its stations (see
+    // WeatherStore.keepsJsonAsSent), each encoded to UTF-8 as it is gathered
+    public static WeatherSnapshot build(long version, WeatherStore store, long now, long expiryTime,
+                                        BufferPool pool) {
+        return build(version, visitor -> store.forEach((stationId, json, timestamp) -> visitor.visit(stationId,
+                        ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8)), timestamp)),
+                store.size(), now, expiryTime, pool);
+    }
+
+    private static WeatherSnapshot build(long version, Consumer<EncodedStations.StationVisitor> source, int size,
+                                         long now, long expiryTime, BufferPool pool) {
+        List<ByteBuffer> stations = new ArrayList<>(size + 16);
+        int[] length = new int[1];
+        long[] expiresAt = {Long.MAX_VALUE};
+        source.accept((stationId, json, timestamp) -> {
+            long deadline = timestamp + expiryTime;
+            if (now >= deadline) {
+                return;
+            }
+            stations.add(json);
+            length[0] += json.remaining();
+            expiresAt[0] = Math.min(expiresAt[0], deadline);
+        });
+        ByteBuffer direct = pool != null ? pool.take(length[0]) : ByteBuffer.allocateDirect(length[0]);
+        for (ByteBuffer station : stations) {
+            direct.put(station.duplicate());
+        }
+        direct.flip();
+        return new WeatherSnapshot(version, direct, stations.size(), expiresAt[0], pool);
+    }
+
+    public long getVersion() { return version; }
+
+    // Method to take a reference on the body, false if the snapshot was replaced and its memory
+    // already given back, in which case the caller must use the current snapshot instead
+    public boolean retain() {
+        if (pool == null) {
+            return true; // its memory is never reused
+        }
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Method to drop a reference taken with retain(), or the snapshot's own one once it is
+    // replaced. The memory goes back to the pool when the last is dropped.
+    public void release() {
+        if (pool != null && references.decrementAndGet() == 0) {
+            pool.give(memory);
+        }
+    }
+
+    // Method to get a view of the body for one response, sharing the snapshot's direct memory.
+    // The caller holds a reference until the view has been written.
+    public ByteBuffer getDirectBody() { return direct.duplicate(); }
+
+    // Length of the body in bytes
+    public int getLength() { return direct.remaining(); }
+
+    // Method to get the body as an array, copied from direct memory once per snapshot when first
+    // asked for, by a caller holding a reference. The shared bytes must not be modified.
+    public byte[] getBody() {
+        byte[] copy = body;
+        if (copy == null) {
+            synchronized (this) {
+                copy = body;
+                if (copy == null) {
+                    copy = new byte[direct.remaining()];
+                    direct.duplicate().get(copy);
+                    body = copy;
+                }
+            }
+        }
+        return copy;
+    }
+
+    // Method to get the body compressed with gzip or deflate. It is compressed once per snapshot,
+    // by the first reader that asks, and every other reader gets the same bytes.
+    public byte[] getBody(String encoding) {
+        if (encoding == null) {
+            return getBody();
+        }
+        boolean gzip = encoding.equals(HttpCompression.GZIP);
+        byte[] compressed = gzip ? gzipBody : deflateBody;
+        if (compressed == null) {
+            synchronized (this) {
+                compressed = gzip ? gzipBody : deflateBody;
+                if (compressed == null) {
+                    compressed = HttpCompression.compress(getBody(), encoding);
+                    if (gzip) {
+                        gzipBody = compressed;
+                    } else {
+                        deflateBody = compressed;
+                    }
+                }
+            }
+        }
+        return compressed;
+    }
+
+    public boolean isEmpty() { return stationCount == 0; }
+
+    // When the first station in this snapshot expires, after which it must be rebuilt
+    public long getExpiresAt() { return expiresAt; }
+
+    public String getETag() { return etag; }
+
+    // Method to check an If-None-Match header value against this snapshot's ETag
+    public boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
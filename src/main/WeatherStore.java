@@ -0,0 +1,67 @@
+package main;
+
+import java.util.List;
+
+// Storage backend for the latest observation of every station, selected with --store=map|offheap
+public interface WeatherStore {
+
+    // Store a station's JSON and the time it was received, returns true if the station is new
+    boolean put(String stationId, String json, long timestamp);
+
+    // Store a station that has already been parsed, so stores that keep fields need not parse again
+    default boolean put(WeatherData data, String json, long timestamp) {
+        return put(data.getId(), json, timestamp);
+    }
+
+    // Store a batch of parsed stations received together, returns for each whether it was new.
+    // Stores with a writer lock take it once for the whole batch.
+    default boolean[] putAll(List<WeatherData> data, List<String> json, long timestamp) {
+        boolean[] isNew = new boolean[data.size()];
+        for (int i = 0; i < isNew.length; i++) {
+            isNew[i] = put(data.get(i), json.get(i), timestamp);
+        }
+        return isNew;
+    }
+
+    // The station's JSON, or null if it is not stored
+    String get(String stationId);
+
+    // Remove a station, returns true if it was stored
+    boolean remove(String stationId);
+
+    // Remove a station only if it was last stored at the given time, so an expiry cannot drop
+    // a newer update. The JSON and timestamp are removed together.
+    boolean remove(String stationId, long timestamp);
+
+    int size();
+
+    // Whether get and forEach return each station's JSON exactly as it was stored. A store that
+    // renders it again from the fields it keeps returns false, and the server then serves every
+    // read from the store rather than keep the JSON as sent beside it.
+    default boolean keepsJsonAsSent() {
+        return true;
+    }
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Visit every stored station with its JSON and receive time
+    void forEach(StationVisitor visitor);
+
+    interface StationVisitor {
+        void visit(String stationId, String json, long timestamp);
+    }
+
+    // Method to create the store selected in the server configuration
+    static WeatherStore create(String type) {
+        switch (type) {
+            case "map":
+                return new MapWeatherStore();
+            case "offheap":
+                return new OffHeapWeatherStore();
+            default:
+                throw new IllegalArgumentException("Unknown store: " + type);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// Durable, append-only log of accepted PUTs.
+//
+// Writers append records to an in-memory queue and then wait until they are durable. A single
+// flusher thread writes everything queued since its last flush and fsyncs once (group commit),
+// so concurrent PUTs share the cost of each fsync. The log is split into numbered segments;
+// a checkpoint writes a compacted snapshot of the store and deletes the segments it covers.
+public class WriteAheadLog implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x57534e50; // "WSNP"
+    private static final byte PUT_RECORD = 1;
+    private static final byte SOURCED_PUT_RECORD = 2; // a PUT record followed by its source id
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final Object ROTATE = new Object();
+
+    private final Path directory;
+    private final Object lock = new Object();
+    private final List<Object> queue = new ArrayList<>();
+    private long lastSequence;
+    private long durableSequence;
+    private long checkpointSequence;
+    private IOException failure;
+    private volatile boolean running = true;
+
+    private long recoveredClockTime;
+    private long plannedSegment;
+    private long segment;
+    private FileChannel channel;
+    private Thread flusher;
+
+    // A single accepted PUT: the station's JSON plus when it was received, its Lamport time and
+    // the source that wrote it (null in records written before sources were kept)
+    public static class Record {
+        private final String stationId;
+        private final String json;
+        private final long timestamp;
+        private final long lamportTime;
+        private final String origin;
+
+        public Record(String stationId, String json, long timestamp, long lamportTime) {
+            this(stationId, json, timestamp, lamportTime, null);
+        }
+
+        public Record(String stationId, String json, long timestamp, long lamportTime, String origin) {
+            this.stationId = stationId;
+            this.json = json;
+            this.timestamp = timestamp;
+            this.lamportTime = lamportTime;
+            this.origin = origin;
+        }
+
+        public String getStationId() { return stationId; }
+
+        public String getJson() { return json; }
+
+        public long getTimestamp() { return timestamp; }
+
+        public long getLamportTime() { return lamportTime; }
+
+        public String getOrigin() { return origin; }
+    }
+
+    private WriteAheadLog(Path directory) {
+        this.directory = directory;
+    }
+
+    // Method to open the log in the given directory, replaying the snapshot and the log
+    // segments after it into the consumer. Returns the opened log, ready for appends.
+    public static WriteAheadLog open(Path directory, Consumer<Record> replay) throws IOException {
+        Files.createDirectories(directory);
+        WriteAheadLog log = new WriteAheadLog(directory);
+
+        long firstSegment = log.readSnapshot(replay);
+        long lastSegment = firstSegment - 1;
+        for (long number : log.listSegments()) {
+            if (number < firstSegment) {
+                Files.deleteIfExists(log.segmentPath(number)); // already covered by the snapshot
+                continue;
+            }
+            log.readSegment(number, replay);
+            lastSegment = number;
+        }
+
+        // always append to a fresh segment so a torn tail is never written after
+        log.segment = Math.max(lastSegment + 1, firstSegment);
+        log.plannedSegment = log.segment;
+        log.channel = log.openSegment(log.segment);
+        log.flusher = new Thread(log::runFlusher, "wal-flusher");
+        log.flusher.setDaemon(true);
+        log.flusher.start();
+        return log;
+    }
+
+    // Highest Lamport time seen in the snapshot and the replayed records
+    public long getRecoveredClockTime() {
+        return recoveredClockTime;
+    }
+
+    // Method to apply an update and queue its record atomically, so the order of records in
+    // the log always matches the order in which updates were applied. Returns the sequence
+    // number to pass to awaitDurable().
+    public long append(Record record, Runnable apply) throws IOException {
+        return append(Collections.singletonList(record), apply);
+    }
+
+    // Method to apply a batch of updates and queue all of their records under one lock
+    // acquisition; the returned sequence number covers the whole batch. Once the log has failed
+    // or been closed the updates are not applied, as they could never become durable.
+    public long append(List<Record> records, Runnable apply) throws IOException {
+        List<byte[]> frames = new ArrayList<>(records.size());
+        for (Record record : records) {
+            frames.add(frame(record));
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw new IOException("Write-ahead log failed: " + failure.getMessage(), failure);
+            }
+            if (!running) {
+                throw new IOException("Write-ahead log is closed");
+            }
+            apply.run();
+            queue.addAll(frames);
+            lock.notifyAll();
+            return ++lastSequence;
+        }
+    }
+
+    // Method to block until the record with the given sequence number has been fsynced
+    public void awaitDurable(long sequence) throws IOException {
+        synchronized (lock) {
+            while (durableSequence < sequence && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the write-ahead log");
+                }
+            }
+            if (durableSequence < sequence) {
+                throw failure;
+            }
+        }
+    }
+
+    // Method to write a compacted snapshot of the store and drop the log segments it covers.
+    // The segment is rotated first, so every record in the old segments was applied before
+    // the state is captured.
+    public void checkpoint(long clockTime, Supplier<Collection<Record>> state) throws IOException {
+        long rotation;
+        long newSegment;
+        synchronized (lock) {
+            if (lastSequence == checkpointSequence) {
+                return; // nothing appended since the last checkpoint
+            }
+            queue.add(ROTATE);
+            lock.notifyAll();
+            rotation = ++lastSequence;
+            checkpointSequence = rotation;
+            newSegment = ++plannedSegment;
+        }
+        Collection<Record> records = state.get();
+
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(newSegment);
+            out.writeLong(clockTime);
+            out.writeInt(records.size());
+            for (Record record : records) {
+                out.write(frame(record));
+            }
+        }
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            file.force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+
+        // the old segments can go once the flusher has moved past them
+        awaitDurable(rotation);
+        for (long number : listSegments()) {
+            if (number < newSegment) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    // Flusher loop: take everything queued, write it in one go and fsync once for the batch
+    private void runFlusher() {
+        List<Object> batch = new ArrayList<>();
+        while (true) {
+            long batchEnd;
+            synchronized (lock) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch.addAll(queue);
+                queue.clear();
+                batchEnd = lastSequence;
+            }
+
+            try {
+                List<ByteBuffer> pending = new ArrayList<>();
+                for (Object entry : batch) {
+                    if (entry == ROTATE) {
+                        writeFully(pending);
+                        channel.force(false);
+                        channel.close();
+                        segment++;
+                        channel = openSegment(segment);
+                    } else {
+                        pending.add(ByteBuffer.wrap((byte[]) entry));
+                    }
+                }
+                writeFully(pending);
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+
+            synchronized (lock) {
+                durableSequence = batchEnd;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeFully(List<ByteBuffer> buffers) throws IOException {
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : array) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(array);
+        }
+        buffers.clear();
+    }
+
+    public void close() throws IOException {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    // Record frame: length, CRC32 of the payload, then the payload itself
+    private static byte[] frame(Record record) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(record.json.length() + 64);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(record.origin == null ? PUT_RECORD : SOURCED_PUT_RECORD);
+            out.writeLong(record.lamportTime);
+            out.writeLong(record.timestamp);
+            out.writeUTF(record.stationId);
+            if (record.origin != null) {
+                out.writeUTF(record.origin);
+            }
+            byte[] json = record.json.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(json.length);
+            out.write(json);
+
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer frame = ByteBuffer.allocate(8 + bytes.length);
+            frame.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+            return frame.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen writing to memory
+        }
+    }
+
+    // Method to read the next record frame, returns null at the end of the valid data
+    private static Record readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int checksum = in.readInt();
+        if (length <= 0 || length > HttpRequest.MAX_BODY_BYTES + 1024) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte type = payload.readByte();
+        if (type != PUT_RECORD && type != SOURCED_PUT_RECORD) {
+            return null;
+        }
+        long lamportTime = payload.readLong();
+        long timestamp = payload.readLong();
+        String stationId = payload.readUTF();
+        String origin = type == SOURCED_PUT_RECORD ? payload.readUTF() : null;
+        byte[] json = new byte[payload.readInt()];
+        payload.readFully(json);
+        return new Record(stationId, new String(json, StandardCharsets.UTF_8), timestamp, lamportTime, origin);
+    }
+
+    // Method to replay the snapshot, returns the first log segment it does not cover
+    private long readSnapshot(Consumer<Record> replay) throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            long firstSegment = in.readLong();
+            long clockTime = in.readLong();
+            int count = in.readInt();
+            recoveredClockTime = Math.max(recoveredClockTime, clockTime);
+            for (int i = 0; i < count; i++) {
+                Record record = readFrame(in);
+                if (record == null) {
+                    throw new IOException("Corrupt snapshot file: " + file);
+                }
+                recoveredClockTime = Math.max(recoveredClockTime, record.lamportTime);
+                replay.accept(record);
+            }
+            return firstSegment;
+        }
+    }
+
+    // Method to replay one segment. A torn or corrupt tail from a crash ends the segment.
+    private void readSegment(long number, Consumer<Record> replay) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(number))))) {
+            Record record;
+            while ((record = readFrame(in)) != null) {
+                recoveredClockTime = Math.max(recoveredClockTime, record.lamportTime);
+                replay.accept(record);
+            }
+        } catch (EOFException e) {
+            // partial record at the end of the segment
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(4, name.length() - 4)));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("wal-%012d.log", number));
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        FileChannel file = FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncDirectory();
+        return file;
+    }
+
+    // Method to make file creation and renames durable, where the platform allows it
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+            // not supported on every platform
+        }
+    }
+}